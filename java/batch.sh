@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+FILE=${1:--}
+CHUNK=${2:-1000}
+
+# Example: bash batch.sh clinic.txt 1000
+java -cp lib/*:bin/ BatchRunner $DBNAME $PORT $USER $FILE $CHUNK
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+DATA=${1:-../data}
+
+# Example: bash load.sh ../data
+java -cp lib/*:bin/ BulkLoader $DBNAME $PORT $USER $DATA
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+USER=$USER
+SHARDS=${SHARDS:-shards.properties}
+
+# Example: bash rebalance.sh 3 0 1 (move hospital 3 from shard 0 to shard 1),
+# or bash rebalance.sh to list where every hospital is
+java -cp lib/*:bin/ Rebalance $DBNAME $USER $SHARDS $@
@@ -2,6 +2,14 @@
 DBNAME=$USER"_DB"
 PORT=$PGPORT
 USER=$USER
+#ports of replicas for listings and reports, e.g. 10000,10001 (postgresql/startReplica.sh)
+REPLICAS=${REPLICAS:-}
+#shard map to spread the hospitals over several instances, e.g. shards.properties
+SHARDS=${SHARDS:-}
+#directory to keep the tables in without a server, loaded from ../data the first time, e.g. embedded
+EMBEDDED=${EMBEDDED:-}
+#file to keep the reference data in between runs, for a start without waiting for the database, e.g. reference.snapshot
+FAST_START=${FAST_START:-}
 
-# Example: source ./run.sh
-java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+# Example: source ./run.sh, REPLICAS=10000 source ./run.sh, EMBEDDED=embedded source ./run.sh, or FAST_START=reference.snapshot source ./run.sh
+java -Ddbproject.replicas=$REPLICAS -Ddbproject.shards=$SHARDS -Ddbproject.fastStart=$FAST_START -Ddbproject.embedded=$EMBEDDED -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
@@ -0,0 +1,14 @@
+#! /bin/bash
+DBNAME=$USER"_DB"
+PORT=$PGPORT
+USER=$USER
+HTTP_PORT=${1:-8080}
+#ports of replicas for listings and reports, e.g. 10000,10001 (postgresql/startReplica.sh)
+REPLICAS=${REPLICAS:-}
+#shard map to spread the hospitals over several instances, e.g. shards.properties
+SHARDS=${SHARDS:-}
+#file to keep the reference data in between runs, for a start without waiting for the database, e.g. reference.snapshot
+FAST_START=${FAST_START:-}
+
+# Example: bash server.sh 8080, REPLICAS=10000 bash server.sh 8080, or FAST_START=reference.snapshot bash server.sh 8080
+java -Ddbproject.replicas=$REPLICAS -Ddbproject.shards=$SHARDS -Ddbproject.fastStart=$FAST_START -cp lib/*:bin/ BookingServer $DBNAME $PORT $USER $HTTP_PORT
\ No newline at end of file
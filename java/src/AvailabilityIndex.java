@@ -0,0 +1,349 @@
+/*
+ * Availability index
+ * ==================
+ *
+ * Keeps the available appointments of every department and date in memory,
+ * so listing them does not need the join of Department, Doctor,
+ * has_appointment and Appointment.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class numbers the appointments it knows and keeps, per department
+ * and date, a sorted array of those numbers; one bit per appointment says
+ * whether it is available. Booking an appointment clears its bit, without
+ * touching the arrays, and an appointment of several departments shares its
+ * bit between them.
+ *
+ * The index is kept current by the bookings of this process and by the
+ * triggers of sql/triggers.sql, which NOTIFY the availability channel with
+ * the ID of every appointment that may have changed; the listener thread of
+ * the ReferenceCache refreshes those appointments from the database. Until
+ * the first load has finished, and whenever notifications may have been
+ * lost, the index is cold and lookups return null so the caller asks the
+ * database instead. Changes made by other processes are seen once their
+ * notification has been handled, within about a listener poll.
+ *
+ */
+
+public class AvailabilityIndex{
+	static final String CHANNEL = "availability";
+	//more changed appointments than this in one poll reload the whole index
+	static final int MAX_REFRESH = 256;
+
+	static final String AVAILABLE = "SELECT A.appnt_ID, D.did, A.adate - DATE '1970-01-01'\nFROM Appointment A, has_appointment H, Doctor D\nWHERE A.status = 'AV' AND H.appt_id = A.appnt_ID AND D.doctor_ID = H.doctor_id;";
+	static final String DEPARTMENT_NAMES = "SELECT dept_ID, name FROM Department;";
+	static final String AVAILABILITY_OF = "SELECT A.status, D.did, A.adate - DATE '1970-01-01'\nFROM Appointment A, has_appointment H, Doctor D\nWHERE A.appnt_ID = ? AND H.appt_id = A.appnt_ID AND D.doctor_ID = H.doctor_id;";
+
+	/**
+	 * The appointments known at one time and which of them are available.
+	 * Only used while holding the lock of the index.
+	 */
+	private static final class State{
+		//appointment ID and date of every numbered appointment
+		int[] ids = new int[1024];
+		int[] days = new int[1024];
+		int size = 0;
+		final BitSet available = new BitSet();
+		final ReferenceCache.IntIntMap numbers = new ReferenceCache.IntIntMap(1024);
+		//department and date to the sorted numbers of its appointments
+		final Map<Long, int[]> entries = new HashMap<Long, int[]>();
+		final Map<String, int[]> departments = new HashMap<String, int[]>();
+
+		/**
+		 * @return the number of the appointment, numbering it if it is new
+		 */
+		int number(int apptId, int day){
+			int number = this.numbers.get(apptId, -1);
+			if (number >= 0){
+				this.days[number] = day;
+				return number;
+			}//end if
+			if (this.size == this.ids.length){
+				this.ids = Arrays.copyOf(this.ids, this.size * 2);
+				this.days = Arrays.copyOf(this.days, this.size * 2);
+			}//end if
+			number = this.size++;
+			this.ids[number] = apptId;
+			this.days[number] = day;
+			this.numbers.put(apptId, number);
+			return number;
+		}
+
+		/**
+		 * Method to list an appointment under a department and date.
+		 */
+		void add(int department, int day, int number){
+			Long key = key(department, day);
+			int[] numbers = this.entries.get(key);
+			if (numbers == null){
+				this.entries.put(key, new int[]{ number });
+				return;
+			}//end if
+			int at = Arrays.binarySearch(numbers, number);
+			if (at >= 0) return;
+			at = -at - 1;
+			int[] grown = new int[numbers.length + 1];
+			System.arraycopy(numbers, 0, grown, 0, at);
+			grown[at] = number;
+			System.arraycopy(numbers, at, grown, at + 1, numbers.length - at);
+			this.entries.put(key, grown);
+		}
+
+		long bytes(){
+			long bytes = 2 * (16 + 4L * this.ids.length) + this.available.size() / 8 + this.numbers.bytes();
+			for (int[] numbers : this.entries.values()) bytes += 16 + 4L * numbers.length + 48;
+			return bytes;
+		}
+	}
+
+	private final DBproject _esql;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	//null while the index is cold
+	private State _state = null;
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _cold = new LongAdder();
+	private final LongAdder _loads = new LongAdder();
+	private final LongAdder _refreshes = new LongAdder();
+
+	public AvailabilityIndex(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to keep the index current from the notifications of a cache.
+	 * The index loads itself when the listener session starts.
+	 *
+	 * @return this index
+	 */
+	public AvailabilityIndex subscribe(ReferenceCache cache){
+		final AvailabilityIndex index = this;
+		cache.subscribe(CHANNEL, new ReferenceCache.Subscriber(){
+			public void notified(List<String> payloads){
+				index.refresh(payloads);
+			}
+			public void missed(){
+				index.reload();
+			}
+		});
+		// a department renamed or a doctor moved changes the lists wholesale
+		cache.subscribe(ReferenceCache.CHANNEL, new ReferenceCache.Subscriber(){
+			public void notified(List<String> payloads){
+				if (payloads.contains("department") || payloads.contains("doctor")) index.reload();
+			}
+			public void missed(){
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Method to read the available appointments and replace the index.
+	 *
+	 * @throws java.sql.SQLException when they cannot be read; the index is then cold
+	 */
+	public void load() throws SQLException {
+		final State state = new State();
+		this._esql.executeQueryForEach(DEPARTMENT_NAMES, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				int[] ids = state.departments.get(row.getString(2));
+				ids = ids == null ? new int[1] : Arrays.copyOf(ids, ids.length + 1);
+				ids[ids.length - 1] = row.getInt(1);
+				state.departments.put(row.getString(2), ids);
+			}
+		});
+		this._esql.streamQueryForEach(AVAILABLE, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				int day = row.getInt(3);
+				int number = state.number(row.getInt(1), day);
+				state.available.set(number);
+				state.add(row.getInt(2), day, number);
+			}
+		});
+		this._lock.writeLock().lock();
+		try{
+			this._state = state;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+		this._loads.increment();
+	}
+
+	/**
+	 * @return the sorted IDs of the available appointments of the
+	 * departments with that name on a date, or null when the index is cold
+	 */
+	public int[] available(String department, LocalDate date){
+		int day = (int) date.toEpochDay();
+		this._lock.readLock().lock();
+		try{
+			State state = this._state;
+			if (state == null){
+				this._cold.increment();
+				return null;
+			}//end if
+			this._hits.increment();
+			int[] departments = state.departments.get(department);
+			if (departments == null) return new int[0];
+			int[] ids = new int[16];
+			int count = 0;
+			for (int dept : departments){
+				int[] numbers = state.entries.get(key(dept, day));
+				if (numbers == null) continue;
+				for (int number : numbers){
+					// a rescheduled appointment stays listed under its old date
+					if (!state.available.get(number) || state.days[number] != day) continue;
+					if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+					ids[count++] = state.ids[number];
+				}//end for
+			}//end for
+			ids = Arrays.copyOf(ids, count);
+			Arrays.sort(ids);
+			if (departments.length > 1) ids = distinct(ids);
+			return ids;
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to record that an appointment is no longer available, after
+	 * this process booked it.
+	 */
+	public void taken(int apptId){
+		this._lock.writeLock().lock();
+		try{
+			if (this._state == null) return;
+			int number = this._state.numbers.get(apptId, -1);
+			if (number >= 0) this._state.available.clear(number);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to make the index cold until the next load.
+	 */
+	public void invalidate(){
+		this._lock.writeLock().lock();
+		try{
+			this._state = null;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public boolean isCold(){
+		this._lock.readLock().lock();
+		try{
+			return this._state == null;
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	public String toString(){
+		this._lock.readLock().lock();
+		try{
+			State state = this._state;
+			if (state == null) return String.format("availability index: cold, %d lookups answered, %d cold lookups, %d loads",
+				this._hits.sum(), this._cold.sum(), this._loads.sum());
+			return String.format("availability index: %d appointments, %d available, %d department dates, %d lookups answered, %d cold lookups, %d loads, %d refreshes, %.1f KB",
+				state.size, state.available.cardinality(), state.entries.size(), this._hits.sum(), this._cold.sum(),
+				this._loads.sum(), this._refreshes.sum(), state.bytes() / 1024.0);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to reload the index, leaving it cold if that fails; the next
+	 * listening session tries again.
+	 */
+	private void reload(){
+		try{
+			load();
+		}catch (SQLException e){
+			invalidate();
+		}//end try
+	}
+
+	/**
+	 * Method to read the appointments named by notification payloads again.
+	 */
+	private void refresh(List<String> payloads){
+		if (isCold()) return;
+		if (payloads.size() > MAX_REFRESH){
+			reload();
+			return;
+		}//end if
+		try{
+			for (String payload : payloads){
+				int apptId;
+				try{
+					apptId = Integer.parseInt(payload);
+				}catch (NumberFormatException e){
+					// a truncate, or a payload of a newer schema
+					reload();
+					return;
+				}//end try
+				refresh(apptId);
+			}//end for
+		}catch (SQLException e){
+			invalidate();
+		}//end try
+	}
+
+	private void refresh(final int apptId) throws SQLException {
+		final List<int[]> places = new ArrayList<int[]>();
+		final boolean[] available = new boolean[1];
+		this._esql.executeQueryForEach(AVAILABILITY_OF, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				available[0] = "AV".equals(row.getString(1));
+				places.add(new int[]{ row.getInt(2), row.getInt(3) });
+			}
+		}, apptId);
+		this._refreshes.increment();
+
+		this._lock.writeLock().lock();
+		try{
+			State state = this._state;
+			if (state == null) return;
+			int number = state.numbers.get(apptId, -1);
+			if (places.isEmpty() || !available[0]){
+				// deleted, taken, or no longer given by any doctor
+				if (number >= 0) state.available.clear(number);
+				return;
+			}//end if
+			number = state.number(apptId, places.get(0)[1]);
+			for (int[] place : places)
+				state.add(place[0], place[1], number);
+			state.available.set(number);
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	private static Long key(int department, int day){
+		return ((long) department << 32) | (day & 0xFFFFFFFFL);
+	}
+
+	private static int[] distinct(int[] sorted){
+		int count = 0;
+		for (int i = 0; i < sorted.length; ++i)
+			if (i == 0 || sorted[i] != sorted[i - 1]) sorted[count++] = sorted[i];
+		return Arrays.copyOf(sorted, count);
+	}
+}
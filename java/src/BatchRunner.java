@@ -0,0 +1,286 @@
+/*
+ * Batch runner
+ * ============
+ *
+ * Runs the add and book operations of the menu from a command file instead
+ * of the prompts, for loading a new clinic in one go.
+ *
+ * Usage: java -cp lib/*:bin/ BatchRunner <dbname> <port> <user> [command file|-] [chunk size]
+ *
+ * One command per line, fields separated by ',' as in data/*.csv; blank
+ * lines and lines starting with '#' are skipped. Without a file, or with
+ * '-', the commands are read from standard input.
+ *
+ *   doctor,<doctor id>,<name>,<specialty>,<department id>
+ *   patient,<patient id>,<name>,<M|F>,<age>,<address>[,<appointments>]
+ *   appointment,<appointment id>,<MM/DD/YYYY>,<HH:MM-HH:MM>,<status>[,<doctor id>]
+ *   book,<patient id>,<doctor id>,<appointment id>
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reads the commands in chunks. The adds of a chunk are sent as
+ * one JDBC batch per statement, which the driver rewrites into multi-row
+ * INSERTs, and committed together. When the batch fails, the chunk is
+ * rolled back and run again one command at a time, each under a savepoint,
+ * so only the failing commands are lost and each is reported with its line.
+ * Commands that cannot be valid are reported without being sent.
+ *
+ * Bookings cannot be batched, as each depends on the status the previous
+ * one left; they run after the adds of their chunk through BookingEngine,
+ * one round trip each when sql/booking.sql is installed.
+ *
+ */
+
+public class BatchRunner{
+	static final int DEFAULT_CHUNK_SIZE = 1000;
+	static final String URL_OPTIONS = "reWriteBatchedInserts=true";
+
+	static final String INSERT_HAS_APPOINTMENT = "INSERT INTO has_appointment (appt_id, doctor_id) VALUES (?, ?);";
+	//statements of the adds, in the order a chunk runs them so references resolve
+	static final String[] ADD_STATEMENTS = { DBproject.INSERT_DOCTOR, DBproject.INSERT_PATIENT, DBproject.INSERT_APPOINTMENT, INSERT_HAS_APPOINTMENT };
+
+	/**
+	 * One parsed command and the statements it runs.
+	 */
+	static class Command{
+		final int line;
+		//null for a booking
+		final String[] statements;
+		final Object[][] params;
+		final int[] booking;
+
+		Command(int line, String[] statements, Object[][] params){
+			this.line = line;
+			this.statements = statements;
+			this.params = params;
+			this.booking = null;
+		}
+
+		Command(int line, int patientId, int doctorId, int apptId){
+			this.line = line;
+			this.statements = null;
+			this.params = null;
+			this.booking = new int[]{ patientId, doctorId, apptId };
+		}
+	}
+
+	private final DBproject _esql;
+	private final BookingEngine _engine;
+	private long _done = 0;
+	private long _failed = 0;
+
+	public BatchRunner(DBproject esql, BookingEngine engine){
+		this._esql = esql;
+		this._engine = engine;
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BatchRunner.class.getName () +
+		            " <dbname> <port> <user> [command file|-] [chunk size]");
+			return;
+		}//end if
+		String file = args.length > 3 ? args[3] : "-";
+		int chunkSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_CHUNK_SIZE;
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "", 1, URL_OPTIONS);
+		BatchRunner runner;
+		try{
+			ReferenceCache cache = new ReferenceCache(esql);
+			cache.load();
+			runner = new BatchRunner(esql, new BookingEngine(esql, cache));
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+				file.equals("-") ? System.in : new FileInputStream(file), StandardCharsets.UTF_8));
+			long begin = System.nanoTime();
+			try{
+				runner.run(in, chunkSize);
+			}finally{
+				in.close();
+			}
+			double seconds = (System.nanoTime() - begin) / 1e9;
+			System.out.printf("%d commands in %.2f s (%.0f commands/s), %d failed%n",
+				runner._done + runner._failed, seconds, (runner._done + runner._failed) / Math.max(seconds, 1e-9), runner._failed);
+		}finally{
+			esql.cleanup ();
+		}
+		if (runner._failed > 0) System.exit(1);
+	}
+
+	/**
+	 * Method to run every command of a stream, committing after each chunk.
+	 */
+	public void run(BufferedReader in, int chunkSize) throws IOException, SQLException {
+		List<Command> chunk = new ArrayList<Command>();
+		String text;
+		int line = 0;
+		while ((text = in.readLine()) != null){
+			++line;
+			text = text.trim();
+			if (text.isEmpty() || text.startsWith("#")) continue;
+			try{
+				chunk.add(parse(line, text));
+			}catch (IllegalArgumentException e){
+				failed(line, e.getMessage());
+				continue;
+			}//end try
+			if (chunk.size() >= chunkSize){
+				runChunk(chunk);
+				chunk.clear();
+			}//end if
+		}//end while
+		runChunk(chunk);
+	}
+
+	/**
+	 * @return the command of a line
+	 * @throws IllegalArgumentException when the line is not a valid command
+	 */
+	static Command parse(int line, String text){
+		String[] f = text.split(",", -1);
+		for (int i = 0; i < f.length; ++i) f[i] = f[i].trim();
+		String kind = f[0].toLowerCase();
+		if (kind.equals("doctor")){
+			fields(f, 5, 5);
+			HospitalService.checkDoctor(f[2], f[3]);
+			return new Command(line, new String[]{ DBproject.INSERT_DOCTOR },
+				new Object[][]{ { integer(f[1], "doctor id"), f[2], f[3], integer(f[4], "department id") } });
+		}else if (kind.equals("patient")){
+			fields(f, 6, 7);
+			int age = integer(f[4], "age");
+			HospitalService.checkPatient(f[2], f[3], age, f[5]);
+			int appointments = f.length > 6 ? integer(f[6], "appointments") : 0;
+			if (appointments < 0) throw new IllegalArgumentException("Number of appointments must not be negative");
+			return new Command(line, new String[]{ DBproject.INSERT_PATIENT },
+				new Object[][]{ { integer(f[1], "patient id"), f[2], f[3], age, f[5], appointments } });
+		}else if (kind.equals("appointment")){
+			fields(f, 5, 6);
+			int apptId = integer(f[1], "appointment id");
+			LocalDate date = HospitalService.parseDate(f[2]);
+			HospitalService.checkAppointment(date, f[3], f[4]);
+			Object[] appointment = { apptId, HospitalService.date(date), f[3], f[4] };
+			if (f.length == 5) return new Command(line, new String[]{ DBproject.INSERT_APPOINTMENT }, new Object[][]{ appointment });
+			return new Command(line, new String[]{ DBproject.INSERT_APPOINTMENT, INSERT_HAS_APPOINTMENT },
+				new Object[][]{ appointment, { apptId, integer(f[5], "doctor id") } });
+		}else if (kind.equals("book")){
+			fields(f, 4, 4);
+			return new Command(line, integer(f[1], "patient id"), integer(f[2], "doctor id"), integer(f[3], "appointment id"));
+		}//end if
+		throw new IllegalArgumentException("Unknown command '" + f[0] + "', use doctor, patient, appointment or book");
+	}
+
+	/**
+	 * Method to run the adds of a chunk as batches in one transaction,
+	 * falling back to one command at a time, then its bookings.
+	 */
+	private void runChunk(List<Command> chunk) throws SQLException {
+		List<Command> adds = new ArrayList<Command>();
+		for (Command command : chunk)
+			if (command.booking == null) adds.add(command);
+		if (!adds.isEmpty() && !runBatches(adds)) runOneByOne(adds);
+
+		for (Command command : chunk){
+			if (command.booking == null) continue;
+			int[] b = command.booking;
+			try{
+				BookingEngine.Booking booking = this._engine.book(b[0], b[1], b[2], null);
+				if (booking.outcome == BookingEngine.Outcome.NOT_FOUND)
+					failed(command.line, "Doctor " + b[1] + " has no appointment " + b[2]);
+				else if (booking.outcome == BookingEngine.Outcome.UNAVAILABLE)
+					failed(command.line, "Appointment " + b[2] + " is unavailable");
+				else
+					++this._done;
+			}catch (SQLException e){
+				failed(command.line, e.getMessage());
+			}//end try
+		}//end for
+	}
+
+	/**
+	 * @return whether every add of the chunk was committed; nothing is when not
+	 */
+	private boolean runBatches(List<Command> adds) throws SQLException {
+		ConnectionPool.Lease lease = this._esql.getPool().borrow();
+		try{
+			lease.getConnection().setAutoCommit(false);
+			for (String statement : ADD_STATEMENTS){
+				PreparedStatement stmt = null;
+				for (Command command : adds){
+					for (int i = 0; i < command.statements.length; ++i){
+						if (!command.statements[i].equals(statement)) continue;
+						stmt = DBproject.prepare(lease, statement, command.params[i]);
+						stmt.addBatch();
+					}//end for
+				}//end for
+				if (stmt == null) continue;
+				try{
+					stmt.executeBatch();
+				}finally{
+					stmt.clearBatch();
+				}
+			}//end for
+			lease.getConnection().commit();
+			this._done += adds.size();
+			return true;
+		}catch (SQLException e){
+			lease.getConnection().rollback();
+			return false;
+		}finally{
+			this._esql.getPool().release(lease);
+		}
+	}
+
+	private void runOneByOne(List<Command> adds) throws SQLException {
+		ConnectionPool.Lease lease = this._esql.getPool().borrow();
+		try{
+			lease.getConnection().setAutoCommit(false);
+			for (Command command : adds){
+				Savepoint savepoint = lease.getConnection().setSavepoint();
+				try{
+					for (int i = 0; i < command.statements.length; ++i)
+						DBproject.prepare(lease, command.statements[i], command.params[i]).executeUpdate();
+					lease.getConnection().releaseSavepoint(savepoint);
+					++this._done;
+				}catch (SQLException e){
+					lease.getConnection().rollback(savepoint);
+					failed(command.line, e.getMessage());
+				}//end try
+			}//end for
+			lease.getConnection().commit();
+		}finally{
+			this._esql.getPool().release(lease);
+		}
+	}
+
+	private void failed(int line, String message){
+		++this._failed;
+		System.err.println("line " + line + ": " + message);
+	}
+
+	private static void fields(String[] f, int min, int max){
+		if (f.length < min || f.length > max)
+			throw new IllegalArgumentException(f[0] + " takes " + (min == max ? String.valueOf(min - 1) : (min - 1) + " to " + (max - 1)) + " fields, not " + (f.length - 1));
+	}
+
+	private static int integer(String text, String what){
+		try{
+			return Integer.parseInt(text);
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("The " + what + " must be an integer, not '" + text + "'");
+		}//end try
+	}
+}
@@ -0,0 +1,334 @@
+/*
+ * Booking engine
+ * ==============
+ *
+ * Books an appointment for a patient in a single transaction so concurrent
+ * bookings of the same appointment cannot both see it available.
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class performs the writes of MakeAppointment (appointment status,
+ * patient appointment count, the searches record and, for an appointment
+ * that is taken, the waitlist entry) atomically. The
+ * appointment row is locked with SELECT ... FOR UPDATE SKIP LOCKED; a
+ * booking that finds the row locked by another booking, or that fails with
+ * a serialization failure or deadlock, is rolled back and retried.
+ *
+ * When the book_appointment function of sql/booking.sql is installed, the
+ * whole booking is one call of it, which also returns the appointment and
+ * the patient as they are afterwards: one round trip instead of five to
+ * eight. Without it the engine falls back to running the steps itself.
+ *
+ */
+
+public class BookingEngine{
+	static final int MAX_ATTEMPTS = 20;
+	static final long BACKOFF_MILLIS = 2;
+
+	static final String UNDEFINED_FUNCTION = "42883";
+
+	static final String BOOK = "SELECT outcome, previous_status, new_status, hospital, appt_date, appt_time_slot,\n"
+		+ "patient_name, patient_gender, patient_age, patient_address, patient_appointments\n"
+		+ "FROM book_appointment(?, ?, ?, ?::int, ?::varchar, ?::varchar, ?::int, ?::varchar);";
+	static final String LOCK_APPOINTMENT = "SELECT A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = ? AND H.appt_id = ? AND H.appt_id = A.appnt_ID\nFOR UPDATE OF A SKIP LOCKED;";
+
+	public enum Outcome{
+		//the appointment was available and is now active for the patient
+		BOOKED,
+		//the appointment was active or waitlisted and the patient joined the waitlist
+		WAITLISTED,
+		//the patient was already on the waitlist of the appointment, nothing was written
+		ALREADY_WAITLISTED,
+		//the appointment has already passed
+		UNAVAILABLE,
+		//the doctor has no such appointment
+		NOT_FOUND
+	}
+
+	/**
+	 * Details of a patient that is not yet in the database, inserted as part
+	 * of the booking.
+	 */
+	public static class NewPatient{
+		final String name;
+		final String gender;
+		final int age;
+		final String address;
+
+		public NewPatient(String name, String gender, int age, String address){
+			this.name = name;
+			this.gender = gender;
+			this.age = age;
+			this.address = address;
+		}
+	}
+
+	/**
+	 * The result of one booking.
+	 */
+	public static class Booking{
+		public final Outcome outcome;
+		//status of the appointment before and after the booking
+		public final String previousStatus;
+		public final String status;
+		public final int hospitalId;
+		//number of transactions it took, 1 when there was no contention
+		public final int attempts;
+		//the appointment and the patient after the booking when it was made
+		//on the server, null otherwise
+		public final HospitalService.Appointment appointment;
+		public final HospitalService.Patient patient;
+
+		Booking(Outcome outcome, String previousStatus, String status, int hospitalId, int attempts){
+			this(outcome, previousStatus, status, hospitalId, attempts, null, null);
+		}
+
+		Booking(Outcome outcome, String previousStatus, String status, int hospitalId, int attempts,
+				HospitalService.Appointment appointment, HospitalService.Patient patient){
+			this.outcome = outcome;
+			this.previousStatus = previousStatus;
+			this.status = status;
+			this.hospitalId = hospitalId;
+			this.attempts = attempts;
+			this.appointment = appointment;
+			this.patient = patient;
+		}
+	}
+
+	/**
+	 * Thrown inside an attempt when the transaction has to be retried.
+	 */
+	private static class RetryException extends Exception{
+		private static final long serialVersionUID = 1L;
+
+		RetryException(){
+			super(null, null, false, false);
+		}
+	}
+
+	private final DBproject _esql;
+	//resolves the hospital of a doctor without a query, or null to always query
+	private final ReferenceCache _cache;
+	//false once book_appointment was found missing, or to book step by step
+	private volatile boolean _serverSide = true;
+
+	public BookingEngine(DBproject esql){
+		this(esql, null);
+	}
+
+	public BookingEngine(DBproject esql, ReferenceCache cache){
+		this._esql = esql;
+		this._cache = cache;
+	}
+
+	/**
+	 * Method to tell whether a patient is already in the database, so the
+	 * caller can collect the details of a new patient before booking.
+	 */
+	public boolean patientExists(int patientId) throws SQLException {
+		return this._esql.executeQuery(DBproject.PATIENT_APPOINTMENT_COUNT, patientId) == 1;
+	}
+
+	/**
+	 * Method to choose between booking with one call of book_appointment
+	 * and booking step by step. Server-side booking is the default and is
+	 * turned off by itself when the function is not installed.
+	 */
+	public void setServerSide(boolean serverSide){
+		this._serverSide = serverSide;
+	}
+
+	public boolean isServerSide(){
+		return this._serverSide;
+	}
+
+	/**
+	 * Method to book an appointment of a doctor for a patient.
+	 *
+	 * @param patientId the patient making the appointment
+	 * @param doctorId the doctor the appointment belongs to
+	 * @param apptId the appointment
+	 * @param newPatient details to insert when the patient does not exist yet, or null
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the booking failed and was rolled back
+	 */
+	public Booking book(int patientId, int doctorId, int apptId, NewPatient newPatient) throws SQLException {
+		if (this._serverSide){
+			try{
+				return bookOnServer(patientId, doctorId, apptId, newPatient);
+			}catch (SQLException e){
+				if (!UNDEFINED_FUNCTION.equals(e.getSQLState())) throw e;
+				// sql/booking.sql is not installed
+				this._serverSide = false;
+			}//end try
+		}//end if
+		// before the lease is taken, as a stale cache reloads on a connection of its own
+		int hospitalId = this._cache == null ? -1 : this._cache.hospitalOfDoctor(doctorId);
+		for (int attempt = 1; ; ++attempt){
+			ConnectionPool.Lease lease = this._esql.getPool().borrow();
+			try{
+				lease.getConnection().setAutoCommit(false);
+				Booking booking = attempt(lease, patientId, doctorId, apptId, newPatient, hospitalId, attempt);
+				lease.getConnection().commit();
+				return booking;
+			}catch (RetryException e){
+				lease.getConnection().rollback();
+			}catch (SQLException e){
+				lease.getConnection().rollback();
+				if (!isRetryable(e) || attempt >= MAX_ATTEMPTS) throw e;
+			}finally{
+				this._esql.getPool().release(lease);
+			}//end try
+			if (attempt >= MAX_ATTEMPTS)
+				throw new SQLException("Appointment " + apptId + " stayed locked after " + attempt + " attempts", "55P03");
+			backoff(attempt);
+		}//end for
+	}
+
+	/**
+	 * Books with one call of book_appointment, in a transaction of its own.
+	 * A backend such as MemoryEngine answers the call itself.
+	 */
+	private Booking bookOnServer(final int patientId, int doctorId, final int apptId, NewPatient newPatient) throws SQLException {
+		Integer hospitalId = this._cache == null ? -1 : this._cache.hospitalOfDoctor(doctorId);
+		if (hospitalId < 0) hospitalId = null;
+		Object[] params = { patientId, doctorId, apptId, hospitalId,
+			newPatient == null ? null : newPatient.name, newPatient == null ? null : newPatient.gender,
+			newPatient == null ? null : newPatient.age, newPatient == null ? null : newPatient.address };
+		if (this._esql.getBackend() != null){
+			final Booking[] booking = new Booking[1];
+			this._esql.executeQueryForEach(BOOK, new DBproject.RowHandler(){
+				public void handle(DBproject.Row row) throws SQLException {
+					booking[0] = booking(row, patientId, apptId, 1);
+				}
+			}, params);
+			return booking[0];
+		}//end if
+		for (int attempt = 1; ; ++attempt){
+			ConnectionPool.Lease lease = this._esql.getPool().borrow();
+			try{
+				ResultSet rs = DBproject.prepare(lease, BOOK, params).executeQuery();
+				try{
+					rs.next();
+					Booking booking = booking(new DBproject.Row(rs), patientId, apptId, attempt);
+					if (booking != null) return booking;
+				}finally{
+					rs.close();
+				}
+			}catch (SQLException e){
+				if (!isRetryable(e) || attempt >= MAX_ATTEMPTS) throw e;
+			}finally{
+				this._esql.getPool().release(lease);
+			}//end try
+			if (attempt >= MAX_ATTEMPTS)
+				throw new SQLException("Appointment " + apptId + " stayed locked after " + attempt + " attempts", "55P03");
+			backoff(attempt);
+		}//end for
+	}
+
+	/**
+	 * @return the booking a row of book_appointment describes, or null when
+	 * the appointment was locked
+	 */
+	private static Booking booking(DBproject.Row row, int patientId, int apptId, int attempt) throws SQLException {
+		String outcome = row.getString(1);
+		if (outcome.equals("LOCKED")) return null;
+		HospitalService.Appointment appointment = row.getDate(5) == null ? null
+			: new HospitalService.Appointment(apptId, row.getDate(5).toLocalDate(), row.getString(6), row.getString(3));
+		HospitalService.Patient patient = row.getString(7) == null ? null
+			: new HospitalService.Patient(patientId, row.getString(7), row.getString(8), row.getInt(9), row.getString(10), row.getInt(11));
+		int hospital = row.isNull(4) ? -1 : row.getInt(4);
+		return new Booking(Outcome.valueOf(outcome), row.getString(2), row.getString(3), hospital, attempt, appointment, patient);
+	}
+
+	/**
+	 * @param hospitalId the hospital of the doctor from the cache, or -1 to
+	 * look it up in the transaction
+	 */
+	private Booking attempt(ConnectionPool.Lease lease, int patientId, int doctorId, int apptId, NewPatient newPatient, int hospitalId, int attempt) throws SQLException, RetryException {
+		// lock the appointment row, skipping it if another booking holds it
+		String previous = null;
+		ResultSet rs = DBproject.prepare(lease, LOCK_APPOINTMENT, doctorId, apptId).executeQuery();
+		try{
+			if (rs.next()) previous = rs.getString(1);
+		}finally{
+			rs.close();
+		}
+		if (previous == null){
+			if (exists(lease, DBproject.APPOINTMENT_STATUS, doctorId, apptId)) throw new RetryException();
+			return new Booking(Outcome.NOT_FOUND, null, null, -1, attempt);
+		}//end if
+
+		String status;
+		Outcome outcome;
+		if (previous.equals("AV")){
+			status = "AC";
+			outcome = Outcome.BOOKED;
+		}else if (previous.equals("AC") || previous.equals("WL")){
+			status = "WL";
+			outcome = Outcome.WAITLISTED;
+			if (exists(lease, Waitlist.IS_WAITING, apptId, patientId))
+				return new Booking(Outcome.ALREADY_WAITLISTED, previous, previous, -1, attempt);
+		}else{ // appointment has already passed --> no longer available
+			return new Booking(Outcome.UNAVAILABLE, previous, previous, -1, attempt);
+		}//end if
+		if (!status.equals(previous))
+			DBproject.prepare(lease, DBproject.UPDATE_APPOINTMENT_STATUS, status, apptId).executeUpdate();
+
+		// count the appointment for the patient, adding the patient if needed
+		if (DBproject.prepare(lease, DBproject.INCREMENT_PATIENT_APPOINTMENTS, patientId).executeUpdate() == 0){
+			if (newPatient == null) throw new SQLException("Patient " + patientId + " does not exist", "23503");
+			DBproject.prepare(lease, DBproject.INSERT_PATIENT, patientId, newPatient.name, newPatient.gender, newPatient.age, newPatient.address, 1).executeUpdate();
+		}//end if
+
+		if (outcome == Outcome.WAITLISTED)
+			DBproject.prepare(lease, Waitlist.ENQUEUE, apptId, doctorId, patientId).executeUpdate();
+
+		if (hospitalId < 0) hospitalId = hospitalOf(lease, doctorId, apptId);
+		DBproject.prepare(lease, DBproject.INSERT_SEARCH, hospitalId, patientId, apptId).executeUpdate();
+		return new Booking(outcome, previous, status, hospitalId, attempt);
+	}
+
+	private static int hospitalOf(ConnectionPool.Lease lease, int doctorId, int apptId) throws SQLException {
+		ResultSet rs = DBproject.prepare(lease, DBproject.APPOINTMENT_HOSPITAL, apptId, doctorId).executeQuery();
+		try{
+			if (!rs.next()) throw new SQLException("No hospital found for doctor " + doctorId, "23503");
+			return rs.getInt(1);
+		}finally{
+			rs.close();
+		}
+	}
+
+	private static boolean exists(ConnectionPool.Lease lease, String query, Object... params) throws SQLException {
+		ResultSet rs = DBproject.prepare(lease, query, params).executeQuery();
+		try{
+			return rs.next();
+		}finally{
+			rs.close();
+		}
+	}
+
+	/**
+	 * @return whether the error is a serialization failure or a deadlock,
+	 * which succeed when the transaction is run again
+	 */
+	static boolean isRetryable(SQLException e){
+		String state = e.getSQLState();
+		return "40001".equals(state) || "40P01".equals(state);
+	}
+
+	private static void backoff(int attempt){
+		long ceiling = BACKOFF_MILLIS << Math.min(attempt, 6);
+		try{
+			Thread.sleep(ThreadLocalRandom.current().nextLong(1, ceiling + 1));
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}//end try
+	}
+}
@@ -0,0 +1,565 @@
+/*
+ * Booking server
+ * ==============
+ *
+ * Serves the booking and listing operations of HospitalService over HTTP
+ * with JSON responses, using the HTTP server built into the JDK.
+ *
+ * Usage: java -cp lib/*:bin/ BookingServer <dbname> <port> <user> [http port] [max queries]
+ *
+ * Endpoints:
+ *   POST /book?patient=P&doctor=D&appointment=A[&name=..&gender=..&age=..&address=..]
+ *   GET  /appointments?doctor=D&from=MM/DD/YYYY&to=MM/DD/YYYY
+ *   GET  /available?department=NAME&date=MM/DD/YYYY
+ *   GET  /available/slots?department=NAME&from=MM/DD/YYYY+HH:MM&to=MM/DD/YYYY+HH:MM
+ *   GET  /available/next?doctor=D&after=MM/DD/YYYY+HH:MM
+ *   POST /release?doctor=D&appointment=A
+ *   GET  /waitlist?appointment=A
+ *   GET  /reports/status
+ *   GET  /reports/patients?status=AC
+ *   GET  /metrics
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class runs every request on its own virtual thread when the JDK has
+ * them, and on a cached thread pool otherwise. Requests may far outnumber
+ * database connections, so a semaphore sized to the connection pool admits
+ * only as many requests to the database at a time; a request that cannot
+ * get in within QUEUE_WAIT_MILLIS is answered with 503 instead of piling up.
+ * Listings are sent in chunks as their rows are read, so a long listing is
+ * never held in memory.
+ *
+ */
+
+public class BookingServer{
+	static final int DEFAULT_HTTP_PORT = 8080;
+	static final int DEFAULT_MAX_QUERIES = DBproject.DEFAULT_POOL_SIZE;
+	static final long QUEUE_WAIT_MILLIS = 5000;
+	//bytes of a streamed listing collected before they are sent as a chunk
+	static final int RESPONSE_BUFFER_SIZE = 1 << 14;
+	//pending connections the listening socket accepts before refusing
+	static final int BACKLOG = 4096;
+
+	/**
+	 * A request handler that answers with a JSON document.
+	 */
+	interface Endpoint{
+		/**
+		 * @return the JSON body of a 200 response
+		 */
+		String handle(Map<String, String> params) throws SQLException;
+	}
+
+	/**
+	 * A request handler that answers with a JSON array, sent element by
+	 * element as the listing is read.
+	 */
+	interface ListEndpoint{
+		void handle(Map<String, String> params, JsonArray out) throws SQLException;
+	}
+
+	/**
+	 * The JSON array body of a listing. The 200 status goes out with the
+	 * first element, so a failure before it is still answered with a status
+	 * of its own; a failure after it can only cut the response short.
+	 */
+	static final class JsonArray{
+		private final HttpExchange _exchange;
+		private OutputStream _out = null;
+
+		JsonArray(HttpExchange exchange){
+			this._exchange = exchange;
+		}
+
+		/**
+		 * Method to send one element of the array.
+		 *
+		 * @throws java.sql.SQLException when the client cannot be written to
+		 */
+		void add(CharSequence element) throws SQLException {
+			try{
+				if (this._out == null){
+					this._exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+					// a length of 0 sends the body in chunks
+					this._exchange.sendResponseHeaders(200, 0);
+					this._out = new BufferedOutputStream(this._exchange.getResponseBody(), RESPONSE_BUFFER_SIZE);
+					this._out.write('[');
+				}else{
+					this._out.write(',');
+				}//end if
+				this._out.write(element.toString().getBytes(StandardCharsets.UTF_8));
+			}catch (IOException e){
+				throw new SQLException("Failed to send the response: " + e.getMessage(), e);
+			}//end try
+		}
+
+		boolean isStarted(){
+			return this._out != null;
+		}
+
+		private void finish() throws IOException {
+			if (this._out == null){
+				respond(this._exchange, 200, "[]");
+				return;
+			}//end if
+			try{
+				this._out.write(']');
+			}finally{
+				this._out.close();
+			}
+		}
+
+		private void abort(){
+			this._exchange.close();
+		}
+	}
+
+	/**
+	 * Thrown by an endpoint to answer with a status other than 200.
+	 */
+	static class HttpError extends RuntimeException{
+		private static final long serialVersionUID = 1L;
+		final int status;
+		final String body;
+
+		HttpError(int status, String body){
+			super(null, null, false, false);
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	private final HospitalService _service;
+	private final Semaphore _queries;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+
+	public BookingServer(HospitalService service, int httpPort, int maxQueries) throws IOException {
+		this._service = service;
+		this._queries = new Semaphore(maxQueries, true);
+		this._server = HttpServer.create(new InetSocketAddress(httpPort), BACKLOG);
+		this._executor = requestExecutor();
+		this._server.setExecutor(this._executor);
+
+		route("/book", "POST", new Endpoint(){
+			public String handle(Map<String, String> params) throws SQLException {
+				BookingEngine.NewPatient newPatient = null;
+				if (params.containsKey("name"))
+					newPatient = new BookingEngine.NewPatient(params.get("name"), params.get("gender"), intParam(params, "age"), param(params, "address"));
+				BookingEngine.Booking booking = _service.bookAppointment(intParam(params, "patient"), intParam(params, "appointment"), intParam(params, "doctor"), newPatient);
+				String body = toJson(booking);
+				if (booking.outcome == BookingEngine.Outcome.NOT_FOUND) throw new HttpError(404, body);
+				if (booking.outcome == BookingEngine.Outcome.UNAVAILABLE) throw new HttpError(409, body);
+				return body;
+			}
+		});
+		routeList("/appointments", "GET", new ListEndpoint(){
+			public void handle(Map<String, String> params, JsonArray out) throws SQLException {
+				_service.listAppointmentsOfDoctor(intParam(params, "doctor"),
+					HospitalService.parseDate(param(params, "from")), HospitalService.parseDate(param(params, "to")), appointments(out));
+			}
+		});
+		routeList("/available", "GET", new ListEndpoint(){
+			public void handle(Map<String, String> params, final JsonArray out) throws SQLException {
+				_service.listAvailable(param(params, "department"), HospitalService.parseDate(param(params, "date")), new HospitalService.Sink<Integer>(){
+					public void accept(Integer id) throws SQLException {
+						out.add(String.valueOf(id));
+					}
+				});
+			}
+		});
+		routeList("/available/slots", "GET", new ListEndpoint(){
+			public void handle(Map<String, String> params, JsonArray out) throws SQLException {
+				_service.listAvailable(param(params, "department"),
+					HospitalService.parseDateTime(param(params, "from")), HospitalService.parseDateTime(param(params, "to")), appointments(out));
+			}
+		});
+		route("/available/next", "GET", new Endpoint(){
+			public String handle(Map<String, String> params) throws SQLException {
+				HospitalService.Appointment appt = _service.nextAvailable(intParam(params, "doctor"), HospitalService.parseDateTime(param(params, "after")));
+				if (appt == null) throw new HttpError(404, error("No available appointment"));
+				StringBuilder sb = new StringBuilder();
+				toJson(sb, appt);
+				return sb.toString();
+			}
+		});
+		route("/release", "POST", new Endpoint(){
+			public String handle(Map<String, String> params) throws SQLException {
+				int apptId = intParam(params, "appointment");
+				String status = _service.releaseAppointment(intParam(params, "doctor"), apptId);
+				if (status == null) throw new HttpError(404, error("No such appointment of the doctor"));
+				StringBuilder sb = new StringBuilder("{\"id\":").append(apptId);
+				sb.append(",\"status\":"); quote(sb, status);
+				return sb.append('}').toString();
+			}
+		});
+		route("/waitlist", "GET", new Endpoint(){
+			public String handle(Map<String, String> params) throws SQLException {
+				StringBuilder sb = new StringBuilder("[");
+				for (Waitlist.Waiter waiter : _service.waitlist(intParam(params, "appointment"))){
+					if (sb.length() > 1) sb.append(',');
+					sb.append("{\"position\":").append(waiter.position);
+					sb.append(",\"patientId\":").append(waiter.patientId);
+					sb.append(",\"name\":"); quote(sb, waiter.name);
+					sb.append(",\"enqueued\":"); quote(sb, String.valueOf(waiter.enqueued));
+					sb.append('}');
+				}//end for
+				return sb.append(']').toString();
+			}
+		});
+		routeList("/reports/status", "GET", new ListEndpoint(){
+			public void handle(Map<String, String> params, final JsonArray out) throws SQLException {
+				final StringBuilder sb = new StringBuilder();
+				_service.statusCountPerDoctor(new HospitalService.Sink<HospitalService.DoctorStatusCount>(){
+					public void accept(HospitalService.DoctorStatusCount count) throws SQLException {
+						sb.setLength(0);
+						sb.append("{\"doctorId\":").append(count.doctorId);
+						sb.append(",\"name\":"); quote(sb, count.name);
+						sb.append(",\"specialty\":"); quote(sb, count.specialty);
+						sb.append(",\"status\":"); quote(sb, count.status);
+						sb.append(",\"count\":").append(count.count).append('}');
+						out.add(sb);
+					}
+				});
+			}
+		});
+		routeList("/reports/patients", "GET", new ListEndpoint(){
+			public void handle(Map<String, String> params, final JsonArray out) throws SQLException {
+				final StringBuilder sb = new StringBuilder();
+				_service.patientCountWithStatus(param(params, "status"), new HospitalService.Sink<HospitalService.DoctorPatientCount>(){
+					public void accept(HospitalService.DoctorPatientCount count) throws SQLException {
+						sb.setLength(0);
+						sb.append("{\"doctorId\":").append(count.doctorId);
+						sb.append(",\"name\":"); quote(sb, count.name);
+						sb.append(",\"specialty\":"); quote(sb, count.specialty);
+						sb.append(",\"count\":").append(count.count).append('}');
+						out.add(sb);
+					}
+				});
+			}
+		});
+		routeMetrics();
+	}
+
+	/**
+	 * Method to serve the metrics of the database calls. They are read
+	 * from memory, so no query permit is taken.
+	 */
+	private void routeMetrics(){
+		this._server.createContext("/metrics", new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!matches(exchange, "/metrics")){
+					respond(exchange, 404, error("No such endpoint"));
+					return;
+				}//end if
+				DBproject esql = _service.getDatabase();
+				StringBuilder sb = new StringBuilder("{\"operations\":");
+				toJson(sb, esql.getMetrics().operations(), esql.getMetrics(), false);
+				sb.append(",\"queries\":");
+				toJson(sb, esql.getMetrics().shapes(), esql.getMetrics(), true);
+				sb.append(",\"connectionWait\":");
+				toJson(sb, esql.getPool().getWaitHistogram());
+				sb.append(",\"connectionTimeouts\":").append(esql.getPool().getTimeoutCount());
+				// milliseconds after the start of the JVM
+				sb.append(",\"startup\":{");
+				String separator = "";
+				for (Map.Entry<String, Long> moment : FastStart.moments().entrySet()){
+					sb.append(separator); quote(sb, moment.getKey());
+					sb.append(':').append(moment.getValue());
+					separator = ",";
+				}//end for
+				sb.append('}');
+				respond(exchange, 200, sb.append('}').toString());
+			}
+		});
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingServer.class.getName () +
+		            " <dbname> <port> <user> [http port] [max queries]");
+			return;
+		}//end if
+		int httpPort = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_HTTP_PORT;
+		int maxQueries = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_MAX_QUERIES;
+
+		// with a shard map the shards it names are used instead of the port
+		HospitalService sharded = ShardedService.fromSystemProperties(args[0], args[2], "", maxQueries);
+		final DBproject esql = sharded != null ? null : new DBproject (args[0], args[1], args[2], "", maxQueries);
+		final HospitalService service = sharded != null ? sharded : new HospitalService(esql, FastStart.snapshotFile());
+		final BookingServer server = new BookingServer(service, httpPort, maxQueries);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				server.stop();
+				System.out.println(service.getReferenceCache());
+				System.out.println(service.getAvailabilityIndex());
+				System.out.println(service.getWaitlist());
+				if (service.getDatabase().getRouter() != null) System.out.println(service.getDatabase().getRouter());
+				System.out.println(FastStart.report());
+				service.close();
+				if (esql != null) esql.cleanup ();
+			}
+		});
+		server.start();
+		FastStart.mark(FastStart.READY);
+		System.out.println("Listening on port " + httpPort + " with " + maxQueries + " concurrent queries, "
+			+ (server._executor instanceof ThreadPoolExecutor ? "pooled" : "virtual") + " request threads");
+	}
+
+	public void start(){
+		this._server.start();
+	}
+
+	/**
+	 * Method to stop accepting requests, giving running ones a second to finish.
+	 */
+	public void stop(){
+		this._server.stop(1);
+		this._executor.shutdown();
+	}
+
+	/**
+	 * @return an executor starting one virtual thread per task, or a cached
+	 * thread pool when the JDK has no virtual threads
+	 */
+	static ExecutorService requestExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			return Executors.newCachedThreadPool();
+		}//end try
+	}
+
+	/**
+	 * Method to register an endpoint under a path. The endpoint runs while
+	 * holding one of the query permits.
+	 */
+	private void route(String path, String method, Endpoint endpoint){
+		context(path, method, endpoint, null);
+	}
+
+	/**
+	 * Method to register a listing under a path, streamed as a JSON array.
+	 * The listing runs, and is written to the client, while holding one of
+	 * the query permits.
+	 */
+	private void routeList(String path, String method, ListEndpoint endpoint){
+		context(path, method, null, endpoint);
+	}
+
+	/**
+	 * @return whether a request is for the path itself, with or without a
+	 * trailing slash; a context also receives every path it is a prefix of
+	 */
+	static boolean matches(HttpExchange exchange, String path){
+		String requested = exchange.getRequestURI().getPath();
+		return requested.equals(path) || requested.equals(path + "/");
+	}
+
+	private void context(final String path, final String method, final Endpoint endpoint, final ListEndpoint listing){
+		this._server.createContext(path, new HttpHandler(){
+			public void handle(HttpExchange exchange) throws IOException {
+				int status = 200;
+				String body = null;
+				JsonArray array = listing == null ? null : new JsonArray(exchange);
+				try{
+					if (!matches(exchange, path))
+						throw new HttpError(404, error("No such endpoint"));
+					if (!exchange.getRequestMethod().equalsIgnoreCase(method))
+						throw new HttpError(405, error("Use " + method));
+					if (!_queries.tryAcquire(QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS))
+						throw new HttpError(503, error("Too many requests"));
+					try{
+						Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+						if (array == null){
+							body = endpoint.handle(params);
+						}else{
+							listing.handle(params, array);
+							array.finish();
+							return;
+						}//end if
+					}finally{
+						_queries.release();
+					}
+				}catch (HttpError e){
+					status = e.status;
+					body = e.body;
+				}catch (IllegalArgumentException e){
+					status = 400;
+					body = error(e.getMessage());
+				}catch (SQLException e){
+					status = 500;
+					body = error(e.getMessage());
+				}catch (RuntimeException e){
+					status = 500;
+					body = error(e.toString());
+				}catch (InterruptedException e){
+					Thread.currentThread().interrupt();
+					status = 503;
+					body = error("Interrupted");
+				}//end try
+				if (array != null && array.isStarted()){
+					// the status is sent already, the client sees the array cut short
+					array.abort();
+					return;
+				}//end if
+				respond(exchange, status, body);
+			}
+		});
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try{
+			out.write(bytes);
+		}finally{
+			out.close();
+		}
+	}
+
+	static Map<String, String> parseQuery(String query){
+		Map<String, String> params = new HashMap<String, String>();
+		if (query == null || query.isEmpty()) return params;
+		for (String pair : query.split("&")){
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			try{
+				params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+			}catch (UnsupportedEncodingException e){
+				throw new IllegalStateException(e);
+			}//end try
+		}//end for
+		return params;
+	}
+
+	static String param(Map<String, String> params, String name){
+		String value = params.get(name);
+		if (value == null) throw new IllegalArgumentException("Missing parameter " + name);
+		return value;
+	}
+
+	static int intParam(Map<String, String> params, String name){
+		String value = param(params, name);
+		try{
+			return Integer.parseInt(value);
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException("Parameter " + name + " must be an integer");
+		}//end try
+	}
+
+	static String toJson(BookingEngine.Booking booking){
+		StringBuilder sb = new StringBuilder("{\"outcome\":");
+		quote(sb, booking.outcome.name());
+		sb.append(",\"previousStatus\":"); quote(sb, booking.previousStatus);
+		sb.append(",\"status\":"); quote(sb, booking.status);
+		if (booking.hospitalId >= 0) sb.append(",\"hospitalId\":").append(booking.hospitalId);
+		sb.append(",\"attempts\":").append(booking.attempts);
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * @return a sink sending appointments to a JSON array
+	 */
+	static HospitalService.Sink<HospitalService.Appointment> appointments(final JsonArray out){
+		final StringBuilder sb = new StringBuilder();
+		return new HospitalService.Sink<HospitalService.Appointment>(){
+			public void accept(HospitalService.Appointment appt) throws SQLException {
+				sb.setLength(0);
+				toJson(sb, appt);
+				out.add(sb);
+			}
+		};
+	}
+
+	static void toJson(StringBuilder sb, HospitalService.Appointment appt){
+		sb.append("{\"id\":").append(appt.id);
+		sb.append(",\"date\":"); quote(sb, appt.date.toString());
+		sb.append(",\"timeSlot\":"); quote(sb, appt.timeSlot);
+		sb.append(",\"status\":"); quote(sb, appt.status);
+		sb.append('}');
+	}
+
+	static void toJson(StringBuilder sb, List<QueryMetrics.Stats> stats, QueryMetrics metrics, boolean shapes){
+		sb.append('[');
+		for (int i = 0; i < stats.size(); ++i){
+			QueryMetrics.Stats s = stats.get(i);
+			if (i > 0) sb.append(',');
+			sb.append("{\"name\":"); quote(sb, shapes ? metrics.label(s.getKey()) : s.getKey());
+			sb.append(",\"errors\":").append(s.getErrors());
+			sb.append(",\"rows\":").append(s.getRows());
+			sb.append(",\"latency\":");
+			toJson(sb, s.getLatency());
+			sb.append('}');
+		}//end for
+		sb.append(']');
+	}
+
+	static void toJson(StringBuilder sb, QueryMetrics.Histogram histogram){
+		sb.append("{\"count\":").append(histogram.getCount());
+		sb.append(",\"meanMs\":").append(String.format(Locale.ROOT, "%.3f", histogram.getMeanNanos() / 1e6));
+		sb.append(",\"p50Ms\":").append(String.format(Locale.ROOT, "%.3f", histogram.percentile(0.50) / 1e6));
+		sb.append(",\"p99Ms\":").append(String.format(Locale.ROOT, "%.3f", histogram.percentile(0.99) / 1e6));
+		sb.append(",\"maxMs\":").append(String.format(Locale.ROOT, "%.3f", histogram.getMaxNanos() / 1e6));
+		sb.append('}');
+	}
+
+	static String error(String message){
+		StringBuilder sb = new StringBuilder("{\"error\":");
+		quote(sb, message);
+		return sb.append('}').toString();
+	}
+
+	/**
+	 * Appends a string as a JSON string literal, or null.
+	 */
+	static void quote(StringBuilder sb, String value){
+		if (value == null){
+			sb.append("null");
+			return;
+		}//end if
+		sb.append('"');
+		for (int i = 0; i < value.length(); ++i){
+			char c = value.charAt(i);
+			switch (c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+					else sb.append(c);
+			}
+		}//end for
+		sb.append('"');
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Booking stress test
+ * ===================
+ *
+ * Books the same set of appointments from many threads at once against a
+ * local Postgres and checks that no appointment was booked twice. Then
+ * releases every appointment again and again, promoting from as many
+ * threads, and checks that the waitlisted patients got them in the order
+ * they asked for them.
+ *
+ * Usage: java -cp lib/*:bin/ BookingStress <dbname> <port> <user> [threads] [appointments]
+ *
+ * The test creates its own appointments and patients above the highest
+ * existing IDs and deletes them again when it finishes.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class BookingStress{
+	static final int DEFAULT_THREADS = 16;
+	static final int DEFAULT_APPOINTMENTS = 200;
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BookingStress.class.getName () +
+		            " <dbname> <port> <user> [threads] [appointments]");
+			return;
+		}//end if
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_THREADS;
+		final int appointments = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_APPOINTMENTS;
+
+		final DBproject esql = new DBproject (args[0], args[1], args[2], "", threads);
+		final ReferenceCache cache = new ReferenceCache(esql);
+		final BookingEngine engine = new BookingEngine(esql, cache);
+		final int doctorId = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT min(doctor_ID) FROM Doctor;").get(0).get(0));
+		final int firstAppt = maxId(esql, "appnt_ID", "Appointment") + 1;
+		final int firstPatient = maxId(esql, "patient_ID", "Patient") + 1;
+		boolean ok = false;
+		try{
+			// one patient per thread, so every (patient, appointment) searches key is distinct
+			for (int t = 0; t < threads; ++t)
+				esql.executeUpdate(DBproject.INSERT_PATIENT, firstPatient + t, "Stress Patient " + t, "F", 30, "n/a", 0);
+			for (int a = 0; a < appointments; ++a){
+				esql.executeUpdate(DBproject.INSERT_APPOINTMENT, firstAppt + a, "1/1/2030", "8:00-10:00", "AV");
+				esql.executeUpdate("INSERT INTO has_appointment (appt_id, doctor_id) VALUES (?, ?);", firstAppt + a, doctorId);
+			}
+
+			final AtomicIntegerArray booked = new AtomicIntegerArray(appointments);
+			final AtomicInteger bookings = new AtomicInteger();
+			final AtomicInteger retries = new AtomicInteger();
+			final AtomicInteger failures = new AtomicInteger();
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Thread> workers = new ArrayList<Thread>();
+			for (int t = 0; t < threads; ++t){
+				final int patientId = firstPatient + t;
+				final List<Integer> order = new ArrayList<Integer>();
+				for (int a = 0; a < appointments; ++a) order.add(a);
+				Collections.shuffle(order);
+				Thread worker = new Thread(new Runnable(){
+					public void run(){
+						try{
+							start.await();
+						}catch (InterruptedException e){
+							return;
+						}
+						for (int a : order){
+							try{
+								BookingEngine.Booking b = engine.book(patientId, doctorId, firstAppt + a, null);
+								bookings.incrementAndGet();
+								retries.addAndGet(b.attempts - 1);
+								if (b.outcome == BookingEngine.Outcome.BOOKED) booked.incrementAndGet(a);
+							}catch (SQLException e){
+								failures.incrementAndGet();
+								System.err.println("Booking failed: " + e.getMessage());
+							}
+						}
+					}
+				});
+				workers.add(worker);
+				worker.start();
+			}
+
+			long begin = System.nanoTime();
+			start.countDown();
+			for (Thread worker : workers) worker.join();
+			double seconds = (System.nanoTime() - begin) / 1e9;
+
+			// every appointment must have been handed out as active exactly once
+			int doubleBooked = 0;
+			int neverBooked = 0;
+			for (int a = 0; a < appointments; ++a){
+				if (booked.get(a) > 1) ++doubleBooked;
+				if (booked.get(a) == 0) ++neverBooked;
+			}
+			int notWaitlisted = Integer.parseInt(esql.executeQueryAndReturnResult(
+				"SELECT count(*) FROM Appointment WHERE appnt_ID >= ? AND status <> ?;", firstAppt, threads > 1 ? "WL" : "AC").get(0).get(0));
+			int searches = Integer.parseInt(esql.executeQueryAndReturnResult(
+				"SELECT count(*) FROM searches WHERE aid >= ?;", firstAppt).get(0).get(0));
+
+			System.out.printf("%d threads, %d appointments: %d bookings in %.2f s (%.0f bookings/s), %d retries, %d failures%n",
+				threads, appointments, bookings.get(), seconds, bookings.get() / seconds, retries.get(), failures.get());
+			System.out.println(esql.getPool());
+			System.out.println(cache);
+			ok = doubleBooked == 0 && neverBooked == 0 && notWaitlisted == 0 && failures.get() == 0
+				&& searches == bookings.get();
+			System.out.printf("double booked: %d, never booked: %d, unexpected final status: %d, searches rows: %d%n",
+				doubleBooked, neverBooked, notWaitlisted, searches);
+
+			ok = promote(esql, engine, new Waitlist(esql), threads, doctorId, firstAppt, appointments) && ok;
+			System.out.println(ok ? "PASS" : "FAIL");
+		}finally{
+			esql.executeUpdate("DELETE FROM appointment_release WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM waitlist WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM searches WHERE aid >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM has_appointment WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM Appointment WHERE appnt_ID >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM Patient WHERE patient_ID >= ?;", firstPatient);
+			esql.cleanup ();
+		}
+		if (!ok) System.exit(1);
+	}
+
+	/**
+	 * Releases every appointment once per waiting patient, promoting from
+	 * many threads after each round. Then every last promoted patient
+	 * releases the appointment and books it again.
+	 *
+	 * @return whether every appointment went to its waiters in queue order,
+	 * was booked again by its holder and ended active with an empty waitlist
+	 */
+	static boolean promote (DBproject esql, BookingEngine engine, final Waitlist waitlist, int threads, int doctorId, int firstAppt, int appointments) throws Exception {
+		Map<Integer, List<Integer>> expected = new HashMap<Integer, List<Integer>>();
+		final Map<Integer, List<Integer>> promoted = new HashMap<Integer, List<Integer>>();
+		int rounds = 0;
+		for (int a = 0; a < appointments; ++a){
+			List<Integer> queue = new ArrayList<Integer>();
+			for (Waitlist.Waiter waiter : waitlist.waiters(firstAppt + a)) queue.add(waiter.patientId);
+			expected.put(firstAppt + a, queue);
+			promoted.put(firstAppt + a, new ArrayList<Integer>());
+			rounds = Math.max(rounds, queue.size());
+		}//end for
+
+		final AtomicInteger failures = new AtomicInteger();
+		int promotions = 0;
+		long nanos = 0;
+		for (int r = 0; r < rounds; ++r){
+			for (int a = 0; a < appointments; ++a) waitlist.release(doctorId, firstAppt + a);
+			final AtomicInteger count = new AtomicInteger();
+			List<Thread> workers = new ArrayList<Thread>();
+			long begin = System.nanoTime();
+			for (int t = 0; t < threads; ++t){
+				Thread worker = new Thread(new Runnable(){
+					public void run(){
+						try{
+							// an empty batch means the rest is taken by other workers
+							List<Waitlist.Promotion> batch;
+							while (!(batch = waitlist.promote(Waitlist.DEFAULT_BATCH)).isEmpty()){
+								count.addAndGet(batch.size());
+								synchronized (promoted){
+									for (Waitlist.Promotion p : batch) promoted.get(p.apptId).add(p.patientId);
+								}
+							}//end while
+						}catch (SQLException e){
+							failures.incrementAndGet();
+							System.err.println("Promotion failed: " + e.getMessage());
+						}//end try
+					}
+				});
+				workers.add(worker);
+				worker.start();
+			}//end for
+			for (Thread worker : workers) worker.join();
+			nanos += System.nanoTime() - begin;
+			promotions += count.get();
+		}//end for
+
+		// the holder already has the searches row of the appointment
+		int searches = Integer.parseInt(esql.executeQueryAndReturnResult(
+			"SELECT count(*) FROM searches WHERE aid >= ?;", firstAppt).get(0).get(0));
+		int notRebooked = 0;
+		for (Map.Entry<Integer, List<Integer>> e : promoted.entrySet()){
+			if (e.getValue().isEmpty()) continue;
+			int holder = e.getValue().get(e.getValue().size() - 1);
+			try{
+				waitlist.release(doctorId, e.getKey());
+				if (engine.book(holder, doctorId, e.getKey(), null).outcome != BookingEngine.Outcome.BOOKED) ++notRebooked;
+			}catch (SQLException ex){
+				++notRebooked;
+				System.err.println("Booking again failed: " + ex.getMessage());
+			}//end try
+		}//end for
+		int searchesAfter = Integer.parseInt(esql.executeQueryAndReturnResult(
+			"SELECT count(*) FROM searches WHERE aid >= ?;", firstAppt).get(0).get(0));
+
+		int outOfOrder = 0;
+		for (Map.Entry<Integer, List<Integer>> e : expected.entrySet())
+			if (!e.getValue().equals(promoted.get(e.getKey()))) ++outOfOrder;
+		int notActive = Integer.parseInt(esql.executeQueryAndReturnResult(
+			"SELECT count(*) FROM Appointment WHERE appnt_ID >= ? AND status <> 'AC';", firstAppt).get(0).get(0));
+		int waiting = Integer.parseInt(esql.executeQueryAndReturnResult(
+			"SELECT count(*) FROM waitlist WHERE appt_id >= ?;", firstAppt).get(0).get(0));
+
+		double seconds = nanos / 1e9;
+		System.out.printf("%d release rounds: %d promotions in %.2f s (%.0f promotions/s), %d failures%n",
+			rounds, promotions, seconds, seconds > 0 ? promotions / seconds : 0.0, failures.get());
+		System.out.printf("out of queue order: %d, not active: %d, still waiting: %d, not booked again: %d, new searches rows: %d%n",
+			outOfOrder, notActive, waiting, notRebooked, searchesAfter - searches);
+		return outOfOrder == 0 && notActive == 0 && waiting == 0 && failures.get() == 0
+			&& notRebooked == 0 && searchesAfter == searches;
+	}
+
+	static int maxId (DBproject esql, String column, String table) throws SQLException {
+		String max = esql.executeQueryAndReturnResult("SELECT max(" + column + ") FROM " + table + ";").get(0).get(0);
+		return max == null ? 0 : Integer.parseInt(max);
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Bulk loader
+ * ===========
+ *
+ * Streams the ten hospital tables from client side CSV files into the
+ * database through the PostgreSQL COPY protocol.
+ *
+ * Usage: java -cp lib/*:bin/ BulkLoader <dbname> <port> <user> [data dir] [threads]
+ *
+ * The files use the layout of data/*.csv: one row per line, fields
+ * separated by ',' in the column order of sql/create.sql, with no header.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+/**
+ * This class loads the tables in foreign key order, starting a table as
+ * soon as the tables it references are loaded, so independent tables load
+ * in parallel on separate pooled connections. Rows that cannot be valid for
+ * their table are rejected client side into a .rejected file next to the
+ * input instead of aborting the whole COPY.
+ *
+ */
+
+public class BulkLoader{
+	static final int DEFAULT_THREADS = 4;
+	//bytes buffered before they are handed to the COPY stream
+	static final int COPY_BUFFER_SIZE = 1 << 16;
+	static final int READ_BUFFER_SIZE = 1 << 20;
+
+	//column kinds checked before a row is sent
+	static final char INT = 'i';
+	static final char TEXT = 't';
+	static final char DATE = 'd';
+	static final char GENDER = 'g';
+	static final char STATUS = 's';
+	static final Pattern DATE_FORMAT = Pattern.compile("\\d{1,2}/\\d{1,2}/\\d{4}");
+
+	/**
+	 * A table of the schema, the file it is loaded from and the tables its
+	 * foreign keys reference.
+	 */
+	static class Table{
+		final String name;
+		final String file;
+		final String[] columns;
+		final String kinds;
+		//maximum length of each text column, 0 when unchecked
+		final int[] lengths;
+		final String[] dependencies;
+
+		Table(String name, String file, String[] columns, String kinds, int[] lengths, String... dependencies){
+			this.name = name;
+			this.file = file;
+			this.columns = columns;
+			this.kinds = kinds;
+			this.lengths = lengths;
+			this.dependencies = dependencies;
+		}
+
+		String copySql(){
+			return "COPY " + this.name + " (" + String.join(", ", this.columns) + ") FROM STDIN WITH DELIMITER ','";
+		}
+	}
+
+	/**
+	 * Rows loaded and rejected for one table.
+	 */
+	static class Result{
+		final Table table;
+		long loaded;
+		long rejected;
+		long nanos;
+
+		Result(Table table){
+			this.table = table;
+		}
+	}
+
+	//the ten tables in foreign key order
+	static final Table[] TABLES = {
+		new Table("Hospital", "hospital.csv", new String[]{"hospital_ID", "name"}, "it", new int[]{0, 64}),
+		new Table("Patient", "patient.csv", new String[]{"patient_ID", "name", "gtype", "age", "address", "number_of_appts"}, "itgiti", new int[]{0, 128, 0, 0, 256, 0}),
+		new Table("Appointment", "appointment.csv", new String[]{"appnt_ID", "adate", "time_slot", "status"}, "idts", new int[]{0, 0, 11, 0}),
+		new Table("Department", "department.csv", new String[]{"dept_ID", "name", "hid"}, "iti", new int[]{0, 32, 0}, "Hospital"),
+		new Table("Staff", "staff.csv", new String[]{"staff_ID", "name", "hid"}, "iti", new int[]{0, 128, 0}, "Hospital"),
+		new Table("Doctor", "doctor.csv", new String[]{"doctor_ID", "name", "specialty", "did"}, "itti", new int[]{0, 128, 24, 0}, "Department"),
+		new Table("request_maintenance", "request_maintenance.csv", new String[]{"patient_per_hour", "dept_name", "time_slot", "did", "sid"}, "ittii", new int[]{0, 32, 11, 0, 0}, "Doctor", "Staff"),
+		new Table("searches", "searches.csv", new String[]{"hid", "pid", "aid"}, "iii", new int[]{0, 0, 0}, "Hospital", "Patient", "Appointment"),
+		new Table("schedules", "schedules.csv", new String[]{"appt_id", "staff_id"}, "ii", new int[]{0, 0}, "Appointment", "Staff"),
+		new Table("has_appointment", "has_appointment.csv", new String[]{"appt_id", "doctor_id"}, "ii", new int[]{0, 0}, "Appointment", "Doctor"),
+	};
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + BulkLoader.class.getName () +
+		            " <dbname> <port> <user> [data dir] [threads]");
+			return;
+		}//end if
+		File dir = new File(args.length > 3 ? args[3] : "../data");
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_THREADS;
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "", threads);
+		try{
+			long start = System.nanoTime();
+			List<Result> results = load(esql, dir, threads);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			long loaded = 0, rejected = 0;
+			for (Result r : results){
+				System.out.printf("%-20s %12d rows %8d rejected %10.2f s %12.0f rows/s%n", r.table.name, r.loaded, r.rejected,
+					r.nanos / 1e9, r.loaded / Math.max(r.nanos / 1e9, 1e-9));
+				loaded += r.loaded;
+				rejected += r.rejected;
+			}
+			System.out.printf("%-20s %12d rows %8d rejected %10.2f s %12.0f rows/s%n", "total", loaded, rejected,
+				seconds, loaded / Math.max(seconds, 1e-9));
+		}finally{
+			esql.cleanup ();
+		}
+	}
+
+	/**
+	 * Method to load every table whose file exists in a directory, running
+	 * each table once the tables it references are done.
+	 *
+	 * @param esql the database to load into
+	 * @param dir the directory holding the CSV files
+	 * @param threads the number of tables loaded at the same time
+	 * @return the rows loaded and rejected per table, in foreign key order
+	 * @throws java.sql.SQLException when a COPY fails; tables that depend on it are not loaded
+	 */
+	static List<Result> load (final DBproject esql, final File dir, int threads) throws SQLException, IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Map<String, CompletableFuture<Result>> futures = new LinkedHashMap<String, CompletableFuture<Result>>();
+		try{
+			for (final Table table : TABLES){
+				CompletableFuture<?>[] deps = new CompletableFuture<?>[table.dependencies.length];
+				for (int i = 0; i < deps.length; ++i)
+					deps[i] = futures.get(table.dependencies[i]);
+				futures.put(table.name, CompletableFuture.allOf(deps).thenApplyAsync(new Function<Void, Result>(){
+					public Result apply(Void ignored){
+						try{
+							return loadTable(esql, table, new File(dir, table.file));
+						}catch (Exception e){
+							throw new RuntimeException(table.name + ": " + e.getMessage(), e);
+						}
+					}
+				}, executor));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for (CompletableFuture<Result> future : futures.values())
+				results.add(future.get());
+			return results;
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			while (cause.getCause() != null && !(cause instanceof SQLException || cause instanceof IOException))
+				cause = cause.getCause();
+			if (cause instanceof SQLException) throw (SQLException) cause;
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new SQLException(e.getCause().getMessage(), e.getCause());
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while loading", e);
+		}finally{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Method to stream one file into its table through COPY FROM STDIN.
+	 *
+	 * @return the rows loaded and rejected
+	 */
+	static Result loadTable (DBproject esql, Table table, File file) throws SQLException, IOException {
+		Result result = new Result(table);
+		if (!file.exists()) return result;
+		long start = System.nanoTime();
+
+		ConnectionPool.Lease lease = esql.getPool().borrow();
+		BufferedReader reader = null;
+		Writer rejects = null;
+		CopyIn copy = null;
+		try{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), READ_BUFFER_SIZE);
+			copy = lease.getConnection().unwrap(PGConnection.class).getCopyAPI().copyIn(table.copySql());
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int used = 0;
+			long lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null){
+				++lineNumber;
+				if (line.endsWith("\r")) line = line.substring(0, line.length() - 1);
+				if (line.isEmpty()) continue;
+
+				String reason = validate(table, line);
+				if (reason != null){
+					if (rejects == null)
+						rejects = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(file.getPath() + ".rejected")), StandardCharsets.UTF_8));
+					rejects.write(lineNumber + ": " + reason + ": " + line + "\n");
+					++result.rejected;
+					continue;
+				}//end if
+
+				byte[] row = (line + "\n").getBytes(StandardCharsets.UTF_8);
+				if (used + row.length > buffer.length){
+					copy.writeToCopy(buffer, 0, used);
+					used = 0;
+				}//end if
+				if (row.length > buffer.length){
+					copy.writeToCopy(row, 0, row.length);
+				}else{
+					System.arraycopy(row, 0, buffer, used, row.length);
+					used += row.length;
+				}//end if
+			}//end while
+			if (used > 0) copy.writeToCopy(buffer, 0, used);
+			result.loaded = copy.endCopy();
+			copy = null;
+		}finally{
+			if (copy != null && copy.isActive()){
+				try{
+					copy.cancelCopy();
+				}catch (SQLException e){
+					// ignored, the original error is reported.
+				}
+			}
+			if (reader != null) reader.close();
+			if (rejects != null) rejects.close();
+			esql.getPool().release(lease);
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * Method to check a row against the column count and column kinds of its
+	 * table. Key and foreign key violations are left to the server.
+	 *
+	 * @return why the row is rejected, or null if it may be sent
+	 */
+	static String validate (Table table, String line){
+		String[] fields = line.split(",", -1);
+		if (fields.length != table.columns.length)
+			return "expected " + table.columns.length + " fields, found " + fields.length;
+		for (int i = 0; i < fields.length; ++i){
+			String field = fields[i];
+			switch (table.kinds.charAt(i)){
+				case INT:
+					try{
+						Integer.parseInt(field);
+					}catch (NumberFormatException e){
+						return table.columns[i] + " is not an integer";
+					}
+					break;
+				case TEXT:
+					if (table.lengths[i] > 0 && field.length() > table.lengths[i])
+						return table.columns[i] + " is longer than " + table.lengths[i] + " characters";
+					break;
+				case DATE:
+					if (!DATE_FORMAT.matcher(field).matches())
+						return table.columns[i] + " is not a MM/DD/YYYY date";
+					break;
+				case GENDER:
+					if (!field.equals("F") && !field.equals("M"))
+						return table.columns[i] + " must be F or M";
+					break;
+				case STATUS:
+					if (!field.equals("PA") && !field.equals("AC") && !field.equals("AV") && !field.equals("WL"))
+						return table.columns[i] + " must be PA, AC, AV or WL";
+					break;
+			}
+		}//end for
+		return null;
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * Connection pool
+ * ===============
+ *
+ * A small bounded pool of PostgreSQL connections shared by the threads of
+ * one DBproject instance.
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class leases physical connections to callers and takes them back.
+ * Connections are opened lazily up to a maximum, validated when borrowed
+ * after sitting idle, closed after an idle timeout or a maximum lifetime, and
+ * every borrow records how long the caller waited. With metrics set, the
+ * cached prepared statements record their executions in them.
+ *
+ */
+
+public class ConnectionPool{
+	//maximum number of prepared statements kept open on one connection
+	static final int STATEMENT_CACHE_SIZE = 64;
+	//connections idle for less than this are handed out without a validation round trip
+	static final long VALIDATION_INTERVAL_MILLIS = 500;
+	static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+	/**
+	 * A physical connection owned by the pool together with the prepared
+	 * statements cached on it.
+	 */
+	public static class Lease{
+		//the pool the connection goes back to
+		final ConnectionPool owner;
+		final Connection connection;
+		final long createdAt;
+		long lastUsed;
+		//records the executions of the cached statements, or null
+		final QueryMetrics metrics;
+		//prepared statements of the connection keyed by query text, least recently used first
+		private final Map<String, PreparedStatement> _statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() <= STATEMENT_CACHE_SIZE) return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+
+		Lease(ConnectionPool owner, Connection connection, QueryMetrics metrics){
+			this.owner = owner;
+			this.connection = connection;
+			this.metrics = metrics;
+			this.createdAt = System.currentTimeMillis();
+			this.lastUsed = this.createdAt;
+		}
+
+		public Connection getConnection(){
+			return this.connection;
+		}
+
+		/**
+		 * Method to look up the cached prepared statement of a query shape,
+		 * preparing it on first use.
+		 *
+		 * @param sql the query shape with '?' placeholders
+		 * @return the statement, owned by the lease
+		 * @throws java.sql.SQLException when the statement cannot be prepared
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = this._statements.get(sql);
+			if (stmt == null){
+				stmt = this.connection.prepareStatement(sql);
+				if (this.metrics != null) stmt = this.metrics.instrument(stmt, sql);
+				this._statements.put(sql, stmt);
+			}//end if
+			return stmt;
+		}
+
+		void close(){
+			for (PreparedStatement stmt : this._statements.values())
+				closeQuietly(stmt);
+			this._statements.clear();
+			try{
+				this.connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}//end try
+		}
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _maxSize;
+	private final long _maxWaitMillis;
+	private final long _idleTimeoutMillis;
+	private final long _maxLifetimeMillis;
+
+	//idle connections, most recently returned first
+	private final Deque<Lease> _idle = new ArrayDeque<Lease>();
+	//number of connections open or being opened
+	private int _size = 0;
+	private boolean _closed = false;
+	private final ScheduledExecutorService _evictor;
+
+	//wait-time metrics, guarded by this
+	private long _borrowCount = 0;
+	private long _totalWaitNanos = 0;
+	private long _maxWaitNanos = 0;
+	private long _timeoutCount = 0;
+	private long _openedCount = 0;
+	private long _evictedCount = 0;
+	private final QueryMetrics.Histogram _waits = new QueryMetrics.Histogram();
+	//set before the first borrow, or null
+	private volatile QueryMetrics _metrics = null;
+
+	/**
+	 * @param url the JDBC connection URL
+	 * @param maxSize the maximum number of open connections
+	 * @param maxWaitMillis how long borrow waits for a free connection before failing
+	 * @param idleTimeoutMillis how long a connection may sit idle before it is closed
+	 * @param maxLifetimeMillis how long a connection may live before it is retired
+	 */
+	public ConnectionPool(String url, String user, String passwd, int maxSize, long maxWaitMillis, long idleTimeoutMillis, long maxLifetimeMillis){
+		if (maxSize <= 0) throw new IllegalArgumentException("Pool size must be greater than 0");
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._maxSize = maxSize;
+		this._maxWaitMillis = maxWaitMillis;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._maxLifetimeMillis = maxLifetimeMillis;
+
+		this._evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "connection-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, Math.min(idleTimeoutMillis, maxLifetimeMillis) / 2);
+		this._evictor.scheduleWithFixedDelay(new Runnable(){
+			public void run(){ evict(); }
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to lease a connection, opening a new one if none is idle and the
+	 * pool is not full, otherwise waiting for one to be returned.
+	 *
+	 * @return the leased connection; it must be handed back with release
+	 * @throws java.sql.SQLException when no connection is available in time or one cannot be opened
+	 */
+	public Lease borrow() throws SQLException {
+		Lease lease = lease(this._maxWaitMillis);
+		if (lease != null) return lease;
+		synchronized (this){ ++this._timeoutCount; }
+		throw new SQLException("Timed out after " + this._maxWaitMillis + " ms waiting for a database connection", "08001");
+	}
+
+	/**
+	 * Method to lease a connection like borrow, but waiting at most
+	 * waitMillis for one to be returned, so a caller with somewhere else to
+	 * go is not held up by a busy pool.
+	 *
+	 * @return the leased connection, or null when none was returned in time
+	 * @throws java.sql.SQLException when a connection cannot be opened
+	 */
+	public Lease tryBorrow(long waitMillis) throws SQLException {
+		return lease(waitMillis);
+	}
+
+	private Lease lease(long waitMillis) throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+		while (true){
+			Lease lease = null;
+			boolean open = false;
+			synchronized (this){
+				while (!this._closed && this._idle.isEmpty() && this._size >= this._maxSize){
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) return null;
+					try{
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08001");
+					}//end try
+				}//end while
+				if (this._closed) throw new SQLException("Connection pool is closed", "08003");
+				if (!this._idle.isEmpty()){
+					lease = this._idle.pollFirst();
+				}else{
+					++this._size;
+					open = true;
+				}//end if
+			}//end synchronized
+
+			if (open){
+				try{
+					lease = new Lease(this, DriverManager.getConnection(this._url, this._user, this._passwd), this._metrics);
+				}catch (SQLException e){
+					discarded(null);
+					throw e;
+				}//end try
+				synchronized (this){ ++this._openedCount; }
+			}else if (expired(lease, System.currentTimeMillis()) || !validate(lease)){
+				lease.close();
+				discarded(lease);
+				continue;
+			}//end if
+
+			lease.lastUsed = System.currentTimeMillis();
+			recordWait(System.nanoTime() - start);
+			return lease;
+		}//end while
+	}
+
+	/**
+	 * Method to hand a leased connection back to the pool. A transaction the
+	 * caller left open is rolled back; a broken or retired connection is closed.
+	 *
+	 * @param lease the connection obtained from borrow
+	 */
+	public void release(Lease lease){
+		if (lease == null) return;
+		boolean healthy;
+		try{
+			if (!lease.connection.getAutoCommit()){
+				lease.connection.rollback();
+				lease.connection.setAutoCommit(true);
+			}//end if
+			healthy = !lease.connection.isClosed();
+		}catch (SQLException e){
+			healthy = false;
+		}//end try
+
+		long now = System.currentTimeMillis();
+		synchronized (this){
+			if (healthy && !this._closed && !expired(lease, now)){
+				lease.lastUsed = now;
+				this._idle.addFirst(lease);
+				notifyAll();
+				return;
+			}//end if
+		}//end synchronized
+		lease.close();
+		discarded(lease);
+	}
+
+	/**
+	 * Method to open a connection outside the pool, for a caller that keeps
+	 * it for its whole life such as a LISTEN session, so it does not take a
+	 * slot from the callers that borrow.
+	 *
+	 * @return a new connection the caller must close
+	 * @throws java.sql.SQLException when the connection cannot be opened
+	 */
+	public Connection openDedicated() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to close every idle connection and refuse further borrows.
+	 * Connections still leased are closed when they are released.
+	 */
+	public void close(){
+		this._evictor.shutdownNow();
+		Deque<Lease> idle;
+		synchronized (this){
+			this._closed = true;
+			idle = new ArrayDeque<Lease>(this._idle);
+			this._size -= this._idle.size();
+			this._idle.clear();
+			notifyAll();
+		}//end synchronized
+		for (Lease lease : idle)
+			lease.close();
+	}
+
+	/**
+	 * Closes connections that sat idle past the idle timeout or outlived the
+	 * maximum lifetime.
+	 */
+	void evict(){
+		long now = System.currentTimeMillis();
+		Deque<Lease> evicted = new ArrayDeque<Lease>();
+		synchronized (this){
+			for (Iterator<Lease> it = this._idle.iterator(); it.hasNext(); ){
+				Lease lease = it.next();
+				if (now - lease.lastUsed >= this._idleTimeoutMillis || expired(lease, now)){
+					it.remove();
+					evicted.add(lease);
+				}//end if
+			}//end for
+			this._size -= evicted.size();
+			this._evictedCount += evicted.size();
+			if (!evicted.isEmpty()) notifyAll();
+		}//end synchronized
+		for (Lease lease : evicted)
+			lease.close();
+	}
+
+	private boolean expired(Lease lease, long now){
+		return now - lease.createdAt >= this._maxLifetimeMillis;
+	}
+
+	private boolean validate(Lease lease){
+		if (System.currentTimeMillis() - lease.lastUsed < VALIDATION_INTERVAL_MILLIS) return true;
+		try{
+			return lease.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		}catch (SQLException e){
+			return false;
+		}//end try
+	}
+
+	private synchronized void discarded(Lease lease){
+		--this._size;
+		if (lease != null) ++this._evictedCount;
+		notifyAll();
+	}
+
+	private synchronized void recordWait(long nanos){
+		this._waits.record(nanos);
+		++this._borrowCount;
+		this._totalWaitNanos += nanos;
+		if (nanos > this._maxWaitNanos) this._maxWaitNanos = nanos;
+	}
+
+	/**
+	 * Method to record the executions of the statements prepared on the
+	 * connections opened from now on.
+	 */
+	public void setMetrics(QueryMetrics metrics){
+		this._metrics = metrics;
+	}
+
+	public QueryMetrics.Histogram getWaitHistogram(){
+		return this._waits;
+	}
+
+	public int getMaxSize(){
+		return this._maxSize;
+	}
+
+	public synchronized int getSize(){
+		return this._size;
+	}
+
+	public synchronized int getIdleCount(){
+		return this._idle.size();
+	}
+
+	public synchronized long getBorrowCount(){
+		return this._borrowCount;
+	}
+
+	public synchronized long getTotalWaitNanos(){
+		return this._totalWaitNanos;
+	}
+
+	public synchronized long getMaxWaitNanos(){
+		return this._maxWaitNanos;
+	}
+
+	public synchronized long getTimeoutCount(){
+		return this._timeoutCount;
+	}
+
+	/**
+	 * @return a one line summary of the pool size and wait-time metrics
+	 */
+	public synchronized String toString(){
+		double avgWait = this._borrowCount == 0 ? 0 : this._totalWaitNanos / 1e6 / this._borrowCount;
+		return String.format("pool: %d/%d open, %d idle, %d borrows, avg wait %.3f ms, max wait %.3f ms, %d timeouts, %d opened, %d evicted",
+			this._size, this._maxSize, this._idle.size(), this._borrowCount, avgWait, this._maxWaitNanos / 1e6,
+			this._timeoutCount, this._openedCount, this._evictedCount);
+	}
+
+	static void closeQuietly(Statement stmt){
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}//end try
+	}
+}
@@ -11,18 +11,18 @@
  */
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.time.LocalDate;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,26 +31,329 @@ import java.util.ArrayList;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//connection pool defaults
+	static final int DEFAULT_POOL_SIZE = 8;
+	static final long POOL_MAX_WAIT_MILLIS = 30000;
+	static final long POOL_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+	static final long POOL_MAX_LIFETIME_MILLIS = 30 * 60 * 1000;
+	//rows fetched per round trip when a result is streamed through a cursor
+	static final int STREAM_FETCH_SIZE = 1000;
+
+	//query shapes issued by the service operations, bound with parameters at run time
+	static final String INSERT_DOCTOR = "INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES (?, ?, ?, ?);";
+	static final String INSERT_PATIENT = "INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts) VALUES (?, ?, ?, ?, ?, ?);";
+	static final String INSERT_APPOINTMENT = "INSERT INTO Appointment (appnt_ID, adate, time_slot, status) VALUES (?, ?::date, ?, ?);";
+	static final String INSERT_DOCTOR_APPOINTMENT = "WITH A AS (INSERT INTO Appointment (appnt_ID, adate, time_slot, status) VALUES (?, ?::date, ?, ?) RETURNING appnt_ID)\n"
+		+ "INSERT INTO has_appointment (appt_id, doctor_id) SELECT appnt_ID, ? FROM A;";
+	static final String INSERT_PATIENT_IF_MISSING = "INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts) VALUES (?, ?, ?, ?, ?, ?) ON CONFLICT (patient_ID) DO NOTHING;";
+	static final String APPOINTMENT_STATUS = "SELECT A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = ? AND H.appt_id = ? AND H.appt_id = A.appnt_ID;";
+	static final String APPOINTMENT_HOSPITAL = "SELECT DT.hid\nFROM has_appointment HA, Doctor D, Department DT\nWHERE HA.appt_id = ? AND HA.doctor_id = ? AND HA.doctor_id = D.doctor_ID AND D.did = DT.dept_ID;";
+	static final String APPOINTMENT_BY_ID = "SELECT appnt_ID, adate, time_slot, status\nFROM Appointment\nWHERE appnt_ID = ?;";
+	static final String PATIENT_BY_ID = "SELECT patient_ID, name, gtype, age, address, number_of_appts\nFROM Patient\nWHERE patient_ID = ?;";
+	static final String PATIENT_APPOINTMENT_COUNT = "SELECT number_of_appts\nFROM Patient\nWHERE patient_ID = ?;";
+	static final String UPDATE_APPOINTMENT_STATUS = "UPDATE Appointment SET status = ? WHERE appnt_ID = ?;";
+	static final String INCREMENT_PATIENT_APPOINTMENTS = "UPDATE Patient SET number_of_appts = number_of_appts + 1 WHERE patient_ID = ?;";
+	static final String INSERT_SEARCH = "INSERT INTO searches (hid, pid, aid) VALUES (?, ?, ?) ON CONFLICT (hid, pid, aid) DO NOTHING;";
+	static final String APPOINTMENTS_OF_DOCTOR = "SELECT A.appnt_ID, A.adate, A.time_slot, A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = ? AND H.appt_id = A.appnt_ID AND (A.status = 'AV' or A.status = 'AC') AND (A.adate >= ?::date AND A.adate <= ?::date)\nGROUP BY A.appnt_ID, A.adate;";
+	static final String AVAILABLE_APPOINTMENTS_OF_DEPARTMENT = "SELECT A.appnt_ID\nFROM Doctor D, has_appointment H, Appointment A\nWHERE D.did IN (SELECT DT.dept_ID FROM Department DT WHERE DT.name = ?) AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = ?::date\nGROUP BY A.appnt_ID;";
+	//slot searches over the ranges maintained by sql/triggers.sql; the
+	//conditions on adate let a partitioned Appointment skip other months
+	static final String NEXT_AVAILABLE_OF_DOCTOR = "SELECT A.appnt_ID, A.adate, A.time_slot, A.status\n"
+		+ "FROM Appointment A, has_appointment H\n"
+		+ "WHERE H.doctor_id = ? AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate >= ?::timestamp::date AND lower(A.slot) >= ?::timestamp\n"
+		+ "ORDER BY lower(A.slot), A.appnt_ID\n"
+		+ "LIMIT 1;";
+	static final String AVAILABLE_OF_DEPARTMENT_OVERLAPPING = "SELECT A.appnt_ID, A.adate, A.time_slot, A.status\n"
+		+ "FROM Department DT, Doctor D, has_appointment H, Appointment A\n"
+		+ "WHERE DT.name = ? AND D.did = DT.dept_ID AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AV'\n"
+		+ "AND A.adate >= ?::timestamp::date AND A.adate <= ?::timestamp::date AND A.slot && tsrange(?::timestamp, ?::timestamp)\n"
+		+ "GROUP BY A.appnt_ID, A.adate\n"
+		+ "ORDER BY lower(A.slot), A.appnt_ID;";
+	//options 7 and 8 read the summary maintained by sql/triggers.sql
+	static final String STATUS_COUNT_PER_DOCTOR = "SELECT D.doctor_ID, D.name, D.specialty, S.status, S.appointments AS NumAppnts\n"
+		+ "FROM doctor_status_stats S, Doctor D\n"
+		+ "WHERE S.doctor_id = D.doctor_ID AND S.appointments > 0\n"
+		+ "ORDER BY NumAppnts Desc;";
+	static final String PATIENT_COUNT_WITH_STATUS = "SELECT D.doctor_ID, D.name, D.specialty, S.patients AS NumPatients\n"
+		+ "FROM doctor_status_stats S, Doctor D\n"
+		+ "WHERE S.doctor_id = D.doctor_ID AND S.status = ? AND S.patients > 0;";
+	//the same answers counted from the base tables, for databases without the summary
+	static final String STATUS_COUNT_PER_DOCTOR_RECOUNT = "SELECT D.doctor_ID, D.name, D.specialty, A.status, count(A.status) AS NumAppnts\n"
+		+ "FROM Doctor D, Appointment A, has_appointment H\n"
+		+ "WHERE H.doctor_id = D.doctor_ID AND A.appnt_ID = H.appt_id\n"
+		+ "GROUP BY D.doctor_ID, D.name, D.specialty, A.status\n"
+		+ "ORDER BY NumAppnts Desc;";
+	static final String PATIENT_COUNT_WITH_STATUS_RECOUNT = "SELECT D.doctor_ID, D.name, D.specialty, count(S.pid) AS NumPatients\n"
+		+ "FROM Doctor D, Searches S, has_appointment H, Appointment A\n"
+		+ "WHERE H.doctor_id = D.doctor_ID AND A.status = ? AND A.appnt_ID = S.aid AND H.appt_id = S.aid\n"
+		+ "GROUP BY D.doctor_ID, D.name, D.specialty;";
+
+	//pool of physical database connections
+	private ConnectionPool _pool = null;
+	//latency, rows and errors of the calls made through this instance
+	private final QueryMetrics _metrics;
+	//replicas the queries of the read view go to, or null without replicas
+	private ReplicaRouter _router = null;
+	//true for the view returned by forReads
+	private final boolean _reads;
+	private DBproject _readView = this;
+	//runs the statements instead of the pool, or null
+	private final Backend _backend;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//renders query results, configured through the dbproject.* system properties
+	static ResultPrinter printer = ResultPrinter.fromSystemProperties(in);
+
+	/**
+	 * The current row of a streamed query. Column values are converted when
+	 * they are read, and the row is only valid inside the handler call.
+	 */
+	public static final class Row{
+		private final ResultSet _rs;
+		//the column names and current values of a row of a backend instead
+		private final String[] _columns;
+		private Object[] _values;
+
+		Row(ResultSet rs){
+			this._rs = rs;
+			this._columns = null;
+		}
+
+		/**
+		 * A row of a backend, holding the values of each set call in turn:
+		 * Integer, Long, String, java.sql.Date, java.sql.Timestamp or null.
+		 */
+		Row(String[] columns){
+			this._rs = null;
+			this._columns = columns;
+		}
+
+		Row set(Object[] values){
+			this._values = values;
+			return this;
+		}
+
+		public int getColumnCount() throws SQLException {
+			return this._rs != null ? this._rs.getMetaData().getColumnCount() : this._columns.length;
+		}
+
+		public String getColumnName(int column) throws SQLException {
+			return this._rs != null ? this._rs.getMetaData().getColumnName(column) : this._columns[column - 1];
+		}
+
+		public int getInt(int column) throws SQLException {
+			if (this._rs != null) return this._rs.getInt(column);
+			Object value = value(column);
+			return value == null ? 0 : ((Number) value).intValue();
+		}
+
+		public long getLong(int column) throws SQLException {
+			if (this._rs != null) return this._rs.getLong(column);
+			Object value = value(column);
+			return value == null ? 0 : ((Number) value).longValue();
+		}
+
+		public String getString(int column) throws SQLException {
+			if (this._rs != null) return this._rs.getString(column);
+			Object value = value(column);
+			return value == null ? null : value.toString();
+		}
+
+		public java.sql.Date getDate(int column) throws SQLException {
+			return this._rs != null ? this._rs.getDate(column) : (java.sql.Date) value(column);
+		}
+
+		public java.sql.Timestamp getTimestamp(int column) throws SQLException {
+			return this._rs != null ? this._rs.getTimestamp(column) : (java.sql.Timestamp) value(column);
+		}
+
+		public boolean isNull(int column) throws SQLException {
+			return (this._rs != null ? this._rs.getObject(column) : value(column)) == null;
+		}
+
+		private Object value(int column) throws SQLException {
+			if (column < 1 || column > this._columns.length)
+				throw new SQLException("The column index is out of range: " + column + ", number of columns: " + this._columns.length);
+			return this._values[column - 1];
+		}
+	}
+
+	/**
+	 * Receives the rows of a streamed query one at a time.
+	 */
+	public interface RowHandler{
+		void handle(Row row) throws SQLException;
+	}
+
+	/**
+	 * Runs the statements of the execute methods in place of PostgreSQL,
+	 * such as MemoryEngine. A backend knows statements by their text and
+	 * fails the ones it does not run with SQLState 0A000.
+	 */
+	public interface Backend{
+		/**
+		 * @return the number of rows affected
+		 */
+		int executeUpdate(String sql, Object... params) throws SQLException;
+
+		/**
+		 * Method to run a query, handing its rows to the handler in result order.
+		 *
+		 * @return the names of the columns of the result
+		 */
+		String[] executeQuery(String sql, RowHandler handler, Object... params) throws SQLException;
+
+		void close();
+	}
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this(dbname, dbport, user, passwd, DEFAULT_POOL_SIZE);
+	}
+
+	public DBproject(String dbname, String dbport, String user, String passwd, int poolSize) throws SQLException {
+		this(dbname, dbport, user, passwd, poolSize, "");
+	}
+
+	/**
+	 * Connects to the primary, and to the replicas listed in the system
+	 * property dbproject.replicas (host:port or port, comma separated) that
+	 * hold the same database, for the view returned by forReads.
+	 *
+	 * @param options driver properties added to the connection URL, e.g.
+	 * reWriteBatchedInserts=true, or empty
+	 */
+	public DBproject(String dbname, String dbport, String user, String passwd, int poolSize, String options) throws SQLException {
+		this(dbname, dbport, user, passwd, poolSize, options, System.getProperty("dbproject.replicas", ""));
+	}
+
+	/**
+	 * @param dbport the port of the server on this machine, or host:port
+	 * @param replicas the replicas as host:port or port, comma separated, or empty
+	 */
+	public DBproject(String dbname, String dbport, String user, String passwd, int poolSize, String options, String replicas) throws SQLException {
+		this._metrics = new QueryMetrics();
+		this._reads = false;
+		this._backend = null;
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = url(dbport.indexOf(':') < 0 ? "localhost:" + dbport : dbport, dbname, options);
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
-	        System.out.println("Done");
+			this._pool = new ConnectionPool(url, user, passwd, poolSize, POOL_MAX_WAIT_MILLIS, POOL_IDLE_TIMEOUT_MILLIS, POOL_MAX_LIFETIME_MILLIS);
+			this._pool.setMetrics(this._metrics);
+		}catch(Exception e){
+			unreachable(e);
+		}
+		if (FastStart.isEnabled()){
+			// the first connection opens while the caller carries on, and a bad URL fails there
+			final ConnectionPool pool = this._pool;
+			Thread connect = new Thread(new Runnable(){
+				public void run(){
+					connect(pool);
+				}
+			}, "db-connect");
+			connect.setDaemon(true);
+			connect.start();
+			System.out.println("Connecting in the background");
+		}else{
+			// obtain a physical connection up front so a bad URL fails here
+			connect(this._pool);
+			System.out.println("Done");
+		}//end if
+
+		replicas = replicas.trim();
+		if (!replicas.isEmpty()){
+			List<String> names = new ArrayList<String>();
+			List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+			for (String replica : replicas.split(",")){
+				replica = replica.trim();
+				if (replica.indexOf(':') < 0) replica = "localhost:" + replica;
+				// a replica that is down is skipped until it answers, so it is not connected here
+				ConnectionPool pool = new ConnectionPool(url(replica, dbname, options), user, passwd, poolSize,
+					POOL_MAX_WAIT_MILLIS, POOL_IDLE_TIMEOUT_MILLIS, POOL_MAX_LIFETIME_MILLIS);
+				pool.setMetrics(this._metrics);
+				names.add(replica);
+				pools.add(pool);
+			}//end for
+			this._router = new ReplicaRouter(this._pool, names, pools,
+				Long.getLong("dbproject.maxReplicaLagMillis", ReplicaRouter.DEFAULT_MAX_LAG_MILLIS));
+			this._readView = new DBproject(this);
+			System.out.println ("Reads go to " + this._router + "\n");
+		}//end if
+	}
+
+	/**
+	 * The read view of a database: queries go through the router, updates
+	 * still go to the primary.
+	 */
+	private DBproject(DBproject primary){
+		this._pool = primary._pool;
+		this._metrics = primary._metrics;
+		this._router = primary._router;
+		this._backend = primary._backend;
+		this._reads = true;
+		this._readView = this;
+	}
+
+	/**
+	 * Runs the statements on a backend instead of a server. There is no
+	 * pool, so getPool returns null and whatever leases connections, such as
+	 * releasing an appointment, is not available.
+	 */
+	public DBproject(Backend backend){
+		this._metrics = new QueryMetrics();
+		this._reads = false;
+		this._backend = backend;
+		System.out.println ("Using the " + backend + "\n");
+		FastStart.mark(FastStart.CONNECTED);
+	}
+
+	private static void connect(ConnectionPool pool){
+		try{
+			pool.release(pool.borrow());
+			FastStart.mark(FastStart.CONNECTED);
 		}catch(Exception e){
-			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
+			unreachable(e);
 		}
 	}
+
+	private static void unreachable(Exception e){
+		System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
+		System.out.println("Make sure you started postgres on this machine");
+		System.exit(-1);
+	}
+
+	private static String url(String hostPort, String dbname, String options){
+		return "jdbc:postgresql://" + hostPort + "/" + dbname + (options.isEmpty() ? "" : "?" + options);
+	}
+
+	/**
+	 * Method to get the database to run queries on that may read from a
+	 * replica, so see the writes of the last moments late. Listings and
+	 * reports use it; whatever must see its own writes, or writes, uses
+	 * this instance.
+	 *
+	 * @return a view sharing this instance's connections whose queries go to
+	 * a replica within the allowed lag, or to the primary; this instance when
+	 * no replicas are configured
+	 */
+	public DBproject forReads(){
+		return this._readView;
+	}
+
+	/**
+	 * @return the router of the replicas, or null when none are configured
+	 */
+	public ReplicaRouter getRouter(){
+		return this._router;
+	}
+
+	/**
+	 * @return the backend the statements run on, or null when they go to PostgreSQL
+	 */
+	public Backend getBackend(){
+		return this._backend;
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
@@ -60,14 +363,31 @@ public class DBproject{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+		QueryMetrics.Call call = this._metrics.beginUnprepared ("executeUpdate", sql);
+		if (this._backend != null){
+			backendUpdate (call, sql);
+			return;
+		}//end if
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = this._pool.borrow ();
+			// creates a statement object
+			Statement stmt = lease.getConnection ().createStatement ();
+			int rowCount;
+			try{
+				// issues the update instruction
+				rowCount = stmt.executeUpdate (sql);
+			}finally{
+				// close the instruction
+				stmt.close ();
+			}
+			ended (call, rowCount);
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			this._pool.release (lease);
+		}
 	}//end executeUpdate
 
 	/**
@@ -80,74 +400,74 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		QueryMetrics.Call call = this._metrics.beginUnprepared ("executeQueryAndPrintResult", query);
+		if (this._backend != null) return backendPrint (call, query);
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			//creates a statement object that fetches the result through a cursor
+			lease.getConnection ().setAutoCommit (false);
+			Statement stmt = lease.getConnection ().createStatement ();
+			int rowCount;
+			try{
+				stmt.setFetchSize (STREAM_FETCH_SIZE);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+				//outputs the records to standard out
+				rowCount = printResultSet (rs);
+			}finally{
+				stmt.close ();
+			}
+			lease.getConnection ().commit ();
+			ended (call, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
 	}
 	
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * a list of records. Each record in turn is a list of attribute values.
+	 * The whole result is held in memory; use streamQueryForEach for
+	 * results of unbounded size.
 	 * 
 	 * @param query the input query string
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+		QueryMetrics.Call call = this._metrics.beginUnprepared ("executeQueryAndReturnResult", query);
+		if (this._backend != null) return backendCollect (call, query);
+		ConnectionPool.Lease lease = null;
+		try{ 
+			lease = borrow (); 
+			//creates a statement object 
+			Statement stmt = lease.getConnection ().createStatement (); 
+			List<List<String>> result;
+			try{
+				//issues the query instruction 
+				ResultSet rs = stmt.executeQuery (query); 
+
+				//saves the data returned by the query. 
+				result = collectResultSet (rs); 
+			}finally{
+				stmt.close (); 
+			}
+			ended (call, result.size ());
+			return result; 
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{ 
+			release (lease); 
+		} 
 	}//end executeQueryAndReturnResult
 	
 	/**
@@ -159,26 +479,414 @@ public class DBproject{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		QueryMetrics.Call call = this._metrics.beginUnprepared ("executeQuery", query);
+		if (this._backend != null) return backendForEach (call, query, null) > 0 ? 1 : 0;
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			//creates a statement object
+			Statement stmt = lease.getConnection ().createStatement ();
+			int rowCount = 0;
+			try{
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
+
+				//iterates through the result set and count nuber of results.
+				if(rs.next()){
+					rowCount++;
+				}//end while
+			}finally{
+				stmt.close ();
+			}
+			ended (call, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
+	}
+	
+	/**
+	 * Method to look up the prepared statement of a query shape in the
+	 * statement cache of a leased connection and bind the given parameters
+	 * to it.
+	 * 
+	 * @param lease the connection to prepare the statement on
+	 * @param sql the query shape with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the bound statement, owned by the lease
+	 * @throws java.sql.SQLException when the statement cannot be prepared or bound
+	 */
+	static PreparedStatement prepare (ConnectionPool.Lease lease, String sql, Object... params) throws SQLException {
+		PreparedStatement stmt = lease.prepare (sql);
+		stmt.clearParameters ();
+		for (int i = 0; i < params.length; ++i)
+			stmt.setObject (i + 1, params[i]);
+		return stmt;
+	}//end prepare
+
+	/**
+	 * Method to execute a parameterized update SQL statement through the
+	 * statement cache.
+	 * 
+	 * @param sql the statement shape with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String sql, Object... params) throws SQLException {
+		QueryMetrics.Call call = this._metrics.begin ("executeUpdate", sql);
+		if (this._backend != null) return backendUpdate (call, sql, params);
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = this._pool.borrow ();
+			int rowCount = prepare (lease, sql, params).executeUpdate ();
+			ended (call, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			this._pool.release (lease);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized query through the statement cache
+	 * and output the results to standard out.
+	 * 
+	 * @param query the query shape with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		QueryMetrics.Call call = this._metrics.begin ("executeQueryAndPrintResult", query);
+		if (this._backend != null) return backendPrint (call, query, params);
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			ResultSet rs = stream (lease, query, params);
+			int rowCount;
+			try{
+				rowCount = printResultSet (rs);
+			}finally{
+				rs.close ();
+				lease.getConnection ().commit ();
+			}
+			ended (call, rowCount);
+			this._metrics.addRows (query, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
+	}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to execute a parameterized query through the statement cache
+	 * and hand each record to a handler. The result is fetched at once, so
+	 * use it for results of a few rows; streamQueryForEach reads large ones.
+	 * 
+	 * @param query the query shape with '?' placeholders
+	 * @param handler called once per record, in result order
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query or the handler failed
+	 */
+	public long executeQueryForEach (String query, RowHandler handler, Object... params) throws SQLException {
+		QueryMetrics.Call call = this._metrics.begin ("executeQueryForEach", query);
+		if (this._backend != null) return backendForEach (call, query, handler, params);
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			long rowCount = forEach (prepare (lease, query, params).executeQuery (), handler);
+			ended (call, rowCount);
+			this._metrics.addRows (query, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
+	}
 
-		int rowCount = 0;
+	/**
+	 * Method to execute a parameterized query through the statement cache
+	 * and hand each record to a handler as it arrives. The result is read
+	 * through a cursor STREAM_FETCH_SIZE rows at a time, so memory use does
+	 * not grow with the size of the result; the cursor costs a transaction
+	 * around the query.
+	 * 
+	 * @param query the query shape with '?' placeholders
+	 * @param handler called once per record, in result order
+	 * @param params the values bound to the placeholders
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query or the handler failed
+	 */
+	public long streamQueryForEach (String query, RowHandler handler, Object... params) throws SQLException {
+		QueryMetrics.Call call = this._metrics.begin ("streamQueryForEach", query);
+		if (this._backend != null) return backendForEach (call, query, handler, params);
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			long rowCount;
+			try{
+				rowCount = forEach (stream (lease, query, params), handler);
+			}finally{
+				lease.getConnection ().commit ();
+			}
+			ended (call, rowCount);
+			this._metrics.addRows (query, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
+	/**
+	 * Method to hand the records of a result set to a handler and close it.
+	 *
+	 * @return the number of rows read
+	 */
+	private static long forEach (ResultSet rs, RowHandler handler) throws SQLException {
+		long rowCount = 0;
+		try{
+			Row row = new Row (rs);
+			while (rs.next ()){
+				handler.handle (row);
+				++rowCount;
+			}//end while
+		}finally{
+			rs.close ();
+		}
 		return rowCount;
 	}
-	
+
+	/**
+	 * Method to issue a parameterized query so that its result is fetched
+	 * through a cursor instead of all at once. The driver only does so
+	 * inside a transaction, which the caller commits when done reading.
+	 * The result set keeps the fetch size it was opened with, so the cached
+	 * statement gets its default back for the callers that do not stream.
+	 */
+	private static ResultSet stream (ConnectionPool.Lease lease, String query, Object... params) throws SQLException {
+		lease.getConnection ().setAutoCommit (false);
+		PreparedStatement stmt = prepare (lease, query, params);
+		stmt.setFetchSize (STREAM_FETCH_SIZE);
+		try{
+			return stmt.executeQuery ();
+		}finally{
+			stmt.setFetchSize (0);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query through the statement cache
+	 * and return the results as a list of records.
+	 * 
+	 * @param query the query shape with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+		QueryMetrics.Call call = this._metrics.begin ("executeQueryAndReturnResult", query);
+		if (this._backend != null) return backendCollect (call, query, params);
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			ResultSet rs = prepare (lease, query, params).executeQuery ();
+			List<List<String>> result;
+			try{
+				result = collectResultSet (rs);
+			}finally{
+				rs.close ();
+			}
+			ended (call, result.size ());
+			this._metrics.addRows (query, result.size ());
+			return result;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query through the statement cache
+	 * and return whether it produced a row (0 or 1).
+	 * 
+	 * @param query the query shape with '?' placeholders
+	 * @param params the values bound to the placeholders
+	 * @return 1 if the query returned at least one row, 0 otherwise
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		QueryMetrics.Call call = this._metrics.begin ("executeQuery", query);
+		if (this._backend != null) return backendForEach (call, query, null, params) > 0 ? 1 : 0;
+		ConnectionPool.Lease lease = null;
+		try{
+			lease = borrow ();
+			ResultSet rs = prepare (lease, query, params).executeQuery ();
+			int rowCount;
+			try{
+				rowCount = rs.next () ? 1 : 0;
+			}finally{
+				rs.close ();
+			}
+			ended (call, rowCount);
+			this._metrics.addRows (query, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}finally{
+			release (lease);
+		}
+	}
+
+	//the queries borrow here, so the read view routes them to a replica
+	private ConnectionPool.Lease borrow () throws SQLException {
+		return this._reads ? this._router.borrow () : this._pool.borrow ();
+	}
+
+	private void release (ConnectionPool.Lease lease){
+		if (this._reads) this._router.release (lease);
+		else this._pool.release (lease);
+	}
+
+	/**
+	 * Method to run an update on the backend as a call of an execute method.
+	 */
+	private int backendUpdate (QueryMetrics.Call call, String sql, Object... params) throws SQLException {
+		try{
+			int rowCount = this._backend.executeUpdate (sql, params);
+			ended (call, rowCount);
+			return rowCount;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to run a query on the backend as a call of an execute method,
+	 * handing its rows to a handler, or only counting them when it is null.
+	 *
+	 * @return the number of rows returned
+	 */
+	private long backendForEach (QueryMetrics.Call call, String query, final RowHandler handler, Object... params) throws SQLException {
+		final long[] rowCount = { 0 };
+		try{
+			this._backend.executeQuery (query, new RowHandler(){
+				public void handle(Row row) throws SQLException {
+					if (handler != null) handler.handle (row);
+					++rowCount[0];
+				}
+			}, params);
+			ended (call, rowCount[0]);
+			this._metrics.addRows (query, rowCount[0]);
+			return rowCount[0];
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}
+	}
+
+	private int backendPrint (QueryMetrics.Call call, String query, Object... params) throws SQLException {
+		final List<String[]> rows = new ArrayList<String[]>();
+		String[] columns = backendRows (call, query, rows, params);
+		return printer.print (columns, rows);
+	}
+
+	private List<List<String>> backendCollect (QueryMetrics.Call call, String query, Object... params) throws SQLException {
+		List<String[]> rows = new ArrayList<String[]>();
+		backendRows (call, query, rows, params);
+		List<List<String>> result = new ArrayList<List<String>>(rows.size());
+		for (String[] row : rows)
+			result.add(Arrays.asList(row));
+		return result;
+	}
+
+	/**
+	 * Method to read the rows of a backend query as text.
+	 *
+	 * @return the names of the columns
+	 */
+	private String[] backendRows (QueryMetrics.Call call, String query, final List<String[]> rows, Object... params) throws SQLException {
+		try{
+			String[] columns = this._backend.executeQuery (query, new RowHandler(){
+				public void handle(Row row) throws SQLException {
+					String[] values = new String[row.getColumnCount ()];
+					for (int i = 0; i < values.length; ++i)
+						values[i] = row.getString (i + 1);
+					rows.add (values);
+				}
+			}, params);
+			ended (call, rows.size ());
+			this._metrics.addRows (query, rows.size ());
+			return columns;
+		}catch (SQLException e){
+			failed (call, e);
+			throw e;
+		}
+	}
+
+	private static void ended (QueryMetrics.Call call, long rowCount){
+		if (call != null) call.end (rowCount);
+	}
+
+	private static void failed (QueryMetrics.Call call, SQLException e){
+		if (call != null) call.fail (e);
+	}
+
+	/**
+	 * Method to output a result set to standard out through the shared
+	 * result printer.
+	 * 
+	 * @param rs the result set to output
+	 * @return the number of rows output
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	private static int printResultSet (ResultSet rs) throws SQLException {
+		return printer.print (rs);
+	}
+
+	/**
+	 * Method to save a result set as a list of records.
+	 * 
+	 * @param rs the result set to save
+	 * @return the records, each a list of attribute values
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	private static List<List<String>> collectResultSet (ResultSet rs) throws SQLException {
+		int numCol = rs.getMetaData ().getColumnCount ();
+		List<List<String>> result  = new ArrayList<List<String>>(); 
+		while (rs.next()){
+			List<String> record = new ArrayList<String>(); 
+			for (int i=1; i<=numCol; ++i) 
+				record.add(rs.getString (i)); 
+			result.add(record); 
+		}//end while 
+		return result;
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
+	 * value of sequence used for autogenerated keys. The value is only
+	 * defined for the session that last called nextval, so callers sharing
+	 * the pool should read it in the same transaction as the insert.
 	 * 
 	 * @param sequence name of the DB sequence
 	 * @return current value of a sequence
@@ -186,24 +894,50 @@ public class DBproject{
 	 */
 	
 	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+		if (this._backend != null) throw new SQLException("There are no sequences without PostgreSQL", "0A000");
+		ConnectionPool.Lease lease = this._pool.borrow ();
+		try{
+			Statement stmt = lease.getConnection ().createStatement ();
+			try{
+				ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+				return rs.next() ? rs.getInt(1) : -1;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			this._pool.release (lease);
+		}
+	}
+
+	/**
+	 * @return the pool the execute methods borrow their connections from,
+	 * or null when they run on a backend
+	 */
+	public ConnectionPool getPool(){
+		return this._pool;
+	}
+
+	/**
+	 * @return the latency, rows and errors of the calls made so far
+	 */
+	public QueryMetrics getMetrics(){
+		return this._metrics;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connections of the pool if it is open,
+	 * and those of the replicas, or the backend.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		if (this._backend != null){
+			this._backend.close ();
+		}//end if
+		if (this._router != null){
+			this._router.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -220,25 +954,42 @@ public class DBproject{
 		}//end if
 		
 		DBproject esql = null;
+		HospitalService service = null;
 		
 		try{
 			System.out.println("(1)");
 			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
-
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
+			// a fast start leaves loading the driver to the first connection
+			if (!FastStart.isEnabled()){
+				try {
+					Class.forName("org.postgresql.Driver");
+				}catch(Exception e){
+
+					System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+					e.printStackTrace();
+					return;
+				}
+			}//end if
 			
 			System.out.println("(2)");
 			String dbname = args[0];
 			String dbport = args[1];
 			String user = args[2];
 			
-			esql = new DBproject (dbname, dbport, user, "");
+			// with dbproject.embedded the tables are kept in this process and that directory
+			String embedded = System.getProperty("dbproject.embedded", "").trim();
+			if (!embedded.isEmpty()){
+				esql = new DBproject (MemoryEngine.open (new File (embedded), new File (System.getProperty("dbproject.embeddedData", "../data"))));
+				service = new HospitalService(esql, FastStart.snapshotFile());
+			}else{
+				// with a shard map the shards it names are used instead of the port
+				service = ShardedService.fromSystemProperties(dbname, user, "", DEFAULT_POOL_SIZE);
+				if (service == null){
+					esql = new DBproject (dbname, dbport, user, "");
+					service = new HospitalService(esql, FastStart.snapshotFile());
+				}//end if
+			}//end if
+			FastStart.mark(FastStart.READY);
 			
 			boolean keepon = true;
 			while(keepon){
@@ -253,23 +1004,32 @@ public class DBproject{
 				System.out.println("7. List total number of different types of appointments per doctor in descending order");
 				System.out.println("8. Find total number of patients per doctor with a given status");
 				System.out.println("9. < EXIT");
+				System.out.println("10. Release an appointment");
+				System.out.println("11. List the waitlist of an appointment");
+				System.out.println("12. Show database call statistics");
 				
 				switch (readChoice()){
-					case 1: AddDoctor(esql); break;
-					case 2: AddPatient(esql); break;
-					case 3: AddAppointment(esql); break;
-					case 4: MakeAppointment(esql); break;
-					case 5: ListAppointmentsOfDoctor(esql); break;
-					case 6: ListAvailableAppointmentsOfDepartment(esql); break;
-					case 7: ListStatusNumberOfAppointmentsPerDoctor(esql); break;
-					case 8: FindPatientsCountWithStatus(esql); break;
+					case 1: AddDoctor(service); break;
+					case 2: AddPatient(service); break;
+					case 3: AddAppointment(service); break;
+					case 4: MakeAppointment(service); break;
+					case 5: ListAppointmentsOfDoctor(service); break;
+					case 6: ListAvailableAppointmentsOfDepartment(service); break;
+					case 7: ListStatusNumberOfAppointmentsPerDoctor(service); break;
+					case 8: FindPatientsCountWithStatus(service); break;
 					case 9: keepon = false; break;
+					case 10: ReleaseAppointment(service); break;
+					case 11: ListWaitlist(service); break;
+					case 12: ShowStatistics(service); break;
 				}
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
 			try{
+				if(service != null) {
+					service.close ();
+				}//end if
 				if(esql != null) {
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
@@ -281,6 +1041,17 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * Method to output one appointment, or nothing when it is null.
+	 *
+	 * @return the number of rows output
+	 */
+	private static int printAppointment(HospitalService.Appointment appt) throws SQLException {
+		List<String[]> rows = new ArrayList<String[]>();
+		if (appt != null) rows.add(appt.toRow());
+		return printer.print(HospitalService.Appointment.COLUMNS, rows);
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -297,7 +1068,7 @@ public class DBproject{
 		return input;
 	}//end readChoice
 
-	public static void AddDoctor(DBproject esql) {//1
+	public static void AddDoctor(HospitalService service) {//1
 		
 		//Assume that a doctor would not input their own information, this is all entered in by someone on the database team in the hospital so all needed attributes are known
 
@@ -311,7 +1082,7 @@ public class DBproject{
 				a = in.readLine();
 		
 				if (a.equals("y")) {
-					row = esql.executeQueryAndPrintResult(q);
+					row = service.getReadDatabase().executeQueryAndPrintResult(q);
 				}
 				break;
 			}
@@ -326,7 +1097,6 @@ public class DBproject{
 		String name;
 		String specialty;
 		int depID;
-		String query;
 
 		// docID
 		while (true) {
@@ -392,14 +1162,13 @@ public class DBproject{
 
 		//add to query
 		try {
-			query = "INSERT INTO Doctor (doctor_ID, name, specialty, did) VALUES (" + docID + ", \'" + name + "\', \'" + specialty + "\', " + depID + ");";
-			esql.executeUpdate(query);
+			service.addDoctor(docID, name, specialty, depID);
 
 			System.out.print("Display updated Doctor table (y/n)? ");
 			a = in.readLine();
 
 			if (a.equals("y")) {
-				row = esql.executeQueryAndPrintResult(q);
+				row = service.getDatabase().executeQueryAndPrintResult(q);
 			}
 		}
 
@@ -409,7 +1178,7 @@ public class DBproject{
 
 	}
 
-	public static void AddPatient(DBproject esql) {//2
+	public static void AddPatient(HospitalService service) {//2
 
 		//Assume that a patient would not input their own information, this is all entered in by someone on the database team in the hospital so all needed attributes are known
 		int pID;
@@ -418,7 +1187,6 @@ public class DBproject{
 		int age;
 		String address;
 		int numAppts;
-		String query;
 
 		String a;
 		String q = "SELECT *\nFROM Patient;";
@@ -430,7 +1198,7 @@ public class DBproject{
 				a = in.readLine();
 			
 				if (a.equals("y")) {
-					row = esql.executeQueryAndPrintResult(q);
+					row = service.getReadDatabase().executeQueryAndPrintResult(q);
 
 				}
 				break;
@@ -537,14 +1305,13 @@ public class DBproject{
 
 		// put together query
 		try {
-			query = "INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts) VALUES (" + pID + ", \'" + name + "\', \'" + gender + "\', " + age + ", \'" + address + "\', " + numAppts + ");";
-			esql.executeUpdate(query);
+			service.addPatient(pID, name, gender, age, address, numAppts);
 
 			System.out.print("Display updated Patient table (y/n)? ");
 			a = in.readLine();
 	
 			if (a.equals("y")) {
-				row = esql.executeQueryAndPrintResult(q);
+				row = service.getDatabase().executeQueryAndPrintResult(q);
 			}
 		}
 
@@ -553,14 +1320,14 @@ public class DBproject{
 		}
 	}
 
-	public static void AddAppointment(DBproject esql) {//3
+	public static void AddAppointment(HospitalService service) {//3
 		
 		//Assume this is all entered in by someone on the database team in the hospital so all needed attributes are known
 		int apptID;
-		String date;
+		LocalDate date;
 		String time;
 		String status;
-		String query;
+		Integer docID;
 
 		String a;
 		String q = "SELECT *\nFROM Appointment";
@@ -571,7 +1338,7 @@ public class DBproject{
 			try {
 				a = in.readLine();
 				if (a.equals("y")) {
-					row = esql.executeQueryAndPrintResult(q);
+					row = service.getReadDatabase().executeQueryAndPrintResult(q);
 				}
 				break;
 			}
@@ -600,7 +1367,7 @@ public class DBproject{
 		while (true) {
 			System.out.print("Please enter date of appointment, using the formation MM/DD/YYYY: ");
 			try {
-				date = in.readLine();
+				date = HospitalService.parseDate(in.readLine());
 				break;
 			}
 
@@ -641,15 +1408,34 @@ public class DBproject{
 			}
 		}
 
+		// doctor, which places the appointment with its hospital
+		while (true) {
+			System.out.print("Please enter Doctor ID of the appointment (Enter for none): ");
+			try {
+				a = in.readLine().trim();
+				docID = a.isEmpty() ? null : Integer.valueOf(a);
+				break;
+			}
+
+			catch (Exception e) {
+				System.out.println("Invalid input! " + e.getMessage());
+				continue;
+			}
+		}
+
 		// query	
 		try {
-			query = "INSERT INTO Appointment (appnt_ID, adate, time_slot, status) VALUES (" + apptID + ", \'" + date + "\', \'" + time + "\', \'" + status + "\');";
-			esql.executeUpdate(query);
+			if (docID == null) {
+				service.addAppointment(apptID, date, time, status);
+			}
+			else {
+				service.addAppointment(apptID, date, time, status, docID);
+			}
 
 			System.out.print("Display updated Appointment table (y/n)? ");
 			a = in.readLine();
 			if (a.equals("y")) {
-				row = esql.executeQueryAndPrintResult(q);
+				row = service.getDatabase().executeQueryAndPrintResult(q);
 			}
 		}
 
@@ -659,31 +1445,23 @@ public class DBproject{
 	}
 
 
-	public static void MakeAppointment(DBproject esql) {//4
+	public static void MakeAppointment(HospitalService service) {//4
 		// Given a patient, a doctor and an appointment of the doctor that s/he wants to take, add an appointment to the DB
 		
 		int pID;
 		int docID;
 		int apptID;
-		String query;
-		String hosp;
 	
-		List<List<String>> temp;
 		String apptStatus;
-		List<List<String>> tmp;
-		int hospID;
+		BookingEngine.NewPatient newPatient = null;
+		BookingEngine.Booking booking;
 	
 		int test;
-		String outAppt;
-		String outPtnt;
 	
 		String name;
 		String gender;
 		int age;
 		String address;
-	
-		String numAppt;
-		int appt;
 		
 		// pID
 		while (true) {
@@ -727,142 +1505,121 @@ public class DBproject{
 			}
 		}
 
-		/*
- 		SELECT status
-		FROM Appointment A, Doctor D, has_appointment H
-		WHERE D.docID = H.docID AND H.apptID = A.apptID
-		*/
-
 		try {
-			query = "SELECT A.status\nFROM Appointment A, has_appointment H\nWHERE " + docID + " = H.doctor_id AND " + apptID + " = H.appt_id AND H.appt_id = A.appnt_ID;";
-			outAppt = "SELECT *\nFROM Appointment\nWHERE appnt_ID = " + apptID + ";";
-			outPtnt = "SELECT *\nFROM Patient\nWHERE patient_ID = " + pID + ";";
-			hosp = "SELECT H.hospital_ID\nFROM Hospital H, Appointment A, Doctor D, has_appointment HA, Department DT\nWHERE " + apptID + " = HA.appt_id AND HA.doctor_id = " + docID + " AND HA.doctor_id = D.doctor_ID AND D.did = DT.dept_ID AND DT.hid = H.hospital_ID;";
-		
-			// get status
-			temp = esql.executeQueryAndReturnResult(query);
-			apptStatus = temp.get(0).get(0);
-		
-			// get hospital ID
-			tmp = esql.executeQueryAndReturnResult(hosp);
-			hospID = Integer.parseInt(tmp.get(0).get(0));
-		
-			// output Appointment information
-			test = esql.executeQueryAndPrintResult(outAppt);
-		
-			if (apptStatus.equals("WL")) {
-				System.out.print("\nAppointment currently has a waitlist. Adding patient to waitlist.\n");	
+			// get status, the booking re-checks it under a row lock
+			apptStatus = service.appointmentStatus(docID, apptID);
+			if (apptStatus == null) {
+				throw new RuntimeException("Doctor " + docID + " has no appointment " + apptID + ".");
 			}
-		
-			else if (apptStatus.equals("AC")) {
-				System.out.print("\nAppointment is already active. Changing appointment status to WL and adding patient to waitlist.\n");
-				query = "UPDATE Appointment SET status = \'WL\' WHERE appnt_ID = " + apptID + ";";
-				esql.executeUpdate(query);
-				test = esql.executeQueryAndPrintResult(outAppt);
-			}
-		
-			else if (apptStatus.equals("AV")) {
-				System.out.print("\nAppointment is available. Changing appointment status to AC and adding patient to this appointment.\n");
-				query = "UPDATE Appointment SET status = \'AC\' WHERE appnt_ID = " + apptID + ";";
-				esql.executeUpdate(query);
-				test = esql.executeQueryAndPrintResult(outAppt);
-			}
-		
-			else { // appointment has already passed --> no longer available	
+			if (apptStatus.equals("PA")) { // appointment has already passed --> no longer available
 				throw new RuntimeException("Appointment is unavailable.");
 			}
+		
+			// output Appointment information
+			test = printAppointment(service.getAppointment(apptID));
 
 			//check if patient exists
-			numAppt = "SELECT number_of_appts\nFROM Patient\nWHERE " + pID + " = patient_ID;";
-			appt = esql.executeQuery(numAppt);
-		
-			if (appt != 1) { // Patient doesn't exist, create patient and add number_of_appts
+			if (!service.patientExists(pID)) { // Patient doesn't exist, collect patient's information for the booking
 				while (true) {
 					System.out.print("\nPatient not yet in database, please add patient's information.\n");
 					System.out.print("Please enter Patient's full name: ");
-              				try {	
-                   				name = in.readLine();
-                    				if (name.length() <= 0 || name.length() > 128) {
-                       		 			throw new RuntimeException("Patient's full name must be between 1 and 128 characters");
-                    				}
+					try {
+						name = in.readLine();
+						if (name.length() <= 0 || name.length() > 128) {
+							throw new RuntimeException("Patient's full name must be between 1 and 128 characters");
+						}
 						break;
-                			}
-                			catch (Exception e) {
-                    				System.out.println("Invalid input! " + e.getMessage());
-                    				continue;
-                			}
+					}
+					catch (Exception e) {
+						System.out.println("Invalid input! " + e.getMessage());
+						continue;
+					}
 				}
 
-            			while (true) {
-                			System.out.print("Please enter Patient's gender: ");
-                			try {
-                   	 			gender = in.readLine();
-                    				if (gender.length() != 1) {
-                        				throw new RuntimeException("Please enter M or F for Patient's gender");
-                    				}
-                    				break;
-                			}
-
-        			        catch (Exception e) {
-              				      	System.out.println("Invalid input! " + e.getMessage());
-                    				continue;
-                			}
-            			}
+				while (true) {
+					System.out.print("Please enter Patient's gender: ");
+					try {
+						gender = in.readLine();
+						if (gender.length() != 1) {
+							throw new RuntimeException("Please enter M or F for Patient's gender");
+						}
+						break;
+					}
+
+					catch (Exception e) {
+						System.out.println("Invalid input! " + e.getMessage());
+						continue;
+					}
+				}
 			
 				while (true) {
-                			System.out.print("Please enter Patient's age: ");
-                			try{
-                    				age = Integer.parseInt(in.readLine());
-                    				if (age <= 0) {
-                        				throw new RuntimeException("Patient's age must be greater than 0");
-                    				}
-                    				break;
-                			}
-
-                			catch (Exception e) {
+					System.out.print("Please enter Patient's age: ");
+					try{
+						age = Integer.parseInt(in.readLine());
+						if (age <= 0) {
+							throw new RuntimeException("Patient's age must be greater than 0");
+						}
+						break;
+					}
+
+					catch (Exception e) {
 						System.out.println("Invalid input! " + e.getMessage());
-                    				continue;
-                			}
-            			}
-
-            			while (true) {
-                			System.out.print("Please enter Patient's address: ");
-                    				try {
-                        				address = in.readLine();
-                        				break;
-                    				}
-
-                    				catch (Exception e) {
-                        				System.out.println("Invalid input! " + e.getMessage());
-                        				continue;
-                    				}
-            			}
-
-            			try {
-                			query = "INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts) VALUES (" + pID + ", \'" + name + "\', \'" + gender + "\', " + age + ", \'" + address + "\', 1);";
-                			esql.executeUpdate(query);
-            			}
-
-            			catch (Exception e) {
-                			System.err.println("Query failed! " + e.getMessage());
-            			}				
+						continue;
+					}
+				}
+
+				while (true) {
+					System.out.print("Please enter Patient's address: ");
+					try {
+						address = in.readLine();
+						break;
+					}
+
+					catch (Exception e) {
+						System.out.println("Invalid input! " + e.getMessage());
+						continue;
+					}
+				}
+				newPatient = new BookingEngine.NewPatient(name, gender, age, address);
 			}
-		
-			else if (appt == 1) { // Patient already exists, increase number_of_appts by 1
-				query = "UPDATE Patient SET number_of_appts = number_of_appts + 1 WHERE patient_ID = " + pID + ";";
-            			esql.executeUpdate(query);
+
+			// update the appointment, the patient and searches in one transaction
+			booking = service.bookAppointment(pID, apptID, docID, newPatient);
+			switch (booking.outcome) {
+				case NOT_FOUND:
+					throw new RuntimeException("Doctor " + docID + " has no appointment " + apptID + ".");
+				case UNAVAILABLE:
+					throw new RuntimeException("Appointment is unavailable.");
+				case WAITLISTED:
+					if (booking.previousStatus.equals("WL")) {
+						System.out.print("\nAppointment currently has a waitlist. Adding patient to waitlist.\n");
+					}
+					else {
+						System.out.print("\nAppointment is already active. Changing appointment status to WL and adding patient to waitlist.\n");
+						test = printAppointment(booking.appointment != null ? booking.appointment : service.getAppointment(apptID));
+					}
+					break;
+				case ALREADY_WAITLISTED:
+					// nothing was written, there is no search to show
+					System.out.print("\nPatient " + pID + " is already on the waitlist of this appointment.\n");
+					return;
+				case BOOKED:
+					System.out.print("\nAppointment is available. Changing appointment status to AC and adding patient to this appointment.\n");
+					test = printAppointment(booking.appointment != null ? booking.appointment : service.getAppointment(apptID));
+					break;
 			}
 		
 			System.out.print("\n");
-			test = esql.executeQueryAndPrintResult(outPtnt);
-			
-			// insert into searches
-			query = "INSERT INTO searches (hid, pid, aid) VALUES (" + hospID + ", " + pID + ", " + apptID + ");";
-			esql.executeUpdate(query);
+			// a server-side booking returned the rows as they are now, no need to read them again
+			HospitalService.Patient patient = booking.patient != null ? booking.patient : service.getPatient(pID);
+			List<String[]> rows = new ArrayList<String[]>();
+			if (patient != null) rows.add(patient.toRow());
+			test = printer.print(HospitalService.Patient.COLUMNS, rows);
 
 			System.out.print("\n");
-			query = "SELECT hid, pid, aid\nFROM searches\n WHERE hid = " + hospID + " AND pid = " + pID + " AND aid = " + apptID + ";";
-			test = esql.executeQueryAndPrintResult(query); 
+			rows.clear();
+			rows.add(new String[]{ String.valueOf(booking.hospitalId), String.valueOf(pID), String.valueOf(apptID) });
+			test = printer.print(new String[]{ "hid", "pid", "aid" }, rows);
 		
 		}
 	
@@ -872,7 +1629,7 @@ public class DBproject{
 
 	}
 
-	public static void ListAppointmentsOfDoctor(DBproject esql) {//5
+	public static void ListAppointmentsOfDoctor(HospitalService service) {//5
 		// For a doctor ID and a date range, find the list of active and available appointments of the doctor
 		
 		// AC=active, AV=available
@@ -882,9 +1639,8 @@ public class DBproject{
 		// Note: D.doctor_ID, startDate, endDate is user inputted
 
 		int docID;
-		String startDate;
-		String endDate;
-		String query;
+		LocalDate startDate;
+		LocalDate endDate;
 
 		//docID
 		while(true)
@@ -908,7 +1664,7 @@ public class DBproject{
 			System.out.print("Please enter a start date for your search(Use MM/DD/YY): ");
 			try 
 			{
-				startDate = in.readLine();
+				startDate = HospitalService.parseDate(in.readLine());
 				break;
 			}
 			catch(Exception e)
@@ -924,7 +1680,7 @@ public class DBproject{
 			System.out.print("Please enter an end date for your search(Use MM/DD/YY): ");
 			try 
 			{
-				endDate = in.readLine();
+				endDate = HospitalService.parseDate(in.readLine());
 				break;
 			}
 			catch(Exception e)
@@ -937,9 +1693,16 @@ public class DBproject{
 		//combine queries
 		try
 		{
-			
-			query = "SELECT A.appnt_ID, A.adate, A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = " + docID + " AND H.appt_id = A.appnt_ID AND (A.status = \'AV\' or A.status = \'AC\') AND (A.adate >= \'" + startDate + "\' AND A.adate <= \'" + endDate + "\')\nGROUP BY A.appnt_ID;";
-			int temp = esql.executeQueryAndPrintResult(query);
+			final ResultPrinter.Output output = printer.open(HospitalService.Appointment.COLUMNS, HospitalService.Appointment.SIZES);
+			try{
+				service.listAppointmentsOfDoctor(docID, startDate, endDate, new HospitalService.Sink<HospitalService.Appointment>(){
+					public void accept(HospitalService.Appointment appt) throws SQLException {
+						output.write(appt.toRow());
+					}
+				});
+			}finally{
+				int temp = output.close();
+			}
 
 		}
 		catch (Exception e) 
@@ -948,17 +1711,16 @@ public class DBproject{
 		}
 	}
 
-	public static void ListAvailableAppointmentsOfDepartment(DBproject esql) {//6
+	public static void ListAvailableAppointmentsOfDepartment(HospitalService service) {//6
 		// For a department name and a specific date, find the list of available appointments of the department
 		
 		// SELECT A.appnt_ID
-		// FROM Appointment A, Department D, request_maintenance M, has_appointment H 
-		// WHERE M.dept_name = dName AND M.did = H.doctor_id AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = date
+		// FROM Doctor D, has_appointment H, Appointment A
+		// WHERE D.did IN (SELECT DT.dept_ID FROM Department DT WHERE DT.name = dName) AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = date
 		// dName and date is user inputted
 
 		String dName;
-		String date;
-		String query;
+		LocalDate date;
 
 		//dName
 		while(true)
@@ -982,7 +1744,7 @@ public class DBproject{
 			System.out.print("Please enter a specified date(Use MM/DD/YY): ");
 			try
 			{
-				date = in.readLine();
+				date = HospitalService.parseDate(in.readLine());
 				break;
 			}
 			catch(Exception e)
@@ -995,9 +1757,16 @@ public class DBproject{
 		//query
 		try
 		{
-			query = "SELECT A.appnt_ID\nFROM Appointment A, Department D, request_maintenance M, has_appointment H\nWHERE M.dept_name = \'" + dName + "\' AND M.did = H.doctor_id AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = \'" + date + "\'\nGROUP BY A.appnt_ID;";
-	//		esql.executeUpdate(query);
-			int temp = esql.executeQueryAndPrintResult(query);
+			final ResultPrinter.Output output = printer.open(new String[]{ "appnt_id" }, new int[]{ 11 });
+			try{
+				service.listAvailable(dName, date, new HospitalService.Sink<Integer>(){
+					public void accept(Integer apptID) throws SQLException {
+						output.write(String.valueOf(apptID));
+					}
+				});
+			}finally{
+				int temp = output.close();
+			}
 		}
 		catch (Exception e) 
 		{
@@ -1005,7 +1774,7 @@ public class DBproject{
 		}
 	}
 
-	public static void ListStatusNumberOfAppointmentsPerDoctor(DBproject esql) {//7
+	public static void ListStatusNumberOfAppointmentsPerDoctor(HospitalService service) {//7
 		// Count number of different types of appointments per doctors and list them in descending order
 		
 		// SELECT D.doctor_ID, D.name, D.specialty, A.status, count(A.status) AS C
@@ -1014,17 +1783,18 @@ public class DBproject{
 		// GROUP BY D.doctor_ID, D.name, D.specialty, A.status
 		// ORDER BY C Desc
 
-		String query;
-
 		try
 		{
-			query = "SELECT D.doctor_ID, D.name, D.specialty, A.status, count(A.status) AS NumAppnts\n"
-				+ "FROM Doctor D, Appointment A, has_appointment H\n"
-				+ "WHERE H.doctor_id = D.doctor_ID AND A.appnt_ID = H.appt_id\n"
-				+ "GROUP BY D.doctor_ID, D.name, D.specialty, A.status\n"
-				+ "ORDER BY NumAppnts Desc;";
-
-			int temp = esql.executeQueryAndPrintResult(query);
+			final ResultPrinter.Output output = printer.open(HospitalService.DoctorStatusCount.COLUMNS, HospitalService.DoctorStatusCount.SIZES);
+			try{
+				service.statusCountPerDoctor(new HospitalService.Sink<HospitalService.DoctorStatusCount>(){
+					public void accept(HospitalService.DoctorStatusCount count) throws SQLException {
+						output.write(count.toRow());
+					}
+				});
+			}finally{
+				int temp = output.close();
+			}
 		}
 		catch(Exception e)
 		{
@@ -1033,7 +1803,7 @@ public class DBproject{
 	}
 
 	
-	public static void FindPatientsCountWithStatus(DBproject esql) {//8
+	public static void FindPatientsCountWithStatus(HospitalService service) {//8
 		// Find how many patients per doctor there are with a given status (i.e. PA, AC, AV, WL) and list that number per doctor.
 
 		// SELECT D.doctor_ID, D.name, D.specialty, count(S.pid) AS C
@@ -1049,15 +1819,109 @@ public class DBproject{
 			System.out.print("Please enter the appointment status: ");
 			String status = in.readLine();
 
-			String query = "SELECT D.doctor_ID, D.name, D.specialty, count(S.pid) AS NumPatients\n"
-							+ "FROM Doctor D, Searches S, has_appointment H, Appointment A\n"
-							+ "WHERE H.doctor_id = D.doctor_ID AND A.status = \'" + status + "\' AND A.appnt_ID = S.aid AND H.appt_id = S.aid\n"
-							+ "GROUP BY D.doctor_ID, D.name, D.specialty;";
-			int temp = esql.executeQueryAndPrintResult(query);
+			final ResultPrinter.Output output = printer.open(HospitalService.DoctorPatientCount.COLUMNS, HospitalService.DoctorPatientCount.SIZES);
+			try{
+				service.patientCountWithStatus(status, new HospitalService.Sink<HospitalService.DoctorPatientCount>(){
+					public void accept(HospitalService.DoctorPatientCount count) throws SQLException {
+						output.write(count.toRow());
+					}
+				});
+			}finally{
+				int temp = output.close();
+			}
 		}
 		catch(Exception e)
 		{
 			System.err.println("Query failed! " + e.getMessage());
 		}
 	}
+
+	public static void ReleaseAppointment(HospitalService service) {//10
+		// Given a doctor and one of their booked appointments, give up the booking;
+		// the first patient on the waitlist of the appointment is promoted to it
+
+		int docID;
+		int apptID;
+
+		// docID
+		while (true) {
+			System.out.print("Please enter Doctor ID: ");
+			try {
+				docID = Integer.parseInt(in.readLine());
+				break;
+			}
+			catch (Exception e) {
+				System.out.println("Invalid input! " + e.getMessage());
+				continue;
+			}
+		}
+
+		// apptID
+		while (true) {
+			System.out.print("Please enter Appointment ID: ");
+			try {
+				apptID = Integer.parseInt(in.readLine());
+				break;
+			}
+			catch (Exception e) {
+				System.out.println("Invalid input! " + e.getMessage());
+				continue;
+			}
+		}
+
+		try
+		{
+			String status = service.releaseAppointment(docID, apptID);
+			if (status == null)
+				System.out.println("Doctor " + docID + " has no appointment " + apptID + ".");
+			else if (status.equals("WL"))
+				System.out.println("Appointment released, the first patient on its waitlist gets it.");
+			else
+				System.out.println("Appointment released, it is available again.");
+		}
+		catch(Exception e)
+		{
+			System.err.println("Query failed! " + e.getMessage());
+		}
+	}
+
+	public static void ListWaitlist(HospitalService service) {//11
+		// For an appointment, list the patients waiting for it in the order they asked
+
+		int apptID;
+
+		// apptID
+		while (true) {
+			System.out.print("Please enter Appointment ID: ");
+			try {
+				apptID = Integer.parseInt(in.readLine());
+				break;
+			}
+			catch (Exception e) {
+				System.out.println("Invalid input! " + e.getMessage());
+				continue;
+			}
+		}
+
+		try
+		{
+			List<String[]> rows = new ArrayList<String[]>();
+			for (Waitlist.Waiter waiter : service.waitlist(apptID))
+				rows.add(waiter.toRow());
+			int temp = printer.print(Waitlist.Waiter.COLUMNS, rows);
+		}
+		catch(Exception e)
+		{
+			System.err.println("Query failed! " + e.getMessage());
+		}
+	}
+
+	public static void ShowStatistics(HospitalService service) {//12
+		// Latency, rows and errors of the database calls made so far, per execute method and per query
+		DBproject esql = service.getDatabase();
+		System.out.print(esql.getMetrics().report(esql.getPool()));
+		if (esql.getRouter() != null) System.out.println(esql.getRouter());
+		if (esql.getBackend() != null) System.out.println(esql.getBackend());
+		System.out.println(FastStart.report());
+	}
 }
@@ -0,0 +1,378 @@
+/*
+ * Synthetic data generator
+ * ========================
+ *
+ * Writes the ten hospital tables as CSV files in the layout of data/*.csv,
+ * at any scale, for load and performance testing.
+ *
+ * Usage: java -cp lib/*:bin/ DataGenerator <output dir> [scale] [seed] [threads]
+ *
+ * Scale 1 produces 100,000 appointments; sizes of the other tables follow
+ * from the scale (see Sizes). The same scale and seed always produce the
+ * same files, whatever the number of threads.
+ *
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class generates rows that are pure functions of the seed and the row
+ * number, so tables are produced in independent chunks on several threads
+ * and written to disk in order while later chunks are still being built.
+ * Foreign keys are consistent across tables: an appointment's doctor,
+ * patients and staff are derived from the appointment ID wherever they are
+ * needed.
+ *
+ * Skew: doctors are chosen by a Zipf distribution over a shuffled ranking,
+ * appointment dates follow a seasonal curve peaking in winter, and status
+ * depends on whether the date is before the reference date.
+ *
+ */
+
+public class DataGenerator{
+	static final double DEFAULT_SCALE = 1.0;
+	static final long DEFAULT_SEED = 42;
+	static final int CHUNK_ROWS = 50000;
+	//Zipf exponent of doctor popularity
+	static final double DOCTOR_SKEW = 1.1;
+
+	//appointments before this date have passed
+	static final LocalDate REFERENCE_DATE = LocalDate.of(2021, 6, 1);
+	static final LocalDate FIRST_DATE = LocalDate.of(2020, 1, 1);
+	static final int DAYS = 3 * 365;
+
+	static final String[] SLOTS = { "8:00-10:00", "10:00-12:00", "12:00-14:00", "14:00-16:00", "16:00-18:00" };
+	static final String[] DEPARTMENTS = { "Cardiology", "Pediatric", "Neurology", "Oncology", "Radiology", "Dermatology",
+		"Orthopedics", "Urology", "Psychiatry", "Gastroenterology", "Obstetrics/Gynecology", "Allergy and Immunology",
+		"Emergency Medicine", "Ophthalmology", "Pathology" };
+	static final String[] SPECIALTIES = { "Allergist", "Anesthesiologist", "Cardiologist", "Dermatologist", "Endocrinologist",
+		"Gastroenterologist", "Neurologist", "Oncologist", "Pediatrician", "Psychiatrist", "Radiologist", "Surgeon", "Urologist" };
+	static final String[] FIRST_NAMES = { "Alvin", "Carrie", "Calvin", "Armand", "Alberto", "Wyatt", "Camille", "Lindsey",
+		"Maria", "James", "Priya", "Chen", "Fatima", "Oliver", "Sofia", "Mateo", "Aisha", "Noah", "Yuki", "Elena" };
+	static final String[] LAST_NAMES = { "Saunders", "Cortez", "Morrison", "Enderle", "Scarlett", "Ruoff", "Holmes", "Sullivan",
+		"Newton", "Garcia", "Nguyen", "Patel", "Kim", "Smith", "Okafor", "Rossi", "Cohen", "Silva", "Tanaka", "Novak" };
+	static final String[] STREETS = { "Chapel Drive", "Bald Hill Street", "Campfire Ave.", "Oak Lane", "Main Street", "Elm Court" };
+	static final String[] CITIES = { "Melbourne", "Baton Rouge", "Cockeysville", "Riverside", "Fresno", "Oakland" };
+
+	/**
+	 * Row counts of every table for a scale factor.
+	 */
+	static class Sizes{
+		final int hospitals;
+		final int departments;
+		final int staff;
+		final int doctors;
+		final int patients;
+		final int appointments;
+
+		Sizes(double scale){
+			this.appointments = atLeast(100000 * scale, 100);
+			this.patients = atLeast(20000 * scale, 50);
+			this.doctors = atLeast(500 * scale, 10);
+			this.staff = atLeast(500 * scale, 10);
+			this.departments = atLeast(25 * scale, 5);
+			this.hospitals = atLeast(scale, 1);
+		}
+
+		private static int atLeast(double value, int minimum){
+			return (int) Math.max(minimum, Math.min(Integer.MAX_VALUE, Math.round(value)));
+		}
+	}
+
+	/**
+	 * Appends the CSV lines generated for one row number, without the final
+	 * line break; nothing when the row number produces no line.
+	 */
+	interface RowWriter{
+		void write(int row, StringBuilder out);
+	}
+
+	private final Sizes _sizes;
+	private final long _seed;
+	private final ExecutorService _executor;
+	private final int _threads;
+
+	//doctor IDs by popularity rank and the cumulative Zipf weights of the ranks
+	private final int[] _doctorByRank;
+	private final double[] _rankCdf;
+	//cumulative seasonal weight of each day
+	private final double[] _dayCdf;
+	//appointments searched by each patient, for Patient.number_of_appts
+	private AtomicIntegerArray _patientAppointments;
+
+	public DataGenerator(Sizes sizes, long seed, int threads){
+		this._sizes = sizes;
+		this._seed = seed;
+		this._threads = threads;
+		this._executor = Executors.newFixedThreadPool(threads);
+
+		this._doctorByRank = new int[sizes.doctors];
+		for (int i = 0; i < sizes.doctors; ++i) this._doctorByRank[i] = i;
+		SplittableRandom shuffle = random(0, 0);
+		for (int i = sizes.doctors - 1; i > 0; --i){
+			int j = shuffle.nextInt(i + 1);
+			int t = this._doctorByRank[i]; this._doctorByRank[i] = this._doctorByRank[j]; this._doctorByRank[j] = t;
+		}//end for
+		this._rankCdf = new double[sizes.doctors];
+		double total = 0;
+		for (int r = 0; r < sizes.doctors; ++r){
+			total += 1.0 / Math.pow(r + 1, DOCTOR_SKEW);
+			this._rankCdf[r] = total;
+		}//end for
+
+		this._dayCdf = new double[DAYS];
+		total = 0;
+		for (int d = 0; d < DAYS; ++d){
+			int dayOfYear = FIRST_DATE.plusDays(d).getDayOfYear();
+			total += 1.0 + 0.4 * Math.cos(2 * Math.PI * (dayOfYear - 15) / 365.0);
+			this._dayCdf[d] = total;
+		}//end for
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + DataGenerator.class.getName () +
+		            " <output dir> [scale] [seed] [threads]");
+			return;
+		}//end if
+		File dir = new File(args[0]);
+		double scale = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_SCALE;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+		Sizes sizes = new Sizes(scale);
+		DataGenerator generator = new DataGenerator(sizes, seed, threads);
+		long start = System.nanoTime();
+		try{
+			generator.generate(dir);
+		}finally{
+			generator._executor.shutdownNow();
+		}
+		System.out.printf("%d hospitals, %d departments, %d staff, %d doctors, %d patients, %d appointments in %.1f s%n",
+			sizes.hospitals, sizes.departments, sizes.staff, sizes.doctors, sizes.patients, sizes.appointments,
+			(System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Method to write all ten tables into a directory.
+	 */
+	public void generate(File dir) throws IOException, InterruptedException, ExecutionException {
+		final Sizes s = this._sizes;
+
+		write(new File(dir, "hospital.csv"), s.hospitals, new RowWriter(){
+			public void write(int h, StringBuilder out){
+				out.append(h).append(',').append(pick(CITIES, random(1, h))).append(" Medical Center ").append(h);
+			}
+		});
+
+		write(new File(dir, "department.csv"), s.departments, new RowWriter(){
+			public void write(int d, StringBuilder out){
+				out.append(d).append(',').append(departmentName(d)).append(',').append(hospitalOfDepartment(d));
+			}
+		});
+
+		write(new File(dir, "staff.csv"), s.staff, new RowWriter(){
+			public void write(int st, StringBuilder out){
+				out.append(st).append(',').append(personName(random(3, st))).append(',').append(st % s.hospitals);
+			}
+		});
+
+		write(new File(dir, "doctor.csv"), s.doctors, new RowWriter(){
+			public void write(int doc, StringBuilder out){
+				SplittableRandom rnd = random(4, doc);
+				out.append(doc).append(',').append(personName(rnd)).append(',').append(pick(SPECIALTIES, rnd)).append(',').append(departmentOfDoctor(doc));
+			}
+		});
+
+		write(new File(dir, "appointment.csv"), s.appointments, new RowWriter(){
+			public void write(int a, StringBuilder out){
+				Appointment appt = new Appointment(a);
+				LocalDate date = FIRST_DATE.plusDays(appt.day);
+				out.append(a).append(',').append(date.getMonthValue()).append('/').append(date.getDayOfMonth()).append('/').append(date.getYear())
+					.append(',').append(SLOTS[appt.slot]).append(',').append(appt.status);
+			}
+		});
+
+		write(new File(dir, "has_appointment.csv"), s.appointments, new RowWriter(){
+			public void write(int a, StringBuilder out){
+				out.append(a).append(',').append(new Appointment(a).doctor);
+			}
+		});
+
+		write(new File(dir, "schedules.csv"), s.appointments, new RowWriter(){
+			public void write(int a, StringBuilder out){
+				out.append(a).append(',').append(new Appointment(a).staff);
+			}
+		});
+
+		// one row per searching patient; patients are counted for Patient.number_of_appts
+		this._patientAppointments = new AtomicIntegerArray(s.patients);
+		write(new File(dir, "searches.csv"), s.appointments, new RowWriter(){
+			public void write(int a, StringBuilder out){
+				Appointment appt = new Appointment(a);
+				int hid = hospitalOfDepartment(departmentOfDoctor(appt.doctor));
+				for (int i = 0; i < appt.patients.length; ++i){
+					if (i > 0) out.append('\n');
+					out.append(hid).append(',').append(appt.patients[i]).append(',').append(a);
+					_patientAppointments.incrementAndGet(appt.patients[i]);
+				}//end for
+			}
+		});
+
+		write(new File(dir, "patient.csv"), s.patients, new RowWriter(){
+			public void write(int p, StringBuilder out){
+				SplittableRandom rnd = random(6, p);
+				int age = (int) Math.max(1, Math.min(99, Math.round(45 + 20 * rnd.nextGaussian())));
+				out.append(p).append(',').append(personName(rnd)).append(',').append(rnd.nextBoolean() ? 'F' : 'M').append(',').append(age)
+					.append(',').append(1000 + rnd.nextInt(9000)).append(' ').append(pick(STREETS, rnd)).append(' ').append(pick(CITIES, rnd))
+					.append(',').append(_patientAppointments.get(p));
+			}
+		});
+
+		// one maintenance request per doctor, by a staff member of the doctor's hospital
+		write(new File(dir, "request_maintenance.csv"), s.doctors, new RowWriter(){
+			public void write(int doc, StringBuilder out){
+				SplittableRandom rnd = random(7, doc);
+				int dept = departmentOfDoctor(doc);
+				out.append(1 + rnd.nextInt(5)).append(',').append(departmentName(dept)).append(',').append(SLOTS[rnd.nextInt(SLOTS.length)])
+					.append(',').append(doc).append(',').append(staffOfHospital(hospitalOfDepartment(dept), rnd));
+			}
+		});
+	}
+
+	/**
+	 * Everything derived from one appointment ID.
+	 */
+	class Appointment{
+		final int day;
+		final int slot;
+		final String status;
+		final int doctor;
+		final int staff;
+		//patients that searched the appointment, distinct
+		final int[] patients;
+
+		Appointment(int id){
+			SplittableRandom rnd = random(5, id);
+			this.day = sample(_dayCdf, rnd.nextDouble() * _dayCdf[_dayCdf.length - 1]);
+			this.slot = rnd.nextInt(SLOTS.length);
+			this.doctor = _doctorByRank[sample(_rankCdf, rnd.nextDouble() * _rankCdf[_rankCdf.length - 1])];
+			this.staff = staffOfHospital(hospitalOfDepartment(departmentOfDoctor(this.doctor)), rnd);
+			double roll = rnd.nextDouble();
+			if (FIRST_DATE.plusDays(this.day).isBefore(REFERENCE_DATE))
+				this.status = "PA";
+			else
+				this.status = roll < 0.5 ? "AV" : roll < 0.9 ? "AC" : "WL";
+
+			int searched = this.status.equals("AV") ? 0 : this.status.equals("WL") ? 2 + rnd.nextInt(3) : 1;
+			searched = Math.min(searched, _sizes.patients);
+			this.patients = new int[searched];
+			for (int i = 0; i < searched; ++i){
+				int p;
+				do{
+					p = rnd.nextInt(_sizes.patients);
+				}while (contains(this.patients, i, p));
+				this.patients[i] = p;
+			}//end for
+		}
+	}
+
+	int departmentOfDoctor(int doctor){
+		return (int) ((mix(this._seed, 8, doctor) >>> 1) % this._sizes.departments);
+	}
+
+	int hospitalOfDepartment(int dept){
+		return dept % this._sizes.hospitals;
+	}
+
+	String departmentName(int dept){
+		return DEPARTMENTS[dept / this._sizes.hospitals % DEPARTMENTS.length];
+	}
+
+	//staff IDs congruent to the hospital ID belong to that hospital
+	int staffOfHospital(int hospital, SplittableRandom rnd){
+		int perHospital = Math.max(1, (this._sizes.staff - hospital + this._sizes.hospitals - 1) / this._sizes.hospitals);
+		int st = hospital + this._sizes.hospitals * rnd.nextInt(perHospital);
+		return st < this._sizes.staff ? st : hospital % this._sizes.staff;
+	}
+
+	/**
+	 * Method to write the rows of a table to a file. Chunks of CHUNK_ROWS
+	 * rows are built on the worker threads and written in order, with at
+	 * most two chunks per thread in flight.
+	 */
+	void write(File file, int rows, final RowWriter writer) throws IOException, InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		OutputStream out = new FileOutputStream(file);
+		try{
+			for (int first = 0; first < rows; first += CHUNK_ROWS){
+				final int from = first, to = (int) Math.min((long) first + CHUNK_ROWS, rows);
+				pending.add(this._executor.submit(new Callable<byte[]>(){
+					public byte[] call(){
+						StringBuilder sb = new StringBuilder((to - from) * 48);
+						for (int row = from; row < to; ++row){
+							int length = sb.length();
+							writer.write(row, sb);
+							if (sb.length() > length) sb.append('\n');
+						}//end for
+						return sb.toString().getBytes(StandardCharsets.UTF_8);
+					}
+				}));
+				if (pending.size() >= 2 * this._threads) out.write(pending.poll().get());
+			}//end for
+			while (!pending.isEmpty()) out.write(pending.poll().get());
+		}finally{
+			out.close();
+		}
+		System.out.printf("%-26s %10.1f MB %8.1f s%n", file.getName(), file.length() / 1e6, (System.nanoTime() - start) / 1e9);
+	}
+
+	SplittableRandom random(int table, int row){
+		return new SplittableRandom(mix(this._seed, table, row));
+	}
+
+	static long mix(long seed, int table, int row){
+		long z = seed * 0x9E3779B97F4A7C15L + ((long) table << 32 | (row & 0xffffffffL));
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	static int sample(double[] cdf, double value){
+		int i = Arrays.binarySearch(cdf, value);
+		return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+	}
+
+	static boolean contains(int[] values, int length, int value){
+		for (int i = 0; i < length; ++i)
+			if (values[i] == value) return true;
+		return false;
+	}
+
+	static String pick(String[] values, SplittableRandom rnd){
+		return values[rnd.nextInt(values.length)];
+	}
+
+	static String personName(SplittableRandom rnd){
+		return pick(FIRST_NAMES, rnd) + " " + pick(LAST_NAMES, rnd);
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Fast start
+ * ==========
+ *
+ * Brings the menu or the booking server up without waiting for the
+ * database, and measures how long after the start the first booking is made.
+ *
+ * Fast start is on when the system property dbproject.fastStart names the
+ * file the reference data is kept in between runs, e.g. reference.snapshot.
+ *
+ */
+
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class records the moments of the start of this process and runs the
+ * part of a fast start that is left to the background. With fast start
+ * DBproject opens its first connection on a thread of its own, and
+ * HospitalService restores the reference data cache from the snapshot file
+ * written by the previous run, so the menu or the server is ready at once.
+ * The restored copy serves every lookup until the reference tables are read
+ * again, never by a caller: a listening cache reads them on its listener
+ * thread once LISTEN is in place, so no change is missed, and the
+ * background thread reads them itself only when nothing listens. The
+ * background thread then warms up: it runs every hot query shape
+ * WARMUP_ROUNDS times with IDs that match no row, so the driver has
+ * prepared them on the server, the classes on their paths are loaded and
+ * the connections they used are open before the first real booking. That
+ * is far too few calls for the JIT to compile the paths, which happens
+ * under real load. The warm-up calls show in the database call statistics
+ * like any other.
+ *
+ * The moments are counted from the start of the JVM, and each is recorded
+ * the first time it happens; they are reported with the statistics whether
+ * fast start is on or not, so the two can be compared.
+ *
+ */
+
+public class FastStart{
+	static final String PROPERTY = "dbproject.fastStart";
+	//above the driver's prepareThreshold of 5, so the shapes are prepared on the server
+	static final int WARMUP_ROUNDS = 10;
+	//an ID no row has
+	static final int NO_ID = -1;
+	//how often the background thread looks whether the listener read the reference tables
+	static final long LOAD_POLL_MILLIS = 50;
+
+	static final String CONNECTED = "connected";
+	static final String REFERENCE_RESTORED = "reference data restored";
+	static final String REFERENCE_LOADED = "reference data loaded";
+	static final String READY = "ready";
+	static final String WARMED_UP = "warmed up";
+	static final String FIRST_BOOKING = "first booking";
+
+	//milliseconds after the start of the JVM, by moment, in the order they happened
+	private static final Map<String, Long> _moments = new LinkedHashMap<String, Long>();
+
+	/**
+	 * @return the reference snapshot file named by dbproject.fastStart, or
+	 * null when fast start is off
+	 */
+	public static File snapshotFile(){
+		String path = System.getProperty(PROPERTY, "").trim();
+		return path.isEmpty() ? null : new File(path);
+	}
+
+	public static boolean isEnabled(){
+		return snapshotFile() != null;
+	}
+
+	/**
+	 * Method to record a moment of the start, unless it was recorded before.
+	 */
+	public static void mark(String moment){
+		long millis = ManagementFactory.getRuntimeMXBean().getUptime();
+		synchronized (_moments){
+			if (!_moments.containsKey(moment)) _moments.put(moment, millis);
+		}
+	}
+
+	/**
+	 * @return a copy of the moments recorded so far, in milliseconds after
+	 * the start of the JVM
+	 */
+	public static Map<String, Long> moments(){
+		synchronized (_moments){
+			return new LinkedHashMap<String, Long>(_moments);
+		}
+	}
+
+	/**
+	 * Method to finish a fast start in the background: have the reference
+	 * tables read, unless there was no snapshot and they were read already,
+	 * and warm up.
+	 *
+	 * @param restored whether the cache was restored from the snapshot
+	 */
+	public static void finish(final HospitalService service, final boolean restored){
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				try{
+					if (restored){
+						ReferenceCache cache = service.getReferenceCache();
+						if (!cache.isListening()) cache.load();
+						else while (cache.getReloads() == 0) Thread.sleep(LOAD_POLL_MILLIS);
+						mark(REFERENCE_LOADED);
+					}//end if
+					warmUp(service);
+					mark(WARMED_UP);
+				}catch (InterruptedException e){
+					return;
+				}catch (SQLException e){
+					// the restored copy serves until a lookup reloads it
+					service.getReferenceCache().invalidate();
+					System.err.println("Fast start could not finish: " + e.getMessage());
+				}catch (RuntimeException e){
+					System.err.println("Fast start could not finish: " + e.getMessage());
+				}//end try
+			}
+		}, "fast-start");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Method to run the query shapes of the menu operations that a booking
+	 * and the listings use, WARMUP_ROUNDS times each. Nothing is written: no
+	 * row has the IDs used, so the booking finds no appointment. The reports,
+	 * which are neither hot nor cheap, are left out.
+	 */
+	public static void warmUp(HospitalService service) throws SQLException {
+		LocalDate today = LocalDate.now();
+		LocalDateTime now = LocalDateTime.now();
+		for (int round = 0; round < WARMUP_ROUNDS; ++round){
+			service.patientExists(NO_ID);
+			service.getPatient(NO_ID);
+			service.getAppointment(NO_ID);
+			service.appointmentStatus(NO_ID, NO_ID);
+			service.bookAppointment(NO_ID, NO_ID, NO_ID);
+			service.listAppointmentsOfDoctor(NO_ID, today, today);
+			service.listAvailable("", today);
+			service.nextAvailable(NO_ID, now);
+			service.listAvailable("", now, now.plusHours(1));
+		}//end for
+	}
+
+	/**
+	 * @return the moments recorded so far, one line
+	 */
+	public static String report(){
+		StringBuilder sb = new StringBuilder("startup (ms after the JVM started)" + (isEnabled() ? ", fast start:" : ":"));
+		Map<String, Long> moments = moments();
+		for (Map.Entry<String, Long> moment : moments.entrySet())
+			sb.append(' ').append(moment.getKey()).append(' ').append(moment.getValue()).append(',');
+		if (!moments.containsKey(FIRST_BOOKING)) sb.append(" no booking yet,");
+		return sb.substring(0, sb.length() - 1);
+	}
+}
@@ -0,0 +1,709 @@
+/*
+ * Hospital service
+ * ================
+ *
+ * The operations of the hospital database as typed methods, without any
+ * console input or output, so they can be called from other programs.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the programmatic interface to the eight operations of the
+ * menu. Arguments are checked before anything is sent to the database and
+ * results come back as objects instead of printed rows. Its only state
+ * besides the database, whose connection pool hands each call its own
+ * connection, are the thread safe reference data cache and availability
+ * index, so one instance can be shared by any number of threads.
+ *
+ */
+
+public class HospitalService{
+	//date formats accepted from users, tried in order
+	static final DateTimeFormatter[] DATE_FORMATS = {
+		DateTimeFormatter.ofPattern("M/d/uuuu"),
+		DateTimeFormatter.ofPattern("M/d/uu"),
+		DateTimeFormatter.ISO_LOCAL_DATE
+	};
+	static final DateTimeFormatter SLOT_TIME = DateTimeFormatter.ofPattern("H:mm");
+	static final String UNDEFINED_TABLE = "42P01";
+	//promotion workers per service; workers of other processes share the queue
+	static final int WAITLIST_WORKERS = 2;
+
+	/**
+	 * Receives the items of a listing one at a time as they are read, so a
+	 * long listing is never held in memory.
+	 */
+	public interface Sink<T>{
+		void accept(T item) throws SQLException;
+	}
+
+	/**
+	 * A row of the Appointment table.
+	 */
+	public static final class Appointment{
+		public static final String[] COLUMNS = { "appnt_id", "adate", "time_slot", "status" };
+		//declared display sizes of the columns, for printing rows as they are read
+		public static final int[] SIZES = { 11, 13, 11, 2 };
+
+		public final int id;
+		public final LocalDate date;
+		public final String timeSlot;
+		public final String status;
+
+		Appointment(int id, LocalDate date, String timeSlot, String status){
+			this.id = id;
+			this.date = date;
+			this.timeSlot = timeSlot;
+			this.status = status;
+		}
+
+		public String[] toRow(){
+			return new String[]{ String.valueOf(this.id), this.date.toString(), this.timeSlot, this.status };
+		}
+	}
+
+	/**
+	 * A row of the Patient table.
+	 */
+	public static final class Patient{
+		public static final String[] COLUMNS = { "patient_id", "name", "gtype", "age", "address", "number_of_appts" };
+
+		public final int id;
+		public final String name;
+		public final String gender;
+		public final int age;
+		public final String address;
+		public final int appointments;
+
+		Patient(int id, String name, String gender, int age, String address, int appointments){
+			this.id = id;
+			this.name = name;
+			this.gender = gender;
+			this.age = age;
+			this.address = address;
+			this.appointments = appointments;
+		}
+
+		public String[] toRow(){
+			return new String[]{ String.valueOf(this.id), this.name, this.gender, String.valueOf(this.age), this.address, String.valueOf(this.appointments) };
+		}
+	}
+
+	/**
+	 * The number of appointments of a doctor with one status.
+	 */
+	public static final class DoctorStatusCount{
+		public static final String[] COLUMNS = { "doctor_id", "name", "specialty", "status", "numappnts" };
+		//declared display sizes of the columns, for printing rows as they are read
+		public static final int[] SIZES = { 11, 128, 24, 2, 20 };
+
+		public final int doctorId;
+		public final String name;
+		public final String specialty;
+		public final String status;
+		public final long count;
+
+		DoctorStatusCount(int doctorId, String name, String specialty, String status, long count){
+			this.doctorId = doctorId;
+			this.name = name;
+			this.specialty = specialty;
+			this.status = status;
+			this.count = count;
+		}
+
+		public String[] toRow(){
+			return new String[]{ String.valueOf(this.doctorId), this.name, this.specialty, this.status, String.valueOf(this.count) };
+		}
+	}
+
+	/**
+	 * The number of patients of a doctor in appointments with a given status.
+	 */
+	public static final class DoctorPatientCount{
+		public static final String[] COLUMNS = { "doctor_id", "name", "specialty", "numpatients" };
+		//declared display sizes of the columns, for printing rows as they are read
+		public static final int[] SIZES = { 11, 128, 24, 20 };
+
+		public final int doctorId;
+		public final String name;
+		public final String specialty;
+		public final long count;
+
+		DoctorPatientCount(int doctorId, String name, String specialty, long count){
+			this.doctorId = doctorId;
+			this.name = name;
+			this.specialty = specialty;
+			this.count = count;
+		}
+
+		public String[] toRow(){
+			return new String[]{ String.valueOf(this.doctorId), this.name, this.specialty, String.valueOf(this.count) };
+		}
+	}
+
+	private final DBproject _esql;
+	//listings and reports, which may read from a replica
+	private final DBproject _reads;
+	//where the reference data is kept between fast starts, or null
+	private final File _referenceSnapshot;
+	private final ReferenceCache _cache;
+	private final BookingEngine _engine;
+	private final AvailabilityIndex _availability;
+	private final Waitlist _waitlist;
+	//false once the reports found no summary table
+	private volatile boolean _summary = true;
+
+	/**
+	 * Creates the service and loads the reference data cache, which keeps
+	 * listening for changes until the service is closed. The availability
+	 * index loads in the background once the listener is connected, and
+	 * waitlist workers promote the patients of released appointments.
+	 *
+	 * On a backend such as MemoryEngine there are neither notifications nor
+	 * releases: the cache is only reloaded after this service's writes, the
+	 * index stays cold so the listings ask the backend, and no workers run.
+	 *
+	 * @throws java.sql.SQLException when the reference tables cannot be read
+	 */
+	public HospitalService(DBproject esql) throws SQLException {
+		this(esql, null);
+	}
+
+	/**
+	 * Creates the service for a fast start: the reference data cache is
+	 * restored from the snapshot file, if there is one, and the tables are
+	 * read and the query shapes warmed up in the background, see FastStart.
+	 * Closing the service saves the cache to the file for the next start.
+	 *
+	 * @param referenceSnapshot the snapshot file, or null to load the cache
+	 * from the database and do without a warm-up
+	 * @throws java.sql.SQLException when there is no snapshot and the
+	 * reference tables cannot be read
+	 */
+	public HospitalService(DBproject esql, File referenceSnapshot) throws SQLException {
+		this._esql = esql;
+		this._reads = esql.forReads();
+		this._referenceSnapshot = referenceSnapshot;
+		this._cache = new ReferenceCache(esql);
+		boolean restored = referenceSnapshot != null && this._cache.restore(referenceSnapshot);
+		if (restored){
+			FastStart.mark(FastStart.REFERENCE_RESTORED);
+		}else{
+			this._cache.load();
+			FastStart.mark(FastStart.REFERENCE_LOADED);
+		}//end if
+		this._availability = new AvailabilityIndex(esql).subscribe(this._cache);
+		this._waitlist = new Waitlist(esql).subscribe(this._cache);
+		if (esql.getBackend() == null){
+			this._waitlist.start(WAITLIST_WORKERS);
+			this._cache.listen();
+		}//end if
+		this._engine = new BookingEngine(esql, this._cache);
+		if (referenceSnapshot != null) FastStart.finish(this, restored);
+	}
+
+	/**
+	 * For a service that overrides every operation to hand it to services
+	 * of its own, such as ShardedService; nothing is connected or loaded.
+	 */
+	protected HospitalService(){
+		this._esql = null;
+		this._reads = null;
+		this._referenceSnapshot = null;
+		this._cache = null;
+		this._availability = null;
+		this._waitlist = null;
+		this._engine = null;
+	}
+
+	/**
+	 * Method to stop listening for reference data changes and promoting
+	 * waitlisted patients, and to save the reference data for the next fast
+	 * start if it was read from the database. The database is left open for
+	 * its owner to clean up.
+	 */
+	public void close(){
+		this._waitlist.close();
+		this._cache.close();
+		if (this._referenceSnapshot != null && this._cache.getReloads() > 0){
+			try{
+				this._cache.save(this._referenceSnapshot);
+			}catch (IOException e){
+				System.err.println("Could not save the reference data to " + this._referenceSnapshot + ": " + e.getMessage());
+			}//end try
+		}//end if
+	}
+
+	/**
+	 * @return the database the service runs against
+	 */
+	public DBproject getDatabase(){
+		return this._esql;
+	}
+
+	/**
+	 * @return the database the listings and reports run against, a replica
+	 * when one is configured and close enough behind
+	 */
+	public DBproject getReadDatabase(){
+		return this._reads;
+	}
+
+	public ReferenceCache getReferenceCache(){
+		return this._cache;
+	}
+
+	public AvailabilityIndex getAvailabilityIndex(){
+		return this._availability;
+	}
+
+	public Waitlist getWaitlist(){
+		return this._waitlist;
+	}
+
+	/**
+	 * Method to add a doctor.
+	 *
+	 * @throws IllegalArgumentException when a value does not fit its column
+	 * @throws java.sql.SQLException when the insert failed, e.g. on a duplicate ID
+	 */
+	public void addDoctor(int doctorId, String name, String specialty, int departmentId) throws SQLException {
+		checkDoctor(name, specialty);
+		this._esql.executeUpdate(DBproject.INSERT_DOCTOR, doctorId, name, specialty, departmentId);
+		this._cache.invalidate();
+	}
+
+	/**
+	 * Method to add a patient.
+	 *
+	 * @throws IllegalArgumentException when a value does not fit its column
+	 * @throws java.sql.SQLException when the insert failed, e.g. on a duplicate ID
+	 */
+	public void addPatient(int patientId, String name, String gender, int age, String address, int appointments) throws SQLException {
+		checkPatient(name, gender, age, address);
+		if (appointments < 0) throw new IllegalArgumentException("Number of appointments must not be negative");
+		this._esql.executeUpdate(DBproject.INSERT_PATIENT, patientId, name, gender, age, address, appointments);
+	}
+
+	/**
+	 * Method to add a patient unless there is one with that ID, so it can
+	 * be run again after a failure.
+	 *
+	 * @return whether the patient was added
+	 */
+	boolean addPatientIfMissing(int patientId, String name, String gender, int age, String address, int appointments) throws SQLException {
+		checkPatient(name, gender, age, address);
+		return this._esql.executeUpdate(DBproject.INSERT_PATIENT_IF_MISSING, patientId, name, gender, age, address, appointments) > 0;
+	}
+
+	/**
+	 * Method to add an appointment.
+	 *
+	 * @param timeSlot start and end time as HH:MM-HH:MM
+	 * @param status one of PA, AC, AV or WL
+	 * @throws IllegalArgumentException when a value does not fit its column
+	 * @throws java.sql.SQLException when the insert failed, e.g. on a duplicate ID
+	 */
+	public void addAppointment(int apptId, LocalDate date, String timeSlot, String status) throws SQLException {
+		checkAppointment(date, timeSlot, status);
+		this._esql.executeUpdate(DBproject.INSERT_APPOINTMENT, apptId, date(date), timeSlot, status);
+	}
+
+	/**
+	 * Method to add an appointment of a doctor, with its has_appointment
+	 * row, in one statement.
+	 *
+	 * @param timeSlot start and end time as HH:MM-HH:MM
+	 * @param status one of PA, AC, AV or WL
+	 * @throws IllegalArgumentException when a value does not fit its column
+	 * @throws java.sql.SQLException when the insert failed, e.g. on a duplicate
+	 * ID or a doctor that does not exist
+	 */
+	public void addAppointment(int apptId, LocalDate date, String timeSlot, String status, int doctorId) throws SQLException {
+		checkAppointment(date, timeSlot, status);
+		this._esql.executeUpdate(DBproject.INSERT_DOCTOR_APPOINTMENT, apptId, date(date), timeSlot, status, doctorId);
+	}
+
+	/**
+	 * @return the appointment, or null if there is none with that ID
+	 */
+	public Appointment getAppointment(int apptId) throws SQLException {
+		final List<Appointment> result = new ArrayList<Appointment>(1);
+		this._esql.executeQueryForEach(DBproject.APPOINTMENT_BY_ID, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				result.add(appointment(row));
+			}
+		}, apptId);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * @return the patient, or null if there is none with that ID
+	 */
+	public Patient getPatient(int patientId) throws SQLException {
+		final List<Patient> result = new ArrayList<Patient>(1);
+		this._esql.executeQueryForEach(DBproject.PATIENT_BY_ID, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				result.add(new Patient(row.getInt(1), row.getString(2), row.getString(3), row.getInt(4), row.getString(5), row.getInt(6)));
+			}
+		}, patientId);
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	public boolean patientExists(int patientId) throws SQLException {
+		return this._engine.patientExists(patientId);
+	}
+
+	/**
+	 * @return the status of an appointment of a doctor, or null if the
+	 * doctor has no such appointment
+	 */
+	public String appointmentStatus(int doctorId, int apptId) throws SQLException {
+		final String[] status = new String[1];
+		this._esql.executeQueryForEach(DBproject.APPOINTMENT_STATUS, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				status[0] = row.getString(1);
+			}
+		}, doctorId, apptId);
+		return status[0];
+	}
+
+	/**
+	 * Method to book an appointment of a doctor for an existing patient.
+	 *
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the booking failed and was rolled back,
+	 * e.g. because the patient does not exist
+	 */
+	public BookingEngine.Booking bookAppointment(int patientId, int apptId, int doctorId) throws SQLException {
+		return booked(apptId, this._engine.book(patientId, doctorId, apptId, null));
+	}
+
+	/**
+	 * Method to book an appointment of a doctor, adding the patient in the
+	 * same transaction if they are not in the database yet.
+	 *
+	 * @param newPatient details of the patient used only if the patient does not exist
+	 * @return the outcome of the booking
+	 * @throws java.sql.SQLException when the booking failed and was rolled back
+	 */
+	public BookingEngine.Booking bookAppointment(int patientId, int apptId, int doctorId, BookingEngine.NewPatient newPatient) throws SQLException {
+		if (newPatient != null) checkPatient(newPatient.name, newPatient.gender, newPatient.age, newPatient.address);
+		return booked(apptId, this._engine.book(patientId, doctorId, apptId, newPatient));
+	}
+
+	/**
+	 * Method to give up the booking of an appointment of a doctor. The first
+	 * patient on its waitlist is promoted to it shortly afterwards; without
+	 * waiters it becomes available again.
+	 *
+	 * @return the status of the appointment afterwards, or null if the doctor
+	 * has no such appointment
+	 * @throws IllegalArgumentException when the appointment is not booked
+	 */
+	public String releaseAppointment(int doctorId, int apptId) throws SQLException {
+		return this._waitlist.release(doctorId, apptId);
+	}
+
+	/**
+	 * Method to list the patients waiting for an appointment, first in line first.
+	 */
+	public List<Waitlist.Waiter> waitlist(int apptId) throws SQLException {
+		return this._waitlist.waiters(apptId);
+	}
+
+	/**
+	 * Method to list the active and available appointments of a doctor
+	 * between two dates, both included.
+	 */
+	public List<Appointment> listAppointmentsOfDoctor(int doctorId, LocalDate from, LocalDate to) throws SQLException {
+		List<Appointment> result = new ArrayList<Appointment>();
+		listAppointmentsOfDoctor(doctorId, from, to, collect(result));
+		return result;
+	}
+
+	/**
+	 * Method to hand the active and available appointments of a doctor
+	 * between two dates, both included, to a sink as they are read.
+	 */
+	public void listAppointmentsOfDoctor(int doctorId, LocalDate from, LocalDate to, final Sink<Appointment> sink) throws SQLException {
+		this._reads.streamQueryForEach(DBproject.APPOINTMENTS_OF_DOCTOR, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				sink.accept(appointment(row));
+			}
+		}, doctorId, date(from), date(to));
+	}
+
+	/**
+	 * Method to list the IDs of the available appointments of a department
+	 * on a date, from the availability index unless it is cold.
+	 */
+	public List<Integer> listAvailable(String department, LocalDate date) throws SQLException {
+		List<Integer> result = new ArrayList<Integer>();
+		listAvailable(department, date, collect(result));
+		return result;
+	}
+
+	/**
+	 * Method to hand the IDs of the available appointments of a department
+	 * on a date to a sink, from the availability index unless it is cold.
+	 */
+	public void listAvailable(String department, LocalDate date, final Sink<Integer> sink) throws SQLException {
+		if (date == null) throw new IllegalArgumentException("Date is required");
+		int[] ids = this._availability.available(department, date);
+		if (ids != null){
+			for (int id : ids) sink.accept(id);
+			return;
+		}//end if
+		this._reads.streamQueryForEach(DBproject.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				sink.accept(row.getInt(1));
+			}
+		}, department, date(date));
+	}
+
+	/**
+	 * Method to find the first available appointment of a doctor that starts
+	 * at or after a time.
+	 *
+	 * @return the appointment, or null if the doctor has none
+	 */
+	public Appointment nextAvailable(int doctorId, LocalDateTime after) throws SQLException {
+		final List<Appointment> result = new ArrayList<Appointment>(1);
+		this._reads.executeQueryForEach(DBproject.NEXT_AVAILABLE_OF_DOCTOR, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				result.add(appointment(row));
+			}
+		}, doctorId, timestamp(after), timestamp(after));
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	/**
+	 * Method to list the available appointments of a department whose slots
+	 * overlap a period, earliest first.
+	 *
+	 * @param from start of the period, included
+	 * @param to end of the period, excluded
+	 */
+	public List<Appointment> listAvailable(String department, LocalDateTime from, LocalDateTime to) throws SQLException {
+		List<Appointment> result = new ArrayList<Appointment>();
+		listAvailable(department, from, to, collect(result));
+		return result;
+	}
+
+	/**
+	 * Method to hand the available appointments of a department whose slots
+	 * overlap a period to a sink as they are read, earliest first.
+	 */
+	public void listAvailable(String department, LocalDateTime from, LocalDateTime to, final Sink<Appointment> sink) throws SQLException {
+		if (from != null && to != null && to.isBefore(from)) throw new IllegalArgumentException("The period must not end before it starts");
+		this._reads.streamQueryForEach(DBproject.AVAILABLE_OF_DEPARTMENT_OVERLAPPING, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				sink.accept(appointment(row));
+			}
+		}, department, timestamp(from), timestamp(to), timestamp(from), timestamp(to));
+	}
+
+	/**
+	 * Method to count the appointments of every doctor per status, largest
+	 * count first.
+	 */
+	public List<DoctorStatusCount> statusCountPerDoctor() throws SQLException {
+		List<DoctorStatusCount> result = new ArrayList<DoctorStatusCount>();
+		statusCountPerDoctor(collect(result));
+		return result;
+	}
+
+	/**
+	 * Method to hand the appointment counts of every doctor per status to a
+	 * sink as they are read, largest count first.
+	 */
+	public void statusCountPerDoctor(final Sink<DoctorStatusCount> sink) throws SQLException {
+		report(DBproject.STATUS_COUNT_PER_DOCTOR, DBproject.STATUS_COUNT_PER_DOCTOR_RECOUNT, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				sink.accept(new DoctorStatusCount(row.getInt(1), row.getString(2), row.getString(3), row.getString(4), row.getLong(5)));
+			}
+		});
+	}
+
+	/**
+	 * Method to count the patients of every doctor in appointments with a
+	 * given status.
+	 *
+	 * @param status one of PA, AC, AV or WL
+	 */
+	public List<DoctorPatientCount> patientCountWithStatus(String status) throws SQLException {
+		List<DoctorPatientCount> result = new ArrayList<DoctorPatientCount>();
+		patientCountWithStatus(status, collect(result));
+		return result;
+	}
+
+	/**
+	 * Method to hand the patient counts of every doctor in appointments with
+	 * a given status to a sink as they are read.
+	 *
+	 * @param status one of PA, AC, AV or WL
+	 */
+	public void patientCountWithStatus(String status, final Sink<DoctorPatientCount> sink) throws SQLException {
+		checkStatus(status);
+		report(DBproject.PATIENT_COUNT_WITH_STATUS, DBproject.PATIENT_COUNT_WITH_STATUS_RECOUNT, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				sink.accept(new DoctorPatientCount(row.getInt(1), row.getString(2), row.getString(3), row.getLong(4)));
+			}
+		}, status);
+	}
+
+	/**
+	 * Method to read a date as entered by a user: MM/DD/YYYY, MM/DD/YY or
+	 * YYYY-MM-DD.
+	 *
+	 * @throws IllegalArgumentException when the text is not a date in one of those formats
+	 */
+	public static LocalDate parseDate(String text){
+		if (text != null){
+			for (DateTimeFormatter format : DATE_FORMATS){
+				try{
+					return LocalDate.parse(text.trim(), format);
+				}catch (DateTimeParseException e){
+					continue;
+				}
+			}//end for
+		}//end if
+		throw new IllegalArgumentException("'" + text + "' is not a date, use MM/DD/YYYY");
+	}
+
+	/**
+	 * Method to read a date with an optional time, MM/DD/YYYY HH:MM, as
+	 * entered by a user; a date alone means its start.
+	 *
+	 * @throws IllegalArgumentException when the text is not a date and time
+	 */
+	public static LocalDateTime parseDateTime(String text){
+		String[] parts = text == null ? new String[0] : text.trim().split("\\s+");
+		if (parts.length == 1) return parseDate(parts[0]).atStartOfDay();
+		if (parts.length == 2){
+			try{
+				return parseDate(parts[0]).atTime(LocalTime.parse(parts[1], SLOT_TIME));
+			}catch (DateTimeParseException e){
+				// reported below
+			}//end try
+		}//end if
+		throw new IllegalArgumentException("'" + text + "' is not a date and time, use MM/DD/YYYY HH:MM");
+	}
+
+	/**
+	 * Method to read a time slot, HH:MM-HH:MM, the format sql/triggers.sql
+	 * turns into a range.
+	 *
+	 * @return the start and end of the slot
+	 * @throws IllegalArgumentException when the text is not a slot or ends before it starts
+	 */
+	public static LocalTime[] parseTimeSlot(String text){
+		String[] parts = text == null ? new String[0] : text.split("-");
+		if (parts.length == 2){
+			try{
+				LocalTime[] slot = { LocalTime.parse(parts[0].trim(), SLOT_TIME), LocalTime.parse(parts[1].trim(), SLOT_TIME) };
+				if (!slot[1].isBefore(slot[0])) return slot;
+			}catch (DateTimeParseException e){
+				// reported below
+			}//end try
+		}//end if
+		throw new IllegalArgumentException("'" + text + "' is not a time slot, use HH:MM-HH:MM ending no earlier than it starts");
+	}
+
+	/**
+	 * Method to run a report from the doctor_status_stats summary, or from
+	 * the base tables when the database has no summary yet because
+	 * sql/triggers.sql was not run.
+	 */
+	private void report(String summary, String recount, DBproject.RowHandler handler, Object... params) throws SQLException {
+		if (this._summary){
+			try{
+				this._reads.streamQueryForEach(summary, handler, params);
+				return;
+			}catch (SQLException e){
+				// no rows reach the handler before the statement fails
+				if (!UNDEFINED_TABLE.equals(e.getSQLState())) throw e;
+				this._summary = false;
+			}//end try
+		}//end if
+		this._reads.streamQueryForEach(recount, handler, params);
+	}
+
+	//the index learns of bookings by other processes from their notifications
+	private BookingEngine.Booking booked(int apptId, BookingEngine.Booking booking){
+		if ("AV".equals(booking.previousStatus) && !"AV".equals(booking.status)) this._availability.taken(apptId);
+		if (booking.outcome == BookingEngine.Outcome.BOOKED || booking.outcome == BookingEngine.Outcome.WAITLISTED)
+			FastStart.mark(FastStart.FIRST_BOOKING);
+		return booking;
+	}
+
+	private static Appointment appointment(DBproject.Row row) throws SQLException {
+		return new Appointment(row.getInt(1), row.getDate(2).toLocalDate(), row.getString(3), row.getString(4));
+	}
+
+	/**
+	 * @return a sink adding the items to a list
+	 */
+	static <T> Sink<T> collect(final List<T> list){
+		return new Sink<T>(){
+			public void accept(T item){
+				list.add(item);
+			}
+		};
+	}
+
+	//dates are bound as dates, so the server's DateStyle does not matter
+	static Date date(LocalDate date){
+		if (date == null) throw new IllegalArgumentException("Date is required");
+		return Date.valueOf(date);
+	}
+
+	static Timestamp timestamp(LocalDateTime time){
+		if (time == null) throw new IllegalArgumentException("Date and time are required");
+		return Timestamp.valueOf(time);
+	}
+
+	static void checkDoctor(String name, String specialty){
+		checkLength("Doctor's full name", name, 128);
+		checkLength("Doctor's specialty", specialty, 24);
+	}
+
+	static void checkAppointment(LocalDate date, String timeSlot, String status){
+		if (date == null) throw new IllegalArgumentException("Appointment date is required");
+		checkLength("Appointment time slot", timeSlot, 11);
+		parseTimeSlot(timeSlot);
+		checkStatus(status);
+	}
+
+	static void checkPatient(String name, String gender, int age, String address){
+		checkLength("Patient's full name", name, 128);
+		if (!"F".equals(gender) && !"M".equals(gender)) throw new IllegalArgumentException("Patient's gender must be M or F");
+		if (age <= 0) throw new IllegalArgumentException("Patient's age must be greater than 0");
+		if (address == null || address.length() > 256) throw new IllegalArgumentException("Patient's address must be at most 256 characters");
+	}
+
+	private static void checkStatus(String status){
+		if (!"PA".equals(status) && !"AC".equals(status) && !"AV".equals(status) && !"WL".equals(status))
+			throw new IllegalArgumentException("Appointment status must be one of PA, AC, AV or WL");
+	}
+
+	private static void checkLength(String what, String value, int max){
+		if (value == null || value.length() == 0 || value.length() > max)
+			throw new IllegalArgumentException(what + " must be between 1 and " + max + " characters");
+	}
+}
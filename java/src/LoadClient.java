@@ -0,0 +1,105 @@
+/*
+ * Load client
+ * ===========
+ *
+ * Sends requests to a running BookingServer from many concurrent callers
+ * and reports requests per second and latency percentiles.
+ *
+ * Usage: java -cp bin/ LoadClient <url> [concurrency] [seconds] [GET|POST]
+ *
+ * Example: java -cp bin/ LoadClient 'http://localhost:8080/available?department=Cardiology&date=1/4/2021' 1000 30
+ *
+ */
+
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * This class keeps a fixed number of requests in flight through the
+ * asynchronous JDK HTTP client, so thousands of concurrent callers do not
+ * need thousands of threads. Latencies are kept for the first MAX_SAMPLES
+ * responses; counts and throughput cover the whole run.
+ *
+ */
+
+public class LoadClient{
+	static final int DEFAULT_CONCURRENCY = 100;
+	static final int DEFAULT_SECONDS = 10;
+	static final int MAX_SAMPLES = 1000000;
+	static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + LoadClient.class.getName () +
+		            " <url> [concurrency] [seconds] [GET|POST]");
+			return;
+		}//end if
+		URI uri = URI.create(args[0]);
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CONCURRENCY;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SECONDS;
+		String method = args.length > 3 ? args[3].toUpperCase() : "GET";
+
+		HttpClient client = HttpClient.newBuilder().connectTimeout(REQUEST_TIMEOUT).build();
+		HttpRequest request = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT)
+			.method(method, HttpRequest.BodyPublishers.noBody()).build();
+
+		final Semaphore inFlight = new Semaphore(concurrency);
+		final long[] latencies = new long[MAX_SAMPLES];
+		final AtomicInteger samples = new AtomicInteger();
+		final AtomicLong completed = new AtomicLong();
+		final Map<String, AtomicLong> outcomes = new ConcurrentHashMap<String, AtomicLong>();
+
+		long begin = System.nanoTime();
+		long deadline = begin + TimeUnit.SECONDS.toNanos(seconds);
+		while (System.nanoTime() < deadline){
+			if (!inFlight.tryAcquire(10, TimeUnit.MILLISECONDS)) continue;
+			final long start = System.nanoTime();
+			client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>(){
+				public void accept(HttpResponse<Void> response, Throwable error){
+					long latency = System.nanoTime() - start;
+					int sample = samples.getAndIncrement();
+					if (sample < latencies.length) latencies[sample] = latency;
+					if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+					String outcome = error != null ? error.getClass().getSimpleName() : String.valueOf(response.statusCode());
+					AtomicLong count = outcomes.get(outcome);
+					if (count == null){
+						AtomicLong created = new AtomicLong();
+						count = outcomes.putIfAbsent(outcome, created);
+						if (count == null) count = created;
+					}//end if
+					count.incrementAndGet();
+					completed.incrementAndGet();
+					inFlight.release();
+				}
+			});
+		}//end while
+		// wait for the requests still in flight
+		inFlight.acquire(concurrency);
+		double elapsed = (System.nanoTime() - begin) / 1e9;
+
+		long[] sorted = Arrays.copyOf(latencies, Math.min(samples.get(), latencies.length));
+		Arrays.sort(sorted);
+		System.out.printf("%d requests in %.2f s with %d concurrent: %.0f requests/s%n", completed.get(), elapsed, concurrency, completed.get() / elapsed);
+		System.out.printf("latency (ms)  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+			QueryBenchmark.percentile(sorted, 0.50) / 1e6, QueryBenchmark.percentile(sorted, 0.90) / 1e6,
+			QueryBenchmark.percentile(sorted, 0.99) / 1e6, QueryBenchmark.percentile(sorted, 0.999) / 1e6,
+			sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6);
+		for (Map.Entry<String, AtomicLong> outcome : new TreeMap<String, AtomicLong>(outcomes).entrySet())
+			System.out.println("  " + outcome.getKey() + ": " + outcome.getValue().get());
+	}
+}
@@ -0,0 +1,1231 @@
+/*
+ * Memory engine
+ * =============
+ *
+ * Runs the operations of the menu without a PostgreSQL server, for kiosks
+ * and offline clinics: the tables are held in this process and kept on the
+ * local disk in a directory of their own, loaded from data/*.csv the first
+ * time.
+ *
+ * Usage: java -Ddbproject.embedded=<directory> [-Ddbproject.embeddedData=<csv directory>] -cp lib/*:bin/ DBproject <dbname> <port> <user>
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a DBproject backend holding the ten tables of BulkLoader,
+ * and the waitlist bookings add to, column by column in primitive arrays:
+ * int[] for integers and dates, as days since 1970-01-01, long[] for
+ * timestamps and String[] for text. Hash indexes on the IDs and on the join
+ * keys doctor_id, appt_id, dept_ID and hid chain the rows of a key through
+ * an int[] of their own, so a join follows a chain instead of a scan.
+ *
+ * There is no SQL parser. A statement is recognised by its text, one of the
+ * query shapes the service issues, and answered by code written for that
+ * shape; SELECT * of a table is answered as well. Any other statement fails
+ * with SQLState 0A000, which leaves out releasing appointments, whose
+ * promotion relies on PostgreSQL row locks and notifications, and the tools
+ * that work on leased connections.
+ *
+ * Queries run together under the read lock, and each statement that writes
+ * alone under the write lock. The changes of a statement are appended to the
+ * log as one frame and forced to disk before it returns; a statement that
+ * fails is undone in memory and leaves no frame. Every SNAPSHOT_FRAMES
+ * frames, and on close, the tables are written to a new snapshot that
+ * replaces the old one, and the log is emptied. At start the snapshot is
+ * read, or the CSV files when there is none yet, and the frames logged
+ * after it are replayed; a torn frame at the end of the log, left by a crash
+ * while it was written, is dropped.
+ *
+ */
+
+public class MemoryEngine implements DBproject.Backend{
+	static final String SNAPSHOT = "tables.snapshot";
+	static final String LOG = "tables.log";
+	//frames logged before the tables are written to a new snapshot
+	static final int SNAPSHOT_FRAMES = 10000;
+	static final int SNAPSHOT_MAGIC = 0x4844424d;
+	//a frame claiming more bytes than this is taken for a torn one
+	static final int MAX_FRAME = 1 << 24;
+
+	static final String FEATURE_NOT_SUPPORTED = "0A000";
+	static final String UNIQUE_VIOLATION = "23505";
+	static final String FOREIGN_KEY_VIOLATION = "23503";
+	static final String NOT_NULL_VIOLATION = "23502";
+	static final String IO_ERROR = "58030";
+
+	//kind of a timestamp column, besides the kinds of BulkLoader
+	static final char TIME = 'T';
+	//the NULL of an int and of a long column
+	static final int NULL_INT = Integer.MIN_VALUE;
+	static final long NULL_TIME = Long.MIN_VALUE;
+
+	//changes in a log frame
+	static final byte INSERT = 1;
+	static final byte SET = 2;
+
+	static final Pattern SELECT_ALL = Pattern.compile("\\s*SELECT\\s+\\*\\s+FROM\\s+(\\w+)\\s*;?\\s*", Pattern.CASE_INSENSITIVE);
+
+	//the query shapes answered, by their text
+	static final int APPOINTMENT_BY_ID = 0;
+	static final int PATIENT_BY_ID = 1;
+	static final int PATIENT_APPOINTMENT_COUNT = 2;
+	static final int APPOINTMENT_STATUS = 3;
+	static final int APPOINTMENTS_OF_DOCTOR = 4;
+	static final int AVAILABLE_APPOINTMENTS_OF_DEPARTMENT = 5;
+	static final int NEXT_AVAILABLE_OF_DOCTOR = 6;
+	static final int AVAILABLE_OF_DEPARTMENT_OVERLAPPING = 7;
+	static final int STATUS_COUNT_PER_DOCTOR = 8;
+	static final int PATIENT_COUNT_WITH_STATUS = 9;
+	static final int DOCTOR_DEPARTMENTS = 10;
+	static final int DEPARTMENT_HOSPITALS = 11;
+	static final int STAFF_HOSPITALS = 12;
+	static final int WAITERS = 13;
+	static final int BOOK = 14;
+	static final int INSERT_DOCTOR = 15;
+	static final int INSERT_PATIENT = 16;
+	static final int INSERT_APPOINTMENT = 17;
+	static final int INSERT_DOCTOR_APPOINTMENT = 18;
+	//the summary of sql/triggers.sql, which the engine does not keep
+	static final int SUMMARY = 19;
+	static final Map<String, Integer> SHAPES = new HashMap<String, Integer>();
+	static final String[][] COLUMNS = new String[SUMMARY][];
+
+	static{
+		shape(DBproject.APPOINTMENT_BY_ID, APPOINTMENT_BY_ID, HospitalService.Appointment.COLUMNS);
+		shape(DBproject.PATIENT_BY_ID, PATIENT_BY_ID, HospitalService.Patient.COLUMNS);
+		shape(DBproject.PATIENT_APPOINTMENT_COUNT, PATIENT_APPOINTMENT_COUNT, "number_of_appts");
+		shape(DBproject.APPOINTMENT_STATUS, APPOINTMENT_STATUS, "status");
+		shape(DBproject.APPOINTMENTS_OF_DOCTOR, APPOINTMENTS_OF_DOCTOR, HospitalService.Appointment.COLUMNS);
+		shape(DBproject.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT, AVAILABLE_APPOINTMENTS_OF_DEPARTMENT, "appnt_id");
+		shape(DBproject.NEXT_AVAILABLE_OF_DOCTOR, NEXT_AVAILABLE_OF_DOCTOR, HospitalService.Appointment.COLUMNS);
+		shape(DBproject.AVAILABLE_OF_DEPARTMENT_OVERLAPPING, AVAILABLE_OF_DEPARTMENT_OVERLAPPING, HospitalService.Appointment.COLUMNS);
+		shape(DBproject.STATUS_COUNT_PER_DOCTOR_RECOUNT, STATUS_COUNT_PER_DOCTOR, HospitalService.DoctorStatusCount.COLUMNS);
+		shape(DBproject.PATIENT_COUNT_WITH_STATUS_RECOUNT, PATIENT_COUNT_WITH_STATUS, HospitalService.DoctorPatientCount.COLUMNS);
+		shape(ReferenceCache.DOCTOR_DEPARTMENTS, DOCTOR_DEPARTMENTS, "doctor_id", "did");
+		shape(ReferenceCache.DEPARTMENT_HOSPITALS, DEPARTMENT_HOSPITALS, "dept_id", "hid");
+		shape(ReferenceCache.STAFF_HOSPITALS, STAFF_HOSPITALS, "staff_id", "hid");
+		shape(Waitlist.WAITERS, WAITERS, "patient_id", "name", "enqueued");
+		shape(BookingEngine.BOOK, BOOK, "outcome", "previous_status", "new_status", "hospital", "appt_date", "appt_time_slot",
+			"patient_name", "patient_gender", "patient_age", "patient_address", "patient_appointments");
+		shape(DBproject.INSERT_DOCTOR, INSERT_DOCTOR);
+		shape(DBproject.INSERT_PATIENT, INSERT_PATIENT);
+		shape(DBproject.INSERT_APPOINTMENT, INSERT_APPOINTMENT);
+		shape(DBproject.INSERT_DOCTOR_APPOINTMENT, INSERT_DOCTOR_APPOINTMENT);
+		SHAPES.put(DBproject.STATUS_COUNT_PER_DOCTOR, SUMMARY);
+		SHAPES.put(DBproject.PATIENT_COUNT_WITH_STATUS, SUMMARY);
+	}
+
+	private static void shape(String sql, int shape, String... columns){
+		SHAPES.put(sql, shape);
+		COLUMNS[shape] = columns;
+	}
+
+	/**
+	 * A table stored column by column. Rows are numbered in the order they
+	 * were inserted and never move; only the newest row can be taken back.
+	 */
+	static final class Table{
+		final int number;
+		final String name;
+		final String[] columns;
+		final String kinds;
+		//one array per column: int[], long[] or String[] by its kind
+		final Object[] data;
+		int size = 0;
+		final List<Index> indexes = new ArrayList<Index>();
+		//the columns of the primary or unique key, the first of them indexed
+		int[] key = null;
+		Index keyIndex = null;
+		//per column, the unique index its values must be found in, or null
+		final Index[] references;
+
+		Table(int number, String name, String[] columns, String kinds){
+			this.number = number;
+			this.name = name;
+			this.columns = new String[columns.length];
+			this.kinds = kinds;
+			this.data = new Object[columns.length];
+			this.references = new Index[columns.length];
+			for (int c = 0; c < columns.length; ++c){
+				this.columns[c] = columns[c].toLowerCase();
+				this.data[c] = isInt(c) ? new int[16] : kinds.charAt(c) == TIME ? (Object) new long[16] : new String[16];
+			}//end for
+		}
+
+		boolean isInt(int column){
+			char kind = this.kinds.charAt(column);
+			return kind == BulkLoader.INT || kind == BulkLoader.DATE;
+		}
+
+		int getInt(int column, int row){
+			return ((int[]) this.data[column])[row];
+		}
+
+		String getText(int column, int row){
+			return ((String[]) this.data[column])[row];
+		}
+
+		/**
+		 * @return the value as stored, an Integer, Long or String, or null
+		 */
+		Object get(int column, int row){
+			if (isInt(column)){
+				int value = getInt(column, row);
+				return value == NULL_INT ? null : (Object) value;
+			}//end if
+			if (this.kinds.charAt(column) == TIME){
+				long value = ((long[]) this.data[column])[row];
+				return value == NULL_TIME ? null : (Object) value;
+			}//end if
+			return getText(column, row);
+		}
+
+		/**
+		 * @return the value as a query returns it, with dates and timestamps
+		 * as their java.sql types
+		 */
+		Object value(int column, int row){
+			Object value = get(column, row);
+			if (value == null) return null;
+			if (this.kinds.charAt(column) == BulkLoader.DATE) return java.sql.Date.valueOf(LocalDate.ofEpochDay((Integer) value));
+			if (this.kinds.charAt(column) == TIME) return new Timestamp((Long) value);
+			return value;
+		}
+
+		void set(int column, int row, Object value){
+			if (isInt(column)) ((int[]) this.data[column])[row] = value == null ? NULL_INT : (Integer) value;
+			else if (this.kinds.charAt(column) == TIME) ((long[]) this.data[column])[row] = value == null ? NULL_TIME : (Long) value;
+			else ((String[]) this.data[column])[row] = (String) value;
+		}
+
+		/**
+		 * Method to make room for rows up to the given number, exclusive.
+		 */
+		void reserve(int rows){
+			Object first = this.data[0];
+			int capacity = first instanceof int[] ? ((int[]) first).length : first instanceof long[] ? ((long[]) first).length : ((String[]) first).length;
+			if (rows <= capacity) return;
+			capacity = Math.max(rows, capacity * 2);
+			for (int c = 0; c < this.columns.length; ++c){
+				Object column = this.data[c];
+				if (column instanceof int[]) this.data[c] = Arrays.copyOf((int[]) column, capacity);
+				else if (column instanceof long[]) this.data[c] = Arrays.copyOf((long[]) column, capacity);
+				else this.data[c] = Arrays.copyOf((String[]) column, capacity);
+			}//end for
+		}
+
+		/**
+		 * Method to check a row against the keys and foreign keys of the
+		 * table before it is added.
+		 */
+		void check(Object[] values) throws SQLException {
+			for (int c = 0; c < this.columns.length; ++c){
+				if (this.references[c] == null || values[c] == null) continue;
+				if (this.references[c].first((Integer) values[c]) < 0)
+					throw new SQLException("insert into " + this.name + " violates a foreign key: " + this.columns[c] + " " + values[c]
+						+ " is not in " + this.references[c].table.name, FOREIGN_KEY_VIOLATION);
+			}//end for
+			if (this.key == null) return;
+			for (int c : this.key){
+				if (values[c] == null) throw new SQLException("null value in column " + this.columns[c] + " of " + this.name, NOT_NULL_VIOLATION);
+			}//end for
+			if (find(values) >= 0) throw new SQLException("duplicate key in " + this.name + ": " + keyText(values), UNIQUE_VIOLATION);
+		}
+
+		/**
+		 * @return the row with the key of the values, or -1 if there is none
+		 */
+		int find(Object[] values){
+			for (int row = this.keyIndex.first((Integer) values[this.key[0]]); row >= 0; row = this.keyIndex.next(row)){
+				boolean same = true;
+				for (int c : this.key) same = same && values[c].equals(get(c, row));
+				if (same) return row;
+			}//end for
+			return -1;
+		}
+
+		/**
+		 * @return the number of the row added
+		 */
+		int add(Object[] values){
+			int row = this.size;
+			reserve(row + 1);
+			for (int c = 0; c < this.columns.length; ++c) set(c, row, values[c]);
+			++this.size;
+			for (Index index : this.indexes) index.add(row);
+			return row;
+		}
+
+		/**
+		 * Method to take back the newest row, which heads the chains of its keys.
+		 */
+		void removeNewest(){
+			int row = this.size - 1;
+			for (Index index : this.indexes) index.removeNewest(row);
+			for (int c = 0; c < this.columns.length; ++c) set(c, row, null);
+			--this.size;
+		}
+
+		private String keyText(Object[] values){
+			StringBuilder sb = new StringBuilder("(");
+			for (int c : this.key) sb.append(sb.length() > 1 ? ", " : "").append(this.columns[c]);
+			sb.append(")=(");
+			for (int i = 0; i < this.key.length; ++i) sb.append(i > 0 ? ", " : "").append(values[this.key[i]]);
+			return sb.append(')').toString();
+		}
+	}
+
+	/**
+	 * A hash index of an int column. The map holds the newest row of every
+	 * key, and each row the next older row with the same key, or -1.
+	 */
+	static final class Index{
+		final Table table;
+		final int column;
+		private final ReferenceCache.IntIntMap _newest = new ReferenceCache.IntIntMap(1024);
+		private int[] _older = new int[1024];
+
+		Index(Table table, int column){
+			this.table = table;
+			this.column = column;
+			table.indexes.add(this);
+		}
+
+		/**
+		 * @return the newest row with the key, or -1 if there is none
+		 */
+		int first(int key){
+			return key == NULL_INT ? -1 : this._newest.get(key, -1);
+		}
+
+		/**
+		 * @return the next older row with the key of a row, or -1
+		 */
+		int next(int row){
+			return this._older[row];
+		}
+
+		void add(int row){
+			if (row >= this._older.length) this._older = Arrays.copyOf(this._older, Math.max(row + 1, this._older.length * 2));
+			int key = this.table.getInt(this.column, row);
+			this._older[row] = key == NULL_INT ? -1 : this._newest.get(key, -1);
+			if (key != NULL_INT) this._newest.put(key, row);
+		}
+
+		void removeNewest(int row){
+			int key = this.table.getInt(this.column, row);
+			// -1 reads as a missing key
+			if (key != NULL_INT) this._newest.put(key, this._older[row]);
+		}
+	}
+
+	/**
+	 * A change of the statement running, to undo it if the statement fails.
+	 */
+	private static final class Change{
+		final Table table;
+		final int row;
+		//-1 for an inserted row
+		final int column;
+		final Object old;
+
+		Change(Table table, int row, int column, Object old){
+			this.table = table;
+			this.row = row;
+			this.column = column;
+			this.old = old;
+		}
+	}
+
+	private final File _dir;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private final Table[] _tables;
+	private final Map<String, Table> _byName = new HashMap<String, Table>();
+	private final Table _hospital;
+	private final Table _patient;
+	private final Table _appointment;
+	private final Table _department;
+	private final Table _staff;
+	private final Table _doctor;
+	private final Table _searches;
+	private final Table _hasAppointment;
+	private final Table _waitlist;
+	private final Index _patients;
+	private final Index _appointments;
+	private final Index _departments;
+	private final Index _doctors;
+	private final Index _doctorsOfDepartment;
+	private final Index _hasByAppointment;
+	private final Index _hasByDoctor;
+	private final Index _waitlistByAppointment;
+	//the log, the number of its last frame and the frames since the snapshot
+	private FileOutputStream _log = null;
+	private long _sequence = 0;
+	private int _frames = 0;
+	//the changes of the statement running, as logged and as undone
+	private final ByteArrayOutputStream _frame = new ByteArrayOutputStream();
+	private final DataOutputStream _changes = new DataOutputStream(this._frame);
+	private final List<Change> _undo = new ArrayList<Change>();
+
+	private MemoryEngine(File dir){
+		this._dir = dir;
+		BulkLoader.Table[] schema = BulkLoader.TABLES;
+		this._tables = new Table[schema.length + 1];
+		for (int t = 0; t < schema.length; ++t)
+			this._tables[t] = new Table(t, schema[t].name, schema[t].columns, schema[t].kinds);
+		this._tables[schema.length] = new Table(schema.length, "waitlist",
+			new String[]{ "entry_ID", "appt_id", "doctor_id", "patient_id", "enqueued" }, "iiiiT");
+		for (Table table : this._tables) this._byName.put(table.name.toLowerCase(), table);
+
+		this._hospital = table("Hospital");
+		this._patient = table("Patient");
+		this._appointment = table("Appointment");
+		this._department = table("Department");
+		this._staff = table("Staff");
+		this._doctor = table("Doctor");
+		Table maintenance = table("request_maintenance");
+		this._searches = table("searches");
+		Table schedules = table("schedules");
+		this._hasAppointment = table("has_appointment");
+		this._waitlist = table("waitlist");
+
+		Index hospitals = key(this._hospital, 0);
+		this._patients = key(this._patient, 0);
+		this._appointments = key(this._appointment, 0);
+		this._departments = key(this._department, 0);
+		Index staff = key(this._staff, 0);
+		this._doctors = key(this._doctor, 0);
+		new Index(this._department, 2);
+		new Index(this._staff, 2);
+		this._doctorsOfDepartment = new Index(this._doctor, 3);
+		key(maintenance, 3, 4);
+		key(this._searches, 2, 0, 1);
+		key(schedules, 0, 1);
+		this._hasByAppointment = key(this._hasAppointment, 0, 1);
+		this._hasByDoctor = new Index(this._hasAppointment, 1);
+		this._waitlistByAppointment = key(this._waitlist, 1, 3);
+
+		refer(this._department, 2, hospitals);
+		refer(this._staff, 2, hospitals);
+		refer(this._doctor, 3, this._departments);
+		refer(maintenance, 3, this._doctors);
+		refer(maintenance, 4, staff);
+		refer(this._searches, 0, hospitals);
+		refer(this._searches, 1, this._patients);
+		refer(this._searches, 2, this._appointments);
+		refer(schedules, 0, this._appointments);
+		refer(schedules, 1, staff);
+		refer(this._hasAppointment, 0, this._appointments);
+		refer(this._hasAppointment, 1, this._doctors);
+		refer(this._waitlist, 3, this._patients);
+	}
+
+	/**
+	 * Method to open the engine kept in a directory, creating it from the
+	 * CSV files of BulkLoader the first time.
+	 *
+	 * @param dir the directory of the snapshot and the log
+	 * @param csv the directory of the CSV files, only read when there is no snapshot
+	 * @throws IOException when the files cannot be read or written
+	 */
+	public static MemoryEngine open(File dir, File csv) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		MemoryEngine engine = new MemoryEngine(dir);
+		File snapshot = new File(dir, SNAPSHOT);
+		boolean loaded = snapshot.exists();
+		if (loaded) engine.readSnapshot(snapshot);
+		else engine.loadCsv(csv);
+		engine.replay(new File(dir, LOG));
+		if (loaded) engine._log = new FileOutputStream(new File(dir, LOG), true);
+		// the rows read from the CSV files become the first snapshot
+		else engine.snapshot();
+		return engine;
+	}
+
+	/**
+	 * Method to write a snapshot and close the log.
+	 */
+	public void close(){
+		this._lock.writeLock().lock();
+		try{
+			if (this._log == null) return;
+			if (this._frames > 0) snapshot();
+			this._log.close();
+			this._log = null;
+		}catch (IOException e){
+			System.err.println("The log of " + this._dir + " will be replayed at the next start: " + e.getMessage());
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public int executeUpdate(String sql, Object... params) throws SQLException {
+		Integer shape = SHAPES.get(sql);
+		if (shape == null || shape < INSERT_DOCTOR || shape == SUMMARY) throw unsupported(sql);
+		this._lock.writeLock().lock();
+		try{
+			try{
+				if (shape == INSERT_DOCTOR)
+					insert(this._doctor, integer(params[0]), params[1], params[2], integer(params[3]));
+				else if (shape == INSERT_PATIENT)
+					insert(this._patient, integer(params[0]), params[1], params[2], integer(params[3]), params[4], integer(params[5]));
+				else{
+					insert(this._appointment, integer(params[0]), day(params[1]), params[2], params[3]);
+					if (shape == INSERT_DOCTOR_APPOINTMENT) insert(this._hasAppointment, integer(params[0]), integer(params[4]));
+				}//end if
+			}catch (SQLException e){
+				rollback();
+				throw e;
+			}catch (RuntimeException e){
+				rollback();
+				throw e;
+			}//end try
+			commit();
+			return 1;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public String[] executeQuery(String sql, DBproject.RowHandler handler, Object... params) throws SQLException {
+		Integer known = SHAPES.get(sql);
+		int shape = known == null ? -1 : known;
+		Table table = null;
+		if (shape < 0){
+			Matcher all = SELECT_ALL.matcher(sql);
+			if (all.matches()) table = this._byName.get(all.group(1).toLowerCase());
+			if (table == null) throw unsupported(sql);
+		}else if (shape == SUMMARY){
+			// the reports count from the base tables instead
+			throw new SQLException("relation doctor_status_stats does not exist", HospitalService.UNDEFINED_TABLE);
+		}else if (shape >= INSERT_DOCTOR){
+			throw unsupported(sql);
+		}//end if
+
+		List<Object[]> rows;
+		if (shape == BOOK){
+			this._lock.writeLock().lock();
+			try{
+				try{
+					rows = Collections.singletonList(book(params));
+				}catch (SQLException e){
+					rollback();
+					throw e;
+				}catch (RuntimeException e){
+					rollback();
+					throw e;
+				}//end try
+				commit();
+			}finally{
+				this._lock.writeLock().unlock();
+			}
+		}else{
+			this._lock.readLock().lock();
+			try{
+				rows = table != null ? all(table) : select(shape, params);
+			}finally{
+				this._lock.readLock().unlock();
+			}
+		}//end if
+		// the handler runs outside the lock, so it may run statements of its own
+		String[] columns = table != null ? table.columns : COLUMNS[shape];
+		DBproject.Row row = new DBproject.Row(columns);
+		for (Object[] values : rows) handler.handle(row.set(values));
+		return columns;
+	}
+
+	/**
+	 * @return the rows of a query shape that only reads
+	 */
+	private List<Object[]> select(int shape, Object[] params) throws SQLException {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		switch (shape){
+			case APPOINTMENT_BY_ID:{
+				int a = this._appointments.first(integer(params[0]));
+				if (a >= 0) rows.add(appointment(a));
+				break;
+			}
+			case PATIENT_BY_ID:
+			case PATIENT_APPOINTMENT_COUNT:{
+				int p = this._patients.first(integer(params[0]));
+				if (p >= 0) rows.add(shape == PATIENT_BY_ID ? row(this._patient, p) : new Object[]{ this._patient.value(5, p) });
+				break;
+			}
+			case APPOINTMENT_STATUS:{
+				int a = appointmentOf(integer(params[0]), integer(params[1]));
+				if (a >= 0) rows.add(new Object[]{ this._appointment.getText(3, a) });
+				break;
+			}
+			case APPOINTMENTS_OF_DOCTOR:{
+				int from = day(params[1]);
+				int to = day(params[2]);
+				for (int h = this._hasByDoctor.first(integer(params[0])); h >= 0; h = this._hasByDoctor.next(h)){
+					int a = this._appointments.first(this._hasAppointment.getInt(0, h));
+					if (a < 0 || !status(a, "AV", "AC")) continue;
+					int day = this._appointment.getInt(1, a);
+					if (day >= from && day <= to) rows.add(appointment(a));
+				}//end for
+				sort(rows, false);
+				break;
+			}
+			case AVAILABLE_APPOINTMENTS_OF_DEPARTMENT:{
+				int day = day(params[1]);
+				BitSet found = new BitSet();
+				for (int a : appointmentsOfDepartment((String) params[0])){
+					if (status(a, "AV") && this._appointment.getInt(1, a) == day && !found.get(a)){
+						found.set(a);
+						rows.add(new Object[]{ this._appointment.getInt(0, a) });
+					}//end if
+				}//end for
+				sort(rows, false);
+				break;
+			}
+			case NEXT_AVAILABLE_OF_DOCTOR:{
+				long after = minutes(params[1]);
+				int best = -1;
+				long bestStart = 0;
+				for (int h = this._hasByDoctor.first(integer(params[0])); h >= 0; h = this._hasByDoctor.next(h)){
+					int a = this._appointments.first(this._hasAppointment.getInt(0, h));
+					if (a < 0 || !status(a, "AV")) continue;
+					long[] slot = slot(a);
+					if (slot == null || slot[0] < after) continue;
+					if (best < 0 || slot[0] < bestStart || (slot[0] == bestStart && this._appointment.getInt(0, a) < this._appointment.getInt(0, best))){
+						best = a;
+						bestStart = slot[0];
+					}//end if
+				}//end for
+				if (best >= 0) rows.add(appointment(best));
+				break;
+			}
+			case AVAILABLE_OF_DEPARTMENT_OVERLAPPING:{
+				long from = minutes(params[1]);
+				long to = minutes(params[2]);
+				BitSet found = new BitSet();
+				for (int a : appointmentsOfDepartment((String) params[0])){
+					if (from >= to || found.get(a) || !status(a, "AV")) continue;
+					long[] slot = slot(a);
+					// an empty slot overlaps nothing, as an empty range does not
+					if (slot == null || slot[0] >= slot[1] || slot[0] >= to || slot[1] <= from) continue;
+					found.set(a);
+					Object[] row = appointment(a);
+					rows.add(Arrays.copyOf(row, row.length + 1));
+					rows.get(rows.size() - 1)[row.length] = slot[0];
+				}//end for
+				sort(rows, true);
+				break;
+			}
+			case STATUS_COUNT_PER_DOCTOR:
+				return statusCountPerDoctor();
+			case PATIENT_COUNT_WITH_STATUS:
+				return patientCountWithStatus((String) params[0]);
+			case DOCTOR_DEPARTMENTS:
+				return pairs(this._doctor, 0, 3);
+			case DEPARTMENT_HOSPITALS:
+				return pairs(this._department, 0, 2);
+			case STAFF_HOSPITALS:
+				return pairs(this._staff, 0, 2);
+			case WAITERS:{
+				for (int w = this._waitlistByAppointment.first(integer(params[0])); w >= 0; w = this._waitlistByAppointment.next(w)){
+					int p = this._patients.first(this._waitlist.getInt(3, w));
+					if (p >= 0) rows.add(new Object[]{ this._waitlist.getInt(3, w), this._patient.getText(1, p), this._waitlist.value(4, w) });
+				}//end for
+				// the chain runs newest first
+				Collections.reverse(rows);
+				break;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Books an appointment as book_appointment of sql/booking.sql does, and
+	 * returns its row.
+	 */
+	private Object[] book(Object[] params) throws SQLException {
+		int patientId = integer(params[0]);
+		int doctorId = integer(params[1]);
+		int apptId = integer(params[2]);
+		Object[] out = new Object[COLUMNS[BOOK].length];
+		int a = appointmentOf(doctorId, apptId);
+		if (a < 0){
+			out[0] = BookingEngine.Outcome.NOT_FOUND.name();
+			return out;
+		}//end if
+		String previous = this._appointment.getText(3, a);
+		out[1] = previous;
+		out[4] = this._appointment.value(1, a);
+		out[5] = this._appointment.getText(2, a);
+		BookingEngine.Outcome outcome;
+		String status;
+		if ("AV".equals(previous)){
+			outcome = BookingEngine.Outcome.BOOKED;
+			status = "AC";
+		}else if ("AC".equals(previous) || "WL".equals(previous)){
+			outcome = BookingEngine.Outcome.WAITLISTED;
+			status = "WL";
+			for (int w = this._waitlistByAppointment.first(apptId); w >= 0; w = this._waitlistByAppointment.next(w)){
+				if (this._waitlist.getInt(3, w) != patientId) continue;
+				out[0] = BookingEngine.Outcome.ALREADY_WAITLISTED.name();
+				out[2] = previous;
+				return out;
+			}//end for
+		}else{ // appointment has already passed --> no longer available
+			out[0] = BookingEngine.Outcome.UNAVAILABLE.name();
+			out[2] = previous;
+			return out;
+		}//end if
+		out[0] = outcome.name();
+		out[2] = status;
+		if (!status.equals(previous)) set(this._appointment, 3, a, status);
+
+		// count the appointment for the patient, adding the patient if needed
+		int p = this._patients.first(patientId);
+		if (p >= 0){
+			Integer count = (Integer) this._patient.get(5, p);
+			if (count != null) set(this._patient, 5, p, count + 1);
+		}else{
+			if (params[4] == null) throw new SQLException("Patient " + patientId + " does not exist", FOREIGN_KEY_VIOLATION);
+			p = insert(this._patient, patientId, params[4], params[5], integer(params[6]), params[7], 1);
+		}//end if
+		for (int c = 1; c < 6; ++c) out[5 + c] = this._patient.value(c, p);
+
+		if (outcome == BookingEngine.Outcome.WAITLISTED){
+			int entry = this._waitlist.size == 0 ? 1 : this._waitlist.getInt(0, this._waitlist.size - 1) + 1;
+			insert(this._waitlist, entry, apptId, doctorId, patientId, System.currentTimeMillis());
+		}//end if
+
+		Integer hospital = integer(params[3]);
+		if (hospital == null){
+			int d = this._doctors.first(doctorId);
+			int dt = d < 0 ? -1 : this._departments.first(this._doctor.getInt(3, d));
+			if (dt < 0) throw new SQLException("No hospital found for doctor " + doctorId, FOREIGN_KEY_VIOLATION);
+			hospital = this._department.getInt(2, dt);
+		}//end if
+		out[3] = hospital;
+		// a patient booking an appointment again, after a release, already searched it
+		Object[] search = { hospital, patientId, apptId };
+		if (this._searches.find(search) < 0) insert(this._searches, search);
+		return out;
+	}
+
+	/**
+	 * Counts the appointments of every doctor per status, largest count first.
+	 */
+	private List<Object[]> statusCountPerDoctor(){
+		// doctor row and status to count, the status in the order of first sight
+		Map<Long, long[]> counts = new TreeMap<Long, long[]>();
+		List<String> statuses = new ArrayList<String>();
+		for (int h = 0; h < this._hasAppointment.size; ++h){
+			int d = this._doctors.first(this._hasAppointment.getInt(1, h));
+			int a = this._appointments.first(this._hasAppointment.getInt(0, h));
+			if (d < 0 || a < 0) continue;
+			String status = this._appointment.getText(3, a);
+			int s = statuses.indexOf(status);
+			if (s < 0){
+				s = statuses.size();
+				statuses.add(status);
+			}//end if
+			Long key = (long) d * 8 + s;
+			long[] count = counts.get(key);
+			if (count == null) counts.put(key, count = new long[1]);
+			// count(A.status) leaves out a NULL status
+			if (status != null) ++count[0];
+		}//end for
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Map.Entry<Long, long[]> entry : counts.entrySet()){
+			int d = (int) (entry.getKey() / 8);
+			rows.add(new Object[]{ this._doctor.getInt(0, d), this._doctor.getText(1, d), this._doctor.getText(2, d),
+				statuses.get((int) (entry.getKey() % 8)), entry.getValue()[0] });
+		}//end for
+		Collections.sort(rows, new Comparator<Object[]>(){
+			public int compare(Object[] x, Object[] y){
+				int order = Long.compare((Long) y[4], (Long) x[4]);
+				return order != 0 ? order : Integer.compare((Integer) x[0], (Integer) y[0]);
+			}
+		});
+		return rows;
+	}
+
+	/**
+	 * Counts the searches of every doctor's appointments with a status.
+	 */
+	private List<Object[]> patientCountWithStatus(String status){
+		Map<Integer, long[]> counts = new TreeMap<Integer, long[]>();
+		for (int s = 0; s < this._searches.size; ++s){
+			int apptId = this._searches.getInt(2, s);
+			int a = this._appointments.first(apptId);
+			if (a < 0 || !status(a, status)) continue;
+			for (int h = this._hasByAppointment.first(apptId); h >= 0; h = this._hasByAppointment.next(h)){
+				int d = this._doctors.first(this._hasAppointment.getInt(1, h));
+				if (d < 0) continue;
+				long[] count = counts.get(d);
+				if (count == null) counts.put(d, count = new long[1]);
+				++count[0];
+			}//end for
+		}//end for
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Map.Entry<Integer, long[]> entry : counts.entrySet()){
+			int d = entry.getKey();
+			rows.add(new Object[]{ this._doctor.getInt(0, d), this._doctor.getText(1, d), this._doctor.getText(2, d), entry.getValue()[0] });
+		}//end for
+		return rows;
+	}
+
+	/**
+	 * @return the appointment rows of the doctors of the departments with a
+	 * name, an appointment of several of them more than once
+	 */
+	private List<Integer> appointmentsOfDepartment(String name){
+		List<Integer> result = new ArrayList<Integer>();
+		for (int dt = 0; dt < this._department.size; ++dt){
+			if (!this._department.getText(1, dt).equals(name)) continue;
+			for (int d = this._doctorsOfDepartment.first(this._department.getInt(0, dt)); d >= 0; d = this._doctorsOfDepartment.next(d)){
+				for (int h = this._hasByDoctor.first(this._doctor.getInt(0, d)); h >= 0; h = this._hasByDoctor.next(h)){
+					int a = this._appointments.first(this._hasAppointment.getInt(0, h));
+					if (a >= 0) result.add(a);
+				}//end for
+			}//end for
+		}//end for
+		return result;
+	}
+
+	/**
+	 * @return the row of an appointment of a doctor, or -1 if the doctor has
+	 * no such appointment
+	 */
+	private int appointmentOf(int doctorId, int apptId){
+		for (int h = this._hasByAppointment.first(apptId); h >= 0; h = this._hasByAppointment.next(h)){
+			if (this._hasAppointment.getInt(1, h) == doctorId) return this._appointments.first(apptId);
+		}//end for
+		return -1;
+	}
+
+	private boolean status(int a, String... statuses){
+		String status = this._appointment.getText(3, a);
+		for (String s : statuses) if (s.equals(status)) return true;
+		return false;
+	}
+
+	/**
+	 * @return the start and end of the slot of an appointment in minutes
+	 * since 1970-01-01, or null when it has no slot
+	 */
+	private long[] slot(int a){
+		String text = this._appointment.getText(2, a);
+		int dash = text == null ? -1 : text.indexOf('-');
+		if (dash < 0) return null;
+		try{
+			long day = this._appointment.getInt(1, a) * 1440L;
+			return new long[]{ day + time(text.substring(0, dash)), day + time(text.substring(dash + 1)) };
+		}catch (RuntimeException e){
+			return null;
+		}//end try
+	}
+
+	//H:MM as minutes of the day
+	private static int time(String text){
+		String[] parts = text.trim().split(":");
+		return Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+	}
+
+	private Object[] appointment(int a){
+		return row(this._appointment, a);
+	}
+
+	private static Object[] row(Table table, int row){
+		Object[] values = new Object[table.columns.length];
+		for (int c = 0; c < values.length; ++c) values[c] = table.value(c, row);
+		return values;
+	}
+
+	private static List<Object[]> all(Table table){
+		List<Object[]> rows = new ArrayList<Object[]>(table.size);
+		for (int r = 0; r < table.size; ++r) rows.add(row(table, r));
+		return rows;
+	}
+
+	private static List<Object[]> pairs(Table table, int first, int second){
+		List<Object[]> rows = new ArrayList<Object[]>(table.size);
+		for (int r = 0; r < table.size; ++r) rows.add(new Object[]{ table.getInt(first, r), table.getInt(second, r) });
+		return rows;
+	}
+
+	/**
+	 * Method to sort rows by their first column, or by the slot start
+	 * appended to them and then the first column, dropping the slot start.
+	 */
+	private static void sort(List<Object[]> rows, final boolean byStart){
+		Collections.sort(rows, new Comparator<Object[]>(){
+			public int compare(Object[] x, Object[] y){
+				int order = byStart ? Long.compare((Long) x[x.length - 1], (Long) y[y.length - 1]) : 0;
+				return order != 0 ? order : Integer.compare((Integer) x[0], (Integer) y[0]);
+			}
+		});
+		if (byStart){
+			for (int i = 0; i < rows.size(); ++i) rows.set(i, Arrays.copyOf(rows.get(i), rows.get(i).length - 1));
+		}//end if
+	}
+
+	/**
+	 * Method to add a row to a table as part of the statement running.
+	 *
+	 * @return the number of the row
+	 */
+	private int insert(Table table, Object... values) throws SQLException {
+		table.check(values);
+		int row = table.add(values);
+		this._undo.add(new Change(table, row, -1, null));
+		try{
+			this._changes.writeByte(INSERT);
+			this._changes.writeByte(table.number);
+			for (int c = 0; c < values.length; ++c) write(this._changes, table, c, values[c]);
+		}catch (IOException e){
+			throw new IllegalStateException(e);
+		}//end try
+		return row;
+	}
+
+	/**
+	 * Method to change a value of a row as part of the statement running.
+	 */
+	private void set(Table table, int column, int row, Object value){
+		this._undo.add(new Change(table, row, column, table.get(column, row)));
+		table.set(column, row, value);
+		try{
+			this._changes.writeByte(SET);
+			this._changes.writeByte(table.number);
+			this._changes.writeInt(row);
+			this._changes.writeByte(column);
+			write(this._changes, table, column, value);
+		}catch (IOException e){
+			throw new IllegalStateException(e);
+		}//end try
+	}
+
+	/**
+	 * Method to append the changes of the statement to the log as one frame
+	 * and force it to disk, or undo them when it cannot be written.
+	 */
+	private void commit() throws SQLException {
+		if (this._frame.size() == 0){
+			this._undo.clear();
+			return;
+		}//end if
+		long position = -1;
+		try{
+			byte[] changes = this._frame.toByteArray();
+			ByteArrayOutputStream frame = new ByteArrayOutputStream(changes.length + 16);
+			DataOutputStream out = new DataOutputStream(frame);
+			CRC32 crc = new CRC32();
+			crc.update(changes);
+			out.writeInt(changes.length + 8);
+			out.writeInt((int) crc.getValue());
+			out.writeLong(this._sequence + 1);
+			out.write(changes);
+			position = this._log.getChannel().position();
+			this._log.write(frame.toByteArray());
+			this._log.getChannel().force(false);
+		}catch (IOException e){
+			try{
+				if (position >= 0) this._log.getChannel().truncate(position);
+			}catch (IOException ignored){
+				// the torn frame is dropped at the next start
+			}//end try
+			rollback();
+			throw new SQLException("The log of " + this._dir + " cannot be written: " + e.getMessage(), IO_ERROR, e);
+		}//end try
+		++this._sequence;
+		++this._frames;
+		this._frame.reset();
+		this._undo.clear();
+		if (this._frames < SNAPSHOT_FRAMES) return;
+		try{
+			snapshot();
+		}catch (IOException e){
+			// the log keeps the changes until a snapshot succeeds
+			System.err.println("Cannot write a snapshot of " + this._dir + ": " + e.getMessage());
+		}//end try
+	}
+
+	private void rollback(){
+		for (int i = this._undo.size() - 1; i >= 0; --i){
+			Change change = this._undo.get(i);
+			if (change.column < 0) change.table.removeNewest();
+			else change.table.set(change.column, change.row, change.old);
+		}//end for
+		this._undo.clear();
+		this._frame.reset();
+	}
+
+	/**
+	 * Method to write the tables to a new snapshot, replace the old one with
+	 * it and empty the log. The snapshot records the number of the last frame
+	 * it holds, so a crash before the log is emptied replays nothing twice.
+	 */
+	private void snapshot() throws IOException {
+		File tmp = new File(this._dir, SNAPSHOT + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(this._sequence);
+			out.writeInt(this._tables.length);
+			for (Table table : this._tables){
+				out.writeUTF(table.name);
+				out.writeInt(table.size);
+				for (int c = 0; c < table.columns.length; ++c){
+					for (int r = 0; r < table.size; ++r) write(out, table, c, table.get(c, r));
+				}//end for
+			}//end for
+			out.flush();
+			file.getFD().sync();
+		}finally{
+			file.close();
+		}
+		Files.move(tmp.toPath(), new File(this._dir, SNAPSHOT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (this._log != null) this._log.close();
+		this._log = new FileOutputStream(new File(this._dir, LOG), false);
+		this._frames = 0;
+	}
+
+	private void readSnapshot(File snapshot) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+		try{
+			if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException(snapshot + " is not a snapshot of the memory engine");
+			this._sequence = in.readLong();
+			if (in.readInt() != this._tables.length) throw new IOException(snapshot + " holds other tables");
+			for (Table table : this._tables){
+				if (!in.readUTF().equals(table.name)) throw new IOException(snapshot + " holds other tables");
+				int size = in.readInt();
+				table.reserve(size);
+				for (int c = 0; c < table.columns.length; ++c){
+					for (int r = 0; r < size; ++r) table.set(c, r, read(in, table, c));
+				}//end for
+				table.size = size;
+				for (Index index : table.indexes){
+					for (int r = 0; r < size; ++r) index.add(r);
+				}//end for
+			}//end for
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Method to apply the frames of the log written after the snapshot, and
+	 * cut the log at the first frame that is torn.
+	 */
+	private void replay(File log) throws IOException {
+		if (!log.exists()) return;
+		long good = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 1 << 16));
+		try{
+			while (true){
+				byte[] body;
+				int crc;
+				try{
+					int length = in.readInt();
+					crc = in.readInt();
+					if (length < 8 || length > MAX_FRAME) break;
+					body = new byte[length];
+					in.readFully(body);
+				}catch (EOFException e){
+					break;
+				}//end try
+				CRC32 check = new CRC32();
+				check.update(body, 8, body.length - 8);
+				if ((int) check.getValue() != crc) break;
+				DataInputStream frame = new DataInputStream(new ByteArrayInputStream(body));
+				long sequence = frame.readLong();
+				if (sequence > this._sequence){
+					apply(frame);
+					this._sequence = sequence;
+					++this._frames;
+				}//end if
+				good += 8 + body.length;
+			}//end while
+		}finally{
+			in.close();
+		}
+		if (good < log.length()){
+			System.err.println("Dropping " + (log.length() - good) + " bytes of a torn frame at the end of " + log);
+			RandomAccessFile file = new RandomAccessFile(log, "rw");
+			try{
+				file.setLength(good);
+			}finally{
+				file.close();
+			}
+		}//end if
+	}
+
+	private void apply(DataInputStream frame) throws IOException {
+		while (frame.available() > 0){
+			byte change = frame.readByte();
+			Table table = this._tables[frame.readByte()];
+			if (change == INSERT){
+				Object[] values = new Object[table.columns.length];
+				for (int c = 0; c < values.length; ++c) values[c] = read(frame, table, c);
+				table.add(values);
+			}else{
+				int row = frame.readInt();
+				int column = frame.readByte();
+				table.set(column, row, read(frame, table, column));
+			}//end if
+		}//end while
+	}
+
+	/**
+	 * Method to read the CSV files of the ten tables in the order of
+	 * BulkLoader. Rows it or the keys reject are left out and counted.
+	 */
+	private void loadCsv(File csv) throws IOException {
+		System.out.println("Loading the tables from " + csv);
+		for (int t = 0; t < BulkLoader.TABLES.length; ++t){
+			Table table = this._tables[t];
+			File file = new File(csv, BulkLoader.TABLES[t].file);
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			int rejected = 0;
+			String reason = null;
+			try{
+				for (String line = in.readLine(); line != null; line = in.readLine()){
+					if (line.isEmpty()) continue;
+					String why = BulkLoader.validate(BulkLoader.TABLES[t], line);
+					try{
+						if (why == null){
+							Object[] values = parse(table, line.split(",", -1));
+							table.check(values);
+							table.add(values);
+						}//end if
+					}catch (SQLException e){
+						why = e.getMessage();
+					}//end try
+					if (why == null) continue;
+					++rejected;
+					if (reason == null) reason = why;
+				}//end for
+			}finally{
+				in.close();
+			}
+			if (rejected > 0) System.err.println(file + ": " + rejected + " rows rejected, the first because " + reason);
+		}//end for
+	}
+
+	private static Object[] parse(Table table, String[] fields){
+		Object[] values = new Object[fields.length];
+		for (int c = 0; c < fields.length; ++c){
+			char kind = table.kinds.charAt(c);
+			if (fields[c].equals("\\N")) values[c] = null;
+			else if (kind == BulkLoader.INT) values[c] = Integer.valueOf(fields[c].trim());
+			else if (kind == BulkLoader.DATE) values[c] = (int) HospitalService.parseDate(fields[c]).toEpochDay();
+			else values[c] = fields[c];
+		}//end for
+		return values;
+	}
+
+	private static void write(DataOutputStream out, Table table, int column, Object value) throws IOException {
+		if (table.isInt(column)){
+			out.writeInt(value == null ? NULL_INT : (Integer) value);
+		}else if (table.kinds.charAt(column) == TIME){
+			out.writeLong(value == null ? NULL_TIME : (Long) value);
+		}else{
+			out.writeBoolean(value != null);
+			if (value != null) out.writeUTF((String) value);
+		}//end if
+	}
+
+	private static Object read(DataInputStream in, Table table, int column) throws IOException {
+		if (table.isInt(column)){
+			int value = in.readInt();
+			return value == NULL_INT ? null : (Object) value;
+		}//end if
+		if (table.kinds.charAt(column) == TIME){
+			long value = in.readLong();
+			return value == NULL_TIME ? null : (Object) value;
+		}//end if
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private Table table(String name){
+		return this._byName.get(name.toLowerCase());
+	}
+
+	private static Index key(Table table, int... columns){
+		table.key = columns;
+		table.keyIndex = new Index(table, columns[0]);
+		return table.keyIndex;
+	}
+
+	private static void refer(Table table, int column, Index target){
+		table.references[column] = target;
+	}
+
+	private static Integer integer(Object value){
+		if (value == null) return null;
+		if (value instanceof Number) return ((Number) value).intValue();
+		return Integer.valueOf(value.toString().trim());
+	}
+
+	//a date parameter, a java.sql.Date or text in any format HospitalService accepts, as days since 1970-01-01
+	private static int day(Object value){
+		if (value == null) throw new IllegalArgumentException("Date is required");
+		if (value instanceof java.sql.Date) return (int) ((java.sql.Date) value).toLocalDate().toEpochDay();
+		return (int) HospitalService.parseDate(value.toString()).toEpochDay();
+	}
+
+	//a timestamp parameter, a java.sql.Timestamp or text, as minutes since 1970-01-01
+	private static long minutes(Object value){
+		LocalDateTime time = value instanceof Timestamp ? ((Timestamp) value).toLocalDateTime() : HospitalService.parseDateTime(String.valueOf(value));
+		return time.toLocalDate().toEpochDay() * 1440 + time.getHour() * 60 + time.getMinute();
+	}
+
+	private static SQLException unsupported(String sql){
+		return new SQLException("The memory engine does not run this statement, it needs PostgreSQL: " + sql.replace('\n', ' '), FEATURE_NOT_SUPPORTED);
+	}
+
+	public String toString(){
+		this._lock.readLock().lock();
+		try{
+			long rows = 0;
+			for (Table table : this._tables) rows += table.size;
+			return String.format("memory engine in %s: %d rows in %d tables, %d log frames since the snapshot", this._dir, rows, this._tables.length, this._frames);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Operation benchmark
+ * ===================
+ *
+ * Runs each of the eight menu operations through HospitalService against a
+ * local Postgres and reports its throughput and latency percentiles, so
+ * releases can be compared against each other.
+ *
+ * Usage: java -cp lib/*:bin/ OperationBenchmark <dbname> <port> <user> [iterations] [seconds] [operation ...]
+ *
+ * Load the database from data/*.csv or from DataGenerator first. Every
+ * operation is warmed up for a tenth of its iterations, then measured for
+ * the given number of iterations or seconds, whichever ends first. Rows
+ * written by the benchmark use IDs above the highest existing ones and are
+ * deleted again when it finishes.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class OperationBenchmark{
+	static final int DEFAULT_ITERATIONS = 1000;
+	static final int DEFAULT_SECONDS = 10;
+	static final long SEED = 42;
+	static final long INDEX_WAIT_NANOS = 60000000000L;
+
+	/**
+	 * One call of a service operation.
+	 */
+	interface Operation{
+		void run(int iteration) throws SQLException;
+	}
+
+	/**
+	 * A menu operation and the name it is reported under.
+	 */
+	static class Case{
+		final String name;
+		final Operation operation;
+
+		Case(String name, Operation operation){
+			this.name = name;
+			this.operation = operation;
+		}
+	}
+
+	public static void main (String[] args) throws SQLException, InterruptedException {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + OperationBenchmark.class.getName () +
+		            " <dbname> <port> <user> [iterations] [seconds] [operation ...]");
+			return;
+		}//end if
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ITERATIONS;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_SECONDS;
+		List<String> only = Arrays.asList(args).subList(Math.min(args.length, 5), args.length);
+
+		final DBproject esql = new DBproject (args[0], args[1], args[2], "", 1);
+		final HospitalService service = new HospitalService(esql);
+		final Random random = new Random(SEED);
+
+		// parameters of the read operations, sampled from the loaded data
+		final List<Integer> doctors = column(esql, "SELECT doctor_ID FROM Doctor ORDER BY doctor_ID;");
+		final List<String> departments = strings(esql, "SELECT name FROM Department ORDER BY name;");
+		final List<LocalDate> dates = new ArrayList<LocalDate>();
+		for (String date : strings(esql, "SELECT DISTINCT to_char(adate, 'YYYY-MM-DD') FROM Appointment ORDER BY 1;"))
+			dates.add(LocalDate.parse(date));
+		final String[] statuses = { "PA", "AC", "AV", "WL" };
+		if (doctors.isEmpty() || departments.isEmpty() || dates.isEmpty()){
+			System.err.println("The database has no doctors, departments or appointments to benchmark against.");
+			service.close();
+			esql.cleanup ();
+			return;
+		}//end if
+		final int department = column(esql, "SELECT min(dept_ID) FROM Department;").get(0);
+		final int firstDoctor = BookingStress.maxId(esql, "doctor_ID", "Doctor") + 1;
+		final int firstPatient = BookingStress.maxId(esql, "patient_ID", "Patient") + 1;
+		final int firstAppt = BookingStress.maxId(esql, "appnt_ID", "Appointment") + 1;
+		// the appointments booked by option 4 come after the ones added by option 3
+		final int calls = iterations + iterations / 10;
+		final int firstBooked = firstAppt + calls;
+		final LocalDate bookedDate = LocalDate.of(2030, 1, 1);
+		final int bookingPatient = firstPatient + calls;
+
+		Case[] cases = {
+			new Case("AddDoctor", new Operation(){
+				public void run(int i) throws SQLException {
+					service.addDoctor(firstDoctor + i, "Benchmark Doctor " + i, "Benchmark", department);
+				}
+			}),
+			new Case("AddPatient", new Operation(){
+				public void run(int i) throws SQLException {
+					service.addPatient(firstPatient + i, "Benchmark Patient " + i, "F", 30, "n/a", 0);
+				}
+			}),
+			new Case("AddAppointment", new Operation(){
+				public void run(int i) throws SQLException {
+					service.addAppointment(firstAppt + i, bookedDate, "8:00-10:00", "AV");
+				}
+			}),
+			new Case("MakeAppointment", new Operation(){
+				public void run(int i) throws SQLException {
+					service.bookAppointment(bookingPatient, firstBooked + i, doctors.get(0));
+				}
+			}),
+			new Case("ListAppointmentsOfDoctor", new Operation(){
+				public void run(int i) throws SQLException {
+					LocalDate start = pick(random, dates);
+					service.listAppointmentsOfDoctor(pick(random, doctors), start, start.withDayOfYear(start.lengthOfYear()));
+				}
+			}),
+			new Case("ListAvailableAppointmentsOfDepartment", new Operation(){
+				public void run(int i) throws SQLException {
+					service.listAvailable(pick(random, departments), pick(random, dates));
+				}
+			}),
+			new Case("ListStatusNumberOfAppointmentsPerDoctor", new Operation(){
+				public void run(int i) throws SQLException {
+					service.statusCountPerDoctor();
+				}
+			}),
+			new Case("FindPatientsCountWithStatus", new Operation(){
+				public void run(int i) throws SQLException {
+					service.patientCountWithStatus(statuses[random.nextInt(statuses.length)]);
+				}
+			}),
+		};
+
+		try{
+			// measure the index rather than the database fallback it loads behind
+			long loading = System.nanoTime() + INDEX_WAIT_NANOS;
+			while (service.getAvailabilityIndex().isCold() && System.nanoTime() < loading)
+				Thread.sleep(100);
+			// one patient is needed for the bookings even when option 2 is not run
+			service.addPatient(bookingPatient, "Benchmark Patient", "F", 30, "n/a", 0);
+			esql.executeUpdate("INSERT INTO Appointment (appnt_ID, adate, time_slot, status) SELECT g, '1/1/2030', '8:00-10:00', 'AV' FROM generate_series(?, ?) g;",
+				firstBooked, firstBooked + calls - 1);
+			esql.executeUpdate("INSERT INTO has_appointment (appt_id, doctor_id) SELECT g, ? FROM generate_series(?, ?) g;",
+				doctors.get(0), firstBooked, firstBooked + calls - 1);
+
+			System.out.printf("%-40s %8s %10s %10s %10s %10s%n", "operation", "calls", "ops/s", "mean(us)", "p50(us)", "p99(us)");
+			for (Case c : cases){
+				if (!only.isEmpty() && !only.contains(c.name)) continue;
+				int warmup = run(c, 0, iterations / 10, seconds / 10.0).length;
+				long begin = System.nanoTime();
+				long[] latencies = run(c, warmup, iterations, seconds);
+				report(c.name, latencies, System.nanoTime() - begin);
+			}//end for
+			System.out.println(esql.getPool());
+			if (esql.getRouter() != null) System.out.println(esql.getRouter());
+			System.out.println(service.getReferenceCache());
+			System.out.println(service.getAvailabilityIndex());
+			System.out.println();
+			System.out.print(esql.getMetrics().report(esql.getPool()));
+		}finally{
+			esql.executeUpdate("DELETE FROM appointment_release WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM waitlist WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM searches WHERE aid >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM has_appointment WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM Appointment WHERE appnt_ID >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM Patient WHERE patient_ID >= ?;", firstPatient);
+			esql.executeUpdate("DELETE FROM Doctor WHERE doctor_ID >= ?;", firstDoctor);
+			service.close();
+			esql.cleanup ();
+		}
+	}
+
+	/**
+	 * Runs an operation until the iterations are done or the time is up.
+	 *
+	 * @param first the iteration number of the first call, so written IDs do not repeat
+	 * @return the latency of every call in nanoseconds
+	 */
+	static long[] run (Case c, int first, int iterations, double seconds) throws SQLException {
+		long[] latencies = new long[iterations];
+		long deadline = System.nanoTime() + (long) (seconds * 1e9);
+		int done = 0;
+		while (done < iterations && System.nanoTime() < deadline){
+			long start = System.nanoTime();
+			c.operation.run(first + done);
+			latencies[done++] = System.nanoTime() - start;
+		}//end while
+		return Arrays.copyOf(latencies, done);
+	}
+
+	static void report (String name, long[] latencies, long elapsed){
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long l : latencies) total += l;
+		System.out.printf("%-40s %8d %10.1f %10.1f %10.1f %10.1f%n", name, latencies.length,
+			latencies.length / Math.max(elapsed / 1e9, 1e-9),
+			latencies.length == 0 ? 0 : total / 1000.0 / latencies.length,
+			QueryBenchmark.percentile(latencies, 0.50) / 1000.0,
+			QueryBenchmark.percentile(latencies, 0.99) / 1000.0);
+	}
+
+	static <T> T pick (Random random, List<T> values){
+		return values.get(random.nextInt(values.size()));
+	}
+
+	static List<Integer> column (DBproject esql, String query) throws SQLException {
+		List<Integer> values = new ArrayList<Integer>();
+		for (List<String> row : esql.executeQueryAndReturnResult(query))
+			if (row.get(0) != null) values.add(Integer.parseInt(row.get(0)));
+		return values;
+	}
+
+	static List<String> strings (DBproject esql, String query) throws SQLException {
+		List<String> values = new ArrayList<String>();
+		for (List<String> row : esql.executeQueryAndReturnResult(query))
+			values.add(row.get(0));
+		return values;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Query plan check
+ * ================
+ *
+ * Runs EXPLAIN on every query shape the application issues against a local
+ * Postgres and fails when a plan joins without a join condition or scans a
+ * large table sequentially.
+ *
+ * Usage: java -cp lib/*:bin/ PlanCheck <dbname> <port> <user> [large table rows]
+ *
+ * Run it against a database loaded at scale (see postgresql/benchIndexes.sh);
+ * on the sample data no table is large enough for sequential scans to count.
+ * The exit status is 1 when any plan fails.
+ *
+ */
+
+
+import java.io.StringReader;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+public class PlanCheck{
+	static final long DEFAULT_LARGE_TABLE_ROWS = 10000;
+
+	//plan conditions that can carry a join qualifier
+	static final String[] CONDITIONS = { "Join-Filter", "Hash-Cond", "Merge-Cond", "Index-Cond", "Recheck-Cond", "Filter" };
+	static final Pattern QUALIFIED_COLUMN = Pattern.compile("\\b([A-Za-z_][A-Za-z0-9_]*)\\.[A-Za-z_\"]");
+
+	/**
+	 * Sample parameters for a query shape and the tables it may scan in full.
+	 */
+	static class Sample{
+		final Object[] params;
+		final Set<String> fullScans = new HashSet<String>();
+
+		Sample(Object... params){
+			this.params = params;
+		}
+
+		Sample scans(String... tables){
+			for (String table : tables) this.fullScans.add(table.toLowerCase());
+			return this;
+		}
+	}
+
+	//keyed by Class.FIELD; a new query shape without a sample fails the check
+	static final Map<String, Sample> SAMPLES = new HashMap<String, Sample>();
+	static{
+		SAMPLES.put("DBproject.INSERT_DOCTOR", new Sample(1000000, "name", "specialty", 0));
+		SAMPLES.put("DBproject.INSERT_PATIENT", new Sample(1000000, "name", "F", 30, "address", 0));
+		SAMPLES.put("DBproject.INSERT_PATIENT_IF_MISSING", new Sample(1000000, "name", "F", 30, "address", 0));
+		SAMPLES.put("DBproject.INSERT_APPOINTMENT", new Sample(1000000, Date.valueOf("2030-01-01"), "8:00-10:00", "AV"));
+		SAMPLES.put("DBproject.INSERT_DOCTOR_APPOINTMENT", new Sample(1000000, Date.valueOf("2030-01-01"), "8:00-10:00", "AV", 0));
+		SAMPLES.put("DBproject.APPOINTMENT_STATUS", new Sample(11, 0));
+		SAMPLES.put("DBproject.APPOINTMENT_HOSPITAL", new Sample(0, 11));
+		SAMPLES.put("DBproject.APPOINTMENT_BY_ID", new Sample(0));
+		SAMPLES.put("DBproject.PATIENT_BY_ID", new Sample(0));
+		SAMPLES.put("DBproject.PATIENT_APPOINTMENT_COUNT", new Sample(0));
+		SAMPLES.put("DBproject.UPDATE_APPOINTMENT_STATUS", new Sample("AC", 0));
+		SAMPLES.put("DBproject.INCREMENT_PATIENT_APPOINTMENTS", new Sample(0));
+		SAMPLES.put("DBproject.INSERT_SEARCH", new Sample(0, 0, 0));
+		SAMPLES.put("DBproject.APPOINTMENTS_OF_DOCTOR", new Sample(11, Date.valueOf("2021-01-01"), Date.valueOf("2021-03-31")));
+		SAMPLES.put("DBproject.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT", new Sample("Cardiology", Date.valueOf("2021-01-04")));
+		SAMPLES.put("DBproject.NEXT_AVAILABLE_OF_DOCTOR", new Sample(11, Timestamp.valueOf("2021-01-01 00:00:00"), Timestamp.valueOf("2021-01-01 00:00:00")));
+		SAMPLES.put("DBproject.AVAILABLE_OF_DEPARTMENT_OVERLAPPING", new Sample("Cardiology", Timestamp.valueOf("2021-01-04 08:00:00"), Timestamp.valueOf("2021-01-04 12:00:00"), Timestamp.valueOf("2021-01-04 08:00:00"), Timestamp.valueOf("2021-01-04 12:00:00")));
+		// the reports read the whole summary, a few rows per doctor
+		SAMPLES.put("DBproject.STATUS_COUNT_PER_DOCTOR", new Sample().scans("Doctor", "doctor_status_stats"));
+		SAMPLES.put("DBproject.PATIENT_COUNT_WITH_STATUS", new Sample("AC").scans("Doctor", "doctor_status_stats"));
+		// the recounts aggregate over every appointment
+		SAMPLES.put("DBproject.STATUS_COUNT_PER_DOCTOR_RECOUNT", new Sample().scans("Doctor", "Appointment", "has_appointment"));
+		SAMPLES.put("DBproject.PATIENT_COUNT_WITH_STATUS_RECOUNT", new Sample("AC").scans("Doctor", "Appointment", "has_appointment", "searches"));
+		// the plan of a function call does not show the statements inside it
+		SAMPLES.put("BookingEngine.BOOK", new Sample(0, 11, 0, null, null, null, null, null));
+		SAMPLES.put("BookingEngine.LOCK_APPOINTMENT", new Sample(11, 0));
+		// the cache reads the reference tables whole
+		SAMPLES.put("ReferenceCache.DOCTOR_DEPARTMENTS", new Sample().scans("Doctor"));
+		SAMPLES.put("ReferenceCache.DEPARTMENT_HOSPITALS", new Sample().scans("Department"));
+		SAMPLES.put("ReferenceCache.STAFF_HOSPITALS", new Sample().scans("Staff"));
+		// the index loads every available appointment at once
+		SAMPLES.put("AvailabilityIndex.AVAILABLE", new Sample().scans("Appointment", "has_appointment", "Doctor"));
+		SAMPLES.put("AvailabilityIndex.DEPARTMENT_NAMES", new Sample().scans("Department"));
+		SAMPLES.put("AvailabilityIndex.AVAILABILITY_OF", new Sample(0));
+		SAMPLES.put("Waitlist.ENQUEUE", new Sample(0, 11, 0));
+		SAMPLES.put("Waitlist.IS_WAITING", new Sample(0, 0));
+		SAMPLES.put("Waitlist.LOCK_FOR_RELEASE", new Sample(11, 0));
+		SAMPLES.put("Waitlist.HAS_WAITERS", new Sample(0));
+		SAMPLES.put("Waitlist.MARK_RELEASED", new Sample(0, 11));
+		SAMPLES.put("Waitlist.ANNOUNCE_RELEASE", new Sample("0"));
+		SAMPLES.put("Waitlist.TAKE_RELEASED", new Sample(32));
+		SAMPLES.put("Waitlist.DEQUEUE", new Sample(0));
+		SAMPLES.put("Waitlist.WAITERS", new Sample(0));
+		SAMPLES.put("BatchRunner.INSERT_HAS_APPOINTMENT", new Sample(1000000, 11));
+		SAMPLES.put("StatsCheck.DIFFERENCES", new Sample().scans("doctor_status_stats", "Appointment", "has_appointment", "searches"));
+		SAMPLES.put("StatsCheck.SUMMARY_ROWS", new Sample().scans("doctor_status_stats"));
+		SAMPLES.put("StatsCheck.REBUILD", new Sample());
+		// a move reads what it locks and checks once per hospital
+		SAMPLES.put("Rebalance.HOSPITALS", new Sample().scans("Hospital"));
+		SAMPLES.put("Rebalance.LOCK_DEPARTMENTS", new Sample(0));
+		SAMPLES.put("Rebalance.LOCK_DOCTORS", new Sample(0));
+		SAMPLES.put("Rebalance.LOCK_APPOINTMENTS", new Sample((Object) new Integer[]{ 11 }));
+		SAMPLES.put("Rebalance.PATIENTS_OF_HOSPITAL", new Sample(0, new Integer[]{ 11 }).scans("waitlist"));
+		SAMPLES.put("Rebalance.CROSSING", new Sample(new Integer[]{ 11 }, 0, new Integer[]{ 0 }, 0, 0, new Integer[]{ 0 }, new Integer[]{ 0 }, new Integer[]{ 11 })
+			.scans("request_maintenance", "schedules", "searches"));
+		SAMPLES.put("ReplicaRouter.REPLICATION_LAG", new Sample());
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + PlanCheck.class.getName () +
+		            " <dbname> <port> <user> [large table rows]");
+			return;
+		}//end if
+		long largeRows = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_LARGE_TABLE_ROWS;
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "", 1);
+		int failed = 0;
+		try{
+			Map<String, Long> tableRows = new HashMap<String, Long>();
+			for (List<String> row : esql.executeQueryAndReturnResult(
+					"SELECT relname, reltuples::bigint FROM pg_class WHERE relkind IN ('r', 'p') AND relnamespace = 'public'::regnamespace;"))
+				tableRows.put(row.get(0).toLowerCase(), Long.parseLong(row.get(1)));
+			// a scan of a partition counts as a scan of its partitioned table
+			Map<String, String> parents = new HashMap<String, String>();
+			for (List<String> row : esql.executeQueryAndReturnResult(
+					"SELECT C.relname, P.relname FROM pg_inherits I, pg_class C, pg_class P WHERE C.oid = I.inhrelid AND P.oid = I.inhparent AND P.relkind = 'p';"))
+				parents.put(row.get(0).toLowerCase(), row.get(1).toLowerCase());
+
+			// integer arrays are bound as SQL arrays, for the = ANY(?) conditions
+			ConnectionPool.Lease lease = esql.getPool().borrow();
+			try{
+				for (Sample sample : SAMPLES.values())
+					for (int i = 0; i < sample.params.length; ++i)
+						if (sample.params[i] instanceof Integer[])
+							sample.params[i] = lease.getConnection().createArrayOf("integer", (Integer[]) sample.params[i]);
+			}finally{
+				esql.getPool().release(lease);
+			}
+
+			for (Map.Entry<String, String> query : QueryMetrics.statements().entrySet()){
+				List<String> problems = new ArrayList<String>();
+				Sample sample = SAMPLES.get(query.getKey());
+				if (sample == null){
+					problems.add("no sample parameters in PlanCheck.SAMPLES");
+				}else{
+					String xml = esql.executeQueryAndReturnResult("EXPLAIN (FORMAT XML) " + query.getValue(), sample.params).get(0).get(0);
+					Document plan = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+					check(firstChild(plan.getDocumentElement(), "Query"), sample, tableRows, parents, largeRows, problems);
+				}//end if
+				System.out.println((problems.isEmpty() ? "PASS " : "FAIL ") + query.getKey());
+				for (String problem : problems)
+					System.out.println("     " + problem);
+				if (!problems.isEmpty()) ++failed;
+			}//end for
+		}finally{
+			esql.cleanup ();
+		}
+		System.out.println(failed == 0 ? "All plans passed" : failed + " plan(s) failed");
+		if (failed > 0) System.exit(1);
+	}
+
+	/**
+	 * Walks the plans under a Query or Plans element and records the nodes
+	 * that break the rules.
+	 */
+	static void check (Element node, Sample sample, Map<String, Long> tableRows, Map<String, String> parents, long largeRows, List<String> problems){
+		if (node == null) return;
+		for (Element plan : children(node, "Plan")){
+			String type = text(plan, "Node-Type");
+			String relation = text(plan, "Relation-Name");
+			if ("Seq Scan".equals(type) && relation != null){
+				Long rows = tableRows.get(relation.toLowerCase());
+				String table = parents.containsKey(relation.toLowerCase()) ? parents.get(relation.toLowerCase()) : relation.toLowerCase();
+				if (rows != null && rows >= largeRows && !sample.fullScans.contains(table))
+					problems.add("sequential scan on " + relation + " (" + rows + " rows)");
+			}//end if
+			if ("Nested Loop".equals(type) && isCrossJoin(plan))
+				problems.add("nested loop without a join condition (cross join)");
+			Element plans = firstChild(plan, "Plans");
+			if (plans != null) check(plans, sample, tableRows, parents, largeRows, problems);
+		}//end for
+	}
+
+	/**
+	 * A nested loop joins without a condition when it has no join filter and
+	 * no condition inside its inner side refers to a relation of the outer
+	 * side, and both sides produce more than one row.
+	 */
+	static boolean isCrossJoin (Element loop){
+		if (firstChild(loop, "Join-Filter") != null) return false;
+		List<Element> sides = children(firstChild(loop, "Plans"), "Plan");
+		if (sides.size() != 2) return false;
+		Element outer = sides.get(0), inner = sides.get(1);
+		if (rows(outer) <= 1 || rows(inner) <= 1) return false;
+
+		Set<String> innerAliases = new HashSet<String>();
+		List<String> innerConditions = new ArrayList<String>();
+		collect(inner, innerAliases, innerConditions);
+		for (String condition : innerConditions){
+			Matcher m = QUALIFIED_COLUMN.matcher(condition);
+			while (m.find())
+				if (!innerAliases.contains(m.group(1).toLowerCase())) return false;
+		}//end for
+		return true;
+	}
+
+	private static void collect (Element plan, Set<String> aliases, List<String> conditions){
+		String alias = text(plan, "Alias");
+		if (alias != null) aliases.add(alias.toLowerCase());
+		for (String name : CONDITIONS){
+			String condition = text(plan, name);
+			if (condition != null) conditions.add(condition);
+		}//end for
+		Element plans = firstChild(plan, "Plans");
+		if (plans != null)
+			for (Element child : children(plans, "Plan")) collect(child, aliases, conditions);
+	}
+
+	private static double rows (Element plan){
+		String rows = text(plan, "Plan-Rows");
+		return rows == null ? 0 : Double.parseDouble(rows);
+	}
+
+	private static String text (Element parent, String name){
+		Element child = firstChild(parent, name);
+		return child == null ? null : child.getTextContent();
+	}
+
+	private static Element firstChild (Element parent, String name){
+		if (parent == null) return null;
+		for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+			if (n instanceof Element && ((Element) n).getTagName().equals(name)) return (Element) n;
+		return null;
+	}
+
+	private static List<Element> children (Element parent, String name){
+		List<Element> result = new ArrayList<Element>();
+		if (parent == null) return result;
+		for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling())
+			if (n instanceof Element && ((Element) n).getTagName().equals(name)) result.add((Element) n);
+		return result;
+	}
+}
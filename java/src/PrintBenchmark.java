@@ -0,0 +1,71 @@
+/*
+ * Print benchmark
+ * ===============
+ *
+ * Prints a large generated result with the original per-cell System.out
+ * loop and with ResultPrinter, and reports how long each took.
+ *
+ * Usage: java -cp lib/*:bin/ PrintBenchmark <dbname> <port> <user> [rows] > /dev/null
+ *
+ * Results go to standard out, timings to standard error.
+ *
+ */
+
+
+import java.sql.SQLException;
+
+public class PrintBenchmark{
+	static final int DEFAULT_ROWS = 1000000;
+
+	//rows shaped like the Appointment table
+	static final String ROWS = "SELECT g AS appnt_ID, DATE '2020-01-01' + (g % 730) AS adate, '8:00-10:00'::varchar(11) AS time_slot, 'AV'::varchar(2) AS status\n"
+		+ "FROM generate_series(1, ?) g;";
+
+	public static void main (String[] args) throws SQLException {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + PrintBenchmark.class.getName () +
+		            " <dbname> <port> <user> [rows]");
+			return;
+		}//end if
+		int rows = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ROWS;
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "", 1);
+		try{
+			time(esql, "per-cell System.out", rows, null);
+			for (ResultPrinter.Format format : ResultPrinter.Format.values())
+				time(esql, "ResultPrinter " + format.name().toLowerCase(), rows, new ResultPrinter(System.out, format, 0, 0, null));
+		}finally{
+			esql.cleanup ();
+		}
+	}
+
+	static void time (DBproject esql, String name, int rows, ResultPrinter printer) throws SQLException {
+		long start = System.nanoTime();
+		long count;
+		if (printer == null){
+			count = esql.streamQueryForEach(ROWS, new DBproject.RowHandler(){
+				boolean outputHeader = true;
+				int numCol;
+				public void handle(DBproject.Row row) throws SQLException {
+					if(outputHeader){
+						numCol = row.getColumnCount();
+						for(int i = 1; i <= numCol; i++){
+							System.out.print(row.getColumnName(i) + "\t");
+					    }
+					    System.out.println();
+					    outputHeader = false;
+					}
+					for (int i=1; i<=numCol; ++i)
+						System.out.print (row.getString (i) + "\t");
+					System.out.println ();
+				}
+			}, rows);
+		}else{
+			DBproject.printer = printer;
+			count = esql.executeQueryAndPrintResult(ROWS, rows);
+		}//end if
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.err.printf("%-26s %10d rows %8.2f s %12.0f rows/s%n", name, count, seconds, count / seconds);
+	}
+}
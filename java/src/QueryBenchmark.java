@@ -0,0 +1,135 @@
+/*
+ * Query benchmark
+ * ===============
+ *
+ * Compares the string-built query path of DBproject (a fresh Statement per
+ * call, parsed and planned by the server every time) against the cached,
+ * parameterized PreparedStatement path used by the menu operations.
+ *
+ * Usage: java -cp lib/*:bin/ QueryBenchmark <dbname> <port> <user> [iterations]
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+public class QueryBenchmark{
+	static final int DEFAULT_ITERATIONS = 2000;
+
+	/**
+	 * A read issued by the menu operations, in both its string-built and its
+	 * parameterized form.
+	 */
+	static class Case{
+		final String name;
+		final String literal;
+		final String shape;
+		final Object[] params;
+
+		Case(String name, String literal, String shape, Object... params){
+			this.name = name;
+			this.literal = literal;
+			this.shape = shape;
+			this.params = params;
+		}
+	}
+
+	static final Case[] CASES = {
+		new Case("status lookup (4)",
+			"SELECT A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = 11 AND H.appt_id = 0 AND H.appt_id = A.appnt_ID;",
+			DBproject.APPOINTMENT_STATUS, 11, 0),
+		new Case("hospital lookup (4)",
+			"SELECT DT.hid\nFROM has_appointment HA, Doctor D, Department DT\nWHERE HA.appt_id = 0 AND HA.doctor_id = 11 AND HA.doctor_id = D.doctor_ID AND D.did = DT.dept_ID;",
+			DBproject.APPOINTMENT_HOSPITAL, 0, 11),
+		new Case("appointments of doctor (5)",
+			"SELECT A.appnt_ID, A.adate, A.time_slot, A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = 11 AND H.appt_id = A.appnt_ID AND (A.status = 'AV' or A.status = 'AC') AND (A.adate >= '1/1/2020' AND A.adate <= '12/31/2021')\nGROUP BY A.appnt_ID, A.adate;",
+			DBproject.APPOINTMENTS_OF_DOCTOR, 11, "1/1/2020", "12/31/2021"),
+		new Case("available of department (6)",
+			"SELECT A.appnt_ID\nFROM Doctor D, has_appointment H, Appointment A\nWHERE D.did IN (SELECT DT.dept_ID FROM Department DT WHERE DT.name = 'Cardiology') AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = '1/4/2021'\nGROUP BY A.appnt_ID;",
+			DBproject.AVAILABLE_APPOINTMENTS_OF_DEPARTMENT, "Cardiology", "1/4/2021"),
+		new Case("patients with status (8)",
+			"SELECT D.doctor_ID, D.name, D.specialty, count(S.pid) AS NumPatients\nFROM Doctor D, Searches S, has_appointment H, Appointment A\nWHERE H.doctor_id = D.doctor_ID AND A.status = 'AC' AND A.appnt_ID = S.aid AND H.appt_id = S.aid\nGROUP BY D.doctor_ID, D.name, D.specialty;",
+			DBproject.PATIENT_COUNT_WITH_STATUS_RECOUNT, "AC"),
+	};
+
+	public static void main (String[] args) throws SQLException {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + QueryBenchmark.class.getName () +
+		            " <dbname> <port> <user> [iterations]");
+			return;
+		}//end if
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ITERATIONS;
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "");
+		try{
+			System.out.printf("%-30s %-9s %10s %10s %10s %12s%n", "query", "path", "mean(us)", "p50(us)", "p99(us)", "planning(ms)");
+			for (Case c : CASES){
+				// warm both paths up so the driver switches to a server-side prepared statement
+				run(esql, c, iterations / 10, false);
+				run(esql, c, iterations / 10, true);
+
+				// only the string-built path plans on every call
+				double planning = planningTime(esql, c.literal);
+				report(c.name, "string", run(esql, c, iterations, false), planning < 0 ? "-" : String.format("%.3f", planning));
+				report(c.name, "prepared", run(esql, c, iterations, true), "-");
+			}
+			System.out.println(esql.getPool());
+		}finally{
+			esql.cleanup ();
+		}
+	}
+
+	/**
+	 * Runs a case repeatedly through one of the two paths.
+	 *
+	 * @return the latency of every call in nanoseconds
+	 */
+	static long[] run (DBproject esql, Case c, int iterations, boolean prepared) throws SQLException {
+		long[] latencies = new long[iterations];
+		for (int i = 0; i < iterations; ++i){
+			long start = System.nanoTime();
+			if (prepared)
+				esql.executeQueryAndReturnResult(c.shape, c.params);
+			else
+				esql.executeQueryAndReturnResult(c.literal);
+			latencies[i] = System.nanoTime() - start;
+		}
+		return latencies;
+	}
+
+	/**
+	 * Reads the server side planning time of a query from EXPLAIN ANALYZE,
+	 * which is what the string-built path pays on every call.
+	 *
+	 * @return the planning time in milliseconds, or -1 if it was not reported
+	 */
+	static double planningTime (DBproject esql, String query) throws SQLException {
+		List<List<String>> plan = esql.executeQueryAndReturnResult("EXPLAIN ANALYZE " + query);
+		for (List<String> line : plan){
+			String text = line.get(0).trim();
+			if (text.toLowerCase().startsWith("planning time:"))
+				return Double.parseDouble(text.replaceAll("[^0-9.]", ""));
+		}
+		return -1;
+	}
+
+	static void report (String name, String path, long[] latencies, String planning){
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long l : latencies) total += l;
+		System.out.printf("%-30s %-9s %10.1f %10.1f %10.1f %12s%n", name, path,
+			total / 1000.0 / latencies.length,
+			percentile(latencies, 0.50) / 1000.0,
+			percentile(latencies, 0.99) / 1000.0,
+			planning);
+	}
+
+	static long percentile (long[] sorted, double p){
+		if (sorted.length == 0) return 0;
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+}
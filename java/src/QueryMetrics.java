@@ -0,0 +1,448 @@
+/*
+ * Query metrics
+ * =============
+ *
+ * Latency histograms, row counts and error counts of the database calls of
+ * one DBproject instance, per execute method and per query shape.
+ *
+ */
+
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * This class keeps its counters in striped adders and its histograms in
+ * atomic arrays, so recording a call takes no lock and costs well under a
+ * microsecond; it is on unless the system property dbproject.metrics is
+ * false. Every call is also a hospital.Query JFR event, which costs nothing
+ * unless a recording enables it:
+ *
+ *   java -XX:StartFlightRecording=filename=queries.jfr ...
+ *
+ * The execute methods of DBproject are recorded per method, from borrowing
+ * the connection to reading the last row. The statements prepared through a
+ * ConnectionPool.Lease, which includes those of BookingEngine and Waitlist,
+ * are recorded per query shape, from executing until the first result is
+ * back. The waits for a connection are kept by the pool.
+ *
+ */
+
+public class QueryMetrics{
+	static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("dbproject.metrics"));
+	//distinct query shapes kept apart; the rest are counted together
+	static final int MAX_SHAPES = 1000;
+	static final String OTHER_SHAPES = "(other)";
+	//characters of the query text a shape without a field name is shown by
+	static final int LABEL_LENGTH = 60;
+	//classes whose static final SQL strings are the named statements of the application
+	static final Class<?>[] SOURCES = { DBproject.class, BookingEngine.class, ReferenceCache.class, StatsCheck.class, AvailabilityIndex.class,
+		Waitlist.class, BatchRunner.class, Rebalance.class, ReplicaRouter.class };
+	static final List<String> VERBS = Arrays.asList("SELECT", "INSERT", "UPDATE", "DELETE", "WITH");
+
+	/**
+	 * A JFR event per database call.
+	 */
+	@Name("hospital.Query")
+	@Label("Database Query")
+	@Category({ "Hospital", "Database" })
+	@Description("A statement executed against the hospital database")
+	static final class QueryEvent extends Event{
+		@Label("Operation")
+		String operation;
+		@Label("Query")
+		String query;
+		@Label("Rows")
+		long rows;
+		@Label("SQL State")
+		String sqlState;
+	}
+
+	/**
+	 * A histogram of durations in nanoseconds with four buckets per power of
+	 * two, so percentiles are within a quarter of the true value.
+	 */
+	public static final class Histogram{
+		private static final int SUB_BUCKETS = 4;
+		private final AtomicLongArray _counts = new AtomicLongArray(64 * SUB_BUCKETS);
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _total = new LongAdder();
+		private final AtomicLong _max = new AtomicLong();
+
+		public void record(long nanos){
+			if (nanos < 0) nanos = 0;
+			this._counts.incrementAndGet(bucket(nanos));
+			this._count.increment();
+			this._total.add(nanos);
+			long max;
+			while (nanos > (max = this._max.get()) && !this._max.compareAndSet(max, nanos));
+		}
+
+		public long getCount(){
+			return this._count.sum();
+		}
+
+		public long getTotalNanos(){
+			return this._total.sum();
+		}
+
+		public long getMaxNanos(){
+			return this._max.get();
+		}
+
+		public double getMeanNanos(){
+			long count = getCount();
+			return count == 0 ? 0 : getTotalNanos() / (double) count;
+		}
+
+		/**
+		 * @return the upper bound of the bucket holding the p-th fraction of
+		 * the recorded durations, at most the maximum
+		 */
+		public long percentile(double p){
+			long count = 0;
+			long[] counts = new long[this._counts.length()];
+			for (int i = 0; i < counts.length; ++i) count += counts[i] = this._counts.get(i);
+			if (count == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; ++i){
+				seen += counts[i];
+				if (seen >= rank) return Math.min(upperBound(i), getMaxNanos());
+			}//end for
+			return getMaxNanos();
+		}
+
+		static int bucket(long nanos){
+			if (nanos < SUB_BUCKETS) return (int) nanos;
+			int power = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (power - 2)) & (SUB_BUCKETS - 1);
+			return (power - 1) * SUB_BUCKETS + sub;
+		}
+
+		static long upperBound(int bucket){
+			if (bucket < SUB_BUCKETS) return bucket;
+			int power = bucket / SUB_BUCKETS + 1;
+			int sub = bucket % SUB_BUCKETS;
+			return ((long) (SUB_BUCKETS + sub + 1) << (power - 2)) - 1;
+		}
+	}
+
+	/**
+	 * The calls of one execute method or one query shape.
+	 */
+	public static final class Stats{
+		private final String _key;
+		private final Histogram _latency = new Histogram();
+		private final LongAdder _rows = new LongAdder();
+		private final LongAdder _errors = new LongAdder();
+
+		Stats(String key){
+			this._key = key;
+		}
+
+		/**
+		 * @return the method name, or the query text of a shape
+		 */
+		public String getKey(){
+			return this._key;
+		}
+
+		public Histogram getLatency(){
+			return this._latency;
+		}
+
+		public long getRows(){
+			return this._rows.sum();
+		}
+
+		public long getErrors(){
+			return this._errors.sum();
+		}
+	}
+
+	/**
+	 * One call in progress.
+	 */
+	public final class Call{
+		private final String _operation;
+		private final String _sql;
+		//whether the query shape is recorded here too, as no statement of the cache runs it
+		private final boolean _unprepared;
+		private final long _start;
+		private final QueryEvent _event;
+
+		Call(String operation, String sql, boolean unprepared){
+			this._operation = operation;
+			this._sql = sql;
+			this._unprepared = unprepared;
+			this._event = new QueryEvent();
+			this._event.begin();
+			this._start = System.nanoTime();
+		}
+
+		/**
+		 * Method to record the call as done.
+		 *
+		 * @param rows the rows read or written, or -1 when not known
+		 */
+		public void end(long rows){
+			finish(rows, null);
+		}
+
+		/**
+		 * Method to record the call as failed.
+		 */
+		public void fail(SQLException e){
+			finish(-1, e.getSQLState() == null ? "" : e.getSQLState());
+		}
+
+		private void finish(long rows, String sqlState){
+			long nanos = System.nanoTime() - this._start;
+			Stats operation = operation(this._operation);
+			operation.getLatency().record(nanos);
+			if (rows > 0) operation._rows.add(rows);
+			if (sqlState != null) operation._errors.increment();
+			if (this._unprepared){
+				Stats shape = shape(this._sql);
+				shape.getLatency().record(nanos);
+				if (rows > 0) shape._rows.add(rows);
+				if (sqlState != null) shape._errors.increment();
+			}//end if
+			this._event.end();
+			if (this._event.shouldCommit()){
+				this._event.operation = this._operation;
+				this._event.query = label(this._sql);
+				this._event.rows = rows;
+				this._event.sqlState = sqlState;
+				this._event.commit();
+			}//end if
+		}
+	}
+
+	private final ConcurrentHashMap<String, Stats> _operations = new ConcurrentHashMap<String, Stats>();
+	private final ConcurrentHashMap<String, Stats> _shapes = new ConcurrentHashMap<String, Stats>();
+	//query text to Class.FIELD, built on first use
+	private volatile Map<String, String> _names = null;
+
+	/**
+	 * Method to start timing a call of an execute method.
+	 *
+	 * @return the call, to be ended or failed; null when metrics are off
+	 */
+	public Call begin(String operation, String sql){
+		return ENABLED ? new Call(operation, sql, false) : null;
+	}
+
+	/**
+	 * Method to start timing a call of an execute method that runs its
+	 * query text on a plain statement, recording the query shape as well.
+	 *
+	 * @return the call, to be ended or failed; null when metrics are off
+	 */
+	public Call beginUnprepared(String operation, String sql){
+		return ENABLED ? new Call(operation, sql, true) : null;
+	}
+
+	/**
+	 * Method to add rows read from the result of a query shape, which its
+	 * statement cannot know.
+	 */
+	public void addRows(String sql, long rows){
+		if (ENABLED && rows > 0) shape(sql)._rows.add(rows);
+	}
+
+	/**
+	 * Method to wrap a prepared statement so its executions are recorded
+	 * under its query shape. The statement is returned as is when metrics
+	 * are off.
+	 */
+	public PreparedStatement instrument(final PreparedStatement stmt, final String sql){
+		if (!ENABLED) return stmt;
+		final QueryMetrics metrics = this;
+		return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{ PreparedStatement.class },
+			new InvocationHandler(){
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					if (!method.getName().startsWith("execute")) return invokeOn(stmt, method, args);
+					Stats shape = metrics.shape(sql);
+					QueryEvent event = new QueryEvent();
+					event.begin();
+					long start = System.nanoTime();
+					String sqlState = null;
+					long rows = -1;
+					try{
+						Object result = invokeOn(stmt, method, args);
+						if (result instanceof Integer) rows = (Integer) result;
+						else if (result instanceof Long) rows = (Long) result;
+						else if (result instanceof int[]) rows = sum((int[]) result);
+						return result;
+					}catch (SQLException e){
+						sqlState = e.getSQLState() == null ? "" : e.getSQLState();
+						shape._errors.increment();
+						throw e;
+					}finally{
+						shape.getLatency().record(System.nanoTime() - start);
+						if (rows > 0) shape._rows.add(rows);
+						event.end();
+						if (event.shouldCommit()){
+							event.operation = method.getName();
+							event.query = metrics.label(sql);
+							event.rows = rows;
+							event.sqlState = sqlState;
+							event.commit();
+						}//end if
+					}//end try
+				}
+			});
+	}
+
+	/**
+	 * @return the execute methods called so far, most time spent first
+	 */
+	public List<Stats> operations(){
+		return sorted(this._operations);
+	}
+
+	/**
+	 * @return the query shapes executed so far, most time spent first
+	 */
+	public List<Stats> shapes(){
+		return sorted(this._shapes);
+	}
+
+	/**
+	 * @return the Class.FIELD of a query shape of the application, or its
+	 * text cut to LABEL_LENGTH characters
+	 */
+	public String label(String sql){
+		Map<String, String> names = this._names;
+		if (names == null){
+			names = new HashMap<String, String>();
+			for (Map.Entry<String, String> query : statements().entrySet())
+				names.put(query.getValue(), query.getKey());
+			this._names = names;
+		}//end if
+		String name = names.get(sql);
+		if (name != null) return name;
+		String text = sql.replaceAll("\\s+", " ").trim();
+		return text.length() <= LABEL_LENGTH ? text : text.substring(0, LABEL_LENGTH - 3) + "...";
+	}
+
+	/**
+	 * @return every static final SQL string of the source classes, keyed by
+	 * Class.FIELD, in the order of the classes
+	 */
+	static Map<String, String> statements(){
+		Map<String, String> statements = new LinkedHashMap<String, String>();
+		for (Class<?> source : SOURCES){
+			for (Field field : source.getDeclaredFields()){
+				int mod = field.getModifiers();
+				if (!Modifier.isStatic(mod) || !Modifier.isFinal(mod) || field.getType() != String.class) continue;
+				String sql;
+				try{
+					field.setAccessible(true);
+					sql = (String) field.get(null);
+				}catch (IllegalAccessException e){
+					continue;
+				}//end try
+				if (VERBS.contains(sql.trim().split("\\s+")[0].toUpperCase()))
+					statements.put(source.getName() + "." + field.getName(), sql);
+			}//end for
+		}//end for
+		return statements;
+	}
+
+	/**
+	 * @return the metrics as text tables, with the connection waits of a
+	 * pool unless it is null
+	 */
+	public String report(ConnectionPool pool){
+		StringBuilder sb = new StringBuilder();
+		String header = "%-60s %10s %8s %10s %10s %10s %10s %10s%n";
+		sb.append(String.format(header, "operation", "calls", "errors", "rows", "mean(ms)", "p50(ms)", "p99(ms)", "max(ms)"));
+		for (Stats stats : operations()) row(sb, stats.getKey(), stats);
+		sb.append('\n').append(String.format(header, "query", "calls", "errors", "rows", "mean(ms)", "p50(ms)", "p99(ms)", "max(ms)"));
+		for (Stats stats : shapes()) row(sb, label(stats.getKey()), stats);
+		// a backend has no pool to wait for
+		if (pool == null) return sb.toString();
+		Histogram waits = pool.getWaitHistogram();
+		sb.append(String.format("%nconnection wait: %d borrows, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms, %d timeouts%n",
+			waits.getCount(), waits.getMeanNanos() / 1e6, waits.percentile(0.50) / 1e6, waits.percentile(0.99) / 1e6,
+			waits.getMaxNanos() / 1e6, pool.getTimeoutCount()));
+		return sb.toString();
+	}
+
+	private static void row(StringBuilder sb, String name, Stats stats){
+		Histogram latency = stats.getLatency();
+		sb.append(String.format("%-60s %10d %8d %10d %10.3f %10.3f %10.3f %10.3f%n", name, latency.getCount(), stats.getErrors(), stats.getRows(),
+			latency.getMeanNanos() / 1e6, latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6, latency.getMaxNanos() / 1e6));
+	}
+
+	private Stats operation(String operation){
+		Stats stats = this._operations.get(operation);
+		if (stats == null){
+			Stats added = new Stats(operation);
+			stats = this._operations.putIfAbsent(operation, added);
+			if (stats == null) stats = added;
+		}//end if
+		return stats;
+	}
+
+	private Stats shape(String sql){
+		Stats stats = this._shapes.get(sql);
+		if (stats != null) return stats;
+		// ad hoc statements built from values would grow the map without end
+		if (this._shapes.size() >= MAX_SHAPES) sql = OTHER_SHAPES;
+		Stats added = new Stats(sql);
+		stats = this._shapes.putIfAbsent(sql, added);
+		return stats == null ? added : stats;
+	}
+
+	private static List<Stats> sorted(ConcurrentHashMap<String, Stats> map){
+		List<Stats> stats = new ArrayList<Stats>(map.values());
+		Collections.sort(stats, new Comparator<Stats>(){
+			public int compare(Stats a, Stats b){
+				return Long.compare(b.getLatency().getTotalNanos(), a.getLatency().getTotalNanos());
+			}
+		});
+		return stats;
+	}
+
+	private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+		try{
+			return method.invoke(target, args);
+		}catch (InvocationTargetException e){
+			throw e.getCause();
+		}//end try
+	}
+
+	private static long sum(int[] counts){
+		long sum = 0;
+		for (int count : counts) if (count > 0) sum += count;
+		return sum;
+	}
+}
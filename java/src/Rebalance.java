@@ -0,0 +1,263 @@
+/*
+ * Rebalance
+ * =========
+ *
+ * Moves the data of one hospital from its shard to another and places it
+ * there in the shard map, or lists where every hospital is.
+ *
+ * Usage: java -cp lib/*:bin/ Rebalance <dbname> <user> <shard map> [<hospital id> <from shard> <to shard>]
+ *
+ * The hospital is moved with its departments, staff, doctors, their
+ * appointments and everything that refers to those, and the patients of its
+ * searches and waitlists are copied if the target lacks them. Bookings of
+ * the hospital wait while it moves and then run again on the new shard;
+ * services running with the shard map route there within a second of the
+ * move.
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class moves a hospital in three steps. On the source, in one
+ * transaction that stays open to the end, it locks the rows of the
+ * hospital's departments, doctors and appointments, so no booking, release
+ * or new doctor changes them meanwhile, and copies the rows to the target
+ * in one transaction of its own. Once that is committed the shard map is
+ * rewritten, and finally the rows are deleted on the source.
+ *
+ * Copies skip rows the target already has, so a move that failed after the
+ * copy is finished by running it again with the same shards. Rows of the
+ * hospital that refer to another hospital's staff or appointments, or the
+ * other way round, cannot live on one shard; the move refuses to start
+ * while there are any.
+ *
+ */
+
+public class Rebalance{
+	static final int BATCH_SIZE = 1000;
+
+	//what the single parameter of a part's condition is
+	static final int HOSPITAL = 0;
+	static final int DOCTORS = 1;
+	static final int APPOINTMENTS = 2;
+	static final int PATIENTS = 3;
+
+	/**
+	 * The rows of one table that belong to a hospital.
+	 */
+	static final class Part{
+		final String table;
+		final String column;
+		final int key;
+		//a serial column the target numbers anew, in the order of the source, or null
+		final String serial;
+
+		Part(String table, String column, int key){
+			this(table, column, key, null);
+		}
+
+		Part(String table, String column, int key, String serial){
+			this.table = table;
+			this.column = column;
+			this.key = key;
+			this.serial = serial;
+		}
+
+		String where(){
+			return this.column + (this.key == HOSPITAL ? " = ?" : " = ANY(?)");
+		}
+	}
+
+	//in the order they are copied, so references resolve; deleted in reverse
+	static final Part[] PARTS = {
+		new Part("Department", "hid", HOSPITAL),
+		new Part("Staff", "hid", HOSPITAL),
+		new Part("Doctor", "doctor_ID", DOCTORS),
+		new Part("Appointment", "appnt_ID", APPOINTMENTS),
+		new Part("has_appointment", "doctor_id", DOCTORS),
+		new Part("request_maintenance", "did", DOCTORS),
+		new Part("schedules", "appt_id", APPOINTMENTS),
+		new Part("searches", "hid", HOSPITAL),
+		new Part("waitlist", "doctor_id", DOCTORS, "entry_ID"),
+		new Part("appointment_release", "doctor_id", DOCTORS)
+	};
+
+	static final String HOSPITALS = "SELECT hospital_ID, name FROM Hospital ORDER BY hospital_ID;";
+	static final String LOCK_DEPARTMENTS = "SELECT dept_ID FROM Department WHERE hid = ? FOR UPDATE;";
+	static final String LOCK_DOCTORS = "SELECT D.doctor_ID FROM Doctor D, Department DT WHERE D.did = DT.dept_ID AND DT.hid = ? FOR UPDATE OF D;";
+	static final String LOCK_APPOINTMENTS = "SELECT A.appnt_ID FROM Appointment A, has_appointment H WHERE H.appt_id = A.appnt_ID AND H.doctor_id = ANY(?) FOR UPDATE OF A;";
+	static final String PATIENTS_OF_HOSPITAL = "SELECT pid FROM searches WHERE hid = ? UNION SELECT patient_id FROM waitlist WHERE doctor_id = ANY(?);";
+	//rows on one side of the hospital boundary that refer to rows on the other
+	static final String CROSSING = "SELECT\n"
+		+ "(SELECT count(*) FROM request_maintenance WHERE (did = ANY(?)) <> (sid IN (SELECT staff_ID FROM Staff WHERE hid = ?))),\n"
+		+ "(SELECT count(*) FROM schedules WHERE (appt_id = ANY(?)) <> (staff_id IN (SELECT staff_ID FROM Staff WHERE hid = ?))),\n"
+		+ "(SELECT count(*) FROM searches WHERE (hid = ?) <> (aid = ANY(?))),\n"
+		+ "(SELECT count(*) FROM has_appointment WHERE appt_id = ANY(?) AND NOT doctor_id = ANY(?));";
+	static final String[] CROSSING_TABLES = { "request_maintenance", "schedules", "searches", "has_appointment" };
+
+	public static void main (String[] args) throws Exception {
+		if (args.length != 3 && args.length != 6) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + Rebalance.class.getName () +
+		            " <dbname> <user> <shard map> [<hospital id> <from shard> <to shard>]");
+			return;
+		}//end if
+		ShardMap map = ShardMap.load(args[2]);
+		if (args.length == 3){
+			list(map, args[0], args[1]);
+			return;
+		}//end if
+		int hospital = Integer.parseInt(args[3]);
+		int from = Integer.parseInt(args[4]);
+		int to = Integer.parseInt(args[5]);
+		if (from == to || from < 0 || to < 0 || from >= map.size() || to >= map.size()){
+			System.err.println("The shards must be two different shards of " + map);
+			System.exit(1);
+		}//end if
+		if (map.shardOf(hospital) != from && map.shardOf(hospital) != to){
+			System.err.println("Hospital " + hospital + " is on shard " + map.shardOf(hospital) + ", not " + from);
+			System.exit(1);
+		}//end if
+
+		DBproject source = new DBproject (args[0], map.getAddress(from), args[1], "", 1, "", "");
+		DBproject target = new DBproject (args[0], map.getAddress(to), args[1], "", 1, BatchRunner.URL_OPTIONS, "");
+		boolean moved;
+		try{
+			moved = move(map, hospital, from, to, source, target);
+		}finally{
+			source.cleanup ();
+			target.cleanup ();
+		}
+		if (!moved) System.exit(1);
+	}
+
+	/**
+	 * Method to print the shard of every hospital.
+	 */
+	static void list(final ShardMap map, String dbname, String user) throws SQLException {
+		DBproject esql = new DBproject (dbname, map.getAddress(0), user, "", 1, "", "");
+		try{
+			System.out.printf("%-12s %-40s %s%n", "hospital_id", "name", "shard");
+			esql.executeQueryForEach(HOSPITALS, new DBproject.RowHandler(){
+				public void handle(DBproject.Row row) throws SQLException {
+					int shard = map.shardOf(row.getInt(1));
+					System.out.printf("%-12d %-40s %d (%s)%n", row.getInt(1), row.getString(2), shard, map.getAddress(shard));
+				}
+			});
+		}finally{
+			esql.cleanup ();
+		}
+	}
+
+	/**
+	 * @return whether the hospital was moved
+	 */
+	static boolean move(ShardMap map, int hospital, int from, int to, DBproject source, DBproject target) throws Exception {
+		ConnectionPool.Lease src = source.getPool().borrow();
+		ConnectionPool.Lease dst = target.getPool().borrow();
+		try{
+			src.getConnection().setAutoCommit(false);
+			dst.getConnection().setAutoCommit(false);
+
+			ids(src, LOCK_DEPARTMENTS, hospital);
+			Integer[] doctors = ids(src, LOCK_DOCTORS, hospital);
+			Array doctorArray = src.getConnection().createArrayOf("integer", doctors);
+			Integer[] appointments = ids(src, LOCK_APPOINTMENTS, doctorArray);
+			Array appointmentArray = src.getConnection().createArrayOf("integer", appointments);
+			System.out.printf("Hospital %d on shard %d: %d doctors, %d appointments%n", hospital, from, doctors.length, appointments.length);
+
+			ResultSet rs = DBproject.prepare(src, CROSSING, doctorArray, hospital, appointmentArray, hospital,
+				hospital, appointmentArray, appointmentArray, doctorArray).executeQuery();
+			rs.next();
+			boolean crossing = false;
+			for (int i = 0; i < CROSSING_TABLES.length; ++i){
+				if (rs.getLong(i + 1) == 0) continue;
+				System.err.printf("%d rows of %s link hospital %d with another hospital%n", rs.getLong(i + 1), CROSSING_TABLES[i], hospital);
+				crossing = true;
+			}//end for
+			rs.close();
+			if (crossing){
+				System.err.println("Nothing was moved; fix or delete those rows first");
+				return false;
+			}//end if
+
+			Object[] keys = { hospital, doctorArray, appointmentArray };
+			// patients stay on the source, which other hospitals' rows may refer to
+			Integer[] patients = ids(src, PATIENTS_OF_HOSPITAL, hospital, doctorArray);
+			copy(src, dst, new Part("Patient", "patient_ID", PATIENTS), src.getConnection().createArrayOf("integer", patients));
+			for (Part part : PARTS){
+				int copied = copy(src, dst, part, keys[part.key]);
+				System.out.printf("%-20s %8d rows copied to shard %d%n", part.table, copied, to);
+			}//end for
+			dst.getConnection().commit();
+
+			map.place(hospital, to);
+			System.out.println("Hospital " + hospital + " placed on shard " + to + " in the shard map");
+
+			for (int i = PARTS.length - 1; i >= 0; --i)
+				DBproject.prepare(src, "DELETE FROM " + PARTS[i].table + " WHERE " + PARTS[i].where() + ";", keys[PARTS[i].key]).executeUpdate();
+			src.getConnection().commit();
+			System.out.println("Hospital " + hospital + " deleted from shard " + from);
+			return true;
+		}finally{
+			target.getPool().release(dst);
+			source.getPool().release(src);
+		}
+	}
+
+	/**
+	 * @return the first column of every row of a query, as integers
+	 */
+	private static Integer[] ids(ConnectionPool.Lease lease, String sql, Object... params) throws SQLException {
+		List<Integer> ids = new ArrayList<Integer>();
+		ResultSet rs = DBproject.prepare(lease, sql, params).executeQuery();
+		while (rs.next())
+			ids.add(rs.getInt(1));
+		rs.close();
+		return ids.toArray(new Integer[0]);
+	}
+
+	/**
+	 * Method to copy the rows of a part, leaving out the rows the target
+	 * already has.
+	 *
+	 * @return the number of rows read from the source
+	 */
+	private static int copy(ConnectionPool.Lease from, ConnectionPool.Lease to, Part part, Object key) throws SQLException {
+		ResultSet rs = DBproject.prepare(from, "SELECT * FROM " + part.table + " WHERE " + part.where()
+			+ (part.serial == null ? "" : " ORDER BY " + part.serial) + ";", key).executeQuery();
+		ResultSetMetaData meta = rs.getMetaData();
+		List<Integer> copied = new ArrayList<Integer>();
+		StringBuilder columns = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		for (int i = 1; i <= meta.getColumnCount(); ++i){
+			if (meta.getColumnName(i).equalsIgnoreCase(part.serial)) continue;
+			columns.append(copied.isEmpty() ? "" : ", ").append(meta.getColumnName(i));
+			values.append(copied.isEmpty() ? "?" : ", ?");
+			copied.add(i);
+		}//end for
+		PreparedStatement insert = to.prepare("INSERT INTO " + part.table + " (" + columns + ") VALUES (" + values + ") ON CONFLICT DO NOTHING;");
+		int rows = 0;
+		try{
+			while (rs.next()){
+				for (int i = 0; i < copied.size(); ++i)
+					insert.setObject(i + 1, rs.getObject(copied.get(i)));
+				insert.addBatch();
+				if (++rows % BATCH_SIZE == 0) insert.executeBatch();
+			}//end while
+			if (rows % BATCH_SIZE != 0) insert.executeBatch();
+		}finally{
+			insert.clearBatch();
+			rs.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,540 @@
+/*
+ * Reference data cache
+ * ====================
+ *
+ * Keeps the doctor to department to hospital mapping of the Hospital,
+ * Department, Doctor and Staff tables in memory, so a booking does not
+ * need a join to find the hospital of a doctor.
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class loads the reference tables into primitive int maps and swaps in
+ * a complete new copy whenever they may have changed. A change is signalled
+ * either by a writer in this process calling invalidate, or by the triggers
+ * of sql/triggers.sql, which NOTIFY the reference_data channel. A listener
+ * thread holding its own connection reloads the tables itself when one
+ * arrives, so lookups, which may come from a caller holding a connection of
+ * the pool, go on with the previous copy meanwhile. Only after an
+ * invalidate does the next lookup reload the tables.
+ *
+ * A lookup that misses returns -1 and the caller resolves the value in the
+ * database, so a missing or stale entry only costs a query. Lookups happen
+ * outside the caller's transaction: a department moved to another hospital
+ * is seen once the notification for that change has been handled.
+ *
+ * Other in-process indexes that follow the database can subscribe to further
+ * channels, so one listener connection serves all of them.
+ *
+ * For a fast start the copy can be saved to a snapshot file and restored
+ * from it by the next process, which then needs no query to be ready.
+ *
+ */
+
+public class ReferenceCache{
+	static final String CHANNEL = "reference_data";
+	//how often the listener asks the server for notifications
+	static final long LISTEN_POLL_MILLIS = 500;
+	static final long LISTEN_RETRY_MILLIS = 5000;
+
+	static final String DOCTOR_DEPARTMENTS = "SELECT doctor_ID, did FROM Doctor;";
+	static final String DEPARTMENT_HOSPITALS = "SELECT dept_ID, hid FROM Department;";
+	static final String STAFF_HOSPITALS = "SELECT staff_ID, hid FROM Staff;";
+
+	//first int of a snapshot file, "HDBR"
+	static final int SNAPSHOT_MAGIC = 0x48444252;
+
+	/**
+	 * An open addressing hash map from int to int without boxing. Keys must
+	 * not be Integer.MIN_VALUE, which marks an empty slot.
+	 */
+	static final class IntIntMap{
+		private static final int EMPTY = Integer.MIN_VALUE;
+
+		private int[] _keys;
+		private int[] _values;
+		private int _size = 0;
+
+		IntIntMap(int expected){
+			int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+			this._keys = new int[capacity];
+			this._values = new int[capacity];
+			Arrays.fill(this._keys, EMPTY);
+		}
+
+		/**
+		 * @return the value of the key, or missing if there is none
+		 */
+		int get(int key, int missing){
+			int mask = this._keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask){
+				int k = this._keys[i];
+				if (k == key) return this._values[i];
+				if (k == EMPTY) return missing;
+			}//end for
+		}
+
+		void put(int key, int value){
+			if (key == EMPTY) throw new IllegalArgumentException("Key " + key + " is reserved");
+			if ((this._size + 1) * 2 > this._keys.length) grow();
+			int mask = this._keys.length - 1;
+			for (int i = mix(key) & mask; ; i = (i + 1) & mask){
+				if (this._keys[i] == EMPTY){
+					this._keys[i] = key;
+					this._values[i] = value;
+					++this._size;
+					return;
+				}//end if
+				if (this._keys[i] == key){
+					this._values[i] = value;
+					return;
+				}//end if
+			}//end for
+		}
+
+		int size(){
+			return this._size;
+		}
+
+		/**
+		 * @return the keys and values of the entries, each key followed by
+		 * its value
+		 */
+		int[] pairs(){
+			int[] pairs = new int[2 * this._size];
+			int n = 0;
+			for (int i = 0; i < this._keys.length; ++i){
+				if (this._keys[i] == EMPTY) continue;
+				pairs[n++] = this._keys[i];
+				pairs[n++] = this._values[i];
+			}//end for
+			return pairs;
+		}
+
+		/**
+		 * @return the heap bytes of the two arrays, including array headers
+		 */
+		long bytes(){
+			return 2 * (16 + 4L * this._keys.length);
+		}
+
+		private void grow(){
+			int[] keys = this._keys;
+			int[] values = this._values;
+			this._keys = new int[keys.length * 2];
+			this._values = new int[values.length * 2];
+			Arrays.fill(this._keys, EMPTY);
+			this._size = 0;
+			for (int i = 0; i < keys.length; ++i)
+				if (keys[i] != EMPTY) put(keys[i], values[i]);
+		}
+
+		private static int mix(int key){
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * Receives the notifications of a channel on the listener thread.
+	 */
+	interface Subscriber{
+		/**
+		 * Called with the payloads of the notifications that arrived since
+		 * the previous call, in the order they were sent.
+		 */
+		void notified(List<String> payloads);
+
+		/**
+		 * Called when a listening session starts, since notifications sent
+		 * while no session was listening are lost.
+		 */
+		void missed();
+	}
+
+	/**
+	 * A subscriber and the channel it listens on.
+	 */
+	private static final class Subscription{
+		final String channel;
+		final Subscriber subscriber;
+
+		Subscription(String channel, Subscriber subscriber){
+			this.channel = channel;
+			this.subscriber = subscriber;
+		}
+	}
+
+	/**
+	 * One complete, immutable copy of the reference tables.
+	 */
+	private static final class Snapshot{
+		final IntIntMap doctorDepartment;
+		final IntIntMap departmentHospital;
+		final IntIntMap staffHospital;
+
+		Snapshot(IntIntMap doctorDepartment, IntIntMap departmentHospital, IntIntMap staffHospital){
+			this.doctorDepartment = doctorDepartment;
+			this.departmentHospital = departmentHospital;
+			this.staffHospital = staffHospital;
+		}
+	}
+
+	private final DBproject _esql;
+	private volatile Snapshot _snapshot = new Snapshot(new IntIntMap(0), new IntIntMap(0), new IntIntMap(0));
+	private volatile boolean _stale = true;
+	//held while the tables are read; lookups never wait for it
+	private final ReentrantLock _loading = new ReentrantLock();
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _reloads = new LongAdder();
+	private final LongAdder _notifications = new LongAdder();
+	private volatile boolean _closed = false;
+	private Thread _listener = null;
+	private final List<Subscription> _subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+	public ReferenceCache(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to read the reference tables and replace the cached copy.
+	 *
+	 * @throws java.sql.SQLException when the tables cannot be read; the previous copy stays in use
+	 */
+	public void load() throws SQLException {
+		this._loading.lock();
+		try{
+			reload();
+		}finally{
+			this._loading.unlock();
+		}
+	}
+
+	private void reload() throws SQLException {
+		// clear the flag first, so an invalidation during the load triggers another one
+		this._stale = false;
+		try{
+			this._snapshot = new Snapshot(read(DOCTOR_DEPARTMENTS), read(DEPARTMENT_HOSPITALS), read(STAFF_HOSPITALS));
+		}catch (SQLException e){
+			this._stale = true;
+			throw e;
+		}//end try
+		this._reloads.increment();
+	}
+
+	/**
+	 * Method to replace the cached copy with the one saved in a snapshot
+	 * file, which is read through a memory map. The restored copy counts as
+	 * up to date, even though the tables may have changed since it was saved,
+	 * until the listener reads them when its session starts; a caller that
+	 * does not listen should load the tables once the database can be reached.
+	 *
+	 * @return false when there is no snapshot file or it is not one, in
+	 * which case the cached copy is left as it was
+	 */
+	public boolean restore(File file){
+		if (!file.isFile()) return false;
+		try{
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try{
+				IntBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asIntBuffer();
+				if (in.remaining() == 0 || in.get() != SNAPSHOT_MAGIC) return false;
+				IntIntMap doctorDepartment = restore(in);
+				IntIntMap departmentHospital = restore(in);
+				IntIntMap staffHospital = restore(in);
+				this._loading.lock();
+				try{
+					this._snapshot = new Snapshot(doctorDepartment, departmentHospital, staffHospital);
+					this._stale = false;
+				}finally{
+					this._loading.unlock();
+				}
+				return true;
+			}finally{
+				channel.close();
+			}
+		}catch (IOException e){
+			return false;
+		}catch (RuntimeException e){
+			// a truncated file underflows the buffer, a damaged one has impossible counts
+			return false;
+		}//end try
+	}
+
+	/**
+	 * Method to save the cached copy to a snapshot file for restore. The
+	 * file is replaced in one step, so a reader never sees half of it.
+	 */
+	public void save(File file) throws IOException {
+		Snapshot snapshot = this._snapshot;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try{
+			out.writeInt(SNAPSHOT_MAGIC);
+			save(out, snapshot.doctorDepartment);
+			save(out, snapshot.departmentHospital);
+			save(out, snapshot.staffHospital);
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Method to mark the cached copy out of date, after a write to one of
+	 * the reference tables.
+	 */
+	public void invalidate(){
+		this._stale = true;
+	}
+
+	/**
+	 * @return the hospital of a doctor, or -1 when the doctor is not cached
+	 */
+	public int hospitalOfDoctor(int doctorId){
+		Snapshot snapshot = current();
+		int department = snapshot.doctorDepartment.get(doctorId, -1);
+		return count(department < 0 ? -1 : snapshot.departmentHospital.get(department, -1));
+	}
+
+	/**
+	 * @return the hospital of a department, or -1 when the department is not cached
+	 */
+	public int hospitalOfDepartment(int departmentId){
+		return count(current().departmentHospital.get(departmentId, -1));
+	}
+
+	/**
+	 * @return the department of a doctor, or -1 when the doctor is not cached
+	 */
+	public int departmentOfDoctor(int doctorId){
+		return count(current().doctorDepartment.get(doctorId, -1));
+	}
+
+	/**
+	 * @return the hospital of a staff member, or -1 when the staff member is not cached
+	 */
+	public int hospitalOfStaff(int staffId){
+		return count(current().staffHospital.get(staffId, -1));
+	}
+
+	/**
+	 * Method to start a daemon thread that LISTENs for changes made by other
+	 * writers and reloads the cache when one arrives. The thread holds a
+	 * connection of its own, outside the pool.
+	 *
+	 * @return this cache
+	 */
+	public synchronized ReferenceCache listen(){
+		if (this._listener != null) return this;
+		this._listener = new Thread(new Runnable(){
+			public void run(){
+				while (!_closed){
+					try{
+						poll();
+					}catch (SQLException e){
+						// missed notifications cannot be recovered, so reload once reconnected
+						invalidate();
+						pause(LISTEN_RETRY_MILLIS);
+					}//end try
+				}//end while
+			}
+		}, "reference-cache-listener");
+		this._listener.setDaemon(true);
+		this._listener.start();
+		return this;
+	}
+
+	/**
+	 * Method to deliver the notifications of a channel to a subscriber. The
+	 * subscriber runs on the listener thread, so it should not block for
+	 * long. Subscribe before calling listen; a later subscription is only
+	 * listened to from the next session on.
+	 */
+	public void subscribe(String channel, Subscriber subscriber){
+		this._subscriptions.add(new Subscription(channel, subscriber));
+	}
+
+	/**
+	 * Method to stop the listener thread.
+	 */
+	public void close(){
+		this._closed = true;
+		Thread listener;
+		synchronized (this){
+			listener = this._listener;
+		}
+		if (listener != null) listener.interrupt();
+	}
+
+	/**
+	 * @return whether a listener was started, which reads the tables when
+	 * its session starts
+	 */
+	public synchronized boolean isListening(){
+		return this._listener != null;
+	}
+
+	public long getHits(){
+		return this._hits.sum();
+	}
+
+	public long getMisses(){
+		return this._misses.sum();
+	}
+
+	public long getReloads(){
+		return this._reloads.sum();
+	}
+
+	/**
+	 * @return the heap bytes held by the maps of the current copy
+	 */
+	public long getBytes(){
+		Snapshot snapshot = this._snapshot;
+		return snapshot.doctorDepartment.bytes() + snapshot.departmentHospital.bytes() + snapshot.staffHospital.bytes();
+	}
+
+	public String toString(){
+		Snapshot snapshot = this._snapshot;
+		long hits = getHits(), misses = getMisses();
+		return String.format("reference cache: %d doctors, %d departments, %d staff, %.1f%% hit rate (%d hits, %d misses), %d reloads, %d notifications, %.1f KB",
+			snapshot.doctorDepartment.size(), snapshot.departmentHospital.size(), snapshot.staffHospital.size(),
+			hits + misses == 0 ? 0 : 100.0 * hits / (hits + misses), hits, misses, getReloads(), this._notifications.sum(), getBytes() / 1024.0);
+	}
+
+	/**
+	 * @return the current copy, reloaded first if it is out of date and no
+	 * other thread is already reloading it
+	 */
+	private Snapshot current(){
+		if (this._stale && this._loading.tryLock()){
+			try{
+				if (this._stale) reload();
+			}catch (SQLException e){
+				// keep serving the previous copy, misses fall back to the database
+			}finally{
+				this._loading.unlock();
+			}//end try
+		}//end if
+		return this._snapshot;
+	}
+
+	private int count(int value){
+		if (value < 0) this._misses.increment();
+		else this._hits.increment();
+		return value;
+	}
+
+	private static IntIntMap restore(IntBuffer in){
+		int count = in.get();
+		if (count < 0 || 2L * count > in.remaining()) throw new IllegalStateException("Damaged snapshot");
+		IntIntMap map = new IntIntMap(count);
+		for (int i = 0; i < count; ++i) map.put(in.get(), in.get());
+		return map;
+	}
+
+	private static void save(DataOutputStream out, IntIntMap map) throws IOException {
+		int[] pairs = map.pairs();
+		out.writeInt(pairs.length / 2);
+		for (int value : pairs) out.writeInt(value);
+	}
+
+	private IntIntMap read(String query) throws SQLException {
+		final IntIntMap map = new IntIntMap(64);
+		this._esql.streamQueryForEach(query, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				map.put(row.getInt(1), row.getInt(2));
+			}
+		});
+		return map;
+	}
+
+	/**
+	 * Runs one LISTEN session until the cache is closed or the connection
+	 * fails. The driver only reads notifications while it talks to the
+	 * server, so the session sends an empty query every LISTEN_POLL_MILLIS.
+	 */
+	private void poll() throws SQLException {
+		Connection conn = this._esql.getPool().openDedicated();
+		try{
+			Statement stmt = conn.createStatement();
+			stmt.execute("LISTEN " + CHANNEL);
+			for (Subscription subscription : this._subscriptions)
+				if (!subscription.channel.equals(CHANNEL)) stmt.execute("LISTEN " + subscription.channel);
+			// anything changed while no session was listening
+			reloadOnListener();
+			for (Subscription subscription : this._subscriptions)
+				subscription.subscriber.missed();
+			while (!this._closed){
+				stmt.execute("SELECT 1");
+				PGNotification[] notifications = conn.unwrap(PGConnection.class).getNotifications();
+				if (notifications != null && notifications.length > 0){
+					this._notifications.add(notifications.length);
+					boolean changed = false;
+					for (PGNotification notification : notifications)
+						if (notification.getName().equals(CHANNEL)) changed = true;
+					if (changed) reloadOnListener();
+					dispatch(notifications);
+				}//end if
+				pause(LISTEN_POLL_MILLIS);
+			}//end while
+		}finally{
+			conn.close();
+		}
+	}
+
+	/**
+	 * Reloads the tables on the listener thread, so no lookup has to. When
+	 * that fails the copy stays out of date and the next lookup tries again.
+	 */
+	private void reloadOnListener(){
+		try{
+			load();
+		}catch (SQLException e){
+			// reload left the copy marked out of date
+		}//end try
+	}
+
+	private void dispatch(PGNotification[] notifications){
+		for (Subscription subscription : this._subscriptions){
+			List<String> payloads = new ArrayList<String>();
+			for (PGNotification notification : notifications)
+				if (notification.getName().equals(subscription.channel)) payloads.add(notification.getParameter());
+			if (!payloads.isEmpty()) subscription.subscriber.notified(payloads);
+		}//end for
+	}
+
+	private static void pause(long millis){
+		try{
+			Thread.sleep(millis);
+		}catch (InterruptedException e){
+			// woken by close
+		}//end try
+	}
+}
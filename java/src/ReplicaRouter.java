@@ -0,0 +1,173 @@
+/*
+ * Replica router
+ * ==============
+ *
+ * Hands out connections to streaming replicas of the database for queries
+ * that only read, and to the primary when no replica is fit to answer.
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class spreads borrows over the replicas round robin. A background
+ * thread asks every replica how far its replay is behind the primary each
+ * LAG_CHECK_MILLIS; a replica further behind than the allowed lag, or that
+ * could not be asked, is skipped until a later check finds it fit again.
+ * One that cannot be reached is asked less often the longer it is down.
+ * A replica whose pool stays exhausted for REPLICA_WAIT_MILLIS is passed
+ * over for the next one. With no fit replica, or when borrowing from the
+ * chosen one fails, the connection comes from the primary pool, so reads
+ * keep working while the replicas are down or busy, only slower.
+ *
+ * Replicas are configured with the system property dbproject.replicas, a
+ * comma separated list of host:port or port of servers holding the same
+ * database, and the allowed lag with dbproject.maxReplicaLagMillis.
+ *
+ */
+
+public class ReplicaRouter{
+	static final long DEFAULT_MAX_LAG_MILLIS = 1000;
+	static final long LAG_CHECK_MILLIS = 1000;
+	//a replica that cannot be reached is tried again after up to this long
+	static final long MAX_RETRY_MILLIS = 30000;
+	//how long a read waits for a connection of a busy replica before moving on
+	static final long REPLICA_WAIT_MILLIS = 50;
+
+	//0 on the primary or a replica that has replayed all it received
+	static final String REPLICATION_LAG = "SELECT CASE WHEN NOT pg_is_in_recovery() OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0\n"
+		+ "ELSE coalesce(extract(epoch FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END::bigint;";
+
+	/**
+	 * A replica and what the last check found.
+	 */
+	static final class Replica{
+		final String name;
+		final ConnectionPool pool;
+		//-1 until checked, or when the check failed
+		volatile long lagMillis = -1;
+		final LongAdder borrows = new LongAdder();
+		//while down, when to check again and how long to wait after that
+		long retryAt = 0;
+		long retryMillis = LAG_CHECK_MILLIS;
+
+		Replica(String name, ConnectionPool pool){
+			this.name = name;
+			this.pool = pool;
+		}
+	}
+
+	private final ConnectionPool _primary;
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	private final long _maxLagMillis;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final LongAdder _fallbacks = new LongAdder();
+	private final ScheduledExecutorService _checker;
+
+	/**
+	 * @param primary the pool reads fall back to
+	 * @param names the names to report the replicas by, e.g. host:port
+	 * @param replicas the pools of the replicas, in the order of their names
+	 * @param maxLagMillis how far behind the primary a replica may be and still answer
+	 */
+	public ReplicaRouter(ConnectionPool primary, List<String> names, List<ConnectionPool> replicas, long maxLagMillis){
+		this._primary = primary;
+		for (int i = 0; i < replicas.size(); ++i)
+			this._replicas.add(new Replica(names.get(i), replicas.get(i)));
+		this._maxLagMillis = maxLagMillis;
+		this._checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "replica-lag-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// the first check runs before any read can be routed
+		check();
+		this._checker.scheduleWithFixedDelay(new Runnable(){
+			public void run(){ check(); }
+		}, LAG_CHECK_MILLIS, LAG_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to lease a connection for a read, from the next fit replica or
+	 * else from the primary. It goes back through release.
+	 */
+	public ConnectionPool.Lease borrow() throws SQLException {
+		int size = this._replicas.size();
+		int first = Math.floorMod(this._next.getAndIncrement(), size);
+		for (int i = 0; i < size; ++i){
+			Replica replica = this._replicas.get((first + i) % size);
+			long lag = replica.lagMillis;
+			if (lag < 0 || lag > this._maxLagMillis) continue;
+			try{
+				ConnectionPool.Lease lease = replica.pool.tryBorrow(REPLICA_WAIT_MILLIS);
+				if (lease == null) continue;
+				replica.borrows.increment();
+				return lease;
+			}catch (SQLException e){
+				// down since the last check
+				replica.lagMillis = -1;
+			}//end try
+		}//end for
+		this._fallbacks.increment();
+		return this._primary.borrow();
+	}
+
+	/**
+	 * Method to hand back a connection from borrow to the pool it came from.
+	 */
+	public void release(ConnectionPool.Lease lease){
+		if (lease != null) lease.owner.release(lease);
+	}
+
+	public void close(){
+		this._checker.shutdownNow();
+		for (Replica replica : this._replicas)
+			replica.pool.close();
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder("replicas:");
+		for (Replica replica : this._replicas)
+			sb.append(String.format(" %s (%s, %d reads)", replica.name,
+				replica.lagMillis < 0 ? "down" : "lag " + replica.lagMillis + " ms", replica.borrows.sum()));
+		return sb.append(String.format(", %d reads on the primary", this._fallbacks.sum())).toString();
+	}
+
+	private void check(){
+		long now = System.currentTimeMillis();
+		for (Replica replica : this._replicas){
+			if (now < replica.retryAt) continue;
+			ConnectionPool.Lease lease = null;
+			try{
+				lease = replica.pool.borrow();
+				Statement stmt = lease.getConnection().createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(REPLICATION_LAG);
+					replica.lagMillis = rs.next() ? rs.getLong(1) : -1;
+				}finally{
+					stmt.close();
+				}
+				replica.retryMillis = LAG_CHECK_MILLIS;
+			}catch (SQLException e){
+				replica.lagMillis = -1;
+				replica.retryAt = now + replica.retryMillis;
+				replica.retryMillis = Math.min(replica.retryMillis * 2, MAX_RETRY_MILLIS);
+			}finally{
+				replica.pool.release(lease);
+			}//end try
+		}//end for
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Result printer
+ * ==============
+ *
+ * Renders query results to the console through one buffered writer.
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This class writes a result set as an aligned table, as tab separated
+ * values or as CSV. Column metadata is read once per result; table column
+ * widths come from the declared display sizes so rows are written as they
+ * are fetched, without a first pass over the data. Records handed over one
+ * at a time, such as the listings of HospitalService, are written the same
+ * way through an Output. Output can be limited to a number of rows and
+ * paused after every page.
+ *
+ * The defaults can be changed with the system properties dbproject.format
+ * (table, tsv or csv), dbproject.maxRows and dbproject.pageSize.
+ *
+ */
+
+public class ResultPrinter{
+	static final int BUFFER_SIZE = 1 << 16;
+	//widest column the table format pads to, wider values overflow
+	static final int MAX_COLUMN_WIDTH = 40;
+
+	public enum Format{ TABLE, TSV, CSV }
+
+	private final Writer _out;
+	private final Format _format;
+	//0 means unlimited
+	private final int _maxRows;
+	//0 means no paging
+	private final int _pageSize;
+	private final BufferedReader _pager;
+	private char[] _spaces = new char[0];
+
+	/**
+	 * @param out the stream written to
+	 * @param format the output format
+	 * @param maxRows the maximum number of rows written per result, 0 for all
+	 * @param pageSize the number of rows after which output waits for the
+	 * user, 0 to never wait
+	 * @param pager the input read between pages, only used when paging
+	 */
+	public ResultPrinter(PrintStream out, Format format, int maxRows, int pageSize, BufferedReader pager){
+		this._out = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+		this._format = format;
+		this._maxRows = maxRows;
+		this._pageSize = pageSize;
+		this._pager = pager;
+	}
+
+	/**
+	 * @return a printer to standard out configured from the system properties
+	 */
+	public static ResultPrinter fromSystemProperties(BufferedReader pager){
+		Format format = Format.valueOf(System.getProperty("dbproject.format", "tsv").toUpperCase());
+		int maxRows = Integer.getInteger("dbproject.maxRows", 0);
+		int pageSize = Integer.getInteger("dbproject.pageSize", 0);
+		return new ResultPrinter(System.out, format, maxRows, pageSize, pager);
+	}
+
+	/**
+	 * Writes the records of one result as they are handed to it. The header
+	 * line is written with the first record. Once the row limit is reached
+	 * or the user stops paging, further records are skipped.
+	 */
+	public final class Output{
+		private final String[] _names;
+		private final int[] _widths;
+		private int _rowCount = 0;
+		private boolean _stopped = false;
+
+		private Output(String[] names, int[] widths){
+			this._names = names;
+			this._widths = widths;
+		}
+
+		/**
+		 * Method to write a record, one value per column.
+		 *
+		 * @return false when the record was skipped, and so will the rest be
+		 * @throws java.sql.SQLException when failed to write the output
+		 */
+		public boolean write(String... values) throws SQLException {
+			synchronized (ResultPrinter.this){
+				if (this._stopped) return false;
+				try{
+					if (this._rowCount == 0) writeHeader(this._names, this._widths);
+					if (_maxRows > 0 && this._rowCount >= _maxRows){
+						_out.write("(output limited to " + _maxRows + " rows)\n");
+						this._stopped = true;
+						return false;
+					}//end if
+					writeRow(values, this._widths);
+					++this._rowCount;
+					if (_pageSize > 0 && this._rowCount % _pageSize == 0 && !nextPage()) this._stopped = true;
+					return !this._stopped;
+				}catch (IOException e){
+					throw new SQLException("Failed to write the result: " + e.getMessage(), e);
+				}//end try
+			}
+		}
+
+		/**
+		 * Method to finish the output.
+		 *
+		 * @return the number of rows written
+		 * @throws java.sql.SQLException when failed to write the output
+		 */
+		public int close() throws SQLException {
+			synchronized (ResultPrinter.this){
+				try{
+					_out.flush();
+				}catch (IOException e){
+					throw new SQLException("Failed to write the result: " + e.getMessage(), e);
+				}//end try
+				return this._rowCount;
+			}
+		}
+	}
+
+	/**
+	 * Source of the records written by one call.
+	 */
+	private interface Records{
+		//fills values with the next record, false when there is none left
+		boolean next(String[] values) throws SQLException;
+	}
+
+	/**
+	 * Method to write the records of a result set, preceded by a header line
+	 * when there is at least one record.
+	 *
+	 * @param rs the result set to write
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to read the result set
+	 */
+	public synchronized int print(final ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		String[] names = new String[numCol];
+		int[] widths = new int[numCol];
+		for (int i = 0; i < numCol; ++i){
+			names[i] = rsmd.getColumnName(i + 1);
+			widths[i] = Math.max(names[i].length(), Math.min(rsmd.getColumnDisplaySize(i + 1), MAX_COLUMN_WIDTH));
+		}//end for
+
+		return write(names, widths, new Records(){
+			public boolean next(String[] values) throws SQLException {
+				if (!rs.next()) return false;
+				for (int i = 0; i < values.length; ++i)
+					values[i] = rs.getString(i + 1);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Method to write records that are already in memory, preceded by a
+	 * header line when there is at least one record. Table column widths
+	 * fit the widest value.
+	 *
+	 * @param names the column names
+	 * @param rows the records, each with one value per column
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when failed to write the output
+	 */
+	public synchronized int print(String[] names, final List<String[]> rows) throws SQLException {
+		int[] widths = new int[names.length];
+		for (int i = 0; i < names.length; ++i)
+			widths[i] = names[i].length();
+		for (String[] row : rows)
+			for (int i = 0; i < names.length; ++i)
+				if (row[i] != null) widths[i] = Math.max(widths[i], Math.min(row[i].length(), MAX_COLUMN_WIDTH));
+
+		final Iterator<String[]> it = rows.iterator();
+		return write(names, widths, new Records(){
+			public boolean next(String[] values){
+				if (!it.hasNext()) return false;
+				System.arraycopy(it.next(), 0, values, 0, values.length);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Method to start writing records that are handed over one at a time.
+	 * Table column widths come from the declared sizes, as the values are
+	 * not known in advance.
+	 *
+	 * @param names the column names
+	 * @param sizes the declared display size of each column
+	 * @return the output to write the records to and close
+	 */
+	public Output open(String[] names, int[] sizes){
+		int[] widths = new int[names.length];
+		for (int i = 0; i < names.length; ++i)
+			widths[i] = Math.max(names[i].length(), Math.min(sizes[i], MAX_COLUMN_WIDTH));
+		return new Output(names, widths);
+	}
+
+	private int write(String[] names, int[] widths, Records records) throws SQLException {
+		Output output = new Output(names, widths);
+		String[] values = new String[names.length];
+		while (records.next(values))
+			if (!output.write(values)) break;
+		return output.close();
+	}
+
+	private void writeHeader(String[] names, int[] widths) throws IOException {
+		writeRow(names, widths);
+		if (this._format == Format.TABLE){
+			for (int i = 0; i < widths.length; ++i){
+				if (i > 0) this._out.write("-+-");
+				for (int j = 0; j < widths[i]; ++j) this._out.write('-');
+			}//end for
+			this._out.write('\n');
+		}//end if
+	}
+
+	private void writeRow(String[] values, int[] widths) throws IOException {
+		for (int i = 0; i < values.length; ++i){
+			String value = values[i];
+			switch (this._format){
+				case TABLE:
+					if (i > 0) this._out.write(" | ");
+					if (value == null) value = "null";
+					this._out.write(value);
+					if (i < values.length - 1) pad(widths[i] - value.length());
+					break;
+				case TSV:
+					// every value ends with a tab, as the output always had
+					this._out.write(value == null ? "null" : value);
+					this._out.write('\t');
+					break;
+				case CSV:
+					if (i > 0) this._out.write(',');
+					if (value != null) writeCsvField(value);
+					break;
+			}
+		}//end for
+		this._out.write('\n');
+	}
+
+	private void writeCsvField(String value) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; ++i){
+			char c = value.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}//end for
+		if (!quote){
+			this._out.write(value);
+			return;
+		}//end if
+		this._out.write('"');
+		this._out.write(value.replace("\"", "\"\""));
+		this._out.write('"');
+	}
+
+	private void pad(int count) throws IOException {
+		if (count <= 0) return;
+		if (this._spaces.length < count){
+			this._spaces = new char[Math.max(count, MAX_COLUMN_WIDTH)];
+			Arrays.fill(this._spaces, ' ');
+		}//end if
+		this._out.write(this._spaces, 0, count);
+	}
+
+	/**
+	 * Waits for the user between pages.
+	 *
+	 * @return false when the user asked to stop
+	 */
+	private boolean nextPage() throws IOException {
+		if (this._pager == null) return true;
+		this._out.write("-- more (Enter to continue, q to stop) --");
+		this._out.flush();
+		String answer = this._pager.readLine();
+		return answer != null && !answer.trim().equalsIgnoreCase("q");
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Round trip benchmark
+ * ====================
+ *
+ * Times MakeAppointment booked with one call of book_appointment against
+ * the same booking made step by step, over connections that add a network
+ * round trip time, so the cost of every round trip shows.
+ *
+ * Usage: java -cp lib/*:bin/ RoundTripBenchmark <dbname> <port> <user> [bookings] [rtt ms ...]
+ *
+ * The connections go through a proxy in this process that holds every
+ * packet for half the round trip time in each direction. The step by step
+ * booking also reads the appointment and the patient again afterwards, as
+ * the menu does; the server-side call returns them. The benchmark creates
+ * its own appointments and patient above the highest existing IDs and
+ * deletes them again when it finishes.
+ *
+ */
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class RoundTripBenchmark{
+	static final int DEFAULT_BOOKINGS = 200;
+	static final int[] DEFAULT_RTT_MILLIS = { 0, 1, 5, 20 };
+
+	/**
+	 * A TCP proxy to a local port that delays the bytes going each way.
+	 * Every chunk the client sends is counted, which for the JDBC driver is
+	 * about one per round trip.
+	 */
+	static class DelayProxy{
+		private final ServerSocket _server;
+		private final int _targetPort;
+		private final long _delayNanos;
+		private final AtomicLong _sends = new AtomicLong();
+
+		DelayProxy(int targetPort, long delayNanos) throws IOException {
+			this._server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this._targetPort = targetPort;
+			this._delayNanos = delayNanos;
+			daemon(new Runnable(){
+				public void run(){
+					accept();
+				}
+			}, "delay-proxy-accept");
+		}
+
+		int getPort(){
+			return this._server.getLocalPort();
+		}
+
+		long getSends(){
+			return this._sends.get();
+		}
+
+		void close() throws IOException {
+			this._server.close();
+		}
+
+		private void accept(){
+			while (!this._server.isClosed()){
+				try{
+					Socket client = this._server.accept();
+					Socket target = new Socket(InetAddress.getLoopbackAddress(), this._targetPort);
+					client.setTcpNoDelay(true);
+					target.setTcpNoDelay(true);
+					pipe(client.getInputStream(), target.getOutputStream(), this._sends);
+					pipe(target.getInputStream(), client.getOutputStream(), null);
+				}catch (IOException e){
+					// closed
+				}//end try
+			}//end while
+		}
+
+		/**
+		 * Copies one direction of a connection, each chunk written once its
+		 * delay has passed. A reader and a writer thread, so chunks in
+		 * flight do not hold each other up.
+		 */
+		private void pipe(final InputStream in, final OutputStream out, final AtomicLong chunks){
+			final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>();
+			final long delay = this._delayNanos;
+			daemon(new Runnable(){
+				public void run(){
+					byte[] buf = new byte[65536];
+					try{
+						int n;
+						while ((n = in.read(buf)) > 0){
+							if (chunks != null) chunks.incrementAndGet();
+							queue.add(new Object[]{ Arrays.copyOf(buf, n), System.nanoTime() + delay });
+						}//end while
+					}catch (IOException e){
+						// the connection is gone
+					}//end try
+					queue.add(new Object[]{ null, System.nanoTime() + delay });
+				}
+			}, "delay-proxy-read");
+			daemon(new Runnable(){
+				public void run(){
+					try{
+						while (true){
+							Object[] chunk = queue.take();
+							long wait;
+							while ((wait = (Long) chunk[1] - System.nanoTime()) > 0)
+								LockSupport.parkNanos(wait);
+							if (chunk[0] == null) break;
+							out.write((byte[]) chunk[0]);
+							out.flush();
+						}//end while
+						out.close();
+					}catch (IOException e){
+						// the connection is gone
+					}catch (InterruptedException e){
+						// stopped
+					}//end try
+				}
+			}, "delay-proxy-write");
+		}
+
+		private static void daemon(Runnable r, String name){
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + RoundTripBenchmark.class.getName () +
+		            " <dbname> <port> <user> [bookings] [rtt ms ...]");
+			return;
+		}//end if
+		int bookings = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BOOKINGS;
+		int[] rtts = DEFAULT_RTT_MILLIS;
+		if (args.length > 4){
+			rtts = new int[args.length - 4];
+			for (int i = 4; i < args.length; ++i) rtts[i - 4] = Integer.parseInt(args[i]);
+		}//end if
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "", 1);
+		ReferenceCache cache = new ReferenceCache(esql);
+		cache.load();
+		int doctorId = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT min(doctor_ID) FROM Doctor;").get(0).get(0));
+		int firstAppt = BookingStress.maxId(esql, "appnt_ID", "Appointment") + 1;
+		int patientId = BookingStress.maxId(esql, "patient_ID", "Patient") + 1;
+		int calls = bookings * rtts.length * 2;
+		try{
+			esql.executeUpdate(DBproject.INSERT_PATIENT, patientId, "Round Trip Patient", "F", 30, "n/a", 0);
+			esql.executeUpdate("INSERT INTO Appointment (appnt_ID, adate, time_slot, status) SELECT g, '1/1/2030', '8:00-10:00', 'AV' FROM generate_series(?, ?) g;",
+				firstAppt, firstAppt + calls - 1);
+			esql.executeUpdate("INSERT INTO has_appointment (appt_id, doctor_id) SELECT g, ? FROM generate_series(?, ?) g;",
+				doctorId, firstAppt, firstAppt + calls - 1);
+
+			System.out.printf("%-8s %-14s %8s %10s %10s %10s %12s%n", "rtt(ms)", "booking", "calls", "mean(ms)", "p50(ms)", "p99(ms)", "trips/call");
+			int next = firstAppt;
+			for (int rtt : rtts){
+				DelayProxy proxy = new DelayProxy(Integer.parseInt(args[1]), rtt * 500000L);
+				DBproject remote = new DBproject (args[0], String.valueOf(proxy.getPort()), args[2], "", 1);
+				try{
+					BookingEngine engine = new BookingEngine(remote, cache);
+					for (boolean serverSide : new boolean[]{ true, false }){
+						engine.setServerSide(serverSide);
+						// connect and prepare outside the measurement
+						remote.executeQuery(DBproject.PATIENT_BY_ID, patientId);
+						long[] latencies = new long[bookings];
+						long sends = proxy.getSends();
+						for (int i = 0; i < bookings; ++i){
+							long start = System.nanoTime();
+							book(remote, engine, patientId, doctorId, next++);
+							latencies[i] = System.nanoTime() - start;
+						}//end for
+						if (serverSide && !engine.isServerSide())
+							System.out.println("book_appointment is not installed, run sql/booking.sql; both rows are step by step");
+						report(rtt, serverSide ? "server-side" : "step by step", latencies, (proxy.getSends() - sends) / (double) bookings);
+					}//end for
+				}finally{
+					remote.cleanup ();
+					proxy.close();
+				}
+			}//end for
+		}finally{
+			esql.executeUpdate("DELETE FROM waitlist WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM searches WHERE aid >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM has_appointment WHERE appt_id >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM Appointment WHERE appnt_ID >= ?;", firstAppt);
+			esql.executeUpdate("DELETE FROM Patient WHERE patient_ID >= ?;", patientId);
+			esql.cleanup ();
+		}
+	}
+
+	/**
+	 * Books an appointment and ends up with the appointment and the patient
+	 * as they are afterwards, like the menu.
+	 */
+	static void book (DBproject esql, BookingEngine engine, int patientId, int doctorId, int apptId) throws SQLException {
+		BookingEngine.Booking booking = engine.book(patientId, doctorId, apptId, null);
+		if (booking.outcome != BookingEngine.Outcome.BOOKED)
+			throw new SQLException("Appointment " + apptId + " was not booked: " + booking.outcome);
+		if (booking.appointment == null) esql.executeQuery(DBproject.APPOINTMENT_BY_ID, apptId);
+		if (booking.patient == null) esql.executeQuery(DBproject.PATIENT_BY_ID, patientId);
+	}
+
+	static void report (int rtt, String name, long[] latencies, double trips){
+		Arrays.sort(latencies);
+		long total = 0;
+		for (long l : latencies) total += l;
+		System.out.printf("%-8d %-14s %8d %10.2f %10.2f %10.2f %12.1f%n", rtt, name, latencies.length,
+			latencies.length == 0 ? 0 : total / 1e6 / latencies.length,
+			QueryBenchmark.percentile(latencies, 0.50) / 1e6,
+			QueryBenchmark.percentile(latencies, 0.99) / 1e6, trips);
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Shard map
+ * =========
+ *
+ * Says which PostgreSQL instance holds the data of each hospital, read from
+ * a properties file such as java/shards.properties.
+ *
+ *   shard.<n>=<port> or <host>:<port> of shard n, numbered from 0
+ *   replicas.<n>=<replicas of shard n, as for dbproject.replicas>
+ *   hospital.<hospital id>=<n>
+ *
+ * A hospital without a line is on shard hospital_ID mod the number of shards.
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * This class maps a hospital to the index of its shard. Every lookup made
+ * at least REFRESH_MILLIS after the previous check looks whether the file
+ * changed and rereads the placements, so services that are running follow
+ * a hospital moved by Rebalance within a second. The shards themselves are
+ * only read once, as the services connect to them at start.
+ *
+ */
+
+public class ShardMap{
+	static final long REFRESH_MILLIS = 1000;
+
+	private final File _file;
+	private final String[] _shards;
+	private final String[] _replicas;
+	//hospital to shard, for the hospitals placed explicitly
+	private volatile Map<Integer, Integer> _placed;
+	private long _modified;
+	private volatile long _nextCheck;
+
+	private ShardMap(File file, String[] shards, String[] replicas, Map<Integer, Integer> placed, long modified){
+		this._file = file;
+		this._shards = shards;
+		this._replicas = replicas;
+		this._placed = placed;
+		this._modified = modified;
+		this._nextCheck = System.currentTimeMillis() + REFRESH_MILLIS;
+	}
+
+	/**
+	 * Method to read a shard map.
+	 *
+	 * @throws IllegalArgumentException when the file names no shards, or
+	 * places a hospital on a shard it does not name
+	 */
+	public static ShardMap load(String path) throws IOException {
+		File file = new File(path);
+		long modified = file.lastModified();
+		Properties props = read(file);
+		List<String> shards = new ArrayList<String>();
+		List<String> replicas = new ArrayList<String>();
+		for (int i = 0; props.getProperty("shard." + i) != null; ++i){
+			shards.add(props.getProperty("shard." + i).trim());
+			replicas.add(props.getProperty("replicas." + i, "").trim());
+		}//end for
+		if (shards.isEmpty()) throw new IllegalArgumentException(path + " names no shards, start with shard.0=<port>");
+		return new ShardMap(file, shards.toArray(new String[0]), replicas.toArray(new String[0]),
+			placements(props, shards.size()), modified);
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int size(){
+		return this._shards.length;
+	}
+
+	/**
+	 * @return the port or host:port of a shard
+	 */
+	public String getAddress(int shard){
+		return this._shards[shard];
+	}
+
+	/**
+	 * @return the replicas of a shard, comma separated, or empty
+	 */
+	public String getReplicas(int shard){
+		return this._replicas[shard];
+	}
+
+	/**
+	 * @return the shard of a hospital
+	 */
+	public int shardOf(int hospitalId){
+		if (System.currentTimeMillis() >= this._nextCheck) refresh();
+		Integer shard = this._placed.get(hospitalId);
+		return shard != null ? shard : Math.floorMod(hospitalId, this._shards.length);
+	}
+
+	/**
+	 * @return the shard of a hospital, looking whether the file changed
+	 * first however recently it was checked
+	 */
+	public int currentShardOf(int hospitalId){
+		refresh();
+		return shardOf(hospitalId);
+	}
+
+	/**
+	 * Method to place a hospital on a shard, rewriting the line of the
+	 * hospital in the file, or adding one, and leaving the others as they are.
+	 * The file is replaced in one step, so a reader never sees half of it.
+	 */
+	public synchronized void place(int hospitalId, int shard) throws IOException {
+		if (shard < 0 || shard >= this._shards.length) throw new IllegalArgumentException("There is no shard " + shard);
+		String key = "hospital." + hospitalId;
+		List<String> lines = new ArrayList<String>();
+		boolean found = false;
+		for (String line : Files.readAllLines(this._file.toPath(), StandardCharsets.UTF_8)){
+			String trimmed = line.trim();
+			if (trimmed.startsWith(key) && trimmed.substring(key.length()).trim().startsWith("=")){
+				if (found) continue;
+				line = key + "=" + shard;
+				found = true;
+			}//end if
+			lines.add(line);
+		}//end for
+		if (!found) lines.add(key + "=" + shard);
+
+		File tmp = new File(this._file.getPath() + ".tmp");
+		Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+		Files.move(tmp.toPath(), this._file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Map<Integer, Integer> placed = new HashMap<Integer, Integer>(this._placed);
+		placed.put(hospitalId, shard);
+		this._placed = placed;
+		this._modified = this._file.lastModified();
+	}
+
+	/**
+	 * Rereads the placements when the file changed; a file that cannot be
+	 * read or is wrong keeps the placements in use.
+	 */
+	private synchronized void refresh(){
+		this._nextCheck = System.currentTimeMillis() + REFRESH_MILLIS;
+		long modified = this._file.lastModified();
+		if (modified == this._modified) return;
+		try{
+			this._placed = placements(read(this._file), this._shards.length);
+			this._modified = modified;
+		}catch (IOException e){
+			System.err.println("Keeping the shard map in use, " + this._file + " cannot be read: " + e.getMessage());
+		}catch (IllegalArgumentException e){
+			System.err.println("Keeping the shard map in use: " + e.getMessage());
+		}//end try
+	}
+
+	private static Properties read(File file) throws IOException {
+		Properties props = new Properties();
+		Reader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+		try{
+			props.load(in);
+		}finally{
+			in.close();
+		}
+		return props;
+	}
+
+	private static Map<Integer, Integer> placements(Properties props, int shards){
+		Map<Integer, Integer> placed = new HashMap<Integer, Integer>();
+		for (String key : props.stringPropertyNames()){
+			if (!key.startsWith("hospital.")) continue;
+			try{
+				int hospital = Integer.parseInt(key.substring("hospital.".length()));
+				int shard = Integer.parseInt(props.getProperty(key).trim());
+				if (shard < 0 || shard >= shards)
+					throw new IllegalArgumentException(key + " is placed on shard " + shard + ", which is not in the map");
+				placed.put(hospital, shard);
+			}catch (NumberFormatException e){
+				throw new IllegalArgumentException("The line " + key + " must be hospital.<hospital id>=<shard>");
+			}//end try
+		}//end for
+		return placed;
+	}
+
+	public String toString(){
+		StringBuilder sb = new StringBuilder("shards:");
+		for (int i = 0; i < this._shards.length; ++i)
+			sb.append(' ').append(i).append('=').append(this._shards[i]);
+		return sb.append(String.format(", %d hospitals placed", this._placed.size())).toString();
+	}
+}
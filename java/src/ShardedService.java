@@ -0,0 +1,425 @@
+/*
+ * Sharded service
+ * ===============
+ *
+ * The operations of HospitalService over several PostgreSQL instances, each
+ * holding the hospitals the shard map places on it.
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class runs one HospitalService per shard and hands each operation to
+ * the shard of the hospital it concerns: the hospital of the doctor, found
+ * in the reference caches of the shards, or of the department. Operations
+ * that span hospitals, the reports of options 7 and 8, listings by
+ * department name and lookups by appointment ID, run on every shard at
+ * once and their results are merged in the order a single database gives.
+ *
+ * Hospital and Patient are on every shard: Department, Searches and the
+ * waitlist refer to them. A patient is added to every shard, and counts the
+ * appointments booked on each, which getPatient adds up. An appointment is
+ * added with its doctor, on the shard of the doctor's hospital; one without
+ * a doctor belongs to no hospital and is refused. Anything about a doctor
+ * or department no shard knows goes to the first shard, which then answers
+ * as a single database would. getDatabase and the caches are those of the
+ * first shard.
+ *
+ * A booking or release that waited for the rows of a hospital Rebalance was
+ * moving finds them deleted; when the shard map now places the hospital
+ * elsewhere, it is run again there.
+ *
+ * Every public operation of HospitalService is overridden here.
+ *
+ */
+
+public class ShardedService extends HospitalService{
+	//tries at adding a patient to each shard after the first
+	static final int COPY_ATTEMPTS = 3;
+
+	/**
+	 * An operation run on one shard.
+	 */
+	interface ShardCall<T>{
+		T call(HospitalService shard) throws SQLException;
+	}
+
+	private final ShardMap _map;
+	private final DBproject[] _databases;
+	private final HospitalService[] _shards;
+	private final ExecutorService _gather;
+
+	/**
+	 * Connects to every shard of the map and starts its service.
+	 *
+	 * @param poolSize the connections to each shard
+	 */
+	public ShardedService(ShardMap map, String dbname, String user, String passwd, int poolSize) throws SQLException {
+		this._map = map;
+		this._databases = new DBproject[map.size()];
+		this._shards = new HospitalService[map.size()];
+		for (int i = 0; i < map.size(); ++i){
+			this._databases[i] = new DBproject(dbname, map.getAddress(i), user, passwd, poolSize, "", map.getReplicas(i));
+			this._shards[i] = new HospitalService(this._databases[i]);
+		}//end for
+		this._gather = Executors.newCachedThreadPool(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "shard-gather");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Method to stop the services of the shards and disconnect from the
+	 * shards, which this service connected to itself.
+	 */
+	public void close(){
+		this._gather.shutdownNow();
+		for (int i = 0; i < this._shards.length; ++i){
+			this._shards[i].close();
+			this._databases[i].cleanup();
+		}//end for
+	}
+
+	public ShardMap getShardMap(){
+		return this._map;
+	}
+
+	/**
+	 * @return the service of a shard
+	 */
+	public HospitalService getShard(int shard){
+		return this._shards[shard];
+	}
+
+	public DBproject getDatabase(){
+		return this._shards[0].getDatabase();
+	}
+
+	public DBproject getReadDatabase(){
+		return this._shards[0].getReadDatabase();
+	}
+
+	public ReferenceCache getReferenceCache(){
+		return this._shards[0].getReferenceCache();
+	}
+
+	public AvailabilityIndex getAvailabilityIndex(){
+		return this._shards[0].getAvailabilityIndex();
+	}
+
+	public Waitlist getWaitlist(){
+		return this._shards[0].getWaitlist();
+	}
+
+	public void addDoctor(int doctorId, String name, String specialty, int departmentId) throws SQLException {
+		int hospital = -1;
+		for (int i = 0; i < this._shards.length && hospital < 0; ++i)
+			hospital = this._shards[i].getReferenceCache().hospitalOfDepartment(departmentId);
+		this._shards[hospital < 0 ? 0 : this._map.shardOf(hospital)].addDoctor(doctorId, name, specialty, departmentId);
+	}
+
+	/**
+	 * Method to add a patient to every shard, the first one first so a
+	 * duplicate ID fails before anything is written. The other shards skip
+	 * a patient they already have, so each is tried COPY_ATTEMPTS times.
+	 *
+	 * @throws java.sql.SQLException when the patient could not be added to
+	 * every shard, naming the shards that have it
+	 */
+	public void addPatient(int patientId, String name, String gender, int age, String address, int appointments) throws SQLException {
+		this._shards[0].addPatient(patientId, name, gender, age, address, appointments);
+		for (int i = 1; i < this._shards.length; ++i){
+			for (int attempt = 1; ; ++attempt){
+				try{
+					this._shards[i].addPatientIfMissing(patientId, name, gender, age, address, appointments);
+					break;
+				}catch (SQLException e){
+					if (attempt < COPY_ATTEMPTS) continue;
+					throw new SQLException("Patient " + patientId + " was added to shards 0 to " + (i - 1) + " but not to shard " + i
+						+ " and the ones after it: " + e.getMessage(), e.getSQLState(), e);
+				}//end try
+			}//end for
+		}//end for
+	}
+
+	/**
+	 * Method to refuse an appointment without a doctor, which belongs to
+	 * no hospital and so to no shard.
+	 *
+	 * @throws IllegalArgumentException always
+	 */
+	public void addAppointment(int apptId, LocalDate date, String timeSlot, String status) throws SQLException {
+		throw new IllegalArgumentException("Appointment " + apptId + " needs a doctor to be placed on a shard");
+	}
+
+	public void addAppointment(int apptId, LocalDate date, String timeSlot, String status, int doctorId) throws SQLException {
+		ofDoctor(doctorId).addAppointment(apptId, date, timeSlot, status, doctorId);
+	}
+
+	public Appointment getAppointment(final int apptId) throws SQLException {
+		for (Appointment appointment : gather(new ShardCall<Appointment>(){
+			public Appointment call(HospitalService shard) throws SQLException {
+				return shard.getAppointment(apptId);
+			}
+		}))
+			if (appointment != null) return appointment;
+		return null;
+	}
+
+	/**
+	 * @return the patient with the appointments of all shards, or null if
+	 * there is none with that ID
+	 */
+	public Patient getPatient(final int patientId) throws SQLException {
+		Patient first = null;
+		int appointments = 0;
+		for (Patient patient : gather(new ShardCall<Patient>(){
+			public Patient call(HospitalService shard) throws SQLException {
+				return shard.getPatient(patientId);
+			}
+		})){
+			if (patient == null) continue;
+			if (first == null) first = patient;
+			appointments += patient.appointments;
+		}//end for
+		return first == null ? null : new Patient(first.id, first.name, first.gender, first.age, first.address, appointments);
+	}
+
+	public boolean patientExists(int patientId) throws SQLException {
+		return this._shards[0].patientExists(patientId);
+	}
+
+	public String appointmentStatus(int doctorId, int apptId) throws SQLException {
+		return ofDoctor(doctorId).appointmentStatus(doctorId, apptId);
+	}
+
+	public BookingEngine.Booking bookAppointment(int patientId, int apptId, int doctorId) throws SQLException {
+		int hospital = hospitalOfDoctor(doctorId);
+		int shard = hospital < 0 ? 0 : this._map.shardOf(hospital);
+		BookingEngine.Booking booking = this._shards[shard].bookAppointment(patientId, apptId, doctorId);
+		if (booking.outcome == BookingEngine.Outcome.NOT_FOUND && moved(hospital, shard))
+			booking = this._shards[this._map.shardOf(hospital)].bookAppointment(patientId, apptId, doctorId);
+		return booked(booking);
+	}
+
+	/**
+	 * Method to book an appointment of a doctor, adding the patient to
+	 * every shard first if they are not in the database yet.
+	 */
+	public BookingEngine.Booking bookAppointment(int patientId, int apptId, int doctorId, BookingEngine.NewPatient newPatient) throws SQLException {
+		if (newPatient != null && !patientExists(patientId))
+			addPatient(patientId, newPatient.name, newPatient.gender, newPatient.age, newPatient.address, 0);
+		return bookAppointment(patientId, apptId, doctorId);
+	}
+
+	public String releaseAppointment(int doctorId, int apptId) throws SQLException {
+		int hospital = hospitalOfDoctor(doctorId);
+		int shard = hospital < 0 ? 0 : this._map.shardOf(hospital);
+		String status = this._shards[shard].releaseAppointment(doctorId, apptId);
+		if (status == null && moved(hospital, shard))
+			status = this._shards[this._map.shardOf(hospital)].releaseAppointment(doctorId, apptId);
+		return status;
+	}
+
+	public List<Waitlist.Waiter> waitlist(final int apptId) throws SQLException {
+		for (List<Waitlist.Waiter> waiters : gather(new ShardCall<List<Waitlist.Waiter>>(){
+			public List<Waitlist.Waiter> call(HospitalService shard) throws SQLException {
+				return shard.waitlist(apptId);
+			}
+		}))
+			if (!waiters.isEmpty()) return waiters;
+		return new ArrayList<Waitlist.Waiter>();
+	}
+
+	public List<Appointment> listAppointmentsOfDoctor(int doctorId, LocalDate from, LocalDate to) throws SQLException {
+		return ofDoctor(doctorId).listAppointmentsOfDoctor(doctorId, from, to);
+	}
+
+	public void listAppointmentsOfDoctor(int doctorId, LocalDate from, LocalDate to, Sink<Appointment> sink) throws SQLException {
+		ofDoctor(doctorId).listAppointmentsOfDoctor(doctorId, from, to, sink);
+	}
+
+	//these three are merged in order from every shard, so the merged list is handed to the sink
+	public void listAvailable(String department, LocalDate date, Sink<Integer> sink) throws SQLException {
+		for (Integer id : listAvailable(department, date)) sink.accept(id);
+	}
+
+	public void listAvailable(String department, LocalDateTime from, LocalDateTime to, Sink<Appointment> sink) throws SQLException {
+		for (Appointment appt : listAvailable(department, from, to)) sink.accept(appt);
+	}
+
+	public void statusCountPerDoctor(Sink<DoctorStatusCount> sink) throws SQLException {
+		for (DoctorStatusCount count : statusCountPerDoctor()) sink.accept(count);
+	}
+
+	/**
+	 * Method to hand the patient counts of every shard to a sink, one shard
+	 * after the other, as the report has no order to merge.
+	 */
+	public void patientCountWithStatus(String status, Sink<DoctorPatientCount> sink) throws SQLException {
+		for (HospitalService shard : this._shards) shard.patientCountWithStatus(status, sink);
+	}
+
+	/**
+	 * Method to list the IDs of the available appointments of the
+	 * departments with a name in every hospital, in order.
+	 */
+	public List<Integer> listAvailable(final String department, final LocalDate date) throws SQLException {
+		List<Integer> result = new ArrayList<Integer>();
+		for (List<Integer> ids : gather(new ShardCall<List<Integer>>(){
+			public List<Integer> call(HospitalService shard) throws SQLException {
+				return shard.listAvailable(department, date);
+			}
+		}))
+			result.addAll(ids);
+		Collections.sort(result);
+		return result;
+	}
+
+	public Appointment nextAvailable(int doctorId, LocalDateTime after) throws SQLException {
+		return ofDoctor(doctorId).nextAvailable(doctorId, after);
+	}
+
+	public List<Appointment> listAvailable(final String department, final LocalDateTime from, final LocalDateTime to) throws SQLException {
+		List<Appointment> result = new ArrayList<Appointment>();
+		for (List<Appointment> appointments : gather(new ShardCall<List<Appointment>>(){
+			public List<Appointment> call(HospitalService shard) throws SQLException {
+				return shard.listAvailable(department, from, to);
+			}
+		}))
+			result.addAll(appointments);
+		// earliest slot first, as each shard sorted its own
+		Collections.sort(result, new Comparator<Appointment>(){
+			public int compare(Appointment a, Appointment b){
+				int c = a.date.atTime(parseTimeSlot(a.timeSlot)[0]).compareTo(b.date.atTime(parseTimeSlot(b.timeSlot)[0]));
+				return c != 0 ? c : Integer.compare(a.id, b.id);
+			}
+		});
+		return result;
+	}
+
+	public List<DoctorStatusCount> statusCountPerDoctor() throws SQLException {
+		List<DoctorStatusCount> result = new ArrayList<DoctorStatusCount>();
+		for (List<DoctorStatusCount> counts : gather(new ShardCall<List<DoctorStatusCount>>(){
+			public List<DoctorStatusCount> call(HospitalService shard) throws SQLException {
+				return shard.statusCountPerDoctor();
+			}
+		}))
+			result.addAll(counts);
+		// a doctor is on one shard only, so the counts need no adding up
+		Collections.sort(result, new Comparator<DoctorStatusCount>(){
+			public int compare(DoctorStatusCount a, DoctorStatusCount b){
+				return Long.compare(b.count, a.count);
+			}
+		});
+		return result;
+	}
+
+	public List<DoctorPatientCount> patientCountWithStatus(final String status) throws SQLException {
+		List<DoctorPatientCount> result = new ArrayList<DoctorPatientCount>();
+		for (List<DoctorPatientCount> counts : gather(new ShardCall<List<DoctorPatientCount>>(){
+			public List<DoctorPatientCount> call(HospitalService shard) throws SQLException {
+				return shard.patientCountWithStatus(status);
+			}
+		}))
+			result.addAll(counts);
+		return result;
+	}
+
+	/**
+	 * @return the service of the shard of a doctor's hospital, or of the
+	 * first shard when no shard knows the doctor
+	 */
+	HospitalService ofDoctor(int doctorId){
+		int hospital = hospitalOfDoctor(doctorId);
+		return this._shards[hospital < 0 ? 0 : this._map.shardOf(hospital)];
+	}
+
+	/**
+	 * @return the hospital of a doctor in the reference cache of any shard,
+	 * or -1 when no shard knows the doctor
+	 */
+	private int hospitalOfDoctor(int doctorId){
+		for (HospitalService shard : this._shards){
+			int hospital = shard.getReferenceCache().hospitalOfDoctor(doctorId);
+			if (hospital >= 0) return hospital;
+		}//end for
+		return -1;
+	}
+
+	/**
+	 * @return whether a hospital that was on a shard is now placed on
+	 * another, rereading the shard map if it changed
+	 */
+	private boolean moved(int hospital, int shard){
+		return hospital >= 0 && this._map.currentShardOf(hospital) != shard;
+	}
+
+	/**
+	 * Method to run an operation on every shard at once.
+	 *
+	 * @return the result of each shard, in shard order
+	 * @throws java.sql.SQLException the first failure, once every shard finished
+	 */
+	<T> List<T> gather(final ShardCall<T> query) throws SQLException {
+		List<Future<T>> futures = new ArrayList<Future<T>>(this._shards.length);
+		for (final HospitalService shard : this._shards){
+			futures.add(this._gather.submit(new Callable<T>(){
+				public T call() throws SQLException {
+					return query.call(shard);
+				}
+			}));
+		}//end for
+		List<T> results = new ArrayList<T>(futures.size());
+		Exception failure = null;
+		for (Future<T> future : futures){
+			try{
+				results.add(future.get());
+			}catch (ExecutionException e){
+				if (failure == null) failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the shards");
+			}//end try
+		}//end for
+		if (failure instanceof SQLException) throw (SQLException) failure;
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure != null) throw new SQLException(failure.getMessage(), failure);
+		return results;
+	}
+
+	//the patient of a booking holds the appointments of one shard, so the caller reads it again
+	private BookingEngine.Booking booked(BookingEngine.Booking booking){
+		if (booking.patient == null || this._shards.length == 1) return booking;
+		return new BookingEngine.Booking(booking.outcome, booking.previousStatus, booking.status, booking.hospitalId,
+			booking.attempts, booking.appointment, null);
+	}
+
+	/**
+	 * Method to open the services of the shards named by the shard map in
+	 * the system property dbproject.shards, or return null when it is not set.
+	 */
+	static ShardedService fromSystemProperties(String dbname, String user, String passwd, int poolSize) throws IOException, SQLException {
+		String path = System.getProperty("dbproject.shards", "");
+		if (path.isEmpty()) return null;
+		return new ShardedService(ShardMap.load(path), dbname, user, passwd, poolSize);
+	}
+}
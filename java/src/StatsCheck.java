@@ -0,0 +1,72 @@
+/*
+ * Statistics check
+ * ================
+ *
+ * Compares the trigger maintained doctor_status_stats summary of
+ * sql/triggers.sql with a recount from the base tables and reports every
+ * doctor and status where the two disagree.
+ *
+ * Usage: java -cp lib/*:bin/ StatsCheck <dbname> <port> <user> [--repair]
+ *
+ * With --repair a summary that disagrees is rebuilt from the base tables.
+ * The exit status is 1 when a difference was found and not repaired.
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StatsCheck{
+	//summary and recount in one statement, so both read the same snapshot
+	static final String DIFFERENCES = "SELECT coalesce(S.doctor_id, R.doctor_id), coalesce(S.status, R.status),\n"
+		+ "coalesce(S.appointments, 0), coalesce(R.appointments, 0), coalesce(S.patients, 0), coalesce(R.patients, 0)\n"
+		+ "FROM (SELECT doctor_id, status, appointments, patients FROM doctor_status_stats WHERE appointments <> 0 OR patients <> 0) S\n"
+		+ "FULL JOIN (SELECT H.doctor_id, A.status, count(*) AS appointments, coalesce(sum(C.n), 0) AS patients\n"
+		+ "FROM has_appointment H JOIN Appointment A ON A.appnt_ID = H.appt_id\n"
+		+ "LEFT JOIN (SELECT aid, count(*) AS n FROM searches GROUP BY aid) C ON C.aid = H.appt_id\n"
+		+ "WHERE A.status IS NOT NULL\n"
+		+ "GROUP BY H.doctor_id, A.status) R ON R.doctor_id = S.doctor_id AND R.status = S.status\n"
+		+ "WHERE S.appointments IS DISTINCT FROM R.appointments OR S.patients IS DISTINCT FROM R.patients\n"
+		+ "ORDER BY 1, 2;";
+	static final String SUMMARY_ROWS = "SELECT count(*) FROM doctor_status_stats;";
+	static final String REBUILD = "SELECT rebuild_doctor_status_stats();";
+
+	public static void main (String[] args) throws SQLException {
+		if (args.length < 3) {
+			System.err.println (
+				"Usage: " + "java [-classpath <classpath>] " + StatsCheck.class.getName () +
+		            " <dbname> <port> <user> [--repair]");
+			return;
+		}//end if
+		boolean repair = args.length > 3 && args[3].equals("--repair");
+
+		DBproject esql = new DBproject (args[0], args[1], args[2], "", 1);
+		boolean failed = false;
+		try{
+			final List<String> differences = new ArrayList<String>();
+			esql.executeQueryForEach(DIFFERENCES, new DBproject.RowHandler(){
+				public void handle(DBproject.Row row) throws SQLException {
+					differences.add(String.format("doctor %d %s: summary %d appointments %d patients, recount %d appointments %d patients",
+						row.getInt(1), row.getString(2), row.getLong(3), row.getLong(5), row.getLong(4), row.getLong(6)));
+				}
+			});
+			for (String difference : differences)
+				System.out.println(difference);
+			String rows = esql.executeQueryAndReturnResult(SUMMARY_ROWS).get(0).get(0);
+			System.out.println(differences.size() + " differences in " + rows + " summary rows");
+			if (!differences.isEmpty()){
+				if (repair){
+					esql.executeQuery(REBUILD);
+					System.out.println("Rebuilt the summary from the base tables");
+				}else{
+					failed = true;
+				}//end if
+			}//end if
+		}finally{
+			esql.cleanup ();
+		}
+		if (failed) System.exit(1);
+	}
+}
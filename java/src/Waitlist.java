@@ -0,0 +1,307 @@
+/*
+ * Waitlist
+ * ========
+ *
+ * Keeps the patients waiting for an appointment in the order they asked for
+ * it, and hands a released appointment to the first of them.
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class manages the waitlist table, filled by BookingEngine when an
+ * appointment is already taken, and the appointment_release queue.
+ *
+ * Releasing an appointment that has waiters does not make it available: it
+ * stays waitlisted, so no new booking can overtake the queue, and a row in
+ * appointment_release marks it for promotion. Promotion workers, in this or
+ * any other process, take released appointments with FOR UPDATE SKIP LOCKED,
+ * so each release is handled by exactly one worker and workers never wait
+ * for each other; the Appointment row is only written once per promotion.
+ * Releases are announced on the waitlist channel to wake idle workers.
+ *
+ */
+
+public class Waitlist{
+	static final String CHANNEL = "waitlist";
+	//released appointments a worker promotes in one transaction
+	static final int DEFAULT_BATCH = 32;
+	//how long an idle worker waits for a notification before looking anyway
+	static final long IDLE_MILLIS = 10000;
+
+	static final String ENQUEUE = "INSERT INTO waitlist (appt_id, doctor_id, patient_id) VALUES (?, ?, ?) ON CONFLICT (appt_id, patient_id) DO NOTHING;";
+	static final String IS_WAITING = "SELECT 1 FROM waitlist WHERE appt_id = ? AND patient_id = ?;";
+	static final String LOCK_FOR_RELEASE = "SELECT A.status\nFROM Appointment A, has_appointment H\nWHERE H.doctor_id = ? AND H.appt_id = ? AND H.appt_id = A.appnt_ID\nFOR UPDATE OF A;";
+	static final String HAS_WAITERS = "SELECT 1 FROM waitlist WHERE appt_id = ? LIMIT 1;";
+	static final String MARK_RELEASED = "INSERT INTO appointment_release (appt_id, doctor_id) VALUES (?, ?) ON CONFLICT (appt_id) DO NOTHING;";
+	static final String ANNOUNCE_RELEASE = "SELECT pg_notify('" + CHANNEL + "', ?);";
+	static final String TAKE_RELEASED = "DELETE FROM appointment_release\nWHERE appt_id IN (SELECT appt_id FROM appointment_release ORDER BY released LIMIT ? FOR UPDATE SKIP LOCKED)\nRETURNING appt_id, doctor_id;";
+	static final String DEQUEUE = "DELETE FROM waitlist\nWHERE entry_ID = (SELECT entry_ID FROM waitlist WHERE appt_id = ? ORDER BY entry_ID LIMIT 1 FOR UPDATE SKIP LOCKED)\nRETURNING patient_id;";
+	static final String WAITERS = "SELECT W.patient_id, P.name, W.enqueued\nFROM waitlist W, Patient P\nWHERE W.appt_id = ? AND P.patient_ID = W.patient_id\nORDER BY W.entry_ID;";
+
+	/**
+	 * A patient waiting for an appointment.
+	 */
+	public static final class Waiter{
+		public static final String[] COLUMNS = { "position", "patient_id", "name", "enqueued" };
+
+		public final int position;
+		public final int patientId;
+		public final String name;
+		public final Timestamp enqueued;
+
+		Waiter(int position, int patientId, String name, Timestamp enqueued){
+			this.position = position;
+			this.patientId = patientId;
+			this.name = name;
+			this.enqueued = enqueued;
+		}
+
+		public String[] toRow(){
+			return new String[]{ String.valueOf(this.position), String.valueOf(this.patientId), this.name, String.valueOf(this.enqueued) };
+		}
+	}
+
+	/**
+	 * A released appointment handed to the first patient waiting for it.
+	 */
+	public static final class Promotion{
+		public final int apptId;
+		//-1 when nobody was left waiting and the appointment became available
+		public final int patientId;
+		public final String status;
+
+		Promotion(int apptId, int patientId, String status){
+			this.apptId = apptId;
+			this.patientId = patientId;
+			this.status = status;
+		}
+	}
+
+	private final DBproject _esql;
+	//signalled by releases, so idle workers look at once
+	private final Object _released = new Object();
+	//counts the signals, so a release during a fruitless look is not slept through
+	private long _signals = 0;
+	private final List<Thread> _workers = new ArrayList<Thread>();
+	private volatile boolean _closed = false;
+	private final LongAdder _promotions = new LongAdder();
+	private final LongAdder _releases = new LongAdder();
+
+	public Waitlist(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to wake the workers when another process releases an
+	 * appointment.
+	 *
+	 * @return this waitlist
+	 */
+	public Waitlist subscribe(ReferenceCache cache){
+		final Waitlist waitlist = this;
+		cache.subscribe(CHANNEL, new ReferenceCache.Subscriber(){
+			public void notified(List<String> payloads){
+				waitlist.wake();
+			}
+			public void missed(){
+				waitlist.wake();
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Method to start promotion workers on daemon threads. They run until
+	 * the waitlist is closed.
+	 *
+	 * @return this waitlist
+	 */
+	public synchronized Waitlist start(int workers){
+		for (int w = 0; w < workers; ++w){
+			Thread worker = new Thread(new Runnable(){
+				public void run(){
+					work();
+				}
+			}, "waitlist-promoter-" + this._workers.size());
+			worker.setDaemon(true);
+			worker.start();
+			this._workers.add(worker);
+		}//end for
+		return this;
+	}
+
+	/**
+	 * Method to stop the promotion workers.
+	 */
+	public void close(){
+		this._closed = true;
+		wake();
+	}
+
+	/**
+	 * Method to give up the active booking of an appointment. With patients
+	 * waiting, the appointment is queued for promotion and stays waitlisted;
+	 * without, it becomes available.
+	 *
+	 * @return the status of the appointment afterwards, or null if the doctor
+	 * has no such appointment
+	 * @throws IllegalArgumentException when the appointment is not booked
+	 */
+	public String release(int doctorId, int apptId) throws SQLException {
+		ConnectionPool.Lease lease = borrow();
+		try{
+			lease.getConnection().setAutoCommit(false);
+			String status = first(lease, LOCK_FOR_RELEASE, doctorId, apptId);
+			if (status == null){
+				lease.getConnection().rollback();
+				return null;
+			}//end if
+			if (!status.equals("AC") && !status.equals("WL")){
+				lease.getConnection().rollback();
+				throw new IllegalArgumentException("Appointment " + apptId + " is not booked, its status is " + status);
+			}//end if
+			boolean waiting = first(lease, HAS_WAITERS, apptId) != null;
+			String next = waiting ? "WL" : "AV";
+			if (!next.equals(status))
+				DBproject.prepare(lease, DBproject.UPDATE_APPOINTMENT_STATUS, next, apptId).executeUpdate();
+			if (waiting){
+				DBproject.prepare(lease, MARK_RELEASED, apptId, doctorId).executeUpdate();
+				first(lease, ANNOUNCE_RELEASE, String.valueOf(apptId));
+			}//end if
+			lease.getConnection().commit();
+			this._releases.increment();
+			if (waiting) wake();
+			return next;
+		}catch (SQLException e){
+			lease.getConnection().rollback();
+			throw e;
+		}finally{
+			this._esql.getPool().release(lease);
+		}
+	}
+
+	/**
+	 * Method to promote the first waiter of up to batch released
+	 * appointments in one transaction. Appointments taken by another worker
+	 * are skipped, not waited for.
+	 *
+	 * @return the promotions made, empty when no appointment was released
+	 */
+	public List<Promotion> promote(int batch) throws SQLException {
+		List<Promotion> promotions = new ArrayList<Promotion>();
+		ConnectionPool.Lease lease = borrow();
+		try{
+			lease.getConnection().setAutoCommit(false);
+			List<int[]> released = new ArrayList<int[]>();
+			ResultSet rs = DBproject.prepare(lease, TAKE_RELEASED, batch).executeQuery();
+			try{
+				while (rs.next()) released.add(new int[]{ rs.getInt(1), rs.getInt(2) });
+			}finally{
+				rs.close();
+			}
+			for (int[] appt : released){
+				int apptId = appt[0];
+				// no booking may join the queue between the dequeue and the status update
+				if (first(lease, LOCK_FOR_RELEASE, appt[1], apptId) == null) continue;
+				String patient = first(lease, DEQUEUE, apptId);
+				String status = patient == null ? "AV" : first(lease, HAS_WAITERS, apptId) != null ? "WL" : "AC";
+				DBproject.prepare(lease, DBproject.UPDATE_APPOINTMENT_STATUS, status, apptId).executeUpdate();
+				promotions.add(new Promotion(apptId, patient == null ? -1 : Integer.parseInt(patient), status));
+			}//end for
+			lease.getConnection().commit();
+		}catch (SQLException e){
+			lease.getConnection().rollback();
+			throw e;
+		}finally{
+			this._esql.getPool().release(lease);
+		}
+		this._promotions.add(promotions.size());
+		return promotions;
+	}
+
+	/**
+	 * Method to list the patients waiting for an appointment, first in line first.
+	 */
+	public List<Waiter> waiters(int apptId) throws SQLException {
+		final List<Waiter> result = new ArrayList<Waiter>();
+		this._esql.executeQueryForEach(WAITERS, new DBproject.RowHandler(){
+			public void handle(DBproject.Row row) throws SQLException {
+				result.add(new Waiter(result.size() + 1, row.getInt(1), row.getString(2), row.getTimestamp(3)));
+			}
+		}, apptId);
+		return result;
+	}
+
+	public long getPromotions(){
+		return this._promotions.sum();
+	}
+
+	public String toString(){
+		return String.format("waitlist: %d releases, %d promotions, %d workers", this._releases.sum(), getPromotions(), this._workers.size());
+	}
+
+	private void wake(){
+		synchronized (this._released){
+			++this._signals;
+			this._released.notifyAll();
+		}
+	}
+
+	/**
+	 * Promotes released appointments until there are none left, then sleeps
+	 * until woken or IDLE_MILLIS have passed.
+	 */
+	private void work(){
+		while (!this._closed){
+			long signals;
+			synchronized (this._released){
+				signals = this._signals;
+			}
+			int promoted;
+			try{
+				promoted = promote(DEFAULT_BATCH).size();
+			}catch (SQLException e){
+				// the releases stay queued for the next attempt
+				promoted = 0;
+			}//end try
+			if (promoted > 0) continue;
+			synchronized (this._released){
+				try{
+					if (!this._closed && signals == this._signals) this._released.wait(IDLE_MILLIS);
+				}catch (InterruptedException e){
+					return;
+				}//end try
+			}
+		}//end while
+	}
+
+	/**
+	 * @return a connection of the pool, for the row locks of a release or
+	 * promotion, which a backend such as MemoryEngine does not have
+	 */
+	private ConnectionPool.Lease borrow() throws SQLException {
+		if (this._esql.getPool() == null)
+			throw new SQLException("Releasing appointments needs PostgreSQL, the backend has no row locks", "0A000");
+		return this._esql.getPool().borrow();
+	}
+
+	/**
+	 * @return the first column of the first row, or null when there is none
+	 */
+	private static String first(ConnectionPool.Lease lease, String query, Object... params) throws SQLException {
+		ResultSet rs = DBproject.prepare(lease, query, params).executeQuery();
+		try{
+			return rs.next() ? rs.getString(1) : null;
+		}finally{
+			rs.close();
+		}
+	}
+}
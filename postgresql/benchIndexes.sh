@@ -0,0 +1,36 @@
+#! /bin/bash
+# Loads a scaled copy of the schema into a scratch database and records the
+# EXPLAIN ANALYZE timing of every menu query before and after sql/indexes.sql.
+# Example: bash benchIndexes.sh 5000000
+APPOINTMENTS=${1:-1000000}
+DB=$USER"_bench"
+PSQL="psql -h localhost -p $PGPORT -q -v ON_ERROR_STOP=1 $DB"
+OUT=bench_indexes_$APPOINTMENTS
+
+echo "creating db named ... "$DB
+dropdb -h localhost -p $PGPORT --if-exists $DB
+createdb -h localhost -p $PGPORT $DB
+
+echo "Generating $APPOINTMENTS appointments ... "
+$PSQL < ../sql/create.sql || exit 1
+$PSQL -v appointments=$APPOINTMENTS -f ../sql/bench/scale.sql || exit 1
+
+echo "Timing menu queries without indexes ... "
+$PSQL -f ../sql/bench/menu_queries.sql > $OUT.before.txt || exit 1
+
+echo "Building indexes ... "
+$PSQL -f ../sql/indexes.sql || exit 1
+
+echo "Timing menu queries with indexes ... "
+$PSQL -f ../sql/bench/menu_queries.sql > $OUT.after.txt || exit 1
+
+# one line per query: name, execution time before, execution time after
+summary() {
+	awk '/^#/ { name = $0 } /Execution [Tt]ime/ { print name "\t" $3 }' $1
+}
+echo
+printf "%-45s %12s %12s\n" "query" "before (ms)" "after (ms)"
+paste <(summary $OUT.before.txt) <(summary $OUT.after.txt | cut -f2) | \
+	awk -F'\t' '{ printf "%-45s %12s %12s\n", $1, $2, $3 }'
+echo
+echo "Full plans in $OUT.before.txt and $OUT.after.txt"
@@ -0,0 +1,53 @@
+#! /bin/bash
+# Times menu options 5 and 6 on a recent period while the appointment history
+# grows, once with a plain Appointment table and once partitioned by month
+# (sql/partition.sql). New days have the same number of appointments and
+# doctors at every size, so only the history grows.
+# Example: bash benchPartitions.sh 1000000 10000000 100000000
+SIZES=${@:-1000000 10000000 100000000}
+PER_DAY=10000
+DOCTORS=5000
+RUNS=5
+DB=$USER"_history"
+PSQL="psql -h localhost -p $PGPORT -q -v ON_ERROR_STOP=1 $DB"
+OUT=bench_partitions
+
+# fastest execution time of each query over the runs in a file
+best() {
+	awk '/^#/ { name = $0 } /Execution [Tt]ime/ { if (!(name in t) || $3 < t[name]) t[name] = $3 }
+		END { for (name in t) print name "\t" t[name] }' $1 | sort
+}
+
+rm -f $OUT.txt
+for N in $SIZES; do
+	DAYS=$(( N / PER_DAY ))
+	# the last month of the history
+	END=$(date -d "2020-01-01 + $DAYS days" +%F)
+	START=$(date -d "$END - 3 months" +%F)
+	DAY=$(date -d "$END - 14 days" +%F)
+	for LAYOUT in plain partitioned; do
+		echo "Loading $N appointments over $DAYS days, $LAYOUT ... "
+		dropdb -h localhost -p $PGPORT --if-exists $DB
+		createdb -h localhost -p $PGPORT $DB
+		$PSQL < ../sql/create.sql || exit 1
+		$PSQL -v appointments=$N -v days=$DAYS -v doctors=$DOCTORS -f ../sql/bench/scale.sql || exit 1
+		if [ $LAYOUT == partitioned ]; then
+			(cd ../sql && $PSQL -f partition.sql) || exit 1
+		else
+			(cd ../sql && $PSQL -f triggers.sql && $PSQL -f indexes.sql) || exit 1
+		fi
+		rm -f $OUT.$N.$LAYOUT.txt
+		for RUN in $(seq $RUNS); do
+			$PSQL -v doctor=11 -v dept=Pediatric -v date=$DAY -v start_date=$START -v end_date=$END \
+				-f ../sql/bench/history_queries.sql >> $OUT.$N.$LAYOUT.txt || exit 1
+		done
+		best $OUT.$N.$LAYOUT.txt | awk -F'\t' -v n=$N -v l=$LAYOUT '{ printf "%-12s %-12s %-45s %10s\n", n, l, $1, $2 }' >> $OUT.txt
+	done
+done
+dropdb -h localhost -p $PGPORT --if-exists $DB
+
+echo
+printf "%-12s %-12s %-45s %10s\n" "rows" "layout" "query" "best (ms)"
+cat $OUT.txt
+echo
+echo "Full plans in $OUT.<rows>.<layout>.txt"
@@ -3,10 +3,32 @@ echo "creating db named ... "$USER"_DB"
 createdb -h localhost -p $PGPORT $USER"_DB"
 pg_ctl status
 
+echo "Initializing tables .. "
+sleep 1
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
+
+if [ "$1" == "--client-load" ]; then
+	# stream the csv files from this machine instead of the server's data dir
+	echo "Loading csv files ... "
+	(cd ../java && bash load.sh ../data)
+	psql -h localhost -p $PGPORT $USER"_DB" < ../sql/triggers.sql
+	psql -h localhost -p $PGPORT $USER"_DB" < ../sql/booking.sql
+	psql -h localhost -p $PGPORT $USER"_DB" < ../sql/indexes.sql
+	exit
+fi
+
 echo "Copying csv files ... "
 sleep 1
 cp ../data/*.csv /tmp/$USER/myDB/data/.
 
-echo "Initializing tables .. "
-sleep 1
-psql -h localhost -p $PGPORT $USER"_DB" < ../sql/create.sql
\ No newline at end of file
+echo "Loading csv files ... "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/load.sql
+
+echo "Creating triggers ... "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/triggers.sql
+
+echo "Creating functions ... "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/booking.sql
+
+echo "Building indexes ... "
+psql -h localhost -p $PGPORT $USER"_DB" < ../sql/indexes.sql
\ No newline at end of file
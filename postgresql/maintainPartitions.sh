@@ -0,0 +1,11 @@
+#! /bin/bash
+# Creates the monthly Appointment partitions for the coming months and
+# archives the months that are over and hold only past appointments. Needs a
+# database converted by sql/partition.sql; run it daily from cron.
+# Example: bash maintainPartitions.sh 12 24
+AHEAD=${1:-12}
+KEEP=${2:-24}
+PSQL="psql -h localhost -p $PGPORT -q -t -v ON_ERROR_STOP=1 $USER"_DB""
+
+echo "partitions created: "$($PSQL -c "SELECT create_appointment_partitions(current_date, (current_date + interval '$AHEAD months')::date);")
+echo "partitions archived: "$($PSQL -c "SELECT archive_appointment_partitions((date_trunc('month', current_date) - interval '$KEEP months')::date);")
@@ -0,0 +1,23 @@
+#! /bin/bash
+# Starts a streaming replica of the server started by startPostgreSQL.sh, for
+# reading listings and reports from it (java -Ddbproject.replicas=<port>).
+# Run after startPostgreSQL.sh in the same shell; the replica copies every
+# database of the primary and follows it from then on.
+# Example: bash startReplica.sh 10000
+folder=/tmp/$USER
+PRIMARY_PORT=${PGPORT:-9999}
+REPLICA_PORT=${1:-10000}
+REPLICA=$folder/replica$REPLICA_PORT
+
+echo $REPLICA
+
+#Clear folder
+rm -rf $REPLICA
+mkdir -p $REPLICA/sockets
+
+#Copy the primary; -R writes the settings that keep the copy following it
+pg_basebackup -h localhost -p $PRIMARY_PORT -D $REPLICA/data -R -X stream -c fast || exit 1
+chmod 700 $REPLICA/data
+
+#Start the replica
+pg_ctl -o "-c unix_socket_directories=$REPLICA/sockets -p $REPLICA_PORT" -D $REPLICA/data -l $REPLICA/logfile start
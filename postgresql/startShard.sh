@@ -0,0 +1,35 @@
+#! /bin/bash
+# Starts another instance as an empty shard for java/shards.properties: the
+# schema, the Hospital and Patient tables, which every shard holds, and
+# nothing else. Hospitals are then moved to it with java/rebalance.sh.
+# Example: bash startShard.sh 10100
+folder=/tmp/$USER
+SHARD_PORT=${1:-10100}
+SHARD=$folder/shard$SHARD_PORT
+DB=$USER"_DB"
+PSQL="psql -h localhost -p $SHARD_PORT -q -v ON_ERROR_STOP=1 $DB"
+
+echo $SHARD
+
+#Clear folder
+rm -rf $SHARD
+mkdir -p $SHARD/data $SHARD/sockets
+
+#Initialize and start the instance
+initdb -D $SHARD/data || exit 1
+pg_ctl -o "-c unix_socket_directories=$SHARD/sockets -p $SHARD_PORT" -D $SHARD/data -l $SHARD/logfile -w start || exit 1
+
+echo "creating db named ... "$DB
+createdb -h localhost -p $SHARD_PORT $DB
+
+echo "Initializing tables .. "
+$PSQL < ../sql/create.sql || exit 1
+$PSQL -c "\copy Hospital (hospital_ID, name) FROM '../data/hospital.csv' WITH DELIMITER ','" || exit 1
+$PSQL -c "\copy Patient (patient_ID, name, gtype, age, address, number_of_appts) FROM '../data/patient.csv' WITH DELIMITER ','" || exit 1
+
+echo "Creating triggers and functions ... "
+$PSQL < ../sql/triggers.sql || exit 1
+$PSQL < ../sql/booking.sql || exit 1
+
+echo "Building indexes ... "
+$PSQL < ../sql/indexes.sql
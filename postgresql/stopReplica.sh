@@ -0,0 +1,7 @@
+#! /bin/bash
+# Stops a replica started by startReplica.sh.
+# Example: bash stopReplica.sh 10000
+folder=/tmp/$USER
+REPLICA_PORT=${1:-10000}
+REPLICA=$folder/replica$REPLICA_PORT
+pg_ctl -D $REPLICA/data -l $REPLICA/logfile stop
@@ -0,0 +1,15 @@
+-- EXPLAIN ANALYZE of menu options 5 and 6 for a recent period, with the
+-- parameters given on the command line. Usage:
+-- psql -v doctor=11 -v dept=Pediatric -v date=2021-01-04 -v start_date=2021-01-01 -v end_date=2021-03-31 -f history_queries.sql
+
+\echo '#5 appointments of doctor'
+EXPLAIN ANALYZE SELECT A.appnt_ID, A.adate, A.time_slot, A.status
+FROM Appointment A, has_appointment H
+WHERE H.doctor_id = :doctor AND H.appt_id = A.appnt_ID AND (A.status = 'AV' or A.status = 'AC') AND (A.adate >= :'start_date' AND A.adate <= :'end_date')
+GROUP BY A.appnt_ID, A.adate;
+
+\echo '#6 available appointments of department'
+EXPLAIN ANALYZE SELECT A.appnt_ID
+FROM Doctor D, has_appointment H, Appointment A
+WHERE D.did IN (SELECT DT.dept_ID FROM Department DT WHERE DT.name = :'dept') AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = :'date'
+GROUP BY A.appnt_ID;
@@ -0,0 +1,59 @@
+-- EXPLAIN ANALYZE of every query the DBproject menu issues, with sample
+-- parameters. Usage: psql -f menu_queries.sql
+
+\set doctor 11
+\set appt 1011
+\set dept Pediatric
+\set start_date 2021-01-01
+\set end_date 2021-03-31
+\set date 2021-01-04
+\set status AC
+
+\echo '#4 appointment status'
+EXPLAIN ANALYZE SELECT A.status
+FROM Appointment A, has_appointment H
+WHERE H.doctor_id = :doctor AND H.appt_id = :appt AND H.appt_id = A.appnt_ID;
+
+\echo '#4 hospital of appointment'
+EXPLAIN ANALYZE SELECT DT.hid
+FROM has_appointment HA, Doctor D, Department DT
+WHERE HA.appt_id = :appt AND HA.doctor_id = :doctor AND HA.doctor_id = D.doctor_ID AND D.did = DT.dept_ID;
+
+\echo '#5 appointments of doctor'
+EXPLAIN ANALYZE SELECT A.appnt_ID, A.adate, A.time_slot, A.status
+FROM Appointment A, has_appointment H
+WHERE H.doctor_id = :doctor AND H.appt_id = A.appnt_ID AND (A.status = 'AV' or A.status = 'AC') AND (A.adate >= :'start_date' AND A.adate <= :'end_date')
+GROUP BY A.appnt_ID, A.adate;
+
+\echo '#6 available appointments of department'
+EXPLAIN ANALYZE SELECT A.appnt_ID
+FROM Doctor D, has_appointment H, Appointment A
+WHERE D.did IN (SELECT DT.dept_ID FROM Department DT WHERE DT.name = :'dept') AND H.doctor_id = D.doctor_ID AND H.appt_id = A.appnt_ID AND A.status = 'AV' AND A.adate = :'date'
+GROUP BY A.appnt_ID;
+
+\echo '#7 appointments per doctor and status'
+EXPLAIN ANALYZE SELECT D.doctor_ID, D.name, D.specialty, S.status, S.appointments AS NumAppnts
+FROM doctor_status_stats S, Doctor D
+WHERE S.doctor_id = D.doctor_ID AND S.appointments > 0
+ORDER BY NumAppnts Desc;
+
+\echo '#8 patients per doctor with status'
+EXPLAIN ANALYZE SELECT D.doctor_ID, D.name, D.specialty, S.patients AS NumPatients
+FROM doctor_status_stats S, Doctor D
+WHERE S.doctor_id = D.doctor_ID AND S.status = :'status' AND S.patients > 0;
+
+-- the recounts of #7 and #8 from the base tables, which the menu falls
+-- back to on a database without the doctor_status_stats summary
+
+\echo '#7 fallback: appointments per doctor and status recounted'
+EXPLAIN ANALYZE SELECT D.doctor_ID, D.name, D.specialty, A.status, count(A.status) AS NumAppnts
+FROM Doctor D, Appointment A, has_appointment H
+WHERE H.doctor_id = D.doctor_ID AND A.appnt_ID = H.appt_id
+GROUP BY D.doctor_ID, D.name, D.specialty, A.status
+ORDER BY NumAppnts Desc;
+
+\echo '#8 fallback: patients per doctor with status recounted'
+EXPLAIN ANALYZE SELECT D.doctor_ID, D.name, D.specialty, count(S.pid) AS NumPatients
+FROM Doctor D, Searches S, has_appointment H, Appointment A
+WHERE H.doctor_id = D.doctor_ID AND A.status = :'status' AND A.appnt_ID = S.aid AND H.appt_id = S.aid
+GROUP BY D.doctor_ID, D.name, D.specialty;
@@ -0,0 +1,54 @@
+-- Fills an empty schema (sql/create.sql) with synthetic rows for benchmarking.
+-- Usage: psql -v appointments=1000000 [-v days=1095] [-v doctors=5000] -f scale.sql
+-- Appointments are spread over the given number of days from 2020-01-01.
+
+SELECT greatest(:appointments / 1000, 100) AS staff,
+	greatest(:appointments / 5, 250) AS patients \gset
+\if :{?days}
+\else
+\set days 1095
+\endif
+\if :{?doctors}
+\else
+SELECT greatest(:appointments / 200, 250) AS doctors \gset
+\endif
+
+INSERT INTO Hospital (hospital_ID, name)
+SELECT h, 'Hospital ' || h FROM generate_series(0, 9) h;
+
+INSERT INTO Department (dept_ID, name, hid)
+SELECT d, (ARRAY['Cardiology', 'Pediatric', 'Neurology', 'Oncology', 'Radiology', 'Dermatology', 'Orthopedics', 'Urology',
+	'Psychiatry', 'Gastroenterology'])[1 + d / 10 % 10], d % 10
+FROM generate_series(0, 199) d;
+
+INSERT INTO Staff (staff_ID, name, hid)
+SELECT s, 'Staff ' || s, s % 10 FROM generate_series(0, :staff - 1) s;
+
+INSERT INTO Doctor (doctor_ID, name, specialty, did)
+SELECT d, 'Doctor ' || d, 'Specialty ' || d % 20, d % 200 FROM generate_series(0, :doctors - 1) d;
+
+INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts)
+SELECT p, 'Patient ' || p, CASE WHEN p % 2 = 0 THEN 'F' ELSE 'M' END, 1 + p % 90, p || ' Main Street', 0
+FROM generate_series(0, :patients - 1) p;
+
+INSERT INTO Appointment (appnt_ID, adate, time_slot, status)
+SELECT a, DATE '2020-01-01' + a % :days, (8 + 2 * (a % 5)) || ':00-' || (10 + 2 * (a % 5)) || ':00',
+	(ARRAY['PA', 'AC', 'AV', 'WL'])[1 + a % 4]
+FROM generate_series(0, :appointments - 1) a;
+
+INSERT INTO has_appointment (appt_id, doctor_id)
+SELECT a, a % :doctors FROM generate_series(0, :appointments - 1) a;
+
+INSERT INTO schedules (appt_id, staff_id)
+SELECT a, a % :staff FROM generate_series(0, :appointments - 1) a;
+
+INSERT INTO request_maintenance (patient_per_hour, dept_name, time_slot, did, sid)
+SELECT 1 + D.doctor_ID % 5, DT.name, '8:00-10:00', D.doctor_ID, D.doctor_ID % :staff
+FROM Doctor D, Department DT WHERE D.did = DT.dept_ID;
+
+-- every appointment that is not available has been searched by one patient
+INSERT INTO searches (hid, pid, aid)
+SELECT a % :doctors % 200 % 10, a * 7 % :patients, a
+FROM generate_series(0, :appointments - 1) a WHERE a % 4 <> 2;
+
+ANALYZE;
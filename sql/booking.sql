@@ -0,0 +1,89 @@
+-------------
+---BOOKING---
+-------------
+-- MakeAppointment as one server-side call. book_appointment does what
+-- BookingEngine does step by step (lock the appointment, update its status,
+-- count or add the patient, queue a waitlisted patient, record the search)
+-- and returns the appointment and the patient as they are afterwards, so a
+-- booking is a single round trip. Run after sql/triggers.sql; the script is
+-- idempotent. Without it BookingEngine books step by step.
+--
+-- The outcome is BOOKED, WAITLISTED, ALREADY_WAITLISTED, UNAVAILABLE or
+-- NOT_FOUND as in BookingEngine.Outcome, or LOCKED when another booking holds the
+-- appointment row; nothing is written then and the caller tries again.
+-- p_hospital is the hospital of the doctor when the caller knows it, or
+-- NULL to look it up. p_name to p_address describe a patient to add when
+-- p_patient does not exist; with p_name NULL a missing patient is an error.
+
+CREATE OR REPLACE FUNCTION book_appointment(p_patient INTEGER, p_doctor INTEGER, p_appt INTEGER, p_hospital INTEGER,
+	p_name VARCHAR, p_gender VARCHAR, p_age INTEGER, p_address VARCHAR,
+	OUT outcome TEXT, OUT previous_status TEXT, OUT new_status TEXT, OUT hospital INTEGER,
+	OUT appt_date DATE, OUT appt_time_slot TEXT,
+	OUT patient_name TEXT, OUT patient_gender TEXT, OUT patient_age INTEGER, OUT patient_address TEXT, OUT patient_appointments INTEGER) AS $$
+BEGIN
+	-- lock the appointment row, skipping it if another booking holds it
+	SELECT A.status, A.adate, A.time_slot INTO previous_status, appt_date, appt_time_slot
+	FROM Appointment A, has_appointment H
+	WHERE H.doctor_id = p_doctor AND H.appt_id = p_appt AND H.appt_id = A.appnt_ID
+	FOR UPDATE OF A SKIP LOCKED;
+	IF NOT FOUND THEN
+		PERFORM 1 FROM Appointment A, has_appointment H
+		WHERE H.doctor_id = p_doctor AND H.appt_id = p_appt AND H.appt_id = A.appnt_ID;
+		outcome := CASE WHEN FOUND THEN 'LOCKED' ELSE 'NOT_FOUND' END;
+		RETURN;
+	END IF;
+
+	IF previous_status = 'AV' THEN
+		new_status := 'AC';
+		outcome := 'BOOKED';
+	ELSIF previous_status IN ('AC', 'WL') THEN
+		new_status := 'WL';
+		outcome := 'WAITLISTED';
+		PERFORM 1 FROM waitlist WHERE appt_id = p_appt AND patient_id = p_patient;
+		IF FOUND THEN
+			new_status := previous_status;
+			outcome := 'ALREADY_WAITLISTED';
+			RETURN;
+		END IF;
+	ELSE -- appointment has already passed --> no longer available
+		new_status := previous_status;
+		outcome := 'UNAVAILABLE';
+		RETURN;
+	END IF;
+	IF new_status <> previous_status THEN
+		UPDATE Appointment SET status = new_status WHERE appnt_ID = p_appt;
+	END IF;
+
+	-- count the appointment for the patient, adding the patient if needed
+	UPDATE Patient SET number_of_appts = number_of_appts + 1 WHERE patient_ID = p_patient
+	RETURNING name, gtype, age, address, number_of_appts
+	INTO patient_name, patient_gender, patient_age, patient_address, patient_appointments;
+	IF NOT FOUND THEN
+		IF p_name IS NULL THEN
+			RAISE EXCEPTION 'Patient % does not exist', p_patient USING ERRCODE = 'foreign_key_violation';
+		END IF;
+		INSERT INTO Patient (patient_ID, name, gtype, age, address, number_of_appts)
+		VALUES (p_patient, p_name, p_gender, p_age, p_address, 1)
+		RETURNING name, gtype, age, address, number_of_appts
+		INTO patient_name, patient_gender, patient_age, patient_address, patient_appointments;
+	END IF;
+
+	IF outcome = 'WAITLISTED' THEN
+		INSERT INTO waitlist (appt_id, doctor_id, patient_id) VALUES (p_appt, p_doctor, p_patient)
+		ON CONFLICT (appt_id, patient_id) DO NOTHING;
+	END IF;
+
+	hospital := p_hospital;
+	IF hospital IS NULL THEN
+		SELECT DT.hid INTO hospital
+		FROM Doctor D, Department DT
+		WHERE D.doctor_ID = p_doctor AND D.did = DT.dept_ID;
+		IF NOT FOUND THEN
+			RAISE EXCEPTION 'No hospital found for doctor %', p_doctor USING ERRCODE = 'foreign_key_violation';
+		END IF;
+	END IF;
+	-- a patient booking an appointment again, after a release, already searched it
+	INSERT INTO searches (hid, pid, aid) VALUES (hospital, p_patient, p_appt)
+	ON CONFLICT (hid, pid, aid) DO NOTHING;
+END;
+$$ LANGUAGE plpgsql;
@@ -8,6 +8,9 @@ DROP TABLE IF EXISTS has_appointment CASCADE;--OK
 DROP TABLE IF EXISTS request_maintenance CASCADE;--OK
 DROP TABLE IF EXISTS searches CASCADE;--OK
 DROP TABLE IF EXISTS schedules CASCADE;--OK
+DROP TABLE IF EXISTS doctor_status_stats CASCADE;
+DROP TABLE IF EXISTS waitlist CASCADE;
+DROP TABLE IF EXISTS appointment_release CASCADE;
 
 
 -------------
@@ -17,6 +20,7 @@ CREATE DOMAIN _GENDER VARCHAR(1) CHECK (VALUE IN ( 'F' , 'M' ) );
 CREATE DOMAIN _PINTEGER AS int4 CHECK(VALUE > 0);
 CREATE DOMAIN _PZEROINTEGER AS int4 CHECK(VALUE >= 0);
 CREATE DOMAIN _STATUS VARCHAR(2) CHECK (VALUE IN ('PA', 'AC', 'AV', 'WL')); --Past, Active, Available, Waitlisted
+CREATE TYPE TIMERANGE AS RANGE (subtype = TIME); --hours of a day
 
 ------------
 ---TABLES---
@@ -74,6 +78,7 @@ CREATE TABLE Appointment
 	adate DATE NOT NULL,
 	time_slot VARCHAR(11),
 	status _STATUS,
+	slot TSRANGE, --adate and time_slot as a range, set by sql/triggers.sql
 	PRIMARY KEY (appnt_ID)
 );
 
@@ -88,6 +93,7 @@ CREATE TABLE request_maintenance
 	patient_per_hour INTEGER NOT NULL,
 	dept_name VARCHAR(32) NOT NULL,
 	time_slot VARCHAR(11) NOT NULL,
+	hours TIMERANGE, --time_slot as a range, set by sql/triggers.sql
 	did INTEGER NOT NULL,	
 	sid INTEGER NOT NULL,	
 	PRIMARY KEY (did,sid),
@@ -124,100 +130,26 @@ CREATE TABLE has_appointment
 	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID)
 );
 
-----------------------------
--- INSERT DATA STATEMENTS --
-----------------------------
-
-COPY Patient (
-	patient_ID ,
-	name ,	
-	gtype ,
-	age ,
-	address ,
-	number_of_appts
-)
-FROM 'patient.csv'
-WITH DELIMITER ',';
-
-
-COPY Hospital (
-	hospital_ID,
-	name
-)
-FROM 'hospital.csv'
-WITH DELIMITER ',';
-
-
-COPY Department (
-	dept_ID,
-	name,
-	hid
-)
-FROM 'department.csv'
-WITH DELIMITER ',';
-
-
-COPY Staff (
-	staff_ID,
-	name,
-	hid
-)
-FROM 'staff.csv'
-WITH DELIMITER ',';
-
-
-COPY Doctor (
-	doctor_ID,
-	name,
-	specialty,
-	did
-)
-FROM 'doctor.csv'
-WITH DELIMITER ',';
-
-
-COPY Appointment (
-	appnt_ID,
-	adate,
-	time_slot,
-	status
-)
-FROM 'appointment.csv'
-WITH DELIMITER ',';
-
-
-COPY request_maintenance (
-	patient_per_hour,
-	dept_name,
-	time_slot,
-	did,
-	sid
-)
-FROM 'request_maintenance.csv'
-WITH DELIMITER ',';
-
-
-COPY searches (
-	hid,
-	pid,
-	aid
-)
-FROM 'searches.csv'
-WITH DELIMITER ',';
-
-
-COPY schedules (
-	appt_id,
-	staff_id
-)
-FROM 'schedules.csv'
-WITH DELIMITER ',';
-
-
-COPY has_appointment (
-	appt_id,
-	doctor_id
-)
-FROM 'has_appointment.csv'
-WITH DELIMITER ',';
+-- patients waiting for a taken appointment, served in entry_ID order
+CREATE TABLE waitlist
+(
+	entry_ID BIGSERIAL NOT NULL,
+	appt_id INTEGER NOT NULL,
+	doctor_id INTEGER NOT NULL,
+	patient_id INTEGER NOT NULL,
+	enqueued TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (entry_ID),
+	UNIQUE (appt_id,patient_id),
+	FOREIGN KEY (appt_id,doctor_id) REFERENCES has_appointment(appt_id,doctor_id),
+	FOREIGN KEY (patient_id) REFERENCES Patient(patient_ID)
+);
 
+-- released appointments whose first waiter is still to be promoted
+CREATE TABLE appointment_release
+(
+	appt_id INTEGER NOT NULL,
+	doctor_id INTEGER NOT NULL,
+	released TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (appt_id),
+	FOREIGN KEY (appt_id,doctor_id) REFERENCES has_appointment(appt_id,doctor_id)
+);
@@ -0,0 +1,47 @@
+-----------------------
+---SECONDARY INDEXES---
+-----------------------
+-- Indexes for the filters and joins of the DBproject menu queries. Run after
+-- the data is loaded; the script is idempotent and builds concurrently, so it
+-- also serves as the migration for an existing database.
+
+-- (4) status lookup, (5) appointments of a doctor, (7) counts per doctor
+CREATE INDEX CONCURRENTLY IF NOT EXISTS has_appointment_doctor_idx ON has_appointment (doctor_id, appt_id);
+
+-- (6) available appointments of a department
+CREATE INDEX CONCURRENTLY IF NOT EXISTS department_name_idx ON Department (name);
+-- option 6 no longer reads request_maintenance
+DROP INDEX CONCURRENTLY IF EXISTS request_maintenance_dept_name_idx;
+
+-- Appointment may be partitioned (sql/partition.sql), and a partitioned
+-- table cannot build its indexes concurrently, so these block writes to
+-- Appointment while they are built the first time.
+
+-- (5) active and available appointments in a date range, (6) available on a date
+CREATE INDEX IF NOT EXISTS appointment_available_adate_idx ON Appointment (adate) WHERE status = 'AV';
+CREATE INDEX IF NOT EXISTS appointment_open_adate_idx ON Appointment (adate, appnt_ID) WHERE status IN ('AV', 'AC');
+-- next available slot of a doctor, and available slots overlapping a period;
+-- the slot column is added by sql/triggers.sql, which must run first
+CREATE INDEX IF NOT EXISTS appointment_available_start_idx ON Appointment (lower(slot)) WHERE status = 'AV';
+CREATE INDEX IF NOT EXISTS appointment_available_slot_idx ON Appointment USING gist (slot) WHERE status = 'AV';
+-- (8) appointments with a given status
+CREATE INDEX IF NOT EXISTS appointment_status_idx ON Appointment (status, appnt_ID);
+
+-- (8) patients per appointment; the primary key leads with hid
+CREATE INDEX CONCURRENTLY IF NOT EXISTS searches_aid_idx ON searches (aid, pid);
+
+-- (4) doctor -> department -> hospital resolution, (6) doctors of a department
+CREATE INDEX CONCURRENTLY IF NOT EXISTS doctor_did_idx ON Doctor (did);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS department_hid_idx ON Department (hid);
+
+-- waitlist: the first waiter of an appointment, released appointments oldest first
+CREATE INDEX CONCURRENTLY IF NOT EXISTS waitlist_appt_idx ON waitlist (appt_id, entry_ID);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS appointment_release_released_idx ON appointment_release (released);
+
+-- remaining foreign keys, so deletes on the referenced tables do not scan
+CREATE INDEX CONCURRENTLY IF NOT EXISTS staff_hid_idx ON Staff (hid);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS request_maintenance_sid_idx ON request_maintenance (sid);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS schedules_staff_idx ON schedules (staff_id);
+CREATE INDEX CONCURRENTLY IF NOT EXISTS searches_pid_idx ON searches (pid);
+
+ANALYZE;
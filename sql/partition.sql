@@ -0,0 +1,151 @@
+-----------------------------
+---APPOINTMENT PARTITIONING---
+-----------------------------
+-- Converts Appointment into a table range partitioned by month of adate, so
+-- date filtered queries only read the months they ask for, and adds the
+-- functions that create future partitions and archive past ones. Run once on
+-- a loaded database with psql; it ends by running sql/triggers.sql and
+-- sql/indexes.sql again, since the triggers and indexes of the old table go
+-- with it. The table is locked while its rows are copied.
+--
+-- A partitioned table can only be unique on columns that include adate, so
+-- appointment_key keeps every appointment ID once, with its date, and the
+-- link tables reference it instead of Appointment. Archived appointments
+-- keep their key, so their IDs are not handed out again.
+--
+-- Keep partitions current from cron with postgresql/maintainPartitions.sh.
+
+BEGIN;
+
+LOCK TABLE Appointment IN ACCESS EXCLUSIVE MODE;
+
+CREATE TABLE appointment_key
+(
+	appnt_ID INTEGER NOT NULL,
+	adate DATE NOT NULL,
+	PRIMARY KEY (appnt_ID)
+);
+INSERT INTO appointment_key (appnt_ID, adate) SELECT appnt_ID, adate FROM Appointment;
+
+-- deferred, so an appointment moving to another month can give up its key
+-- and take it again within one statement
+ALTER TABLE searches DROP CONSTRAINT IF EXISTS searches_aid_fkey;
+ALTER TABLE searches ADD CONSTRAINT searches_aid_fkey
+	FOREIGN KEY (aid) REFERENCES appointment_key(appnt_ID) DEFERRABLE INITIALLY DEFERRED;
+ALTER TABLE schedules DROP CONSTRAINT IF EXISTS schedules_appt_id_fkey;
+ALTER TABLE schedules ADD CONSTRAINT schedules_appt_id_fkey
+	FOREIGN KEY (appt_id) REFERENCES appointment_key(appnt_ID) DEFERRABLE INITIALLY DEFERRED;
+ALTER TABLE has_appointment DROP CONSTRAINT IF EXISTS has_appointment_appt_id_fkey;
+ALTER TABLE has_appointment ADD CONSTRAINT has_appointment_appt_id_fkey
+	FOREIGN KEY (appt_id) REFERENCES appointment_key(appnt_ID) DEFERRABLE INITIALLY DEFERRED;
+
+ALTER TABLE Appointment RENAME TO appointment_unpartitioned;
+ALTER TABLE appointment_unpartitioned RENAME CONSTRAINT appointment_pkey TO appointment_unpartitioned_pkey;
+
+CREATE TABLE Appointment
+(
+	appnt_ID INTEGER NOT NULL,
+	adate DATE NOT NULL,
+	time_slot VARCHAR(11),
+	status _STATUS,
+	slot TSRANGE,
+	PRIMARY KEY (appnt_ID, adate)
+) PARTITION BY RANGE (adate);
+
+-- appointments of months without a partition, moved out when one is created
+CREATE TABLE appointment_default PARTITION OF Appointment DEFAULT;
+
+CREATE OR REPLACE FUNCTION appointment_partition_name(p_month DATE) RETURNS TEXT AS $$
+	SELECT 'appointment_' || to_char(p_month, 'YYYY_MM');
+$$ LANGUAGE sql IMMUTABLE;
+
+-- Creates the missing monthly partitions from the month of p_from to the
+-- month of p_to, moving their rows out of the default partition.
+CREATE OR REPLACE FUNCTION create_appointment_partitions(p_from DATE, p_to DATE) RETURNS INTEGER AS $$
+DECLARE
+	m DATE := date_trunc('month', p_from)::date;
+	n DATE;
+	created INTEGER := 0;
+	name TEXT;
+BEGIN
+	-- the rows keep their keys while they move
+	PERFORM set_config('hospital.moving_appointments', 'on', true);
+	WHILE m <= p_to LOOP
+		n := (m + interval '1 month')::date;
+		name := appointment_partition_name(m);
+		IF to_regclass(name) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I (LIKE Appointment INCLUDING DEFAULTS)', name);
+			EXECUTE format('WITH moved AS (DELETE FROM appointment_default WHERE adate >= %L AND adate < %L RETURNING *) INSERT INTO %I SELECT * FROM moved', m, n, name);
+			EXECUTE format('ALTER TABLE Appointment ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)', name, m, n);
+			created := created + 1;
+		END IF;
+		m := n;
+	END LOOP;
+	PERFORM set_config('hospital.moving_appointments', 'off', true);
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Detaches the monthly partitions that end on or before p_before and hold
+-- only past appointments, and moves them to the appointment_archive schema.
+-- Archived appointments leave the menu reports, so the per-doctor summary is
+-- recounted when anything was archived.
+CREATE SCHEMA IF NOT EXISTS appointment_archive;
+CREATE OR REPLACE FUNCTION archive_appointment_partitions(p_before DATE) RETURNS INTEGER AS $$
+DECLARE
+	p RECORD;
+	open BOOLEAN;
+	archived INTEGER := 0;
+BEGIN
+	FOR p IN SELECT C.relname, to_date(substr(C.relname, 13), 'YYYY_MM') AS month
+		FROM pg_inherits I JOIN pg_class C ON C.oid = I.inhrelid
+		WHERE I.inhparent = 'appointment'::regclass AND C.relname ~ '^appointment_\d{4}_\d{2}$'
+		ORDER BY C.relname
+	LOOP
+		EXIT WHEN (p.month + interval '1 month')::date > p_before;
+		EXECUTE format('SELECT EXISTS (SELECT 1 FROM %I WHERE status IS DISTINCT FROM %L)', p.relname, 'PA') INTO open;
+		CONTINUE WHEN open;
+		EXECUTE format('ALTER TABLE Appointment DETACH PARTITION %I', p.relname);
+		EXECUTE format('ALTER TABLE %I SET SCHEMA appointment_archive', p.relname);
+		archived := archived + 1;
+	END LOOP;
+	IF archived > 0 AND to_regproc('rebuild_doctor_status_stats') IS NOT NULL THEN
+		PERFORM rebuild_doctor_status_stats();
+	END IF;
+	RETURN archived;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION maintain_appointment_key() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('hospital.moving_appointments', true) = 'on' THEN
+		RETURN NULL;
+	END IF;
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO appointment_key (appnt_ID, adate) VALUES (NEW.appnt_ID, NEW.adate);
+	ELSIF TG_OP = 'UPDATE' THEN
+		UPDATE appointment_key SET appnt_ID = NEW.appnt_ID, adate = NEW.adate WHERE appnt_ID = OLD.appnt_ID;
+	ELSE
+		DELETE FROM appointment_key WHERE appnt_ID = OLD.appnt_ID;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a duplicate ID fails on the primary key of appointment_key, as it did on Appointment
+CREATE TRIGGER appointment_key AFTER INSERT OR UPDATE OF appnt_ID, adate OR DELETE ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE maintain_appointment_key();
+
+SELECT create_appointment_partitions(coalesce(min(adate), current_date), greatest(max(adate), current_date) + 365)
+FROM appointment_unpartitioned;
+
+-- the keys exist already
+SELECT set_config('hospital.moving_appointments', 'on', true);
+INSERT INTO Appointment SELECT appnt_ID, adate, time_slot, status, slot FROM appointment_unpartitioned;
+SELECT set_config('hospital.moving_appointments', 'off', true);
+DROP TABLE appointment_unpartitioned;
+
+COMMIT;
+
+\ir triggers.sql
+\ir indexes.sql
@@ -0,0 +1,295 @@
+--------------
+---TRIGGERS---
+--------------
+-- Triggers the application relies on and the tables they maintain. Run
+-- after the data is loaded; the script is idempotent, so it also serves as
+-- the migration for an existing database.
+
+-- Time slots are entered as HH:MM-HH:MM text. They are also kept as ranges,
+-- so overlap and ordering questions can use the GiST and btree indexes of
+-- sql/indexes.sql: Appointment.slot is the timestamp range of the slot on
+-- its date, request_maintenance.hours the time of day range. A slot that is
+-- not HH:MM-HH:MM with times from 0:00 to 23:59, or that ends before it
+-- starts, is rejected with check_violation, as HospitalService.parseTimeSlot
+-- rejects it.
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_type WHERE typname = 'timerange') THEN
+		CREATE TYPE TIMERANGE AS RANGE (subtype = TIME);
+	END IF;
+END;
+$$;
+ALTER TABLE Appointment ADD COLUMN IF NOT EXISTS slot TSRANGE;
+ALTER TABLE request_maintenance ADD COLUMN IF NOT EXISTS hours TIMERANGE;
+
+CREATE OR REPLACE FUNCTION slot_hours(p_slot VARCHAR) RETURNS TIMERANGE AS $$
+DECLARE
+	m TEXT[];
+BEGIN
+	IF p_slot IS NULL THEN
+		RETURN NULL;
+	END IF;
+	m := regexp_match(p_slot, '^\s*(\d{1,2}):(\d{2})\s*-\s*(\d{1,2}):(\d{2})\s*$');
+	-- make_time would take 24:00, and report other bad times with its own codes
+	IF m IS NULL OR m[1]::int > 23 OR m[2]::int > 59 OR m[3]::int > 23 OR m[4]::int > 59 THEN
+		RAISE EXCEPTION 'time slot "%" is not HH:MM-HH:MM', p_slot USING ERRCODE = 'check_violation';
+	END IF;
+	-- timerange would raise data_exception for a range that ends before it starts
+	IF (m[3]::int, m[4]::int) < (m[1]::int, m[2]::int) THEN
+		RAISE EXCEPTION 'time slot "%" ends before it starts', p_slot USING ERRCODE = 'check_violation';
+	END IF;
+	RETURN timerange(make_time(m[1]::int, m[2]::int, 0), make_time(m[3]::int, m[4]::int, 0));
+END;
+$$ LANGUAGE plpgsql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION slot_range(p_date DATE, p_slot VARCHAR) RETURNS TSRANGE AS $$
+	SELECT tsrange(p_date + lower(H), p_date + upper(H)) FROM slot_hours(p_slot) H;
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION set_appointment_slot() RETURNS trigger AS $$
+BEGIN
+	NEW.slot := slot_range(NEW.adate, NEW.time_slot);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION set_maintenance_hours() RETURNS trigger AS $$
+BEGIN
+	NEW.hours := slot_hours(NEW.time_slot);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS appointment_slot ON Appointment;
+CREATE TRIGGER appointment_slot BEFORE INSERT OR UPDATE OF adate, time_slot, slot ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE set_appointment_slot();
+DROP TRIGGER IF EXISTS maintenance_hours ON request_maintenance;
+CREATE TRIGGER maintenance_hours BEFORE INSERT OR UPDATE OF time_slot, hours ON request_maintenance
+	FOR EACH ROW EXECUTE PROCEDURE set_maintenance_hours();
+
+-- convert the rows loaded before the triggers existed
+UPDATE Appointment SET slot = NULL WHERE slot IS NULL AND time_slot IS NOT NULL;
+UPDATE request_maintenance SET hours = NULL WHERE hours IS NULL;
+
+-- Reference data changes are announced on the reference_data channel, which
+-- ReferenceCache LISTENs on. The payload is the table name; one notification
+-- is sent per statement, so bulk changes do not flood the listeners.
+CREATE OR REPLACE FUNCTION notify_reference_change() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('reference_data', TG_TABLE_NAME);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS hospital_reference_change ON Hospital;
+CREATE TRIGGER hospital_reference_change AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Hospital
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_change();
+DROP TRIGGER IF EXISTS department_reference_change ON Department;
+CREATE TRIGGER department_reference_change AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Department
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_change();
+DROP TRIGGER IF EXISTS doctor_reference_change ON Doctor;
+CREATE TRIGGER doctor_reference_change AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Doctor
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_change();
+DROP TRIGGER IF EXISTS staff_reference_change ON Staff;
+CREATE TRIGGER staff_reference_change AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON Staff
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_reference_change();
+
+-- Appointments that may have become available or unavailable are announced
+-- on the availability channel, which AvailabilityIndex LISTENs on. The
+-- payload is the appointment ID, or empty after a TRUNCATE; a transaction
+-- sends each ID once however many rows of the appointment it changes.
+CREATE OR REPLACE FUNCTION notify_availability() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		PERFORM pg_notify('availability', '');
+	ELSIF TG_TABLE_NAME = 'appointment' THEN
+		PERFORM pg_notify('availability', OLD.appnt_ID::text);
+	ELSE
+		IF TG_OP IN ('DELETE', 'UPDATE') THEN
+			PERFORM pg_notify('availability', OLD.appt_id::text);
+		END IF;
+		IF TG_OP IN ('INSERT', 'UPDATE') THEN
+			PERFORM pg_notify('availability', NEW.appt_id::text);
+		END IF;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a new appointment has no doctor yet, so only its has_appointment row counts;
+-- an appointment moved to the partition of another month is announced by
+-- the DELETE it becomes, with the same ID
+DROP TRIGGER IF EXISTS appointment_availability ON Appointment;
+CREATE TRIGGER appointment_availability AFTER UPDATE OF status, adate OR DELETE ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE notify_availability();
+DROP TRIGGER IF EXISTS has_appointment_availability ON has_appointment;
+CREATE TRIGGER has_appointment_availability AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+	FOR EACH ROW EXECUTE PROCEDURE notify_availability();
+DROP TRIGGER IF EXISTS has_appointment_truncate_availability ON has_appointment;
+CREATE TRIGGER has_appointment_truncate_availability AFTER TRUNCATE ON has_appointment
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_availability();
+
+-- Appointments and patients per doctor and status, the answers of menu
+-- options 7 and 8, kept current by row triggers in the transaction of every
+-- write to Appointment, has_appointment and searches. Appointments
+-- without a status are not counted, as count(A.status) did not count them.
+-- Writes of the same doctor serialize on its summary rows until they commit.
+CREATE TABLE IF NOT EXISTS doctor_status_stats
+(
+	doctor_id INTEGER NOT NULL,
+	status _STATUS NOT NULL,
+	appointments BIGINT NOT NULL DEFAULT 0,
+	patients BIGINT NOT NULL DEFAULT 0,
+	PRIMARY KEY (doctor_id, status),
+	FOREIGN KEY (doctor_id) REFERENCES Doctor(doctor_ID) ON DELETE CASCADE
+);
+
+CREATE OR REPLACE FUNCTION bump_doctor_status(p_doctor INTEGER, p_status VARCHAR, p_appointments BIGINT, p_patients BIGINT) RETURNS void AS $$
+BEGIN
+	IF p_status IS NULL OR (p_appointments = 0 AND p_patients = 0) THEN
+		RETURN;
+	END IF;
+	INSERT INTO doctor_status_stats AS S (doctor_id, status, appointments, patients)
+	VALUES (p_doctor, p_status, p_appointments, p_patients)
+	ON CONFLICT (doctor_id, status) DO UPDATE
+	SET appointments = S.appointments + EXCLUDED.appointments, patients = S.patients + EXCLUDED.patients;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Recounts the summary from scratch, blocking writers meanwhile.
+CREATE OR REPLACE FUNCTION rebuild_doctor_status_stats() RETURNS void AS $$
+BEGIN
+	LOCK TABLE Appointment, has_appointment, searches IN SHARE MODE;
+	DELETE FROM doctor_status_stats;
+	INSERT INTO doctor_status_stats (doctor_id, status, appointments, patients)
+	SELECT H.doctor_id, A.status, count(*), coalesce(sum(S.n), 0)
+	FROM has_appointment H JOIN Appointment A ON A.appnt_ID = H.appt_id
+	LEFT JOIN (SELECT aid, count(*) AS n FROM searches GROUP BY aid) S ON S.aid = H.appt_id
+	WHERE A.status IS NOT NULL
+	GROUP BY H.doctor_id, A.status;
+END;
+$$ LANGUAGE plpgsql;
+
+-- an appointment changing status moves its count and its patients
+CREATE OR REPLACE FUNCTION appointment_status_stats() RETURNS trigger AS $$
+DECLARE
+	n BIGINT;
+BEGIN
+	SELECT count(*) INTO n FROM searches WHERE aid = OLD.appnt_ID;
+	PERFORM bump_doctor_status(H.doctor_id, OLD.status, -1, -n), bump_doctor_status(H.doctor_id, NEW.status, 1, n)
+	FROM has_appointment H WHERE H.appt_id = OLD.appnt_ID;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- An appointment deleted while it still has a doctor takes its count and
+-- its patients along. It runs before the delete, as the triggers of the
+-- has_appointment and searches rows deleted afterwards in the transaction
+-- no longer find the status to take them from. An appointment inserted
+-- with a doctor already linked brings them back: an UPDATE that moves an
+-- appointment to the partition of another month (sql/partition.sql) is a
+-- DELETE and an INSERT, which do not fire appointment_status_stats. A new
+-- appointment gets its doctor afterwards, so its insert counts nothing,
+-- and rows moved by create_appointment_partitions are skipped.
+CREATE OR REPLACE FUNCTION appointment_row_stats() RETURNS trigger AS $$
+BEGIN
+	IF current_setting('hospital.moving_appointments', true) = 'on' THEN
+		NULL;
+	ELSIF TG_OP = 'DELETE' THEN
+		PERFORM bump_doctor_status(H.doctor_id, OLD.status, -1, -(SELECT count(*) FROM searches S WHERE S.aid = OLD.appnt_ID))
+		FROM has_appointment H WHERE H.appt_id = OLD.appnt_ID;
+	ELSE
+		PERFORM bump_doctor_status(H.doctor_id, NEW.status, 1, (SELECT count(*) FROM searches S WHERE S.aid = NEW.appnt_ID))
+		FROM has_appointment H WHERE H.appt_id = NEW.appnt_ID;
+	END IF;
+	IF TG_OP = 'DELETE' THEN
+		RETURN OLD;
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+-- an appointment given to or taken from a doctor
+CREATE OR REPLACE FUNCTION has_appointment_stats() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		PERFORM bump_doctor_status(OLD.doctor_id, A.status, -1, -(SELECT count(*) FROM searches S WHERE S.aid = OLD.appt_id))
+		FROM Appointment A WHERE A.appnt_ID = OLD.appt_id;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM bump_doctor_status(NEW.doctor_id, A.status, 1, (SELECT count(*) FROM searches S WHERE S.aid = NEW.appt_id))
+		FROM Appointment A WHERE A.appnt_ID = NEW.appt_id;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a patient added to or removed from an appointment
+CREATE OR REPLACE FUNCTION searches_stats() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		PERFORM bump_doctor_status(H.doctor_id, A.status, 0, -1)
+		FROM has_appointment H, Appointment A WHERE H.appt_id = OLD.aid AND A.appnt_ID = OLD.aid;
+	END IF;
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		PERFORM bump_doctor_status(H.doctor_id, A.status, 0, 1)
+		FROM has_appointment H, Appointment A WHERE H.appt_id = NEW.aid AND A.appnt_ID = NEW.aid;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION truncate_doctor_status_stats() RETURNS trigger AS $$
+BEGIN
+	PERFORM rebuild_doctor_status_stats();
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS appointment_status_stats ON Appointment;
+CREATE TRIGGER appointment_status_stats AFTER UPDATE OF status ON Appointment
+	FOR EACH ROW WHEN (OLD.status IS DISTINCT FROM NEW.status) EXECUTE PROCEDURE appointment_status_stats();
+DROP TRIGGER IF EXISTS appointment_row_stats ON Appointment;
+CREATE TRIGGER appointment_row_stats BEFORE INSERT OR DELETE ON Appointment
+	FOR EACH ROW EXECUTE PROCEDURE appointment_row_stats();
+DROP TRIGGER IF EXISTS has_appointment_stats ON has_appointment;
+CREATE TRIGGER has_appointment_stats AFTER INSERT OR UPDATE OR DELETE ON has_appointment
+	FOR EACH ROW EXECUTE PROCEDURE has_appointment_stats();
+DROP TRIGGER IF EXISTS searches_stats ON searches;
+CREATE TRIGGER searches_stats AFTER INSERT OR UPDATE OR DELETE ON searches
+	FOR EACH ROW EXECUTE PROCEDURE searches_stats();
+DROP TRIGGER IF EXISTS has_appointment_truncate_stats ON has_appointment;
+CREATE TRIGGER has_appointment_truncate_stats AFTER TRUNCATE ON has_appointment
+	FOR EACH STATEMENT EXECUTE PROCEDURE truncate_doctor_status_stats();
+DROP TRIGGER IF EXISTS searches_truncate_stats ON searches;
+CREATE TRIGGER searches_truncate_stats AFTER TRUNCATE ON searches
+	FOR EACH STATEMENT EXECUTE PROCEDURE truncate_doctor_status_stats();
+
+-- fill the summary from the data already loaded
+SELECT rebuild_doctor_status_stats();
+
+-- The waitlist and the released appointments, as in sql/create.sql, for a
+-- database created before them; their indexes are in sql/indexes.sql.
+-- Booking and Waitlist rely on the UNIQUE (appt_id, patient_id) to queue a
+-- patient at most once per appointment.
+CREATE TABLE IF NOT EXISTS waitlist
+(
+	entry_ID BIGSERIAL NOT NULL,
+	appt_id INTEGER NOT NULL,
+	doctor_id INTEGER NOT NULL,
+	patient_id INTEGER NOT NULL,
+	enqueued TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (entry_ID),
+	UNIQUE (appt_id,patient_id),
+	FOREIGN KEY (appt_id,doctor_id) REFERENCES has_appointment(appt_id,doctor_id),
+	FOREIGN KEY (patient_id) REFERENCES Patient(patient_ID)
+);
+
+CREATE TABLE IF NOT EXISTS appointment_release
+(
+	appt_id INTEGER NOT NULL,
+	doctor_id INTEGER NOT NULL,
+	released TIMESTAMP NOT NULL DEFAULT now(),
+	PRIMARY KEY (appt_id),
+	FOREIGN KEY (appt_id,doctor_id) REFERENCES has_appointment(appt_id,doctor_id)
+);